@@ -173,17 +173,20 @@ public class IpServer extends StateMachine {
             return new DadProxy(handler, ifParams);
         }
 
-        /** Create an IpNeighborMonitor to be used by this IpServer */
-        public IpNeighborMonitor getIpNeighborMonitor(Handler handler, SharedLog log,
-                IpNeighborMonitor.NeighborEventConsumer consumer) {
-            return new IpNeighborMonitor(handler, log, consumer);
-        }
-
         /** Create a RouterAdvertisementDaemon instance to be used by IpServer.*/
         public RouterAdvertisementDaemon getRouterAdvertisementDaemon(InterfaceParams ifParams) {
             return new RouterAdvertisementDaemon(ifParams);
         }
 
+        /**
+         * Create a RouterAdvertisementDaemon instance running on the IpServer handler, so that
+         * the daemons of all IpServers share the tethering thread.
+         */
+        public RouterAdvertisementDaemon getRouterAdvertisementDaemon(Handler handler,
+                InterfaceParams ifParams) {
+            return new RouterAdvertisementDaemon(ifParams, handler);
+        }
+
         /** Get |ifName|'s interface information.*/
         public InterfaceParams getInterfaceParams(String ifName) {
             return InterfaceParams.getByName(ifName);
@@ -244,6 +247,7 @@ public class IpServer extends StateMachine {
     private final LinkProperties mLinkProperties;
     private final boolean mUsingLegacyDhcp;
     private final boolean mUsingBpfOffload;
+    private final boolean mUsingEventDrivenRaDaemon;
     private final int mP2pLeasesSubnetPrefixLength;
 
     private final Dependencies mDeps;
@@ -281,7 +285,8 @@ public class IpServer extends StateMachine {
         }
     }
 
-    private final IpNeighborMonitor mIpNeighborMonitor;
+    private final SharedIpNeighborMonitor mNeighborMonitor;
+    private final MyNeighborEventConsumer mNeighborEventConsumer = new MyNeighborEventConsumer();
 
     private LinkAddress mIpv4Address;
 
@@ -291,13 +296,15 @@ public class IpServer extends StateMachine {
     // object. It helps to reduce the arguments of the constructor.
     public IpServer(
             String ifaceName, Looper looper, int interfaceType, SharedLog log,
-            INetd netd, @NonNull BpfCoordinator coordinator, Callback callback,
+            INetd netd, @NonNull BpfCoordinator coordinator,
+            @NonNull SharedIpNeighborMonitor neighborMonitor, Callback callback,
             TetheringConfiguration config, PrivateAddressCoordinator addressCoordinator,
             TetheringMetrics tetheringMetrics, Dependencies deps) {
         super(ifaceName, looper);
         mLog = log.forSubComponent(ifaceName);
         mNetd = netd;
         mBpfCoordinator = coordinator;
+        mNeighborMonitor = neighborMonitor;
         mCallback = callback;
         mInterfaceCtrl = new InterfaceController(ifaceName, mNetd, mLog);
         mIfaceName = ifaceName;
@@ -305,6 +312,7 @@ public class IpServer extends StateMachine {
         mLinkProperties = new LinkProperties();
         mUsingLegacyDhcp = config.useLegacyDhcpServer();
         mUsingBpfOffload = config.isBpfOffloadEnabled();
+        mUsingEventDrivenRaDaemon = config.useEventDrivenRaDaemon();
         mP2pLeasesSubnetPrefixLength = config.getP2pLeasesSubnetPrefixLength();
         mPrivateAddressCoordinator = addressCoordinator;
         mDeps = deps;
@@ -313,17 +321,6 @@ public class IpServer extends StateMachine {
         mLastError = TetheringManager.TETHER_ERROR_NO_ERROR;
         mServingMode = STATE_AVAILABLE;
 
-        mIpNeighborMonitor = mDeps.getIpNeighborMonitor(getHandler(), mLog,
-                new MyNeighborEventConsumer());
-
-        // IP neighbor monitor monitors the neighbor events for adding/removing offload
-        // forwarding rules per client. If BPF offload is not supported, don't start listening
-        // for neighbor events. See updateIpv6ForwardingRules, addIpv6ForwardingRule,
-        // removeIpv6ForwardingRule.
-        if (mUsingBpfOffload && !mIpNeighborMonitor.start()) {
-            mLog.e("Failed to create IpNeighborMonitor on " + mIfaceName);
-        }
-
         mInitialState = new InitialState();
         mLocalHotspotState = new LocalHotspotState();
         mTetheredState = new TetheredState();
@@ -683,7 +680,17 @@ public class IpServer extends StateMachine {
             return false;
         }
 
-        mRaDaemon = mDeps.getRouterAdvertisementDaemon(mInterfaceParams);
+        // The neighbor events are used for adding/removing offload forwarding rules per client.
+        // If BPF offload is not supported, don't listen for neighbor events. See
+        // updateIpv6ForwardingRules, addIpv6ForwardingRule, removeIpv6ForwardingRule.
+        if (mUsingBpfOffload
+                && !mNeighborMonitor.register(mInterfaceParams.index, mNeighborEventConsumer)) {
+            mLog.e("Failed to monitor neighbors on " + mIfaceName);
+        }
+
+        mRaDaemon = mUsingEventDrivenRaDaemon
+                ? mDeps.getRouterAdvertisementDaemon(getHandler(), mInterfaceParams)
+                : mDeps.getRouterAdvertisementDaemon(mInterfaceParams);
         if (!mRaDaemon.start()) {
             stopIPv6();
             return false;
@@ -698,6 +705,7 @@ public class IpServer extends StateMachine {
     }
 
     private void stopIPv6() {
+        mNeighborMonitor.unregister(mNeighborEventConsumer);
         mInterfaceParams = null;
         setRaParams(null);
 
@@ -1451,7 +1459,7 @@ public class IpServer extends StateMachine {
     class UnavailableState extends State {
         @Override
         public void enter() {
-            mIpNeighborMonitor.stop();
+            mNeighborMonitor.unregister(mNeighborEventConsumer);
             mLastError = TetheringManager.TETHER_ERROR_NO_ERROR;
             sendInterfaceState(STATE_UNAVAILABLE);
         }
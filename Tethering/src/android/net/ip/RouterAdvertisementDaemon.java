@@ -19,6 +19,7 @@ package android.net.ip;
 import static android.net.util.NetworkConstants.RFC7421_PREFIX_LENGTH;
 import static android.system.OsConstants.AF_INET6;
 import static android.system.OsConstants.IPPROTO_ICMPV6;
+import static android.system.OsConstants.SOCK_NONBLOCK;
 import static android.system.OsConstants.SOCK_RAW;
 import static android.system.OsConstants.SOL_SOCKET;
 import static android.system.OsConstants.SO_SNDTIMEO;
@@ -38,13 +39,17 @@ import android.net.LinkAddress;
 import android.net.MacAddress;
 import android.net.TrafficStats;
 import android.net.util.SocketUtils;
+import android.os.Handler;
 import android.system.ErrnoException;
 import android.system.Os;
 import android.system.StructTimeval;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.android.internal.annotations.GuardedBy;
 import com.android.net.module.util.InterfaceParams;
+import com.android.net.module.util.PacketReader;
 import com.android.net.module.util.structs.Icmpv6Header;
 import com.android.net.module.util.structs.LlaOption;
 import com.android.net.module.util.structs.MtuOption;
@@ -74,10 +79,16 @@ import java.util.concurrent.atomic.AtomicInteger;
 /**
  * Basic IPv6 Router Advertisement Daemon.
  *
+ * By default, each daemon starts two threads: one blocking on the socket to answer Router
+ * Solicitations, and one sleeping between multicast RAs. If constructed with a {@link Handler},
+ * the daemon is instead event-driven: Router Solicitations are read when the socket becomes
+ * readable, and multicast RAs are scheduled as messages on the handler. All the daemons sharing
+ * a Looper are then served by its thread, whatever the number of interfaces. In that mode, all
+ * the methods must be called on the handler thread.
+ *
  * TODO:
  *
- *     - Rewrite using Handler (and friends) so that AlarmManager can deliver
- *       "kick" messages when it's time to send a multicast RA.
+ *     - Have AlarmManager deliver "kick" messages when it's time to send a multicast RA.
  *
  * @hide
  */
@@ -105,6 +116,9 @@ public class RouterAdvertisementDaemon {
 
     private final InterfaceParams mInterface;
     private final InetSocketAddress mAllNodes;
+    // The handler the daemon runs on, or null if it uses its own threads.
+    @Nullable
+    private final Handler mHandler;
 
     // This lock is to protect the RA from being updated while being
     // transmitted on another thread  (multicast or unicast).
@@ -124,6 +138,13 @@ public class RouterAdvertisementDaemon {
     private volatile MulticastTransmitter mMulticastTransmitter;
     private volatile UnicastResponder mUnicastResponder;
 
+    // Only used if the daemon runs on mHandler.
+    private SolicitationReader mSolicitationReader;
+    private final Runnable mMulticastRaSender = this::sendMulticastRaAndReschedule;
+
+    private final Random mRandom = new Random();
+    private final AtomicInteger mUrgentAnnouncements = new AtomicInteger(0);
+
     /** Encapsulate the RA parameters for RouterAdvertisementDaemon.*/
     public static class RaParams {
         // Tethered traffic will have the hop limit properly decremented.
@@ -248,9 +269,17 @@ public class RouterAdvertisementDaemon {
     }
 
     public RouterAdvertisementDaemon(InterfaceParams ifParams) {
+        this(ifParams, null /* handler */);
+    }
+
+    /**
+     * Create a daemon running on the given handler if non-null, or on its own threads otherwise.
+     */
+    public RouterAdvertisementDaemon(InterfaceParams ifParams, @Nullable Handler handler) {
         mInterface = ifParams;
         mAllNodes = new InetSocketAddress(getAllNodesForScopeId(mInterface.index), 0);
         mDeprecatedInfoTracker = new DeprecatedInfoTracker();
+        mHandler = handler;
     }
 
     /** Build new RA.*/
@@ -276,6 +305,17 @@ public class RouterAdvertisementDaemon {
 
     /** Start router advertisement daemon. */
     public boolean start() {
+        if (mHandler != null) {
+            // The reader owns the socket: it creates it on start and closes it on stop.
+            mSolicitationReader = new SolicitationReader(mHandler);
+            if (!mSolicitationReader.start()) {
+                mSolicitationReader = null;
+                return false;
+            }
+            mHandler.postDelayed(mMulticastRaSender, getNextMulticastTransmitDelayMs());
+            return true;
+        }
+
         if (!createSocket()) {
             return false;
         }
@@ -291,6 +331,19 @@ public class RouterAdvertisementDaemon {
 
     /** Stop router advertisement daemon. */
     public void stop() {
+        if (mHandler != null) {
+            mHandler.removeCallbacks(mMulticastRaSender);
+            if (mSolicitationReader != null) {
+                // Send the RA deprecating the information removed by the last buildNewRa now,
+                // as the message scheduled to do so has just been removed.
+                if (isSocketValid()) maybeSendRA(mAllNodes);
+                mSolicitationReader.stop();
+                mSolicitationReader = null;
+            }
+            mSocket = null;
+            return;
+        }
+
         closeSocket();
         // Wake up mMulticastTransmitter thread to interrupt a potential 1 day sleep before
         // the thread's termination.
@@ -363,6 +416,15 @@ public class RouterAdvertisementDaemon {
     }
 
     private void maybeNotifyMulticastTransmitter() {
+        if (mHandler != null) {
+            if (mSolicitationReader == null) return;
+            // Same as MulticastTransmitter#hup: send an RA now, then the remaining urgent ones.
+            mUrgentAnnouncements.set(MAX_URGENT_RTR_ADVERTISEMENTS - 1);
+            mHandler.removeCallbacks(mMulticastRaSender);
+            mHandler.post(mMulticastRaSender);
+            return;
+        }
+
         final MulticastTransmitter m = mMulticastTransmitter;
         if (m != null) {
             m.hup();
@@ -506,7 +568,9 @@ public class RouterAdvertisementDaemon {
 
         final int oldTag = TrafficStats.getAndSetThreadStatsTag(TAG_SYSTEM_NEIGHBOR);
         try {
-            mSocket = Os.socket(AF_INET6, SOCK_RAW, IPPROTO_ICMPV6);
+            // The event-driven daemon must never block its handler thread.
+            mSocket = Os.socket(AF_INET6, SOCK_RAW | (mHandler != null ? SOCK_NONBLOCK : 0),
+                    IPPROTO_ICMPV6);
             // Setting SNDTIMEO is purely for defensive purposes.
             Os.setsockoptTimeval(
                     mSocket, SOL_SOCKET, SO_SNDTIMEO, StructTimeval.fromMillis(send_timout_ms));
@@ -582,10 +646,7 @@ public class RouterAdvertisementDaemon {
                     // Blocking receive.
                     final int rval = Os.recvfrom(
                             mSocket, mSolicitation, 0, mSolicitation.length, 0, mSolicitor);
-                    // Do the least possible amount of validation.
-                    if (rval < 1 || mSolicitation[0] != asByte(ICMPV6_ROUTER_SOLICITATION)) {
-                        continue;
-                    }
+                    if (!isRouterSolicitation(mSolicitation, rval)) continue;
                 } catch (ErrnoException | SocketException e) {
                     if (isSocketValid()) {
                         Log.e(TAG, "recvfrom error: " + e);
@@ -598,12 +659,80 @@ public class RouterAdvertisementDaemon {
         }
     }
 
-    // TODO: Consider moving this to run on a provided Looper as a Handler,
-    // with WakeupMessage-style messages providing the timer driven input.
-    private final class MulticastTransmitter extends Thread {
-        private final Random mRandom = new Random();
-        private final AtomicInteger mUrgentAnnouncements = new AtomicInteger(0);
+    private static boolean isRouterSolicitation(byte[] packet, int length) {
+        // Do the least possible amount of validation.
+        return length >= 1 && packet[0] == asByte(ICMPV6_ROUTER_SOLICITATION);
+    }
+
+    /**
+     * Answers Router Solicitations on the handler thread, when the socket becomes readable.
+     */
+    private final class SolicitationReader extends PacketReader {
+        private final InetSocketAddress mSolicitor = new InetSocketAddress(0);
+
+        SolicitationReader(Handler h) {
+            // As in UnicastResponder, Router Solicitations larger than IPV6_MIN_MTU are
+            // truncated, which is fine since only byte 0 is examined.
+            super(h, IPV6_MIN_MTU);
+        }
+
+        @Override
+        protected FileDescriptor createFd() {
+            return createSocket() ? mSocket : null;
+        }
+
+        @Override
+        protected int readPacket(FileDescriptor fd, byte[] packetBuffer) throws Exception {
+            return Os.recvfrom(fd, packetBuffer, 0, packetBuffer.length, 0, mSolicitor);
+        }
+
+        @Override
+        protected void handlePacket(byte[] recvbuf, int length) {
+            if (isRouterSolicitation(recvbuf, length)) maybeSendRA(mSolicitor);
+        }
+    }
+
+    private void sendMulticastRa() {
+        maybeSendRA(mAllNodes);
+        synchronized (mLock) {
+            if (mDeprecatedInfoTracker.decrementCounters()) {
+                // At least one deprecated PIO has been removed;
+                // reassemble the RA.
+                assembleRaLocked();
+            }
+        }
+    }
+
+    private void sendMulticastRaAndReschedule() {
+        if (!isSocketValid()) return;
+        sendMulticastRa();
+        mHandler.postDelayed(mMulticastRaSender, getNextMulticastTransmitDelayMs());
+    }
+
+    private int getNextMulticastTransmitDelaySec() {
+        boolean deprecationInProgress = false;
+        synchronized (mLock) {
+            if (mRaLength < ICMPV6_RA_HEADER_LEN) {
+                // No actual RA to send; just sleep for 1 day.
+                return DAY_IN_SECONDS;
+            }
+            deprecationInProgress = !mDeprecatedInfoTracker.isEmpty();
+        }
+
+        final int urgentPending = mUrgentAnnouncements.getAndDecrement();
+        if ((urgentPending > 0) || deprecationInProgress) {
+            return MIN_DELAY_BETWEEN_RAS_SEC;
+        }
+
+        return MIN_RTR_ADV_INTERVAL_SEC + mRandom.nextInt(
+                MAX_RTR_ADV_INTERVAL_SEC - MIN_RTR_ADV_INTERVAL_SEC);
+    }
 
+    private long getNextMulticastTransmitDelayMs() {
+        return 1000 * (long) getNextMulticastTransmitDelaySec();
+    }
+
+    private final class MulticastTransmitter extends Thread {
         @Override
         public void run() {
             while (isSocketValid()) {
@@ -613,14 +742,7 @@ public class RouterAdvertisementDaemon {
                     // Stop sleeping, immediately send an RA, and continue.
                 }
 
-                maybeSendRA(mAllNodes);
-                synchronized (mLock) {
-                    if (mDeprecatedInfoTracker.decrementCounters()) {
-                        // At least one deprecated PIO has been removed;
-                        // reassemble the RA.
-                        assembleRaLocked();
-                    }
-                }
+                sendMulticastRa();
             }
         }
 
@@ -632,28 +754,5 @@ public class RouterAdvertisementDaemon {
             mUrgentAnnouncements.set(MAX_URGENT_RTR_ADVERTISEMENTS - 1);
             interrupt();
         }
-
-        private int getNextMulticastTransmitDelaySec() {
-            boolean deprecationInProgress = false;
-            synchronized (mLock) {
-                if (mRaLength < ICMPV6_RA_HEADER_LEN) {
-                    // No actual RA to send; just sleep for 1 day.
-                    return DAY_IN_SECONDS;
-                }
-                deprecationInProgress = !mDeprecatedInfoTracker.isEmpty();
-            }
-
-            final int urgentPending = mUrgentAnnouncements.getAndDecrement();
-            if ((urgentPending > 0) || deprecationInProgress) {
-                return MIN_DELAY_BETWEEN_RAS_SEC;
-            }
-
-            return MIN_RTR_ADV_INTERVAL_SEC + mRandom.nextInt(
-                    MAX_RTR_ADV_INTERVAL_SEC - MIN_RTR_ADV_INTERVAL_SEC);
-        }
-
-        private long getNextMulticastTransmitDelayMs() {
-            return 1000 * (long) getNextMulticastTransmitDelaySec();
-        }
     }
 }
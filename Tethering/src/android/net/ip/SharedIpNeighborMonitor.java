@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.ip;
+
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.SparseArray;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.net.module.util.SharedLog;
+import com.android.net.module.util.ip.IpNeighborMonitor;
+import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEvent;
+import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEventConsumer;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A neighbor monitor shared by all the downstreams.
+ *
+ * Listens to the neighbor events of the whole system on a single netlink socket, which is only
+ * open while at least one downstream is registered, and dispatches each event to the downstream
+ * registered for its interface index.
+ *
+ * The events of a downstream are queued and delivered in bursts by a task posted to the
+ * handler. Only the latest event of each neighbor is kept, because it describes the current
+ * state of the neighbor, and at most {@link #MAX_PENDING_EVENTS_PER_DOWNSTREAM} events are
+ * queued per downstream; beyond that, the oldest add or update event is dropped. A downstream
+ * that cannot keep up therefore only delays its own events and does not use unbounded memory.
+ * Events that remove a neighbor are never dropped, since nothing else would remove the state
+ * the downstream holds for it; there cannot be more of them than neighbors on the link.
+ *
+ * Note that this can be only called on handler thread.
+ *
+ * @hide
+ */
+public class SharedIpNeighborMonitor {
+    private static final String TAG = SharedIpNeighborMonitor.class.getSimpleName();
+
+    @VisibleForTesting
+    static final int MAX_PENDING_EVENTS_PER_DOWNSTREAM = 256;
+
+    /** Capture SharedIpNeighborMonitor dependencies, for injection. */
+    @VisibleForTesting
+    public static class Dependencies {
+        /** Create the IpNeighborMonitor listening to the neighbor events. */
+        public IpNeighborMonitor getIpNeighborMonitor(Handler handler, SharedLog log,
+                NeighborEventConsumer consumer) {
+            return new IpNeighborMonitor(handler, log, consumer);
+        }
+
+        /** Get the elapsed time since boot, in milliseconds. */
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
+    }
+
+    private class Downstream {
+        final int mIfindex;
+        @NonNull
+        final NeighborEventConsumer mConsumer;
+        final long mRegisteredMs;
+        // Events waiting to be delivered, by neighbor, oldest first.
+        final LinkedHashMap<InetAddress, NeighborEvent> mPending = new LinkedHashMap<>();
+        boolean mDeliveryScheduled = false;
+
+        long mReceivedCount = 0;
+        long mDeliveredCount = 0;
+        long mCoalescedCount = 0;
+        long mDroppedCount = 0;
+
+        Downstream(int ifindex, @NonNull NeighborEventConsumer consumer) {
+            mIfindex = ifindex;
+            mConsumer = consumer;
+            mRegisteredMs = mDeps.elapsedRealtime();
+        }
+
+        void enqueue(@NonNull NeighborEvent e) {
+            mReceivedCount++;
+            if (mPending.put(e.ip, e) != null) {
+                mCoalescedCount++;
+            } else if (mPending.size() > MAX_PENDING_EVENTS_PER_DOWNSTREAM) {
+                dropOldestUpdate();
+            }
+
+            if (!mDeliveryScheduled) {
+                mDeliveryScheduled = true;
+                mHandler.post(this::deliver);
+            }
+        }
+
+        private void dropOldestUpdate() {
+            final Iterator<NeighborEvent> it = mPending.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().isValid()) {
+                    it.remove();
+                    mDroppedCount++;
+                    return;
+                }
+            }
+        }
+
+        void deliver() {
+            mDeliveryScheduled = false;
+            // The downstream may have been unregistered since the delivery was scheduled.
+            if (mDownstreams.get(mIfindex) != this) return;
+
+            final ArrayList<NeighborEvent> events = new ArrayList<>(mPending.values());
+            mPending.clear();
+            mDeliveredCount += events.size();
+            for (NeighborEvent e : events) {
+                mConsumer.accept(e);
+            }
+        }
+
+        void dump(@NonNull IndentingPrintWriter pw, long now) {
+            final long elapsedMs = Math.max(1, now - mRegisteredMs);
+            pw.println(String.format("ifindex %d: received %d (%.2f/s), delivered %d, "
+                    + "coalesced %d, dropped %d, pending %d", mIfindex, mReceivedCount,
+                    mReceivedCount * 1000.0 / elapsedMs, mDeliveredCount, mCoalescedCount,
+                    mDroppedCount, mPending.size()));
+        }
+    }
+
+    @NonNull
+    private final Handler mHandler;
+    @NonNull
+    private final SharedLog mLog;
+    @NonNull
+    private final Dependencies mDeps;
+    // Registered downstreams, by interface index.
+    private final SparseArray<Downstream> mDownstreams = new SparseArray<>();
+
+    private IpNeighborMonitor mIpNeighborMonitor;
+    private long mEventCount = 0;
+    private long mUnmatchedEventCount = 0;
+
+    public SharedIpNeighborMonitor(@NonNull Handler handler, @NonNull SharedLog log) {
+        this(handler, log, new Dependencies());
+    }
+
+    @VisibleForTesting
+    public SharedIpNeighborMonitor(@NonNull Handler handler, @NonNull SharedLog log,
+            @NonNull Dependencies deps) {
+        mHandler = handler;
+        mLog = log.forSubComponent(TAG);
+        mDeps = deps;
+    }
+
+    /**
+     * Register a downstream to receive the neighbor events of the given interface. Replaces the
+     * consumer previously registered for this interface, if any.
+     *
+     * @return false if the neighbor monitor could not be started.
+     */
+    public boolean register(int ifindex, @NonNull NeighborEventConsumer consumer) {
+        mDownstreams.put(ifindex, new Downstream(ifindex, consumer));
+        if (mIpNeighborMonitor != null) return true;
+
+        mIpNeighborMonitor = mDeps.getIpNeighborMonitor(mHandler, mLog, this::dispatch);
+        if (!mIpNeighborMonitor.start()) {
+            mLog.e("Failed to start IpNeighborMonitor");
+            mIpNeighborMonitor = null;
+            mDownstreams.remove(ifindex);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Unregister the given consumer. Its pending events are discarded. Does nothing if the
+     * consumer is not registered.
+     */
+    public void unregister(@NonNull NeighborEventConsumer consumer) {
+        for (int i = mDownstreams.size() - 1; i >= 0; i--) {
+            if (mDownstreams.valueAt(i).mConsumer == consumer) mDownstreams.removeAt(i);
+        }
+
+        if (mDownstreams.size() == 0 && mIpNeighborMonitor != null) {
+            mIpNeighborMonitor.stop();
+            mIpNeighborMonitor = null;
+        }
+    }
+
+    private void dispatch(@NonNull NeighborEvent e) {
+        mEventCount++;
+        final Downstream downstream = mDownstreams.get(e.ifindex);
+        if (downstream == null) {
+            mUnmatchedEventCount++;
+            return;
+        }
+        downstream.enqueue(e);
+    }
+
+    /** Dump the event counters and rates of each downstream. */
+    public void dump(@NonNull IndentingPrintWriter pw) {
+        pw.println("Monitor " + (mIpNeighborMonitor != null ? "started" : "stopped")
+                + ", events: " + mEventCount + ", unmatched: " + mUnmatchedEventCount);
+        pw.increaseIndent();
+        final long now = mDeps.elapsedRealtime();
+        for (int i = 0; i < mDownstreams.size(); i++) {
+            mDownstreams.valueAt(i).dump(pw, now);
+        }
+        pw.decreaseIndent();
+    }
+}
@@ -42,6 +42,7 @@ import android.net.NetworkStats.Entry;
 import android.net.TetherOffloadRuleParcel;
 import android.net.ip.IpServer;
 import android.net.netstats.provider.NetworkStatsProvider;
+import android.net.util.SocketUtils;
 import android.os.Handler;
 import android.os.SystemClock;
 import android.system.ErrnoException;
@@ -50,6 +51,7 @@ import android.text.TextUtils;
 import android.util.ArraySet;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -73,15 +75,24 @@ import com.android.net.module.util.ip.ConntrackMonitor;
 import com.android.net.module.util.ip.ConntrackMonitor.ConntrackEventConsumer;
 import com.android.net.module.util.netlink.ConntrackMessage;
 import com.android.net.module.util.netlink.NetlinkConstants;
+import com.android.net.module.util.netlink.NetlinkErrorMessage;
+import com.android.net.module.util.netlink.NetlinkMessage;
 import com.android.net.module.util.netlink.NetlinkSocket;
+import com.android.net.module.util.netlink.StructNlMsgErr;
 import com.android.networkstack.tethering.apishim.common.BpfCoordinatorShim;
 import com.android.networkstack.tethering.util.TetheringUtils.ForwardedStats;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -89,6 +100,7 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -142,6 +154,17 @@ public class BpfCoordinator {
     static final int NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED = 432_000;
     @VisibleForTesting
     static final int NF_CONNTRACK_UDP_TIMEOUT_STREAM = 180;
+    // The conntrack timeout updates of each interval are spread over this many slices of the
+    // interval.
+    @VisibleForTesting
+    static final int CONNTRACK_TIMEOUT_UPDATE_SLICES = 6;
+    // Fewer updates than this are all sent in the first slice.
+    @VisibleForTesting
+    static final int MIN_CONNTRACK_TIMEOUT_UPDATES_PER_SLICE = 64;
+    // The maximum number of netlink messages sent to the kernel at once.
+    @VisibleForTesting
+    static final int MAX_NETLINK_MESSAGES_PER_SEND = 64;
+    private static final long NETLINK_MESSAGE_TIMEOUT_MS = 500;
 
     // List of TCP port numbers which aren't offloaded because the packets require the netfilter
     // conntrack helper. See also TetherController::setForwardRules in netd.
@@ -149,6 +172,11 @@ public class BpfCoordinator {
     static final short [] NON_OFFLOADED_UPSTREAM_IPV4_TCP_PORTS = new short [] {
             21 /* ftp */, 1723 /* pptp */};
 
+    // The maximum number of conntrack events waiting to be applied. The IPv4 forwarding maps
+    // hold 1024 rules each, so more pending new connections could not be offloaded anyway.
+    @VisibleForTesting
+    static final int MAX_PENDING_CONNTRACK_EVENTS = 1024;
+
     @VisibleForTesting
     enum StatsType {
         STATS_PER_IFACE,
@@ -229,6 +257,12 @@ public class BpfCoordinator {
     private final HashMap<IpServer, LinkedHashMap<Inet6Address, Ipv6ForwardingRule>>
             mIpv6ForwardingRules = new LinkedHashMap<>();
 
+    // Number of IPv6 forwarding rules in mIpv6ForwardingRules, by upstream interface index and
+    // then by downstream interface index. An upstream has an entry if and only if it has rules.
+    // Used to check whether there are rules on an upstream or between a downstream and an
+    // upstream without iterating over all the rules.
+    private final SparseArray<SparseIntArray> mIpv6RuleCounts = new SparseArray<>();
+
     // Map of downstream client maps. Each of these maps represents the IPv4 clients for a given
     // downstream. Needed to build IPv4 forwarding rules when conntrack events are received.
     // Each map:
@@ -242,6 +276,10 @@ public class BpfCoordinator {
     private final HashMap<IpServer, HashMap<Inet4Address, ClientInfo>>
             mTetherClients = new HashMap<>();
 
+    // All the clients of mTetherClients by client address, to find the client of a conntrack
+    // event without iterating over all the downstreams.
+    private final HashMap<Inet4Address, ClientInfo> mTetherClientsByAddress = new HashMap<>();
+
     // Set for which downstream is monitoring the conntrack netlink message.
     private final Set<IpServer> mMonitoringIpServers = new HashSet<>();
 
@@ -268,9 +306,18 @@ public class BpfCoordinator {
         maybeSchedulePollingStats();
     };
 
-    // Runnable that used by scheduling next refreshing of conntrack timeout.
+    // The conntrack timeout updates to send in the remaining slices of the current interval,
+    // in the order they should be sent, and the number of slices left in the interval.
+    private final ArrayDeque<byte[]> mPendingConntrackTimeoutUpdates = new ArrayDeque<>();
+    private int mConntrackTimeoutUpdatesPerSlice = 0;
+    private int mConntrackTimeoutSlicesLeft = CONNTRACK_TIMEOUT_UPDATE_SLICES;
+
+    // Runnable that used by scheduling next refreshing of conntrack timeout. It runs once at
+    // the start of each interval to find the connections to refresh, then once per slice
+    // of the interval until all of them are refreshed.
     private final Runnable mScheduledConntrackTimeoutUpdate = () -> {
-        refreshAllConntrackTimeouts();
+        if (mPendingConntrackTimeoutUpdates.isEmpty()) collectConntrackTimeoutUpdates();
+        sendConntrackTimeoutUpdates(mConntrackTimeoutUpdatesPerSlice);
         maybeScheduleConntrackTimeoutUpdate();
     };
 
@@ -309,6 +356,71 @@ public class BpfCoordinator {
             return SystemClock.elapsedRealtimeNanos();
         }
 
+        /** Create a netlink socket connected to the kernel netfilter subsystem. */
+        @NonNull
+        public FileDescriptor createNetfilterSocket() throws ErrnoException, SocketException {
+            final FileDescriptor fd = NetlinkSocket.forProto(OsConstants.NETLINK_NETFILTER);
+            try {
+                NetlinkSocket.connectToKernel(fd);
+            } catch (ErrnoException | SocketException e) {
+                try {
+                    SocketUtils.closeSocket(fd);
+                } catch (IOException ignored) {
+                    // Nothing we can do here.
+                }
+                throw e;
+            }
+            return fd;
+        }
+
+        /**
+         * Send the passed netfilter netlink requests to the kernel on a single socket, several
+         * at a time, and wait for their acknowledgements.
+         *
+         * @return the errno of each request that failed.
+         */
+        @NonNull
+        public List<Integer> sendNetfilterMessages(@NonNull List<byte[]> msgs)
+                throws ErrnoException, InterruptedIOException, SocketException {
+            final ArrayList<Integer> errnos = new ArrayList<>();
+            final FileDescriptor fd = createNetfilterSocket();
+            try {
+                for (int start = 0; start < msgs.size(); start += MAX_NETLINK_MESSAGES_PER_SEND) {
+                    final int end = Math.min(msgs.size(), start + MAX_NETLINK_MESSAGES_PER_SEND);
+                    final ByteArrayOutputStream batch = new ByteArrayOutputStream();
+                    for (int i = start; i < end; i++) {
+                        batch.write(msgs.get(i), 0, msgs.get(i).length);
+                    }
+                    final byte[] bytes = batch.toByteArray();
+                    NetlinkSocket.sendMessage(fd, bytes, 0 /* offset */, bytes.length,
+                            NETLINK_MESSAGE_TIMEOUT_MS);
+
+                    // The kernel acknowledges each request with an error message, whose error
+                    // is 0 on success.
+                    int acked = 0;
+                    while (acked < end - start) {
+                        final ByteBuffer response = NetlinkSocket.recvMessage(fd,
+                                NetlinkSocket.DEFAULT_RECV_BUFSIZE, NETLINK_MESSAGE_TIMEOUT_MS);
+                        NetlinkMessage ack;
+                        while ((ack = NetlinkMessage.parse(response,
+                                OsConstants.NETLINK_NETFILTER)) != null) {
+                            if (!(ack instanceof NetlinkErrorMessage)) continue;
+                            acked++;
+                            final StructNlMsgErr err = ((NetlinkErrorMessage) ack).getNlMsgError();
+                            if (err != null && err.error != 0) errnos.add(-err.error);
+                        }
+                    }
+                }
+            } finally {
+                try {
+                    SocketUtils.closeSocket(fd);
+                } catch (IOException e) {
+                    // Nothing we can do here.
+                }
+            }
+            return errnos;
+        }
+
         /**
          * Check OS Build at least S.
          *
@@ -473,6 +585,8 @@ public class BpfCoordinator {
         if (mHandler.hasCallbacks(mScheduledConntrackTimeoutUpdate)) {
             mHandler.removeCallbacks(mScheduledConntrackTimeoutUpdate);
         }
+        mPendingConntrackTimeoutUpdates.clear();
+        mConntrackTimeoutSlicesLeft = CONNTRACK_TIMEOUT_UPDATE_SLICES;
         // Stop scheduled polling stats and poll the latest stats from BPF maps.
         if (mHandler.hasCallbacks(mScheduledPollingStats)) {
             mHandler.removeCallbacks(mScheduledPollingStats);
@@ -540,6 +654,7 @@ public class BpfCoordinator {
         if (!mMonitoringIpServers.isEmpty()) return;
 
         mConntrackMonitor.stop();
+        mBpfConntrackEventConsumer.clearPendingEvents();
         mLog.i("Monitoring stopped");
     }
 
@@ -581,7 +696,9 @@ public class BpfCoordinator {
 
         // Must update the adding rule after calling #isAnyRuleOnUpstream because it needs to
         // check if it is about adding a first rule for a given upstream.
-        rules.put(rule.address, rule);
+        final Ipv6ForwardingRule replaced = rules.put(rule.address, rule);
+        if (replaced != null) updateIpv6RuleCount(replaced, -1);
+        updateIpv6RuleCount(rule, 1);
     }
 
     /**
@@ -602,7 +719,9 @@ public class BpfCoordinator {
         // the last rule is removed for a given upstream. If no rule is removed, return early.
         // Avoid unnecessary work on a non-existent rule which may have never been added or
         // removed already.
-        if (rules.remove(rule.address) == null) return;
+        final Ipv6ForwardingRule removed = rules.remove(rule.address);
+        if (removed == null) return;
+        updateIpv6RuleCount(removed, -1);
 
         // Remove the downstream entry if it has no more rule.
         if (rules.isEmpty()) {
@@ -713,6 +832,7 @@ public class BpfCoordinator {
 
         HashMap<Inet4Address, ClientInfo> clients = mTetherClients.get(ipServer);
         clients.put(client.clientAddress, client);
+        mTetherClientsByAddress.put(client.clientAddress, client);
     }
 
     /**
@@ -729,6 +849,7 @@ public class BpfCoordinator {
 
         // No client is removed, return early.
         if (clients.remove(client.clientAddress) == null) return;
+        mTetherClientsByAddress.remove(client.clientAddress, client);
 
         // Remove the client's rules. Removing the client implies that its rules are not used
         // anymore.
@@ -1027,6 +1148,11 @@ public class BpfCoordinator {
         }
         pw.decreaseIndent();
 
+        pw.println("Conntrack events:");
+        pw.increaseIndent();
+        mBpfConntrackEventConsumer.dump(pw);
+        pw.decreaseIndent();
+
         pw.println();
         pw.println("Forwarding counters:");
         pw.increaseIndent();
@@ -1523,14 +1649,7 @@ public class BpfCoordinator {
 
     @Nullable
     private ClientInfo getClientInfo(@NonNull Inet4Address clientAddress) {
-        for (HashMap<Inet4Address, ClientInfo> clients : mTetherClients.values()) {
-            for (ClientInfo client : clients.values()) {
-                if (clientAddress.equals(client.clientAddress)) {
-                    return client;
-                }
-            }
-        }
-        return null;
+        return mTetherClientsByAddress.get(clientAddress);
     }
 
     @NonNull
@@ -1551,6 +1670,17 @@ public class BpfCoordinator {
     // while TCP status is established.
     @VisibleForTesting
     class BpfConntrackEventConsumer implements ConntrackEventConsumer {
+        // Events waiting to be applied, by connection, in the order they were received.
+        private final LinkedHashMap<ConntrackTupleKey, ConntrackEvent> mPendingEvents =
+                new LinkedHashMap<>();
+        private boolean mDrainScheduled = false;
+        // Events for new connections dropped because too many events were pending.
+        private long mDroppedEventCount = 0;
+        // Events replaced by a later event on the same connection before being applied.
+        private long mCoalescedEventCount = 0;
+        // Events that added or removed rules.
+        private long mAppliedEventCount = 0;
+
         // The upstream4 and downstream4 rules are built as the following tables. Only raw ip
         // upstream interface is supported. Note that the field "lastUsed" is only updated by
         // BPF program which records the last used time for a given rule.
@@ -1652,50 +1782,186 @@ public class BpfCoordinator {
                     NON_OFFLOADED_UPSTREAM_IPV4_TCP_PORTS, e.tupleOrig.dstPort);
         }
 
+        private boolean isDeleteEvent(@NonNull ConntrackEvent e) {
+            return e.msgType == (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8
+                    | NetlinkConstants.IPCTNL_MSG_CT_DELETE);
+        }
+
+        // Conntrack events are not applied as they are received, but queued and applied in a
+        // batch by a task posted to the handler. The conntrack monitor delivers all the events
+        // of a netlink packet in a row, so this batches bursts of events, e.g. when a client
+        // opens many connections at once. Only the last event of each tuple matters, so events
+        // on a tuple that already has a pending event replace it.
         public void accept(ConntrackEvent e) {
             if (!allowOffload(e)) return;
 
-            final ClientInfo tetherClient = getClientInfo(e.tupleOrig.srcIp);
-            if (tetherClient == null) return;
-
-            final Integer upstreamIndex = mIpv4UpstreamIndices.get(e.tupleReply.dstIp);
-            if (upstreamIndex == null) return;
+            final ConntrackTupleKey key = new ConntrackTupleKey(e);
+            if (mPendingEvents.put(key, e) != null) {
+                mCoalescedEventCount++;
+            } else if (mPendingEvents.size() > MAX_PENDING_CONNTRACK_EVENTS && !isDeleteEvent(e)) {
+                // Dropping a new connection only means that it is not offloaded. Deletions are
+                // never dropped so that no stale rule is left in the maps.
+                mPendingEvents.remove(key);
+                mDroppedEventCount++;
+                return;
+            }
 
-            final Tether4Key upstream4Key = makeTetherUpstream4Key(e, tetherClient);
-            final Tether4Key downstream4Key = makeTetherDownstream4Key(e, tetherClient,
-                    upstreamIndex);
+            if (!mDrainScheduled) {
+                mDrainScheduled = true;
+                mHandler.post(this::applyPendingEvents);
+            }
+        }
 
-            if (e.msgType == (NetlinkConstants.NFNL_SUBSYS_CTNETLINK << 8
-                    | NetlinkConstants.IPCTNL_MSG_CT_DELETE)) {
-                final boolean deletedUpstream = mBpfCoordinatorShim.tetherOffloadRuleRemove(
-                        UPSTREAM, upstream4Key);
-                final boolean deletedDownstream = mBpfCoordinatorShim.tetherOffloadRuleRemove(
-                        DOWNSTREAM, downstream4Key);
+        void clearPendingEvents() {
+            mPendingEvents.clear();
+        }
 
-                if (!deletedUpstream && !deletedDownstream) {
-                    // The rules may have been already removed by losing client or losing upstream.
-                    return;
+        @VisibleForTesting
+        void applyPendingEvents() {
+            mDrainScheduled = false;
+            if (mPendingEvents.isEmpty()) return;
+
+            final ArrayList<ConntrackEvent> events = new ArrayList<>(mPendingEvents.values());
+            mPendingEvents.clear();
+
+            // Apply all the deletions, then all the additions, so that the checks on the data
+            // limits, which iterate over the maps, are done once per upstream and per batch
+            // instead of once per event.
+            final ArrayList<Tether4Key> upstreamKeysToAdd = new ArrayList<>();
+            final ArrayList<Tether4Value> upstreamValuesToAdd = new ArrayList<>();
+            final ArrayList<Tether4Key> downstreamKeysToAdd = new ArrayList<>();
+            final ArrayList<Tether4Value> downstreamValuesToAdd = new ArrayList<>();
+            final ArraySet<Integer> upstreamsWithAdditions = new ArraySet<>();
+            final ArraySet<Integer> upstreamsWithDeletions = new ArraySet<>();
+
+            for (ConntrackEvent e : events) {
+                final ClientInfo tetherClient = getClientInfo(e.tupleOrig.srcIp);
+                if (tetherClient == null) continue;
+
+                final Integer upstreamIndex = mIpv4UpstreamIndices.get(e.tupleReply.dstIp);
+                if (upstreamIndex == null) continue;
+
+                final Tether4Key upstream4Key = makeTetherUpstream4Key(e, tetherClient);
+                final Tether4Key downstream4Key = makeTetherDownstream4Key(e, tetherClient,
+                        upstreamIndex);
+
+                if (isDeleteEvent(e)) {
+                    if (removeRules(upstream4Key, downstream4Key)) {
+                        upstreamsWithDeletions.add(upstreamIndex);
+                        mAppliedEventCount++;
+                    }
+                    continue;
                 }
 
-                if (deletedUpstream != deletedDownstream) {
-                    Log.wtf(TAG, "The bidirectional rules should be removed concurrently ("
-                            + "upstream: " + deletedUpstream
-                            + ", downstream: " + deletedDownstream + ")");
-                    return;
+                maybeAddDevMap(upstreamIndex, tetherClient.downstreamIfindex);
+                upstreamsWithAdditions.add(upstreamIndex);
+                upstreamKeysToAdd.add(upstream4Key);
+                upstreamValuesToAdd.add(makeTetherUpstream4Value(e, upstreamIndex));
+                downstreamKeysToAdd.add(downstream4Key);
+                downstreamValuesToAdd.add(makeTetherDownstream4Value(e, tetherClient,
+                        upstreamIndex));
+            }
+
+            // An upstream that gets new rules in this batch keeps its limit and stats.
+            for (Integer upstreamIndex : upstreamsWithDeletions) {
+                if (!upstreamsWithAdditions.contains(upstreamIndex)) {
+                    maybeClearLimit(upstreamIndex);
                 }
+            }
+            for (Integer upstreamIndex : upstreamsWithAdditions) {
+                maybeSetLimit(upstreamIndex);
+            }
+            for (int i = 0; i < upstreamKeysToAdd.size(); i++) {
+                mBpfCoordinatorShim.tetherOffloadRuleAdd(UPSTREAM, upstreamKeysToAdd.get(i),
+                        upstreamValuesToAdd.get(i));
+                mBpfCoordinatorShim.tetherOffloadRuleAdd(DOWNSTREAM, downstreamKeysToAdd.get(i),
+                        downstreamValuesToAdd.get(i));
+            }
+            mAppliedEventCount += upstreamKeysToAdd.size();
+        }
 
-                maybeClearLimit(upstreamIndex);
-                return;
+        // Returns whether both rules were removed.
+        private boolean removeRules(@NonNull Tether4Key upstream4Key,
+                @NonNull Tether4Key downstream4Key) {
+            final boolean deletedUpstream = mBpfCoordinatorShim.tetherOffloadRuleRemove(
+                    UPSTREAM, upstream4Key);
+            final boolean deletedDownstream = mBpfCoordinatorShim.tetherOffloadRuleRemove(
+                    DOWNSTREAM, downstream4Key);
+
+            if (!deletedUpstream && !deletedDownstream) {
+                // The rules may have been already removed by losing client or losing upstream.
+                return false;
             }
 
-            final Tether4Value upstream4Value = makeTetherUpstream4Value(e, upstreamIndex);
-            final Tether4Value downstream4Value = makeTetherDownstream4Value(e, tetherClient,
-                    upstreamIndex);
+            if (deletedUpstream != deletedDownstream) {
+                Log.wtf(TAG, "The bidirectional rules should be removed concurrently ("
+                        + "upstream: " + deletedUpstream
+                        + ", downstream: " + deletedDownstream + ")");
+                return false;
+            }
+            return true;
+        }
+
+        @VisibleForTesting
+        long getDroppedEventCount() {
+            return mDroppedEventCount;
+        }
+
+        @VisibleForTesting
+        long getCoalescedEventCount() {
+            return mCoalescedEventCount;
+        }
+
+        @VisibleForTesting
+        long getAppliedEventCount() {
+            return mAppliedEventCount;
+        }
 
-            maybeAddDevMap(upstreamIndex, tetherClient.downstreamIfindex);
-            maybeSetLimit(upstreamIndex);
-            mBpfCoordinatorShim.tetherOffloadRuleAdd(UPSTREAM, upstream4Key, upstream4Value);
-            mBpfCoordinatorShim.tetherOffloadRuleAdd(DOWNSTREAM, downstream4Key, downstream4Value);
+        void dump(@NonNull IndentingPrintWriter pw) {
+            pw.println(String.format("pending: %d, dropped: %d, coalesced: %d, applied: %d",
+                    mPendingEvents.size(), mDroppedEventCount, mCoalescedEventCount,
+                    mAppliedEventCount));
+        }
+    }
+
+    // The original direction tuple of a conntrack event, which identifies its connection.
+    private static final class ConntrackTupleKey {
+        private final int mProtoNum;
+        @NonNull
+        private final Inet4Address mSrcIp;
+        @NonNull
+        private final Inet4Address mDstIp;
+        private final int mSrcPort;
+        private final int mDstPort;
+
+        ConntrackTupleKey(@NonNull ConntrackEvent e) {
+            this(e.tupleOrig.protoNum, e.tupleOrig.srcIp, e.tupleOrig.dstIp, e.tupleOrig.srcPort,
+                    e.tupleOrig.dstPort);
+        }
+
+        ConntrackTupleKey(int protoNum, @NonNull Inet4Address srcIp, @NonNull Inet4Address dstIp,
+                int srcPort, int dstPort) {
+            mProtoNum = protoNum;
+            mSrcIp = srcIp;
+            mDstIp = dstIp;
+            mSrcPort = srcPort;
+            mDstPort = dstPort;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ConntrackTupleKey)) return false;
+            final ConntrackTupleKey that = (ConntrackTupleKey) o;
+            return mProtoNum == that.mProtoNum
+                    && mSrcPort == that.mSrcPort
+                    && mDstPort == that.mDstPort
+                    && mSrcIp.equals(that.mSrcIp)
+                    && mDstIp.equals(that.mDstIp);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(mProtoNum, mSrcIp, mDstIp, mSrcPort, mDstPort);
         }
     }
 
@@ -1705,13 +1971,10 @@ public class BpfCoordinator {
     }
 
     private int getInterfaceIndexFromRules(@NonNull String ifName) {
-        for (LinkedHashMap<Inet6Address, Ipv6ForwardingRule> rules : mIpv6ForwardingRules
-                .values()) {
-            for (Ipv6ForwardingRule rule : rules.values()) {
-                final int upstreamIfindex = rule.upstreamIfindex;
-                if (TextUtils.equals(ifName, mInterfaceNames.get(upstreamIfindex))) {
-                    return upstreamIfindex;
-                }
+        for (int i = 0; i < mIpv6RuleCounts.size(); i++) {
+            final int upstreamIfindex = mIpv6RuleCounts.keyAt(i);
+            if (TextUtils.equals(ifName, mInterfaceNames.get(upstreamIfindex))) {
+                return upstreamIfindex;
             }
         }
         return 0;
@@ -1799,26 +2062,32 @@ public class BpfCoordinator {
     // TODO: Rename to isAnyIpv6RuleOnUpstream and define an isAnyRuleOnUpstream method that called
     // both isAnyIpv6RuleOnUpstream and mBpfCoordinatorShim.isAnyIpv4RuleOnUpstream.
     private boolean isAnyRuleOnUpstream(int upstreamIfindex) {
-        for (LinkedHashMap<Inet6Address, Ipv6ForwardingRule> rules : mIpv6ForwardingRules
-                .values()) {
-            for (Ipv6ForwardingRule rule : rules.values()) {
-                if (upstreamIfindex == rule.upstreamIfindex) return true;
-            }
-        }
-        return false;
+        return mIpv6RuleCounts.get(upstreamIfindex) != null;
     }
 
     private boolean isAnyRuleFromDownstreamToUpstream(int downstreamIfindex, int upstreamIfindex) {
-        for (LinkedHashMap<Inet6Address, Ipv6ForwardingRule> rules : mIpv6ForwardingRules
-                .values()) {
-            for (Ipv6ForwardingRule rule : rules.values()) {
-                if (downstreamIfindex == rule.downstreamIfindex
-                        && upstreamIfindex == rule.upstreamIfindex) {
-                    return true;
-                }
-            }
+        final SparseIntArray counts = mIpv6RuleCounts.get(upstreamIfindex);
+        return counts != null && counts.get(downstreamIfindex) > 0;
+    }
+
+    // Must be called whenever a rule is added to or removed from mIpv6ForwardingRules.
+    private void updateIpv6RuleCount(@NonNull Ipv6ForwardingRule rule, int delta) {
+        SparseIntArray counts = mIpv6RuleCounts.get(rule.upstreamIfindex);
+        if (counts == null) {
+            counts = new SparseIntArray();
+            mIpv6RuleCounts.put(rule.upstreamIfindex, counts);
         }
-        return false;
+        final int count = counts.get(rule.downstreamIfindex) + delta;
+        if (count > 0) {
+            counts.put(rule.downstreamIfindex, count);
+            return;
+        }
+        if (count < 0) {
+            Log.wtf(TAG, "Negative IPv6 rule count from " + rule.downstreamIfindex
+                    + " to " + rule.upstreamIfindex);
+        }
+        counts.delete(rule.downstreamIfindex);
+        if (counts.size() == 0) mIpv6RuleCounts.remove(rule.upstreamIfindex);
     }
 
     // TODO: remove the index from map while the interface has been removed because the map size
@@ -1967,9 +2236,11 @@ public class BpfCoordinator {
         return null;
     }
 
-    // Update CTA_TUPLE_ORIG timeout for a given conntrack entry. Note that there will also be
-    // coming a conntrack event to notify updated timeout.
-    private void updateConntrackTimeout(byte proto, Inet4Address src4, short srcPort,
+    // Build the request updating the CTA_TUPLE_ORIG timeout of a given conntrack entry, or
+    // return null if the entry is invalid. Note that there will also be coming a conntrack event
+    // to notify updated timeout.
+    @Nullable
+    private byte[] makeConntrackTimeoutUpdate(byte proto, Inet4Address src4, short srcPort,
             Inet4Address dst4, short dstPort) {
         if (src4 == null || dst4 == null) {
             mLog.e("Either source or destination IPv4 address is invalid ("
@@ -1978,7 +2249,7 @@ public class BpfCoordinator {
                     + "srcPort: " + Short.toUnsignedInt(srcPort) + ", "
                     + "dst4: " + dst4 + ", "
                     + "dstPort: " + Short.toUnsignedInt(dstPort) + ")");
-            return;
+            return null;
         }
 
         // TODO: consider acquiring the timeout setting from nf_conntrack_* variables.
@@ -1988,57 +2259,95 @@ public class BpfCoordinator {
         final int timeoutSec = (proto == OsConstants.IPPROTO_TCP)
                 ? NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED
                 : NF_CONNTRACK_UDP_TIMEOUT_STREAM;
-        final byte[] msg = ConntrackMessage.newIPv4TimeoutUpdateRequest(
+        return ConntrackMessage.newIPv4TimeoutUpdateRequest(
                 proto, src4, (int) srcPort, dst4, (int) dstPort, timeoutSec);
-        try {
-            NetlinkSocket.sendOneShotKernelMessage(OsConstants.NETLINK_NETFILTER, msg);
-        } catch (ErrnoException e) {
-            // Lower the log level for the entry not existing. The conntrack entry may have been
-            // deleted and not handled by the conntrack event monitor yet. In other words, the
-            // rule has not been deleted from the BPF map yet. Deleting a non-existent entry may
-            // happen during the conntrack timeout refreshing iteration. Note that ENOENT may be
-            // a real error but is hard to distinguish.
-            // TODO: Figure out a better way to handle this.
-            final String errMsg = "Failed to update conntrack entry ("
-                    + "proto: " + proto + ", "
-                    + "src4: " + src4 + ", "
-                    + "srcPort: " + Short.toUnsignedInt(srcPort) + ", "
-                    + "dst4: " + dst4 + ", "
-                    + "dstPort: " + Short.toUnsignedInt(dstPort) + "), "
-                    + "msg: " + NetlinkConstants.hexify(msg) + ", "
-                    + "e: " + e;
-            if (OsConstants.ENOENT == e.errno) {
-                mLog.w(errMsg);
-            } else {
-                mLog.e(errMsg);
-            }
-        }
     }
 
-    private void refreshAllConntrackTimeouts() {
+    // Find the connections whose rules were used during the last interval, and queue the
+    // updates of their conntrack timeout, to be sent over the slices of the next interval.
+    private void collectConntrackTimeoutUpdates() {
         final long now = mDeps.elapsedRealtimeNanos();
 
-        // TODO: Consider ignoring TCP traffic on upstream and monitor on downstream only
-        // because TCP is a bidirectional traffic. Probably don't need to extend timeout by
-        // both directions for TCP.
+        // The upstream and downstream rules of a connection have the same original tuple, so
+        // refresh it once if either rule was used. Both maps are walked once per interval.
+        final HashMap<ConntrackTupleKey, Long> lastUsed = new HashMap<>();
+        final HashMap<ConntrackTupleKey, byte[]> updates = new HashMap<>();
         mBpfCoordinatorShim.tetherOffloadRuleForEach(UPSTREAM, (k, v) -> {
             if ((now - v.lastUsed) / 1_000_000 < CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS) {
-                updateConntrackTimeout((byte) k.l4proto,
+                addConntrackTimeoutUpdate(lastUsed, updates, v.lastUsed, (byte) k.l4proto,
                         parseIPv4Address(k.src4), (short) k.srcPort,
                         parseIPv4Address(k.dst4), (short) k.dstPort);
             }
         });
 
         // Reverse the source and destination {address, port} from downstream value because
-        // #updateConntrackTimeout refresh the timeout of netlink attribute CTA_TUPLE_ORIG
-        // which is opposite direction for downstream map value.
+        // the update refreshes the timeout of netlink attribute CTA_TUPLE_ORIG which is
+        // opposite direction for downstream map value.
         mBpfCoordinatorShim.tetherOffloadRuleForEach(DOWNSTREAM, (k, v) -> {
             if ((now - v.lastUsed) / 1_000_000 < CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS) {
-                updateConntrackTimeout((byte) k.l4proto,
+                addConntrackTimeoutUpdate(lastUsed, updates, v.lastUsed, (byte) k.l4proto,
                         parseIPv4Address(v.dst46), (short) v.dstPort,
                         parseIPv4Address(v.src46), (short) v.srcPort);
             }
         });
+
+        // Send the least recently used connections first. Ordering by last used time keeps
+        // most connections in the same slice from one interval to the next, so the time between
+        // two refreshes of a connection stays close to the interval.
+        final ArrayList<ConntrackTupleKey> keys = new ArrayList<>(updates.keySet());
+        keys.sort((a, b) -> Long.compare(lastUsed.get(a), lastUsed.get(b)));
+        mPendingConntrackTimeoutUpdates.clear();
+        for (ConntrackTupleKey key : keys) {
+            mPendingConntrackTimeoutUpdates.add(updates.get(key));
+        }
+        mConntrackTimeoutUpdatesPerSlice = Math.max(MIN_CONNTRACK_TIMEOUT_UPDATES_PER_SLICE,
+                (keys.size() + CONNTRACK_TIMEOUT_UPDATE_SLICES - 1)
+                        / CONNTRACK_TIMEOUT_UPDATE_SLICES);
+    }
+
+    private void addConntrackTimeoutUpdate(@NonNull HashMap<ConntrackTupleKey, Long> lastUsed,
+            @NonNull HashMap<ConntrackTupleKey, byte[]> updates, long ruleLastUsed, byte proto,
+            Inet4Address src4, short srcPort, Inet4Address dst4, short dstPort) {
+        final byte[] msg = makeConntrackTimeoutUpdate(proto, src4, srcPort, dst4, dstPort);
+        if (msg == null) return;
+
+        final ConntrackTupleKey key = new ConntrackTupleKey(proto, src4, dst4, srcPort, dstPort);
+        final Long previous = lastUsed.get(key);
+        lastUsed.put(key, previous == null ? ruleLastUsed : Math.max(previous, ruleLastUsed));
+        updates.put(key, msg);
+    }
+
+    private void sendConntrackTimeoutUpdates(int count) {
+        final ArrayList<byte[]> msgs = new ArrayList<>();
+        while (msgs.size() < count && !mPendingConntrackTimeoutUpdates.isEmpty()) {
+            msgs.add(mPendingConntrackTimeoutUpdates.poll());
+        }
+        if (msgs.isEmpty()) return;
+
+        final List<Integer> errnos;
+        try {
+            errnos = mDeps.sendNetfilterMessages(msgs);
+        } catch (ErrnoException | InterruptedIOException | SocketException e) {
+            mLog.e("Failed to update " + msgs.size() + " conntrack entries: " + e);
+            return;
+        }
+
+        // Lower the log level for the entries not existing. The conntrack entry may have been
+        // deleted and not handled by the conntrack event monitor yet. In other words, the
+        // rule has not been deleted from the BPF map yet. Note that ENOENT may be a real error
+        // but is hard to distinguish.
+        // TODO: Figure out a better way to handle this.
+        int notFound = 0;
+        for (int errno : errnos) {
+            if (errno == OsConstants.ENOENT) {
+                notFound++;
+            } else {
+                mLog.e("Failed to update conntrack entry: " + OsConstants.errnoName(errno));
+            }
+        }
+        if (notFound > 0) {
+            mLog.w("Failed to update " + notFound + " conntrack entries: ENOENT");
+        }
     }
 
     private void maybeSchedulePollingStats() {
@@ -2058,8 +2367,18 @@ public class BpfCoordinator {
             mHandler.removeCallbacks(mScheduledConntrackTimeoutUpdate);
         }
 
-        mHandler.postDelayed(mScheduledConntrackTimeoutUpdate,
-                CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        // Send the next slice of updates if any, otherwise wait for the start of the next
+        // interval. The updates are spread so that they are all sent within the interval.
+        final long sliceMs = CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS / CONNTRACK_TIMEOUT_UPDATE_SLICES;
+        final long delayMs;
+        if (!mPendingConntrackTimeoutUpdates.isEmpty()) {
+            mConntrackTimeoutSlicesLeft--;
+            delayMs = sliceMs;
+        } else {
+            delayMs = mConntrackTimeoutSlicesLeft * sliceMs;
+            mConntrackTimeoutSlicesLeft = CONNTRACK_TIMEOUT_UPDATE_SLICES;
+        }
+        mHandler.postDelayed(mScheduledConntrackTimeoutUpdate, delayMs);
     }
 
     // Return forwarding rule map. This is used for testing only.
@@ -98,6 +98,7 @@ import android.net.TetheringInterface;
 import android.net.TetheringManager.TetheringRequest;
 import android.net.TetheringRequestParcel;
 import android.net.ip.IpServer;
+import android.net.ip.SharedIpNeighborMonitor;
 import android.net.wifi.WifiClient;
 import android.net.wifi.WifiManager;
 import android.net.wifi.p2p.WifiP2pGroup;
@@ -254,6 +255,7 @@ public class Tethering {
     private final TetheringNotificationUpdater mNotificationUpdater;
     private final UserManager mUserManager;
     private final BpfCoordinator mBpfCoordinator;
+    private final SharedIpNeighborMonitor mNeighborMonitor;
     private final PrivateAddressCoordinator mPrivateAddressCoordinator;
     private final TetheringMetrics mTetheringMetrics;
     private int mActiveDataSubId = INVALID_SUBSCRIPTION_ID;
@@ -363,6 +365,8 @@ public class Tethering {
         // shouldEnableWifiP2pDedicatedIp(), and currently do not support changing that.
         mPrivateAddressCoordinator = mDeps.getPrivateAddressCoordinator(mContext, mConfig);
 
+        mNeighborMonitor = mDeps.getSharedIpNeighborMonitor(mHandler, mLog);
+
         // Must be initialized after tethering configuration is loaded because BpfCoordinator
         // constructor needs to use the configuration.
         mBpfCoordinator = mDeps.getBpfCoordinator(
@@ -2614,6 +2618,11 @@ public class Tethering {
 
         dumpBpf(pw);
 
+        pw.println("Neighbor monitor:");
+        pw.increaseIndent();
+        mNeighborMonitor.dump(pw);
+        pw.decreaseIndent();
+
         pw.println("Private address coordinator:");
         pw.increaseIndent();
         mPrivateAddressCoordinator.dump(pw);
@@ -2790,8 +2799,9 @@ public class Tethering {
         mLog.i("adding IpServer for: " + iface);
         final TetherState tetherState = new TetherState(
                 new IpServer(iface, mLooper, interfaceType, mLog, mNetd, mBpfCoordinator,
-                             makeControlCallback(), mConfig, mPrivateAddressCoordinator,
-                             mTetheringMetrics, mDeps.getIpServerDependencies()), isNcm);
+                             mNeighborMonitor, makeControlCallback(), mConfig,
+                             mPrivateAddressCoordinator, mTetheringMetrics,
+                             mDeps.getIpServerDependencies()), isNcm);
         mTetherStates.put(iface, tetherState);
         tetherState.ipServer.start();
     }
@@ -98,6 +98,13 @@ public class TetheringConfiguration {
     public static final String TETHER_ENABLE_LEGACY_DHCP_SERVER =
             "tether_enable_legacy_dhcp_server";
 
+    /**
+     * Run the router advertisement daemons of all downstreams on the tethering thread, instead of
+     * starting two threads per downstream.
+     */
+    public static final String TETHER_ENABLE_EVENT_DRIVEN_RA_DAEMON =
+            "tether_enable_event_driven_ra_daemon";
+
     public static final String USE_LEGACY_WIFI_P2P_DEDICATED_IP =
             "use_legacy_wifi_p2p_dedicated_ip";
 
@@ -151,6 +158,7 @@ public class TetheringConfiguration {
     public final int activeDataSubId;
 
     private final boolean mEnableLegacyDhcpServer;
+    private final boolean mEnableEventDrivenRaDaemon;
     private final int mOffloadPollInterval;
     // TODO: Add to TetheringConfigurationParcel if required.
     private final boolean mEnableBpfOffload;
@@ -203,6 +211,8 @@ public class TetheringConfiguration {
         defaultIPv4DNS = copy(DEFAULT_IPV4_DNS);
         mEnableBpfOffload = getEnableBpfOffload(res);
         mEnableLegacyDhcpServer = getEnableLegacyDhcpServer(res);
+        mEnableEventDrivenRaDaemon = getDeviceConfigBoolean(
+                TETHER_ENABLE_EVENT_DRIVEN_RA_DAEMON, false /** defaultValue */);
 
         provisioningApp = getResourceStringArray(res, R.array.config_mobile_hotspot_provision_app);
         provisioningAppNoUi = getResourceString(res,
@@ -252,6 +262,11 @@ public class TetheringConfiguration {
         return mEnableLegacyDhcpServer;
     }
 
+    /** Check whether the router advertisement daemons run on the tethering thread. */
+    public boolean useEventDrivenRaDaemon() {
+        return mEnableEventDrivenRaDaemon;
+    }
+
     /** Check whether using ncm for usb tethering */
     public boolean isUsingNcm() {
         return mUsbTetheringFunction == TETHER_USB_NCM_FUNCTION;
@@ -350,6 +365,9 @@ public class TetheringConfiguration {
         pw.print("enableLegacyDhcpServer: ");
         pw.println(mEnableLegacyDhcpServer);
 
+        pw.print("enableEventDrivenRaDaemon: ");
+        pw.println(mEnableEventDrivenRaDaemon);
+
         pw.print("enableWifiP2pDedicatedIp: ");
         pw.println(mEnableWifiP2pDedicatedIp);
 
@@ -381,6 +399,7 @@ public class TetheringConfiguration {
                 isCarrierConfigAffirmsEntitlementCheckRequired));
         sj.add(String.format("enableBpfOffload:%s", mEnableBpfOffload));
         sj.add(String.format("enableLegacyDhcpServer:%s", mEnableLegacyDhcpServer));
+        sj.add(String.format("enableEventDrivenRaDaemon:%s", mEnableEventDrivenRaDaemon));
         return String.format("TetheringConfiguration{%s}", sj.toString());
     }
 
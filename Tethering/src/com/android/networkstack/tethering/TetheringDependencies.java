@@ -22,6 +22,7 @@ import android.bluetooth.BluetoothPan;
 import android.content.Context;
 import android.net.INetd;
 import android.net.ip.IpServer;
+import android.net.ip.SharedIpNeighborMonitor;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
@@ -89,6 +90,13 @@ public abstract class TetheringDependencies {
         return new IPv6TetheringCoordinator(notifyList, log);
     }
 
+    /**
+     * Get a reference to the neighbor monitor shared by all the IpServers.
+     */
+    public SharedIpNeighborMonitor getSharedIpNeighborMonitor(Handler h, SharedLog log) {
+        return new SharedIpNeighborMonitor(h, log);
+    }
+
     /**
      * Get dependencies to be used by IpServer.
      */
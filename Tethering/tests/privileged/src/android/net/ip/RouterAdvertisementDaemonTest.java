@@ -81,6 +81,9 @@ import java.net.InetAddress;
 import java.nio.ByteBuffer;
 import java.util.HashSet;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @RunWith(AndroidJUnit4.class)
 @SmallTest
@@ -316,6 +319,42 @@ public final class RouterAdvertisementDaemonTest {
         assertMulticastRaPacket(new TestRaPacket(params1, params2));
     }
 
+    private <T> T runOnHandler(final Supplier<T> supplier) throws Exception {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        mHandler.post(() -> result.complete(supplier.get()));
+        return result.get(PACKET_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testEventDrivenRouterAdvertisement() throws Exception {
+        sNetd.setProcSysNet(INetd.IPV6, INetd.CONF, mTetheredParams.name, "forwarding", "1");
+        final RouterAdvertisementDaemon raDaemon =
+                new RouterAdvertisementDaemon(mTetheredParams, mHandler);
+        assertTrue(runOnHandler(raDaemon::start));
+
+        final RaParams params1 = createRaParams("2001:1122:3344::5566");
+        runOnHandler(() -> {
+            raDaemon.buildNewRa(null, params1);
+            return null;
+        });
+        assertMulticastRaPacket(new TestRaPacket(null, params1));
+
+        final String iface = mTetheredParams.name;
+        final RouteInfo linkLocalRoute =
+                new RouteInfo(new IpPrefix("fe80::/64"), null, iface, RTN_UNICAST);
+        NetdUtils.addRoutesToLocalNetwork(sNetd, iface, List.of(linkLocalRoute));
+
+        // Solicitations are answered on the handler thread.
+        final ByteBuffer rs = createRsPacket("fe80::1122:3344:5566:7788");
+        mTetheredPacketReader.sendResponse(rs);
+        assertUnicastRaPacket(new TestRaPacket(null, params1));
+
+        runOnHandler(() -> {
+            raDaemon.stop();
+            return null;
+        });
+    }
+
     @Test
     public void testSolicitRouterAdvertisement() throws Exception {
         // Enable IPv6 forwarding is necessary, which makes kernel process RS correctly and
@@ -0,0 +1,236 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net.ip;
+
+import static android.net.ip.SharedIpNeighborMonitor.MAX_PENDING_EVENTS_PER_DOWNSTREAM;
+
+import static com.android.net.module.util.netlink.NetlinkConstants.RTM_DELNEIGH;
+import static com.android.net.module.util.netlink.NetlinkConstants.RTM_NEWNEIGH;
+import static com.android.net.module.util.netlink.StructNdMsg.NUD_FAILED;
+import static com.android.net.module.util.netlink.StructNdMsg.NUD_REACHABLE;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+import android.net.InetAddresses;
+import android.net.MacAddress;
+import android.os.Handler;
+import android.os.test.TestLooper;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.android.net.module.util.SharedLog;
+import com.android.net.module.util.ip.IpNeighborMonitor;
+import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEvent;
+import com.android.net.module.util.ip.IpNeighborMonitor.NeighborEventConsumer;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.net.InetAddress;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SharedIpNeighborMonitorTest {
+    private static final int IFINDEX_A = 100;
+    private static final int IFINDEX_B = 101;
+    private static final int IFINDEX_UNKNOWN = 102;
+    private static final MacAddress MAC_A = MacAddress.fromString("00:00:00:00:00:0a");
+
+    @Mock private SharedIpNeighborMonitor.Dependencies mDeps;
+    @Mock private IpNeighborMonitor mIpNeighborMonitor;
+    @Mock private SharedLog mSharedLog;
+
+    private final TestLooper mLooper = new TestLooper();
+    private SharedIpNeighborMonitor mMonitor;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        doReturn(mSharedLog).when(mSharedLog).forSubComponent(any());
+        doReturn(mIpNeighborMonitor).when(mDeps).getIpNeighborMonitor(any(), any(), any());
+        doReturn(true).when(mIpNeighborMonitor).start();
+        mMonitor = new SharedIpNeighborMonitor(new Handler(mLooper.getLooper()), mSharedLog,
+                mDeps);
+    }
+
+    private NeighborEventConsumer getMonitorConsumer() {
+        final ArgumentCaptor<NeighborEventConsumer> captor =
+                ArgumentCaptor.forClass(NeighborEventConsumer.class);
+        verify(mDeps).getIpNeighborMonitor(any(), any(), captor.capture());
+        return captor.getValue();
+    }
+
+    private static NeighborEvent neighborEvent(short type, int ifindex, InetAddress ip,
+            short nudState) {
+        return new NeighborEvent(0, type, ifindex, ip, nudState, MAC_A);
+    }
+
+    private static InetAddress neighbor(int i) {
+        return InetAddresses.parseNumericAddress("2001:db8::" + Integer.toHexString(i + 1));
+    }
+
+    @Test
+    public void testDispatchByInterfaceIndex() {
+        final NeighborEventConsumer downstreamA = mock(NeighborEventConsumer.class);
+        final NeighborEventConsumer downstreamB = mock(NeighborEventConsumer.class);
+        assertTrue(mMonitor.register(IFINDEX_A, downstreamA));
+        assertTrue(mMonitor.register(IFINDEX_B, downstreamB));
+        // A single netlink socket serves all the downstreams.
+        verify(mIpNeighborMonitor, times(1)).start();
+
+        final NeighborEventConsumer consumer = getMonitorConsumer();
+        final NeighborEvent eventA = neighborEvent(RTM_NEWNEIGH, IFINDEX_A, neighbor(0),
+                NUD_REACHABLE);
+        final NeighborEvent eventB = neighborEvent(RTM_NEWNEIGH, IFINDEX_B, neighbor(0),
+                NUD_REACHABLE);
+        consumer.accept(eventA);
+        consumer.accept(eventB);
+        consumer.accept(neighborEvent(RTM_NEWNEIGH, IFINDEX_UNKNOWN, neighbor(0), NUD_REACHABLE));
+
+        // Events are delivered asynchronously.
+        verify(downstreamA, never()).accept(any());
+        mLooper.dispatchAll();
+        verify(downstreamA).accept(eventA);
+        verify(downstreamB).accept(eventB);
+        verifyNoMoreInteractions(downstreamA, downstreamB);
+    }
+
+    @Test
+    public void testEventsCoalescedPerNeighbor() {
+        final NeighborEventConsumer downstream = mock(NeighborEventConsumer.class);
+        assertTrue(mMonitor.register(IFINDEX_A, downstream));
+        final NeighborEventConsumer consumer = getMonitorConsumer();
+
+        final NeighborEvent new0 = neighborEvent(RTM_NEWNEIGH, IFINDEX_A, neighbor(0),
+                NUD_REACHABLE);
+        final NeighborEvent new1 = neighborEvent(RTM_NEWNEIGH, IFINDEX_A, neighbor(1),
+                NUD_REACHABLE);
+        final NeighborEvent del0 = neighborEvent(RTM_DELNEIGH, IFINDEX_A, neighbor(0),
+                NUD_FAILED);
+        consumer.accept(new0);
+        consumer.accept(new1);
+        consumer.accept(del0);
+        mLooper.dispatchAll();
+
+        // Only the latest event of each neighbor is delivered, in order of first arrival.
+        final InOrder inOrder = inOrder(downstream);
+        inOrder.verify(downstream).accept(del0);
+        inOrder.verify(downstream).accept(new1);
+        verify(downstream, never()).accept(new0);
+        verifyNoMoreInteractions(downstream);
+    }
+
+    @Test
+    public void testOldestEventsDroppedWhenQueueFull() {
+        final NeighborEventConsumer downstream = mock(NeighborEventConsumer.class);
+        assertTrue(mMonitor.register(IFINDEX_A, downstream));
+        final NeighborEventConsumer consumer = getMonitorConsumer();
+
+        final int numEvents = MAX_PENDING_EVENTS_PER_DOWNSTREAM + 10;
+        for (int i = 0; i < numEvents; i++) {
+            consumer.accept(neighborEvent(RTM_NEWNEIGH, IFINDEX_A, neighbor(i), NUD_REACHABLE));
+        }
+        mLooper.dispatchAll();
+
+        final ArgumentCaptor<NeighborEvent> captor = ArgumentCaptor.forClass(NeighborEvent.class);
+        verify(downstream, times(MAX_PENDING_EVENTS_PER_DOWNSTREAM)).accept(captor.capture());
+        assertEquals(neighbor(10), captor.getAllValues().get(0).ip);
+        assertEquals(neighbor(numEvents - 1), captor.getAllValues().get(
+                MAX_PENDING_EVENTS_PER_DOWNSTREAM - 1).ip);
+    }
+
+    @Test
+    public void testDeletionsNotDroppedWhenQueueFull() {
+        final NeighborEventConsumer downstream = mock(NeighborEventConsumer.class);
+        assertTrue(mMonitor.register(IFINDEX_A, downstream));
+        final NeighborEventConsumer consumer = getMonitorConsumer();
+
+        final NeighborEvent del0 = neighborEvent(RTM_DELNEIGH, IFINDEX_A, neighbor(0),
+                NUD_FAILED);
+        final NeighborEvent failed1 = neighborEvent(RTM_NEWNEIGH, IFINDEX_A, neighbor(1),
+                NUD_FAILED);
+        consumer.accept(del0);
+        consumer.accept(failed1);
+        final int numEvents = MAX_PENDING_EVENTS_PER_DOWNSTREAM + 10;
+        for (int i = 2; i < numEvents; i++) {
+            consumer.accept(neighborEvent(RTM_NEWNEIGH, IFINDEX_A, neighbor(i), NUD_REACHABLE));
+        }
+        mLooper.dispatchAll();
+
+        // The oldest updates are dropped instead of the pending deletions, which are still
+        // delivered first.
+        final ArgumentCaptor<NeighborEvent> captor = ArgumentCaptor.forClass(NeighborEvent.class);
+        verify(downstream, times(MAX_PENDING_EVENTS_PER_DOWNSTREAM)).accept(captor.capture());
+        assertEquals(del0, captor.getAllValues().get(0));
+        assertEquals(failed1, captor.getAllValues().get(1));
+        assertEquals(neighbor(12), captor.getAllValues().get(2).ip);
+        assertEquals(neighbor(numEvents - 1), captor.getAllValues().get(
+                MAX_PENDING_EVENTS_PER_DOWNSTREAM - 1).ip);
+    }
+
+    @Test
+    public void testUnregister() {
+        final NeighborEventConsumer downstreamA = mock(NeighborEventConsumer.class);
+        final NeighborEventConsumer downstreamB = mock(NeighborEventConsumer.class);
+        assertTrue(mMonitor.register(IFINDEX_A, downstreamA));
+        assertTrue(mMonitor.register(IFINDEX_B, downstreamB));
+        final NeighborEventConsumer consumer = getMonitorConsumer();
+
+        // Pending events of an unregistered downstream are discarded.
+        consumer.accept(neighborEvent(RTM_NEWNEIGH, IFINDEX_A, neighbor(0), NUD_REACHABLE));
+        mMonitor.unregister(downstreamA);
+        mLooper.dispatchAll();
+        verify(downstreamA, never()).accept(any());
+        verify(mIpNeighborMonitor, never()).stop();
+
+        // The socket is closed when the last downstream goes away.
+        mMonitor.unregister(downstreamB);
+        verify(mIpNeighborMonitor).stop();
+
+        // And opened again by the next registration.
+        assertTrue(mMonitor.register(IFINDEX_A, downstreamA));
+        verify(mIpNeighborMonitor, times(2)).start();
+    }
+
+    @Test
+    public void testRegisterFailsIfMonitorDoesNotStart() {
+        doReturn(false).when(mIpNeighborMonitor).start();
+        final NeighborEventConsumer downstream = mock(NeighborEventConsumer.class);
+        assertFalse(mMonitor.register(IFINDEX_A, downstream));
+
+        // The next registration tries again.
+        doReturn(true).when(mIpNeighborMonitor).start();
+        assertTrue(mMonitor.register(IFINDEX_A, downstream));
+        verify(mIpNeighborMonitor, times(2)).start();
+    }
+}
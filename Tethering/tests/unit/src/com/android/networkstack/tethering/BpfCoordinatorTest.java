@@ -24,11 +24,14 @@ import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStats.UID_TETHERING;
 import static android.net.netstats.provider.NetworkStatsProvider.QUOTA_UNLIMITED;
+import static android.system.OsConstants.AF_UNIX;
+import static android.system.OsConstants.EINVAL;
+import static android.system.OsConstants.ENOENT;
 import static android.system.OsConstants.ETH_P_IP;
 import static android.system.OsConstants.ETH_P_IPV6;
 import static android.system.OsConstants.IPPROTO_TCP;
 import static android.system.OsConstants.IPPROTO_UDP;
-import static android.system.OsConstants.NETLINK_NETFILTER;
+import static android.system.OsConstants.SOCK_SEQPACKET;
 
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.doReturn;
 import static com.android.dx.mockito.inline.extended.ExtendedMockito.staticMockMarker;
@@ -41,6 +44,10 @@ import static com.android.net.module.util.netlink.ConntrackMessage.TupleProto;
 import static com.android.net.module.util.netlink.NetlinkConstants.IPCTNL_MSG_CT_DELETE;
 import static com.android.net.module.util.netlink.NetlinkConstants.IPCTNL_MSG_CT_NEW;
 import static com.android.networkstack.tethering.BpfCoordinator.CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS;
+import static com.android.networkstack.tethering.BpfCoordinator.CONNTRACK_TIMEOUT_UPDATE_SLICES;
+import static com.android.networkstack.tethering.BpfCoordinator.MAX_NETLINK_MESSAGES_PER_SEND;
+import static com.android.networkstack.tethering.BpfCoordinator.MAX_PENDING_CONNTRACK_EVENTS;
+import static com.android.networkstack.tethering.BpfCoordinator.MIN_CONNTRACK_TIMEOUT_UPDATES_PER_SLICE;
 import static com.android.networkstack.tethering.BpfCoordinator.NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED;
 import static com.android.networkstack.tethering.BpfCoordinator.NF_CONNTRACK_UDP_TIMEOUT_STREAM;
 import static com.android.networkstack.tethering.BpfCoordinator.NON_OFFLOADED_UPSTREAM_IPV4_TCP_PORTS;
@@ -87,6 +94,7 @@ import android.net.ip.IpServer;
 import android.os.Build;
 import android.os.Handler;
 import android.os.test.TestLooper;
+import android.system.Os;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
@@ -107,7 +115,7 @@ import com.android.net.module.util.ip.ConntrackMonitor;
 import com.android.net.module.util.ip.ConntrackMonitor.ConntrackEventConsumer;
 import com.android.net.module.util.netlink.ConntrackMessage;
 import com.android.net.module.util.netlink.NetlinkConstants;
-import com.android.net.module.util.netlink.NetlinkSocket;
+import com.android.net.module.util.netlink.StructNlMsgHdr;
 import com.android.networkstack.tethering.BpfCoordinator.BpfConntrackEventConsumer;
 import com.android.networkstack.tethering.BpfCoordinator.ClientInfo;
 import com.android.networkstack.tethering.BpfCoordinator.Ipv6ForwardingRule;
@@ -128,13 +136,20 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.MockitoSession;
 
+import java.io.FileDescriptor;
 import java.net.Inet4Address;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 @RunWith(AndroidJUnit4.class)
 @SmallTest
@@ -185,6 +200,9 @@ public class BpfCoordinatorTest {
     private static final short PRIVATE_PORT = (short) 62449;
     private static final short PRIVATE_PORT2 = (short) 62450;
 
+    private static final long TIMEOUT_MS = 1_000L;
+    private static final int NETFILTER_BUFSIZE = 64 * 1024;
+
     private static final InterfaceParams UPSTREAM_IFACE_PARAMS = new InterfaceParams(
             UPSTREAM_IFACE, UPSTREAM_IFINDEX, null /* macAddr, rawip */,
             NetworkStackConstants.ETHER_MTU);
@@ -238,6 +256,11 @@ public class BpfCoordinatorTest {
                 return this;
             }
 
+            public Builder setSrcPort(int srcPort) {
+                mSrcPort = srcPort;
+                return this;
+            }
+
             public Tether4Key build() {
                 return new Tether4Key(mIif, mDstMac, mL4proto, mSrc4, mDst4, mSrcPort, mDstPort);
             }
@@ -372,7 +395,9 @@ public class BpfCoordinatorTest {
 
     // Late init since the object must be initialized by the BPF coordinator instance because
     // it has to access the non-static function of BPF coordinator.
-    private BpfConntrackEventConsumer mConsumer;
+    private BpfConntrackEventConsumer mBpfConsumer;
+    // Applies each event right away, i.e. as a batch of one event.
+    private ConntrackEventConsumer mConsumer;
     private HashMap<IpServer, HashMap<Inet4Address, ClientInfo>> mTetherClients;
 
     private long mElapsedRealtimeNanos = 0;
@@ -478,7 +503,11 @@ public class BpfCoordinatorTest {
     private BpfCoordinator makeBpfCoordinator() throws Exception {
         final BpfCoordinator coordinator = new BpfCoordinator(mDeps);
 
-        mConsumer = coordinator.getBpfConntrackEventConsumerForTesting();
+        mBpfConsumer = coordinator.getBpfConntrackEventConsumerForTesting();
+        mConsumer = e -> {
+            mBpfConsumer.accept(e);
+            mTestLooper.dispatchAll();
+        };
         mTetherClients = coordinator.getTetherClientsForTesting();
 
         final ArgumentCaptor<BpfCoordinator.BpfTetherStatsProvider>
@@ -1662,6 +1691,63 @@ public class BpfCoordinatorTest {
         verify(mBpfDevMap, never()).updateEntry(any(), any());
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testConntrackEventsAppliedInBatch() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        initBpfCoordinatorForRule4(coordinator);
+
+        final Tether4Key upstream4KeyTcp = new TestUpstream4Key.Builder()
+                .setProto(IPPROTO_TCP).build();
+        final Tether4Key downstream4KeyTcp = new TestDownstream4Key.Builder()
+                .setProto(IPPROTO_TCP).build();
+        final Tether4Key upstream4KeyUdp = new TestUpstream4Key.Builder()
+                .setProto(IPPROTO_UDP).build();
+        final Tether4Key downstream4KeyUdp = new TestDownstream4Key.Builder()
+                .setProto(IPPROTO_UDP).build();
+
+        // A burst of events is only applied once the handler runs. The UDP connection is
+        // deleted and the TCP one is reported twice before that, so only their last event is
+        // applied.
+        mBpfConsumer.accept(new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_NEW).setProto(IPPROTO_TCP).build());
+        mBpfConsumer.accept(new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_NEW).setProto(IPPROTO_UDP).build());
+        mBpfConsumer.accept(new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_DELETE).setProto(IPPROTO_UDP).build());
+        mBpfConsumer.accept(new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_NEW).setProto(IPPROTO_TCP).build());
+        verify(mBpfUpstream4Map, never()).insertEntry(any(), any());
+        verify(mBpfUpstream4Map, never()).deleteEntry(any());
+
+        mTestLooper.dispatchAll();
+        verify(mBpfUpstream4Map).insertEntry(eq(upstream4KeyTcp), any());
+        verify(mBpfDownstream4Map).insertEntry(eq(downstream4KeyTcp), any());
+        verify(mBpfUpstream4Map, never()).insertEntry(eq(upstream4KeyUdp), any());
+        verify(mBpfDownstream4Map, never()).insertEntry(eq(downstream4KeyUdp), any());
+        assertNull(mBpfUpstream4Map.getValue(upstream4KeyUdp));
+        assertEquals(2, mBpfConsumer.getCoalescedEventCount());
+        // The UDP deletion found no rule to remove.
+        assertEquals(1, mBpfConsumer.getAppliedEventCount());
+        assertEquals(0, mBpfConsumer.getDroppedEventCount());
+
+        // New connections beyond the pending limit are dropped, but deletions never are.
+        for (int i = 0; i <= MAX_PENDING_CONNTRACK_EVENTS; i++) {
+            mBpfConsumer.accept(new TestConntrackEvent.Builder()
+                    .setMsgType(IPCTNL_MSG_CT_NEW).setProto(IPPROTO_UDP)
+                    .setRemotePort(1000 + i).build());
+        }
+        assertEquals(1, mBpfConsumer.getDroppedEventCount());
+        mBpfConsumer.accept(new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_DELETE).setProto(IPPROTO_TCP).build());
+        assertEquals(1, mBpfConsumer.getDroppedEventCount());
+
+        mTestLooper.dispatchAll();
+        verify(mBpfUpstream4Map).deleteEntry(eq(upstream4KeyTcp));
+        verify(mBpfDownstream4Map).deleteEntry(eq(downstream4KeyTcp));
+        assertEquals(2 + MAX_PENDING_CONNTRACK_EVENTS, mBpfConsumer.getAppliedEventCount());
+    }
+
     private void setElapsedRealtimeNanos(long nanoSec) {
         mElapsedRealtimeNanos = nanoSec;
     }
@@ -1685,49 +1771,152 @@ public class BpfCoordinatorTest {
         final long validTime = (CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS - 1) * 1_000_000L;
         final long expiredTime = (CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS + 1) * 1_000_000L;
 
-        // Static mocking for NetlinkSocket.
-        MockitoSession mockSession = ExtendedMockito.mockitoSession()
-                .mockStatic(NetlinkSocket.class)
-                .startMocking();
+        doReturn(new ArrayList<Integer>()).when(mDeps).sendNetfilterMessages(any());
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
+        bpfMap.insertEntry(tcpKey, tcpValue);
+        bpfMap.insertEntry(udpKey, udpValue);
+
+        // [1] Don't refresh conntrack timeout.
+        setElapsedRealtimeNanos(expiredTime);
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        verify(mDeps, never()).sendNetfilterMessages(any());
+
+        // [2] Refresh conntrack timeout. The few updates are all sent at once.
+        setElapsedRealtimeNanos(validTime);
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        final byte[] expectedNetlinkTcp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
+                IPPROTO_TCP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
+                (int) REMOTE_PORT, NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED);
+        final byte[] expectedNetlinkUdp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
+                IPPROTO_UDP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
+                (int) REMOTE_PORT, NF_CONNTRACK_UDP_TIMEOUT_STREAM);
+        final ArgumentCaptor<List<byte[]>> msgsCaptor = ArgumentCaptor.forClass(List.class);
+        verify(mDeps).sendNetfilterMessages(msgsCaptor.capture());
+        final List<byte[]> msgs = msgsCaptor.getValue();
+        assertEquals(2, msgs.size());
+        assertTrue(msgs.stream().anyMatch(m -> Arrays.equals(expectedNetlinkTcp, m)));
+        assertTrue(msgs.stream().anyMatch(m -> Arrays.equals(expectedNetlinkUdp, m)));
+        clearInvocations(mDeps);
+
+        // [3] Don't refresh conntrack timeout if polling stopped.
+        coordinator.stopPolling();
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        verify(mDeps, never()).sendNetfilterMessages(any());
+    }
+
+    /**
+     * Acknowledge the netfilter requests read from the passed socket like the kernel does, one
+     * error message per request, failing the requests at the given positions with the given
+     * errno. Completes with the number of requests read from each datagram.
+     */
+    private static CompletableFuture<List<Integer>> respondToNetfilterRequests(
+            final FileDescriptor fd, final int numRequests, final Map<Integer, Integer> failures) {
+        final CompletableFuture<List<Integer>> batchSizes = new CompletableFuture<>();
+        new Thread(() -> {
+            try {
+                final ArrayList<Integer> sizes = new ArrayList<>();
+                final byte[] buf = new byte[NETFILTER_BUFSIZE];
+                int received = 0;
+                while (received < numRequests) {
+                    final int len = Os.read(fd, buf, 0, buf.length);
+                    final ByteBuffer requests = ByteBuffer.wrap(buf, 0, len);
+                    requests.order(ByteOrder.nativeOrder());
+                    final ByteBuffer acks = ByteBuffer.allocate(buf.length);
+                    acks.order(ByteOrder.nativeOrder());
+                    int batchSize = 0;
+                    while (requests.remaining() >= StructNlMsgHdr.STRUCT_SIZE) {
+                        final int start = requests.position();
+                        final int msgLen = requests.getInt(start);
+                        // nlmsghdr, then nlmsgerr : errno and the header of the request.
+                        acks.putInt(StructNlMsgHdr.STRUCT_SIZE + 4 + StructNlMsgHdr.STRUCT_SIZE);
+                        acks.putShort(NetlinkConstants.NLMSG_ERROR);
+                        acks.putShort((short) 0);
+                        acks.putInt(requests.getInt(start + 8));
+                        acks.putInt(0);
+                        acks.putInt(-failures.getOrDefault(received, 0));
+                        acks.put(buf, start, StructNlMsgHdr.STRUCT_SIZE);
+                        requests.position(start + NetlinkConstants.alignedLengthOf(msgLen));
+                        received++;
+                        batchSize++;
+                    }
+                    sizes.add(batchSize);
+                    Os.write(fd, acks.array(), 0, acks.position());
+                }
+                batchSizes.complete(sizes);
+            } catch (Exception e) {
+                batchSizes.completeExceptionally(e);
+            }
+        }).start();
+        return batchSizes;
+    }
+
+    @Test
+    public void testSendNetfilterMessages() throws Exception {
+        final FileDescriptor coordinatorFd = new FileDescriptor();
+        final FileDescriptor kernelFd = new FileDescriptor();
+        Os.socketpair(AF_UNIX, SOCK_SEQPACKET, 0, coordinatorFd, kernelFd);
+        doReturn(coordinatorFd).when(mDeps).createNetfilterSocket();
+
+        final int numMessages = MAX_NETLINK_MESSAGES_PER_SEND + 6;
+        final ArrayList<byte[]> msgs = new ArrayList<>();
+        for (int i = 0; i < numMessages; i++) {
+            msgs.add(ConntrackMessage.newIPv4TimeoutUpdateRequest(IPPROTO_UDP, PRIVATE_ADDR,
+                    1000 + i, REMOTE_ADDR, (int) REMOTE_PORT, NF_CONNTRACK_UDP_TIMEOUT_STREAM));
+        }
+        final HashMap<Integer, Integer> failures = new HashMap<>();
+        failures.put(2, ENOENT);
+        failures.put(MAX_NETLINK_MESSAGES_PER_SEND + 1, EINVAL);
+        final CompletableFuture<List<Integer>> batchSizes =
+                respondToNetfilterRequests(kernelFd, numMessages, failures);
         try {
-            final BpfCoordinator coordinator = makeBpfCoordinator();
-            coordinator.startPolling();
-            bpfMap.insertEntry(tcpKey, tcpValue);
-            bpfMap.insertEntry(udpKey, udpValue);
+            // Requests are sent several at a time, and the errors of all of them are reported.
+            assertEquals(Arrays.asList(ENOENT, EINVAL), mDeps.sendNetfilterMessages(msgs));
+            assertEquals(Arrays.asList(MAX_NETLINK_MESSAGES_PER_SEND, 6),
+                    batchSizes.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        } finally {
+            Os.close(kernelFd);
+        }
+    }
 
-            // [1] Don't refresh conntrack timeout.
-            setElapsedRealtimeNanos(expiredTime);
-            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
-            waitForIdle();
-            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkSocket.class));
-            ExtendedMockito.clearInvocations(staticMockMarker(NetlinkSocket.class));
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testRefreshConntrackTimeout_SpreadOverInterval() throws Exception {
+        final TestBpfMap<Tether4Key, Tether4Value> bpfUpstream4Map =
+                new TestBpfMap<>(Tether4Key.class, Tether4Value.class);
+        doReturn(bpfUpstream4Map).when(mDeps).getBpfUpstream4Map();
+        doReturn(new ArrayList<Integer>()).when(mDeps).sendNetfilterMessages(any());
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        coordinator.startPolling();
 
-            // [2] Refresh conntrack timeout.
-            setElapsedRealtimeNanos(validTime);
-            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
-            waitForIdle();
-            final byte[] expectedNetlinkTcp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
-                    IPPROTO_TCP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
-                    (int) REMOTE_PORT, NF_CONNTRACK_TCP_TIMEOUT_ESTABLISHED);
-            final byte[] expectedNetlinkUdp = ConntrackMessage.newIPv4TimeoutUpdateRequest(
-                    IPPROTO_UDP, PRIVATE_ADDR, (int) PRIVATE_PORT, REMOTE_ADDR,
-                    (int) REMOTE_PORT, NF_CONNTRACK_UDP_TIMEOUT_STREAM);
-            ExtendedMockito.verify(() -> NetlinkSocket.sendOneShotKernelMessage(
-                    eq(NETLINK_NETFILTER), eq(expectedNetlinkTcp)));
-            ExtendedMockito.verify(() -> NetlinkSocket.sendOneShotKernelMessage(
-                    eq(NETLINK_NETFILTER), eq(expectedNetlinkUdp)));
-            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkSocket.class));
-            ExtendedMockito.clearInvocations(staticMockMarker(NetlinkSocket.class));
-
-            // [3] Don't refresh conntrack timeout if polling stopped.
-            coordinator.stopPolling();
-            mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        // Enough connections to need all the slices of the interval.
+        final int numConnections =
+                MIN_CONNTRACK_TIMEOUT_UPDATES_PER_SLICE * CONNTRACK_TIMEOUT_UPDATE_SLICES;
+        for (int i = 0; i < numConnections; i++) {
+            bpfUpstream4Map.insertEntry(new TestUpstream4Key.Builder().setProto(IPPROTO_UDP)
+                    .setSrcPort(1000 + i).build(), new TestUpstream4Value.Builder().build());
+        }
+        setElapsedRealtimeNanos((CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS - 1) * 1_000_000L);
+
+        final long sliceMs = CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS / CONNTRACK_TIMEOUT_UPDATE_SLICES;
+        final ArgumentCaptor<List<byte[]>> msgsCaptor = ArgumentCaptor.forClass(List.class);
+        mTestLooper.moveTimeForward(CONNTRACK_TIMEOUT_UPDATE_INTERVAL_MS);
+        waitForIdle();
+        for (int i = 0; i < CONNTRACK_TIMEOUT_UPDATE_SLICES; i++) {
+            verify(mDeps).sendNetfilterMessages(msgsCaptor.capture());
+            assertEquals(MIN_CONNTRACK_TIMEOUT_UPDATES_PER_SLICE, msgsCaptor.getValue().size());
+            clearInvocations(mDeps);
+            mTestLooper.moveTimeForward(sliceMs);
             waitForIdle();
-            ExtendedMockito.verifyNoMoreInteractions(staticMockMarker(NetlinkSocket.class));
-            ExtendedMockito.clearInvocations(staticMockMarker(NetlinkSocket.class));
-        } finally {
-            mockSession.finishMocking();
         }
+
+        // The next interval starts one interval after the previous one.
+        verify(mDeps).sendNetfilterMessages(msgsCaptor.capture());
+        assertEquals(MIN_CONNTRACK_TIMEOUT_UPDATES_PER_SLICE, msgsCaptor.getValue().size());
+        coordinator.stopPolling();
     }
 
     @Test
@@ -2092,4 +2281,29 @@ public class BpfCoordinatorTest {
         assertNull(mBpfUpstream4Map.getValue(upstream4KeyB));
         assertNull(mBpfDownstream4Map.getValue(downstream4KeyB));
     }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.R)
+    public void testConntrackEventOnRemovedClient() throws Exception {
+        final BpfCoordinator coordinator = makeBpfCoordinator();
+        initBpfCoordinatorForRule4(coordinator);
+
+        // Events from a client that was removed are ignored.
+        coordinator.tetherOffloadClientRemove(mIpServer, CLIENT_INFO_A);
+        mConsumer.accept(new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_NEW)
+                .setProto(IPPROTO_TCP)
+                .build());
+        verify(mBpfUpstream4Map, never()).insertEntry(any(), any());
+        verify(mBpfDownstream4Map, never()).insertEntry(any(), any());
+
+        // The same client can be added again.
+        coordinator.tetherOffloadClientAdd(mIpServer, CLIENT_INFO_A);
+        mConsumer.accept(new TestConntrackEvent.Builder()
+                .setMsgType(IPCTNL_MSG_CT_NEW)
+                .setProto(IPPROTO_TCP)
+                .build());
+        verify(mBpfUpstream4Map).insertEntry(any(), any());
+        verify(mBpfDownstream4Map).insertEntry(any(), any());
+    }
 }
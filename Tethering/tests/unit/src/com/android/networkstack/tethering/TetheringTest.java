@@ -154,6 +154,7 @@ import android.net.dhcp.IDhcpServer;
 import android.net.ip.DadProxy;
 import android.net.ip.IpServer;
 import android.net.ip.RouterAdvertisementDaemon;
+import android.net.ip.SharedIpNeighborMonitor;
 import android.net.util.NetworkConstants;
 import android.net.wifi.SoftApConfiguration;
 import android.net.wifi.WifiClient;
@@ -188,7 +189,6 @@ import com.android.internal.util.test.FakeSettingsProvider;
 import com.android.net.module.util.CollectionUtils;
 import com.android.net.module.util.InterfaceParams;
 import com.android.net.module.util.SharedLog;
-import com.android.net.module.util.ip.IpNeighborMonitor;
 import com.android.networkstack.apishim.common.BluetoothPanShim;
 import com.android.networkstack.apishim.common.BluetoothPanShim.TetheredInterfaceCallbackShim;
 import com.android.networkstack.apishim.common.BluetoothPanShim.TetheredInterfaceRequestShim;
@@ -270,7 +270,7 @@ public class TetheringTest {
     @Mock private IPv6TetheringCoordinator mIPv6TetheringCoordinator;
     @Mock private DadProxy mDadProxy;
     @Mock private RouterAdvertisementDaemon mRouterAdvertisementDaemon;
-    @Mock private IpNeighborMonitor mIpNeighborMonitor;
+    @Mock private SharedIpNeighborMonitor mNeighborMonitor;
     @Mock private IDhcpServer mDhcpServer;
     @Mock private INetd mNetd;
     @Mock private UserManager mUserManager;
@@ -410,11 +410,6 @@ public class TetheringTest {
                 }
             }).run();
         }
-
-        public IpNeighborMonitor getIpNeighborMonitor(Handler h, SharedLog l,
-                IpNeighborMonitor.NeighborEventConsumer c) {
-            return mIpNeighborMonitor;
-        }
     }
 
     public class MockTetheringDependencies extends TetheringDependencies {
@@ -432,6 +427,11 @@ public class TetheringTest {
             return mOffloadHardwareInterface;
         }
 
+        @Override
+        public SharedIpNeighborMonitor getSharedIpNeighborMonitor(Handler h, SharedLog log) {
+            return mNeighborMonitor;
+        }
+
         @Override
         public OffloadController getOffloadController(Handler h, SharedLog log,
                 OffloadController.Dependencies deps) {
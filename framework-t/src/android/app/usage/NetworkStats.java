@@ -17,13 +17,16 @@
 package android.app.usage;
 
 import android.annotation.IntDef;
+import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.content.Context;
 import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
+import android.net.NetworkStatsCollection;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.TrafficStats;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.util.Log;
 
@@ -31,6 +34,9 @@ import com.android.net.module.util.CollectionUtils;
 
 import dalvik.system.CloseGuard;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.util.ArrayList;
@@ -87,6 +93,13 @@ public final class NetworkStats implements AutoCloseable {
      */
     private android.net.NetworkStats mSummary = null;
 
+    /**
+     * Results of a summary query streamed by the service, read one row at a time, and the
+     * stream they are read from.
+     */
+    private NetworkStatsCollection.SummaryReader mSummaryReader = null;
+    private DataInputStream mSummaryStream = null;
+
     /**
      * Results of detail queries.
      */
@@ -480,7 +493,9 @@ public final class NetworkStats implements AutoCloseable {
      * @return true if successfully filled the bucket, false otherwise.
      */
     public boolean getNextBucket(@Nullable Bucket bucketOut) {
-        if (mSummary != null) {
+        if (mSummaryReader != null) {
+            return getNextStreamedSummaryBucket(bucketOut);
+        } else if (mSummary != null) {
             return getNextSummaryBucket(bucketOut);
         } else {
             return getNextHistoryBucket(bucketOut);
@@ -492,7 +507,9 @@ public final class NetworkStats implements AutoCloseable {
      * @return true if there is at least one more bucket.
      */
     public boolean hasNextBucket() {
-        if (mSummary != null) {
+        if (mSummaryReader != null) {
+            return mSummaryReader.hasNext();
+        } else if (mSummary != null) {
             return mEnumerationIndex < mSummary.size();
         } else if (mHistory != null) {
             return mEnumerationIndex < mHistory.size()
@@ -515,6 +532,7 @@ public final class NetworkStats implements AutoCloseable {
             }
         }
         mSession = null;
+        closeSummaryStream();
         if (mCloseGuard != null) {
             mCloseGuard.close();
         }
@@ -541,8 +559,15 @@ public final class NetworkStats implements AutoCloseable {
      * @throws RemoteException
      */
     void startSummaryEnumeration() throws RemoteException {
-        mSummary = mSession.getSummaryForAllUid(mTemplate, mStartTimeStamp, mEndTimeStamp,
-                false /* includeTags */);
+        final ParcelFileDescriptor pfd = mSession.openSummaryStreamForAllUid(mTemplate,
+                mStartTimeStamp, mEndTimeStamp, false /* includeTags */);
+        if (pfd != null) {
+            openSummaryStream(pfd);
+        } else {
+            // The service cannot stream the summary right now, get it in one go instead.
+            mSummary = mSession.getSummaryForAllUid(mTemplate, mStartTimeStamp, mEndTimeStamp,
+                    false /* includeTags */);
+        }
         mEnumerationIndex = 0;
     }
 
@@ -551,10 +576,63 @@ public final class NetworkStats implements AutoCloseable {
      * @throws RemoteException
      */
     void startTaggedSummaryEnumeration() throws RemoteException {
-        mSummary = mSession.getTaggedSummaryForAllUid(mTemplate, mStartTimeStamp, mEndTimeStamp);
+        final ParcelFileDescriptor pfd = mSession.openTaggedSummaryStreamForAllUid(mTemplate,
+                mStartTimeStamp, mEndTimeStamp);
+        if (pfd != null) {
+            openSummaryStream(pfd);
+        } else {
+            // The service cannot stream the summary right now, get it in one go instead.
+            mSummary = mSession.getTaggedSummaryForAllUid(mTemplate, mStartTimeStamp,
+                    mEndTimeStamp);
+        }
         mEnumerationIndex = 0;
     }
 
+    /**
+     * Starts reading a summary streamed by the service. The stream is closed once fully read,
+     * or by {@link #close}.
+     * @throws RemoteException if the stream could not be read, e.g. because the service died.
+     */
+    private void openSummaryStream(@NonNull ParcelFileDescriptor pfd) throws RemoteException {
+        mSummaryStream = new DataInputStream(new BufferedInputStream(
+                new ParcelFileDescriptor.AutoCloseInputStream(pfd)));
+        try {
+            mSummaryReader = new NetworkStatsCollection.SummaryReader(mSummaryStream);
+        } catch (IOException e) {
+            closeSummaryStream();
+            throw new RemoteException("Failed to read stats summary: " + e);
+        }
+        if (!mSummaryReader.hasNext()) closeSummaryStream();
+    }
+
+    private void closeSummaryStream() {
+        if (mSummaryStream != null) {
+            try {
+                mSummaryStream.close();
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+            mSummaryStream = null;
+        }
+    }
+
+    /**
+     * Reads the next row of a streamed summary, closing the stream after the last one.
+     */
+    @NonNull
+    private android.net.NetworkStats.Entry readStreamedSummaryEntry(
+            @Nullable android.net.NetworkStats.Entry recycle) {
+        try {
+            final android.net.NetworkStats.Entry entry = mSummaryReader.next(recycle);
+            if (!mSummaryReader.hasNext()) closeSummaryStream();
+            return entry;
+        } catch (IOException e) {
+            closeSummaryStream();
+            throw new RemoteException("Failed to read stats summary: " + e)
+                    .rethrowFromSystemServer();
+        }
+    }
+
     /**
      * Collects history results for uid and resets history enumeration index.
      */
@@ -662,19 +740,64 @@ public final class NetworkStats implements AutoCloseable {
         return false;
     }
 
+    /**
+     * Getting the next item in a streamed summary enumeration.
+     * @param bucketOut Next item will be set here.
+     * @return true if a next item could be set.
+     */
+    private boolean getNextStreamedSummaryBucket(@Nullable Bucket bucketOut) {
+        if (bucketOut != null && mSummaryReader.hasNext()) {
+            mRecycledSummaryEntry = readStreamedSummaryEntry(mRecycledSummaryEntry);
+            fillBucketFromSummaryEntry(bucketOut);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sums up the summary results, skipping tagged traffic like
+     * {@link android.net.NetworkStats#getTotal}. Consumes the remaining rows of a streamed
+     * summary.
+     */
     Bucket getSummaryAggregate() {
-        if (mSummary == null) {
+        if (mSummary == null && mSummaryReader == null) {
             return null;
         }
         Bucket bucket = new Bucket();
         if (mRecycledSummaryEntry == null) {
             mRecycledSummaryEntry = new android.net.NetworkStats.Entry();
         }
-        mSummary.getTotal(mRecycledSummaryEntry);
+        if (mSummaryReader != null) {
+            getStreamedSummaryTotal(mRecycledSummaryEntry);
+        } else {
+            mSummary.getTotal(mRecycledSummaryEntry);
+        }
         fillBucketFromSummaryEntry(bucket);
         return bucket;
     }
 
+    private void getStreamedSummaryTotal(@NonNull android.net.NetworkStats.Entry total) {
+        total.iface = android.net.NetworkStats.IFACE_ALL;
+        total.uid = android.net.NetworkStats.UID_ALL;
+        total.set = android.net.NetworkStats.SET_ALL;
+        total.tag = android.net.NetworkStats.TAG_NONE;
+        total.metered = android.net.NetworkStats.METERED_ALL;
+        total.roaming = android.net.NetworkStats.ROAMING_ALL;
+        total.defaultNetwork = android.net.NetworkStats.DEFAULT_NETWORK_ALL;
+        total.rxBytes = 0;
+        total.rxPackets = 0;
+        total.txBytes = 0;
+        total.txPackets = 0;
+        total.operations = 0;
+        android.net.NetworkStats.Entry entry = null;
+        while (mSummaryReader.hasNext()) {
+            entry = readStreamedSummaryEntry(entry);
+            // skip specific tags, since already counted in TAG_NONE
+            if (entry.tag != android.net.NetworkStats.TAG_NONE) continue;
+            total.add(entry);
+        }
+    }
+
     /**
      * Getting the next item in a history enumeration.
      * @param bucketOut Next item will be set here.
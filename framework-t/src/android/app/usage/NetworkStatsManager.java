@@ -353,8 +353,12 @@ public class NetworkStatsManager {
         stats = new NetworkStats(mContext, template, mFlags, startTime, endTime, mService);
         stats.startSummaryEnumeration();
 
-        stats.close();
-        return stats.getSummaryAggregate();
+        // A streamed summary is read while aggregating it, so aggregate before closing.
+        try {
+            return stats.getSummaryAggregate();
+        } finally {
+            stats.close();
+        }
     }
 
     /**
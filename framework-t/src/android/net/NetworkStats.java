@@ -23,6 +23,7 @@ import android.annotation.NonNull;
 import android.annotation.Nullable;
 import android.annotation.SystemApi;
 import android.compat.annotation.UnsupportedAppUsage;
+import android.os.BadParcelableException;
 import android.os.Build;
 import android.os.Parcel;
 import android.os.Parcelable;
@@ -40,7 +41,9 @@ import java.io.CharArrayWriter;
 import java.io.PrintWriter;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
@@ -203,6 +206,12 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     // Used for correct stats accounting on clatd interfaces.
     private static final int IPV4V6_HEADER_DELTA = 20;
 
+    /**
+     * Minimum number of rows for lookups to build {@link #rowIndex}. Below this, scanning the
+     * rows is about as fast as hashing the key, and the index isn't worth its memory.
+     */
+    private static final int ROW_INDEX_MIN_SIZE = 32;
+
     // TODO: move fields to "mVariable" notation
 
     /**
@@ -218,6 +227,12 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     private int capacity;
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private String[] iface;
+    /**
+     * Interface of each row, as ids from {@link NetworkStatsIfaceDictionary}, so that rows are
+     * compared without comparing strings. Rows with
+     * {@link NetworkStatsIfaceDictionary#ID_OVERFLOW} are compared by {@link #iface}.
+     */
+    private int[] ifaceId;
     @UnsupportedAppUsage
     private int[] uid;
     @UnsupportedAppUsage
@@ -241,6 +256,21 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     @UnsupportedAppUsage(maxTargetSdk = Build.VERSION_CODES.R, trackingBug = 170729553)
     private long[] operations;
 
+    /**
+     * Open-addressing hash index of the rows by key, or null if it hasn't been built. Each slot
+     * contains a row number plus one, or 0 if empty ; when several rows have the same key, only
+     * the first one is indexed. The index is built by lookups on objects with at least
+     * {@link #ROW_INDEX_MIN_SIZE} rows, kept up to date by {@link #insertEntry(Entry)}, and
+     * dropped by any other change to the key columns. It is never parceled.
+     *
+     * Lookups are read operations, so several threads may build the index concurrently : it is
+     * only published once complete, and volatile so that it is published safely.
+     */
+    private volatile int[] rowIndex;
+    /** Whether several rows have the same key. Written before {@link #rowIndex} is published. */
+    private boolean rowIndexHasDuplicates;
+    private boolean rowIndexEnabled = true;
+
     /**
      * Basic element of network statistics. Contains the number of packets and number of bytes
      * transferred on both directions in a given set of conditions. See
@@ -500,6 +530,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         if (initialSize > 0) {
             this.capacity = initialSize;
             this.iface = new String[initialSize];
+            this.ifaceId = new int[initialSize];
             this.uid = new int[initialSize];
             this.set = new int[initialSize];
             this.tag = new int[initialSize];
@@ -523,7 +554,34 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         elapsedRealtime = parcel.readLong();
         size = parcel.readInt();
         capacity = parcel.readInt();
-        iface = parcel.createStringArray();
+        // Interface ids are only valid in the process that created them, so interfaces are
+        // parceled as a table of the names in this object, followed by an index in that table
+        // for each row.
+        final String[] ifaceNames = parcel.createStringArray();
+        final int[] ifaceIndices = parcel.createIntArray();
+        if (ifaceNames == null || ifaceIndices == null) {
+            throw new BadParcelableException("Missing interfaces in NetworkStats parcel");
+        }
+        final int[] ids = new int[ifaceNames.length];
+        Arrays.fill(ids, NetworkStatsIfaceDictionary.ID_UNKNOWN);
+        iface = new String[ifaceIndices.length];
+        ifaceId = new int[ifaceIndices.length];
+        for (int i = 0; i < ifaceIndices.length; i++) {
+            final int index = ifaceIndices[i];
+            if (index < 0 || index >= ifaceNames.length) {
+                throw new BadParcelableException("Invalid interface index " + index
+                        + " in NetworkStats parcel with " + ifaceNames.length + " interfaces");
+            }
+            // Only add the names that are used to the dictionary.
+            if (ids[index] == NetworkStatsIfaceDictionary.ID_UNKNOWN) {
+                ids[index] = NetworkStatsIfaceDictionary.getId(ifaceNames[index]);
+                if (ids[index] != NetworkStatsIfaceDictionary.ID_OVERFLOW) {
+                    ifaceNames[index] = NetworkStatsIfaceDictionary.getName(ids[index]);
+                }
+            }
+            iface[i] = ifaceNames[index];
+            ifaceId[i] = ids[index];
+        }
         uid = parcel.createIntArray();
         set = parcel.createIntArray();
         tag = parcel.createIntArray();
@@ -542,7 +600,21 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         dest.writeLong(elapsedRealtime);
         dest.writeInt(size);
         dest.writeInt(capacity);
-        dest.writeStringArray(iface);
+        // See NetworkStats(Parcel) for the format of interfaces.
+        final HashMap<String, Integer> tableIndices = new HashMap<>();
+        final ArrayList<String> ifaceNames = new ArrayList<>();
+        final int[] ifaceIndices = new int[iface.length];
+        for (int i = 0; i < iface.length; i++) {
+            Integer index = tableIndices.get(iface[i]);
+            if (index == null) {
+                index = ifaceNames.size();
+                tableIndices.put(iface[i], index);
+                ifaceNames.add(iface[i]);
+            }
+            ifaceIndices[i] = index;
+        }
+        dest.writeStringArray(ifaceNames.toArray(new String[0]));
+        dest.writeIntArray(ifaceIndices);
         dest.writeIntArray(uid);
         dest.writeIntArray(set);
         dest.writeIntArray(tag);
@@ -570,13 +642,69 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         return clone;
     }
 
+    /**
+     * Replace the contents of this object with a copy of the passed object.
+     *
+     * <p>Unlike {@link #clone()}, this reuses the arrays of this object when they are large
+     * enough, so that copying snapshots of similar sizes repeatedly doesn't allocate.
+     * @hide
+     */
+    public void copyFrom(@NonNull NetworkStats other) {
+        if (other == this) return;
+        final int[] oldIndex = rowIndex;
+        rowIndex = null;
+        if (capacity < other.size) {
+            capacity = other.size;
+            iface = new String[capacity];
+            ifaceId = new int[capacity];
+            uid = new int[capacity];
+            set = new int[capacity];
+            tag = new int[capacity];
+            metered = new int[capacity];
+            roaming = new int[capacity];
+            defaultNetwork = new int[capacity];
+            rxBytes = new long[capacity];
+            rxPackets = new long[capacity];
+            txBytes = new long[capacity];
+            txPackets = new long[capacity];
+            operations = new long[capacity];
+        }
+        elapsedRealtime = other.elapsedRealtime;
+        size = other.size;
+        System.arraycopy(other.iface, 0, iface, 0, size);
+        System.arraycopy(other.ifaceId, 0, ifaceId, 0, size);
+        System.arraycopy(other.uid, 0, uid, 0, size);
+        System.arraycopy(other.set, 0, set, 0, size);
+        System.arraycopy(other.tag, 0, tag, 0, size);
+        System.arraycopy(other.metered, 0, metered, 0, size);
+        System.arraycopy(other.roaming, 0, roaming, 0, size);
+        System.arraycopy(other.defaultNetwork, 0, defaultNetwork, 0, size);
+        System.arraycopy(other.rxBytes, 0, rxBytes, 0, size);
+        System.arraycopy(other.rxPackets, 0, rxPackets, 0, size);
+        System.arraycopy(other.txBytes, 0, txBytes, 0, size);
+        System.arraycopy(other.txPackets, 0, txPackets, 0, size);
+        System.arraycopy(other.operations, 0, operations, 0, size);
+
+        // The rows are the same, so the index of the other object is valid for this one.
+        final int[] otherIndex = other.rowIndex;
+        if (otherIndex != null && rowIndexEnabled) {
+            final int[] index = (oldIndex != null && oldIndex.length == otherIndex.length)
+                    ? oldIndex : new int[otherIndex.length];
+            System.arraycopy(otherIndex, 0, index, 0, index.length);
+            rowIndexHasDuplicates = other.rowIndexHasDuplicates;
+            rowIndex = index;
+        }
+    }
+
     /**
      * Clear all data stored in this object.
      * @hide
      */
     public void clear() {
+        this.rowIndex = null;
         this.capacity = 0;
         this.iface = EmptyArray.STRING;
+        this.ifaceId = EmptyArray.INT;
         this.uid = EmptyArray.INT;
         this.set = EmptyArray.INT;
         this.tag = EmptyArray.INT;
@@ -624,9 +752,18 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      * @hide
      */
     public NetworkStats insertEntry(Entry entry) {
+        return insertEntry(NetworkStatsIfaceDictionary.getId(entry.iface), entry);
+    }
+
+    /**
+     * Add new stats entry on the passed interface id, copying the other columns from the given
+     * {@link Entry}. The iface of the {@link Entry} must be the name of the id.
+     */
+    private NetworkStats insertEntry(int entryIfaceId, Entry entry) {
         if (size >= capacity) {
             final int newLength = Math.max(size, 10) * 3 / 2;
             iface = Arrays.copyOf(iface, newLength);
+            ifaceId = Arrays.copyOf(ifaceId, newLength);
             uid = Arrays.copyOf(uid, newLength);
             set = Arrays.copyOf(set, newLength);
             tag = Arrays.copyOf(tag, newLength);
@@ -641,14 +778,27 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             capacity = newLength;
         }
 
-        setValues(size, entry);
+        setValues(size, entryIfaceId, entry);
         size++;
 
+        final int[] index = rowIndex;
+        if (index != null) {
+            if (size * 2 > index.length) {
+                // Keep the load factor under 1/2 so that probe sequences stay short.
+                buildRowIndex();
+            } else if (!addToRowIndex(index, size - 1)) {
+                rowIndexHasDuplicates = true;
+            }
+        }
+
         return this;
     }
 
-    private void setValues(int i, Entry entry) {
-        iface[i] = entry.iface;
+    private void setValues(int i, int entryIfaceId, Entry entry) {
+        // Store the name from the dictionary if possible, so that rows share it.
+        iface[i] = entryIfaceId == NetworkStatsIfaceDictionary.ID_OVERFLOW
+                ? entry.iface : NetworkStatsIfaceDictionary.getName(entryIfaceId);
+        ifaceId[i] = entryIfaceId;
         uid[i] = entry.uid;
         set[i] = entry.set;
         tag[i] = entry.tag;
@@ -719,7 +869,9 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     private void maybeCopyEntry(int dest, int src) {
         if (dest == src) return;
+        rowIndex = null;
         iface[dest] = iface[src];
+        ifaceId[dest] = ifaceId[src];
         uid[dest] = uid[src];
         set[dest] = set[src];
         tag[dest] = tag[src];
@@ -792,11 +944,19 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      * @hide
      */
     public @NonNull NetworkStats combineValues(@NonNull Entry entry) {
-        final int i = findIndex(entry.iface, entry.uid, entry.set, entry.tag, entry.metered,
-                entry.roaming, entry.defaultNetwork);
+        return combineValues(NetworkStatsIfaceDictionary.getId(entry.iface), entry);
+    }
+
+    /**
+     * Combine given values with an existing row on the passed interface id, or create a new
+     * row. The iface of the {@link Entry} must be the name of the id.
+     */
+    private NetworkStats combineValues(int entryIfaceId, @NonNull Entry entry) {
+        final int i = findIndexById(entryIfaceId, entry.iface, entry.uid, entry.set, entry.tag,
+                entry.metered, entry.roaming, entry.defaultNetwork);
         if (i == -1) {
             // only create new entry when positive contribution
-            insertEntry(entry);
+            insertEntry(entryIfaceId, entry);
         } else {
             rxBytes[i] += entry.rxBytes;
             rxPackets[i] += entry.rxPackets;
@@ -848,11 +1008,19 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public int findIndex(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork) {
+        final int id = NetworkStatsIfaceDictionary.findId(iface);
+        if (id == NetworkStatsIfaceDictionary.ID_UNKNOWN) return -1;
+        return findIndexById(id, iface, uid, set, tag, metered, roaming, defaultNetwork);
+    }
+
+    private int findIndexById(int ifaceId, String iface, int uid, int set, int tag, int metered,
+            int roaming, int defaultNetwork) {
+        if (maybeBuildRowIndex()) {
+            return findIndexInRowIndex(ifaceId, iface, uid, set, tag, metered, roaming,
+                    defaultNetwork);
+        }
         for (int i = 0; i < size; i++) {
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && metered == this.metered[i] && roaming == this.roaming[i]
-                    && defaultNetwork == this.defaultNetwork[i]
-                    && Objects.equals(iface, this.iface[i])) {
+            if (rowMatches(i, ifaceId, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
                 return i;
             }
         }
@@ -867,6 +1035,24 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     @VisibleForTesting
     public int findIndexHinted(String iface, int uid, int set, int tag, int metered, int roaming,
             int defaultNetwork, int hintIndex) {
+        final int id = NetworkStatsIfaceDictionary.findId(iface);
+        if (id == NetworkStatsIfaceDictionary.ID_UNKNOWN) return -1;
+        return findIndexHintedById(id, iface, uid, set, tag, metered, roaming, defaultNetwork,
+                hintIndex);
+    }
+
+    private int findIndexHintedById(int ifaceId, String iface, int uid, int set, int tag,
+            int metered, int roaming, int defaultNetwork, int hintIndex) {
+        // When keys are unique, the index finds the same row as the search below. Otherwise the
+        // row found depends on the hint, so the index can't be used.
+        if (maybeBuildRowIndex() && !rowIndexHasDuplicates) {
+            if (hintIndex >= 0 && hintIndex < size && rowMatches(hintIndex, ifaceId, iface, uid,
+                    set, tag, metered, roaming, defaultNetwork)) {
+                return hintIndex;
+            }
+            return findIndexInRowIndex(ifaceId, iface, uid, set, tag, metered, roaming,
+                    defaultNetwork);
+        }
         for (int offset = 0; offset < size; offset++) {
             final int halfOffset = offset / 2;
 
@@ -878,16 +1064,106 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
                 i = (size + hintIndex - halfOffset - 1) % size;
             }
 
-            if (uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
-                    && metered == this.metered[i] && roaming == this.roaming[i]
-                    && defaultNetwork == this.defaultNetwork[i]
-                    && Objects.equals(iface, this.iface[i])) {
+            if (rowMatches(i, ifaceId, iface, uid, set, tag, metered, roaming, defaultNetwork)) {
                 return i;
             }
         }
         return -1;
     }
 
+    private boolean rowMatches(int i, int ifaceId, String iface, int uid, int set, int tag,
+            int metered, int roaming, int defaultNetwork) {
+        return uid == this.uid[i] && set == this.set[i] && tag == this.tag[i]
+                && metered == this.metered[i] && roaming == this.roaming[i]
+                && defaultNetwork == this.defaultNetwork[i] && rowIsOnIface(i, ifaceId, iface);
+    }
+
+    /** Whether the passed row is on the interface with the passed id and name. */
+    private boolean rowIsOnIface(int i, int ifaceId, String iface) {
+        return ifaceId == this.ifaceId[i] && (ifaceId != NetworkStatsIfaceDictionary.ID_OVERFLOW
+                || Objects.equals(iface, this.iface[i]));
+    }
+
+    private static int hashKey(int ifaceId, int uid, int set, int tag, int metered, int roaming,
+            int defaultNetwork) {
+        int hash = ifaceId;
+        hash = 31 * hash + uid;
+        hash = 31 * hash + set;
+        hash = 31 * hash + tag;
+        hash = 31 * hash + metered;
+        hash = 31 * hash + roaming;
+        hash = 31 * hash + defaultNetwork;
+        // The table size is a power of two, so spread high bits to the low ones.
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Build {@link #rowIndex} if it is enabled and worth it.
+     * @return whether lookups can use the index.
+     */
+    private boolean maybeBuildRowIndex() {
+        if (rowIndex != null) return true;
+        if (!rowIndexEnabled || size < ROW_INDEX_MIN_SIZE) return false;
+        buildRowIndex();
+        return true;
+    }
+
+    private void buildRowIndex() {
+        final int[] index = new int[Integer.highestOneBit(size * 2 - 1) << 1];
+        boolean hasDuplicates = false;
+        for (int i = 0; i < size; i++) {
+            hasDuplicates |= !addToRowIndex(index, i);
+        }
+        rowIndexHasDuplicates = hasDuplicates;
+        rowIndex = index;
+    }
+
+    /**
+     * Add the passed row to the passed index.
+     * @return false if a row with the same key was already present, true otherwise.
+     */
+    private boolean addToRowIndex(@NonNull int[] index, int row) {
+        final int mask = index.length - 1;
+        int slot = hashKey(ifaceId[row], uid[row], set[row], tag[row], metered[row], roaming[row],
+                defaultNetwork[row]) & mask;
+        while (index[slot] != 0) {
+            if (rowMatches(index[slot] - 1, ifaceId[row], iface[row], uid[row], set[row],
+                    tag[row], metered[row], roaming[row], defaultNetwork[row])) {
+                return false;
+            }
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = row + 1;
+        return true;
+    }
+
+    private int findIndexInRowIndex(int ifaceId, String iface, int uid, int set, int tag,
+            int metered, int roaming, int defaultNetwork) {
+        final int[] index = rowIndex;
+        final int mask = index.length - 1;
+        int slot = hashKey(ifaceId, uid, set, tag, metered, roaming, defaultNetwork) & mask;
+        while (index[slot] != 0) {
+            final int row = index[slot] - 1;
+            if (rowMatches(row, ifaceId, iface, uid, set, tag, metered, roaming,
+                    defaultNetwork)) {
+                return row;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Set whether lookups may use a hash index of the rows, which is the default. This is only
+     * useful to compare performance with linear scans.
+     * @hide
+     */
+    @VisibleForTesting
+    public void setRowIndexEnabled(boolean enabled) {
+        rowIndexEnabled = enabled;
+        if (!enabled) rowIndex = null;
+    }
+
     /**
      * Splice in {@link #operations} from the given {@link NetworkStats} based
      * on matching {@link #uid} and {@link #tag} rows. Ignores {@link #iface},
@@ -896,8 +1172,8 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public void spliceOperationsFrom(NetworkStats stats) {
         for (int i = 0; i < size; i++) {
-            final int j = stats.findIndex(iface[i], uid[i], set[i], tag[i], metered[i], roaming[i],
-                    defaultNetwork[i]);
+            final int j = stats.findIndexById(ifaceId[i], iface[i], uid[i], set[i], tag[i],
+                    metered[i], roaming[i], defaultNetwork[i]);
             if (j == -1) {
                 operations[i] = 0;
             } else {
@@ -1010,7 +1286,8 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
 
         for (int i = 0; i < size; i++) {
             final boolean matchesUid = (limitUid == UID_ALL) || (limitUid == uid[i]);
-            final boolean matchesIface = (limitIface == null) || (limitIface.contains(iface[i]));
+            final boolean matchesIface = (limitIface == null)
+                    || (limitIface.contains(iface[i]));
 
             if (matchesUid && matchesIface) {
                 // skip specific tags, since already counted in TAG_NONE
@@ -1092,6 +1369,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
         final NetworkStats result;
         if (recycle != null && recycle.capacity >= left.size) {
             result = recycle;
+            result.rowIndex = null;
             result.size = 0;
             result.elapsedRealtime = deltaRealtime;
         } else {
@@ -1112,8 +1390,8 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             entry.operations = left.operations[i];
 
             // find remote row that matches, and subtract
-            final int j = right.findIndexHinted(entry.iface, entry.uid, entry.set, entry.tag,
-                    entry.metered, entry.roaming, entry.defaultNetwork, i);
+            final int j = right.findIndexHintedById(left.ifaceId[i], entry.iface, entry.uid,
+                    entry.set, entry.tag, entry.metered, entry.roaming, entry.defaultNetwork, i);
             if (j != -1) {
                 // Found matching row, subtract remote value.
                 entry.rxBytes -= right.rxBytes[j];
@@ -1134,7 +1412,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
                 entry.operations = Math.max(entry.operations, 0);
             }
 
-            result.insertEntry(entry);
+            result.insertEntry(left.ifaceId[i], entry);
         }
 
         return result;
@@ -1167,13 +1445,10 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      */
     public static void apply464xlatAdjustments(NetworkStats baseTraffic,
             NetworkStats stackedTraffic, Map<String, String> stackedIfaces) {
-        // For recycling
-        Entry entry = null;
         for (int i = 0; i < stackedTraffic.size; i++) {
-            entry = stackedTraffic.getValues(i, entry);
-            if (entry == null) continue;
-            if (entry.iface == null) continue;
-            if (!entry.iface.startsWith(CLATD_INTERFACE_PREFIX)) continue;
+            final String iface = stackedTraffic.iface[i];
+            if (iface == null) continue;
+            if (!iface.startsWith(CLATD_INTERFACE_PREFIX)) continue;
 
             // For 464xlat traffic, per uid stats only counts the bytes of the native IPv4 packet
             // sent on the stacked interface with prefix "v4-" and drops the IPv6 header size after
@@ -1185,9 +1460,8 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             //
             // While the ebpf code path does try to simulate proper post segmentation packet
             // counts, we have nothing of the sort of xt_qtaguid stats.
-            entry.rxBytes += entry.rxPackets * IPV4V6_HEADER_DELTA;
-            entry.txBytes += entry.txPackets * IPV4V6_HEADER_DELTA;
-            stackedTraffic.setValues(i, entry);
+            stackedTraffic.rxBytes[i] += stackedTraffic.rxPackets[i] * IPV4V6_HEADER_DELTA;
+            stackedTraffic.txBytes[i] += stackedTraffic.txPackets[i] * IPV4V6_HEADER_DELTA;
         }
     }
 
@@ -1230,7 +1504,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             entry.rxPackets = rxPackets[i];
             entry.txBytes = txBytes[i];
             entry.txPackets = txPackets[i];
-            stats.combineValues(entry);
+            stats.combineValues(ifaceId[i], entry);
         }
 
         return stats;
@@ -1296,8 +1570,10 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
      * @hide
      */
     public void clearInterfaces() {
+        rowIndex = null;
         for (int i = 0; i < size; i++) {
-            iface[i] = null;
+            iface[i] = IFACE_ALL;
+            ifaceId[i] = NetworkStatsIfaceDictionary.ID_IFACE_ALL;
         }
     }
 
@@ -1332,13 +1608,14 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     }
 
     private void filter(Predicate<Entry> predicate) {
+        rowIndex = null;
         Entry entry = new Entry();
         int nextOutputEntry = 0;
         for (int i = 0; i < size; i++) {
             entry = getValues(i, entry);
             if (predicate.test(entry)) {
                 if (nextOutputEntry != i) {
-                    setValues(nextOutputEntry, entry);
+                    setValues(nextOutputEntry, ifaceId[i], entry);
                 }
                 nextOutputEntry++;
             }
@@ -1576,6 +1853,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
     private void tunAdjustmentInit(int tunUid, @NonNull String tunIface,
             @NonNull List<String> underlyingIfaces, @NonNull Entry tunIfaceTotal,
             @NonNull Entry[] perInterfaceTotal, @NonNull Entry underlyingIfacesTotal) {
+        final int tunIfaceId = NetworkStatsIfaceDictionary.findId(tunIface);
         final Entry recycle = new Entry();
         for (int i = 0; i < size; i++) {
             getValues(i, recycle);
@@ -1599,7 +1877,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
                 // network usage as ground truth. Encrypted traffic on the underlying networks will
                 // never be processed here because encrypted traffic on the underlying interfaces
                 // is not present in UID stats, and this method is only called on UID stats.
-                if (tunIface.equals(recycle.iface)) {
+                if (rowIsOnIface(i, tunIfaceId, tunIface)) {
                     tunIfaceTotal.add(recycle);
                     underlyingIfacesTotal.add(recycle);
 
@@ -1624,7 +1902,7 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
                         break;
                     }
                 }
-            } else if (tunIface.equals(recycle.iface)) {
+            } else if (rowIsOnIface(i, tunIfaceId, tunIface)) {
                 // VpnService VPN; traffic sent by apps on the VPN network
                 tunIfaceTotal.add(recycle);
             }
@@ -1653,10 +1931,16 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
             moved[i] = new Entry();
         }
 
+        final int tunIfaceId = NetworkStatsIfaceDictionary.findId(tunIface);
+        final int[] underlyingIfaceIds = new int[underlyingIfaces.size()];
+        for (int i = 0; i < underlyingIfaces.size(); i++) {
+            underlyingIfaceIds[i] = NetworkStatsIfaceDictionary.getId(underlyingIfaces.get(i));
+        }
+
         final Entry tmpEntry = new Entry();
         final int origSize = size;
         for (int i = 0; i < origSize; i++) {
-            if (!Objects.equals(iface[i], tunIface)) {
+            if (!rowIsOnIface(i, tunIfaceId, tunIface)) {
                 // Consider only entries that go onto the VPN interface.
                 continue;
             }
@@ -1761,13 +2045,13 @@ public final class NetworkStats implements Parcelable, Iterable<NetworkStats.Ent
                 }
                 // tmpEntry now contains the migrated data of the i-th entry for the j-th underlying
                 // interface. Add that data usage to this object.
-                combineValues(tmpEntry);
+                combineValues(underlyingIfaceIds[j], tmpEntry);
                 if (tag[i] == TAG_NONE) {
                     // Add the migrated data to moved so it is deducted from the VPN app later.
                     moved[j].add(tmpEntry);
                     // Add debug info
                     tmpEntry.set = SET_DBG_VPN_IN;
-                    combineValues(tmpEntry);
+                    combineValues(underlyingIfaceIds[j], tmpEntry);
                 }
             }
         }
@@ -28,6 +28,8 @@ import static android.net.NetworkStats.SET_ALL;
 import static android.net.NetworkStats.SET_DEFAULT;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
+import static android.net.NetworkStatsHistory.DataStreamUtils.readVarLong;
+import static android.net.NetworkStatsHistory.DataStreamUtils.writeVarLong;
 import static android.net.NetworkTemplate.MATCH_BLUETOOTH;
 import static android.net.NetworkTemplate.MATCH_ETHERNET;
 import static android.net.NetworkTemplate.MATCH_MOBILE;
@@ -49,10 +51,12 @@ import android.service.NetworkStatsCollectionStatsProto;
 import android.telephony.SubscriptionPlan;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.Range;
+import android.util.SparseArray;
 import android.util.proto.ProtoOutputStream;
 
 import com.android.internal.annotations.VisibleForTesting;
@@ -76,11 +80,14 @@ import java.io.PrintWriter;
 import java.net.ProtocolException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 
@@ -105,8 +112,37 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
     private static final int VERSION_UNIFIED_INIT = 16;
 
+    // Maximum number of templates whose matching identity sets are cached.
+    private static final int MAX_TEMPLATE_MATCH_CACHE_SIZE = 16;
+    // Keys matching a template are found by scanning all keys instead of using the index when
+    // more than 1 / LINEAR_SCAN_MATCH_RATIO of them match.
+    private static final int LINEAR_SCAN_MATCH_RATIO = 4;
+    // Order of the keys in a summary stream. Rows that readers combine have the same uid, set,
+    // tag, meteredness, roaming state and default network state, so they end up adjacent.
+    private static final Comparator<Key> SUMMARY_ROW_ORDER = (left, right) -> {
+        int res = Integer.compare(left.uid, right.uid);
+        if (res == 0) res = Integer.compare(left.set, right.set);
+        if (res == 0) res = Integer.compare(left.tag, right.tag);
+        if (res == 0) res = Integer.compare(getSummaryRowFlags(left), getSummaryRowFlags(right));
+        return res;
+    };
+
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
+    // Secondary indexes of the keys in mStats, so that queries only look at the relevant
+    // histories. They must be updated whenever a key is added to or removed from mStats.
+    // Keys by uid.
+    private final SparseArray<ArraySet<Key>> mKeysByUid = new SparseArray<>();
+    // Keys by identity set. The keys of this map are the canonical instances of each identity
+    // set in this collection, which are also used for new keys. Identity sets are only added or
+    // removed while holding mTemplateMatchCache, so that queries can iterate over them.
+    private final ArrayMap<NetworkIdentitySet, ArraySet<Key>> mKeysByIdent = new ArrayMap<>();
+    // Identity sets in mKeysByIdent matching each recently queried template. Queries may run
+    // concurrently, so this is guarded by its own lock. It is cleared whenever an identity set
+    // is added or removed.
+    private final ArrayMap<NetworkTemplate, ArraySet<NetworkIdentitySet>> mTemplateMatchCache =
+            new ArrayMap<>();
+
     private final long mBucketDurationMillis;
 
     private long mStartMillis;
@@ -133,6 +169,11 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
     /** @hide */
     public void reset() {
         mStats.clear();
+        mKeysByUid.clear();
+        synchronized (mTemplateMatchCache) {
+            mKeysByIdent.clear();
+            mTemplateMatchCache.clear();
+        }
         mStartMillis = Long.MAX_VALUE;
         mEndMillis = Long.MIN_VALUE;
         mTotalBytes = 0;
@@ -292,12 +333,15 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             collectEnd = roundUp(collectEnd);
         }
 
-        for (int i = 0; i < mStats.size(); i++) {
-            final Key key = mStats.keyAt(i);
-            if (key.uid == uid && NetworkStats.setMatches(set, key.set) && key.tag == tag
-                    && templateMatches(template, key.ident)) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
-                combined.recordHistory(value, collectStart, collectEnd);
+        final ArraySet<Key> uidKeys = mKeysByUid.get(uid);
+        if (uidKeys != null) {
+            final ArraySet<NetworkIdentitySet> matchingIdents = getMatchingIdents(template);
+            for (int i = 0; i < uidKeys.size(); i++) {
+                final Key key = uidKeys.valueAt(i);
+                if (NetworkStats.setMatches(set, key.set) && key.tag == tag
+                        && matchingIdents.contains(key.ident)) {
+                    combined.recordHistory(mStats.get(key), collectStart, collectEnd);
+                }
             }
         }
 
@@ -380,28 +424,11 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         final NetworkStats.Entry entry = new NetworkStats.Entry();
         NetworkStatsHistory.Entry historyEntry = null;
 
-        for (int i = 0; i < mStats.size(); i++) {
+        for (final int i : getIndicesOfKeysMatching(template)) {
             final Key key = mStats.keyAt(i);
-            if (templateMatches(template, key.ident)
-                    && NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
+            if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
                     && key.set < NetworkStats.SET_DEBUG_START) {
-                final NetworkStatsHistory value = mStats.valueAt(i);
-                historyEntry = value.getValues(start, end, now, historyEntry);
-
-                entry.iface = IFACE_ALL;
-                entry.uid = key.uid;
-                entry.set = key.set;
-                entry.tag = key.tag;
-                entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork()
-                        ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
-                entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
-                entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
-                entry.rxBytes = historyEntry.rxBytes;
-                entry.rxPackets = historyEntry.rxPackets;
-                entry.txBytes = historyEntry.txBytes;
-                entry.txPackets = historyEntry.txPackets;
-                entry.operations = historyEntry.operations;
-
+                historyEntry = getSummaryEntry(i, start, end, now, historyEntry, entry);
                 if (!entry.isEmpty()) {
                     stats.combineValues(entry);
                 }
@@ -411,6 +438,223 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         return stats;
     }
 
+    /**
+     * Open a cursor writing the summary of this collection across the requested range to a
+     * stream, page by page, with the same rows as {@link #getSummary}. Rows of different
+     * {@link NetworkIdentitySet} are not combined, so that the summary is never held in memory,
+     * but rows that readers must combine are written one after another. Callers must end the
+     * stream with {@link #writeSummaryEnd} and read it with {@link SummaryReader}.
+     *
+     * <p>This and {@link SummaryCursor#writePage} must be called with the lock that guards
+     * modifications of this collection held. The lock may be released between pages, in which
+     * case each page reflects the collection at the time it was written.
+     *
+     * @param template - a predicate for filtering netstats.
+     * @param start - start of the range, timestamp in milliseconds since the epoch.
+     * @param end - end of the range, timestamp in milliseconds since the epoch.
+     * @param accessLevel - caller access level.
+     * @param callerUid - caller UID.
+     * @hide
+     */
+    @NonNull
+    public SummaryCursor openSummaryCursor(NetworkTemplate template, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callerUid) {
+        final ArrayList<Key> keys = new ArrayList<>();
+        // shortcut when we know stats will be empty
+        if (start != end) {
+            for (final int i : getIndicesOfKeysMatching(template)) {
+                final Key key = mStats.keyAt(i);
+                if (NetworkStatsAccess.isAccessibleToUser(key.uid, callerUid, accessLevel)
+                        && key.set < NetworkStats.SET_DEBUG_START) {
+                    keys.add(key);
+                }
+            }
+        }
+        final Key[] sorted = keys.toArray(new Key[0]);
+        Arrays.sort(sorted, SUMMARY_ROW_ORDER);
+        return new SummaryCursor(sorted, start, end, System.currentTimeMillis());
+    }
+
+    private static int getSummaryRowFlags(@NonNull Key key) {
+        return (key.ident.isAnyMemberMetered() ? 4 : 0)
+                | (key.ident.isAnyMemberRoaming() ? 2 : 0)
+                | (key.ident.areAllMembersOnDefaultNetwork() ? 1 : 0);
+    }
+
+    /**
+     * Writes the summary of a {@link NetworkStatsCollection} page by page, see
+     * {@link #openSummaryCursor}. Only holds references to the keys of the summary.
+     * @hide
+     */
+    public final class SummaryCursor {
+        @NonNull
+        private final Key[] mKeys;
+        private final long mStart;
+        private final long mEnd;
+        private final long mNow;
+        private final NetworkStats.Entry mEntry = new NetworkStats.Entry();
+        @Nullable
+        private NetworkStatsHistory.Entry mHistoryEntry;
+        private int mPosition = 0;
+
+        private SummaryCursor(@NonNull Key[] keys, long start, long end, long now) {
+            mKeys = keys;
+            mStart = start;
+            mEnd = end;
+            mNow = now;
+        }
+
+        /** Whether some keys have not been written yet. */
+        public boolean hasNext() {
+            return mPosition < mKeys.length;
+        }
+
+        /**
+         * Write the summary rows of at most {@code maxKeys} more keys to the given stream.
+         * Keys removed from the collection since the cursor was opened are skipped.
+         */
+        public void writePage(@NonNull DataOutput out, int maxKeys) throws IOException {
+            final int end = Math.min(mKeys.length, mPosition + maxKeys);
+            while (mPosition < end) {
+                final int index = mStats.indexOfKey(mKeys[mPosition++]);
+                if (index < 0) continue;
+                mHistoryEntry = getSummaryEntry(index, mStart, mEnd, mNow, mHistoryEntry,
+                        mEntry);
+                if (mEntry.isEmpty()) continue;
+
+                // summary := *(true uid set tag metered roaming defaultNetwork rxBytes
+                //     rxPackets txBytes txPackets operations) false
+                out.writeBoolean(true);
+                out.writeInt(mEntry.uid);
+                out.writeInt(mEntry.set);
+                out.writeInt(mEntry.tag);
+                out.writeInt(mEntry.metered);
+                out.writeInt(mEntry.roaming);
+                out.writeInt(mEntry.defaultNetwork);
+                writeVarLong(out, mEntry.rxBytes);
+                writeVarLong(out, mEntry.rxPackets);
+                writeVarLong(out, mEntry.txBytes);
+                writeVarLong(out, mEntry.txPackets);
+                writeVarLong(out, mEntry.operations);
+            }
+        }
+    }
+
+    /**
+     * End a summary stream written with {@link SummaryCursor}.
+     * @hide
+     */
+    public static void writeSummaryEnd(@NonNull DataOutput out) throws IOException {
+        out.writeBoolean(false);
+    }
+
+    /**
+     * Reads a summary stream written with {@link SummaryCursor} and {@link #writeSummaryEnd}
+     * one row at a time, combining the adjacent rows of the same uid, set, tag, meteredness,
+     * roaming state and default network state.
+     * @hide
+     */
+    public static final class SummaryReader {
+        @NonNull
+        private final DataInput mIn;
+        // The next row of the stream, read ahead to know whether to combine it.
+        private final NetworkStats.Entry mNext = new NetworkStats.Entry();
+        private boolean mHasNext;
+
+        /**
+         * Create a reader of the given stream, reading its first row.
+         *
+         * @throws java.io.EOFException if the stream ends before {@link #writeSummaryEnd} was
+         *         called, e.g. because the writer failed.
+         */
+        public SummaryReader(@NonNull DataInput in) throws IOException {
+            mIn = in;
+            mHasNext = readRow();
+        }
+
+        /** Whether there is another row to read. */
+        public boolean hasNext() {
+            return mHasNext;
+        }
+
+        /**
+         * Read the next row, combined with the rows it must be combined with.
+         *
+         * @throws java.io.EOFException if the stream ends before {@link #writeSummaryEnd} was
+         *         called, e.g. because the writer failed.
+         * @throws java.util.NoSuchElementException if there is no row left.
+         */
+        @NonNull
+        public NetworkStats.Entry next(@Nullable NetworkStats.Entry recycle)
+                throws IOException {
+            if (!mHasNext) throw new NoSuchElementException();
+            final NetworkStats.Entry entry = recycle != null ? recycle : new NetworkStats.Entry();
+            entry.iface = IFACE_ALL;
+            entry.uid = mNext.uid;
+            entry.set = mNext.set;
+            entry.tag = mNext.tag;
+            entry.metered = mNext.metered;
+            entry.roaming = mNext.roaming;
+            entry.defaultNetwork = mNext.defaultNetwork;
+            entry.rxBytes = mNext.rxBytes;
+            entry.rxPackets = mNext.rxPackets;
+            entry.txBytes = mNext.txBytes;
+            entry.txPackets = mNext.txPackets;
+            entry.operations = mNext.operations;
+            while ((mHasNext = readRow()) && mNext.uid == entry.uid && mNext.set == entry.set
+                    && mNext.tag == entry.tag && mNext.metered == entry.metered
+                    && mNext.roaming == entry.roaming
+                    && mNext.defaultNetwork == entry.defaultNetwork) {
+                entry.add(mNext);
+            }
+            return entry;
+        }
+
+        private boolean readRow() throws IOException {
+            if (!mIn.readBoolean()) return false;
+            mNext.uid = mIn.readInt();
+            mNext.set = mIn.readInt();
+            mNext.tag = mIn.readInt();
+            mNext.metered = mIn.readInt();
+            mNext.roaming = mIn.readInt();
+            mNext.defaultNetwork = mIn.readInt();
+            mNext.rxBytes = readVarLong(mIn);
+            mNext.rxPackets = readVarLong(mIn);
+            mNext.txBytes = readVarLong(mIn);
+            mNext.txPackets = readVarLong(mIn);
+            mNext.operations = readVarLong(mIn);
+            return true;
+        }
+    }
+
+    /**
+     * Fill {@code entry} with the summary of the history at the given index across the
+     * requested range.
+     *
+     * @return the history entry used to compute the summary, to be recycled by the caller.
+     */
+    private NetworkStatsHistory.Entry getSummaryEntry(int index, long start, long end, long now,
+            @Nullable NetworkStatsHistory.Entry recycle, @NonNull NetworkStats.Entry entry) {
+        final Key key = mStats.keyAt(index);
+        final NetworkStatsHistory.Entry historyEntry =
+                mStats.valueAt(index).getValues(start, end, now, recycle);
+
+        entry.iface = IFACE_ALL;
+        entry.uid = key.uid;
+        entry.set = key.set;
+        entry.tag = key.tag;
+        entry.defaultNetwork = key.ident.areAllMembersOnDefaultNetwork()
+                ? DEFAULT_NETWORK_YES : DEFAULT_NETWORK_NO;
+        entry.metered = key.ident.isAnyMemberMetered() ? METERED_YES : METERED_NO;
+        entry.roaming = key.ident.isAnyMemberRoaming() ? ROAMING_YES : ROAMING_NO;
+        entry.rxBytes = historyEntry.rxBytes;
+        entry.rxPackets = historyEntry.rxPackets;
+        entry.txBytes = historyEntry.txBytes;
+        entry.txPackets = historyEntry.txPackets;
+        entry.operations = historyEntry.operations;
+        return historyEntry;
+    }
+
     /**
      * Record given {@link android.net.NetworkStats.Entry} into this collection.
      * @hide
@@ -437,6 +681,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         if (target == null) {
             target = new NetworkStatsHistory(history.getBucketDuration());
             mStats.put(key, target);
+            addToIndexes(key);
         }
         target.recordEntireHistory(history);
     }
@@ -458,7 +703,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
     private NetworkStatsHistory findOrCreateHistory(
             NetworkIdentitySet ident, int uid, int set, int tag) {
-        final Key key = new Key(ident, uid, set, tag);
+        final Key key = new Key(internIdent(ident), uid, set, tag);
         final NetworkStatsHistory existing = mStats.get(key);
 
         // update when no existing, or when bucket duration changed
@@ -471,6 +716,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
 
         if (updated != null) {
             mStats.put(key, updated);
+            if (existing == null) addToIndexes(key);
             return updated;
         } else {
             return existing;
@@ -694,6 +940,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
                     removedHistory.recordEntireHistory(uidHistory);
                 }
                 mStats.remove(key);
+                removeFromIndexes(key);
                 mDirty = true;
             }
         }
@@ -714,6 +961,7 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
             history.removeBucketsStartingBefore(cutoffMillis);
             if (history.size() == 0) {
                 mStats.remove(key);
+                removeFromIndexes(key);
             }
             mDirty = true;
         }
@@ -726,6 +974,109 @@ public class NetworkStatsCollection implements FileRotator.Reader, FileRotator.W
         mDirty = true;
     }
 
+    private void addToIndexes(@NonNull Key key) {
+        ArraySet<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys == null) {
+            uidKeys = new ArraySet<>();
+            mKeysByUid.put(key.uid, uidKeys);
+        }
+        uidKeys.add(key);
+
+        ArraySet<Key> identKeys = mKeysByIdent.get(key.ident);
+        if (identKeys == null) {
+            identKeys = new ArraySet<>();
+            synchronized (mTemplateMatchCache) {
+                mKeysByIdent.put(key.ident, identKeys);
+                mTemplateMatchCache.clear();
+            }
+        }
+        identKeys.add(key);
+    }
+
+    private void removeFromIndexes(@NonNull Key key) {
+        final ArraySet<Key> uidKeys = mKeysByUid.get(key.uid);
+        if (uidKeys != null) {
+            uidKeys.remove(key);
+            if (uidKeys.isEmpty()) mKeysByUid.remove(key.uid);
+        }
+
+        final ArraySet<Key> identKeys = mKeysByIdent.get(key.ident);
+        if (identKeys != null) {
+            identKeys.remove(key);
+            if (identKeys.isEmpty()) {
+                synchronized (mTemplateMatchCache) {
+                    mKeysByIdent.remove(key.ident);
+                    mTemplateMatchCache.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Return the instance of the passed identity set already used by this collection if any,
+     * so that keys with equal identity sets share the same object.
+     */
+    @NonNull
+    private NetworkIdentitySet internIdent(@NonNull NetworkIdentitySet ident) {
+        final int index = mKeysByIdent.indexOfKey(ident);
+        return index >= 0 ? mKeysByIdent.keyAt(index) : ident;
+    }
+
+    /**
+     * Get the identity sets of this collection that match the given template. The returned set
+     * must not be modified.
+     */
+    @NonNull
+    private ArraySet<NetworkIdentitySet> getMatchingIdents(@NonNull NetworkTemplate template) {
+        // Iterate under the lock, so that identity sets added or removed meanwhile can't leave
+        // a stale result in the cache.
+        synchronized (mTemplateMatchCache) {
+            final ArraySet<NetworkIdentitySet> cached = mTemplateMatchCache.get(template);
+            if (cached != null) return cached;
+            final ArraySet<NetworkIdentitySet> matching = new ArraySet<>();
+            for (int i = 0; i < mKeysByIdent.size(); i++) {
+                final NetworkIdentitySet ident = mKeysByIdent.keyAt(i);
+                if (templateMatches(template, ident)) matching.add(ident);
+            }
+            if (mTemplateMatchCache.size() >= MAX_TEMPLATE_MATCH_CACHE_SIZE) {
+                mTemplateMatchCache.clear();
+            }
+            mTemplateMatchCache.put(template, matching);
+            return matching;
+        }
+    }
+
+    /**
+     * Get the indices in mStats of the keys whose identity set matches the given template,
+     * in ascending order so that callers see the same ordering as a scan of mStats.
+     */
+    @NonNull
+    private int[] getIndicesOfKeysMatching(@NonNull NetworkTemplate template) {
+        final ArraySet<NetworkIdentitySet> matchingIdents = getMatchingIdents(template);
+        int count = 0;
+        for (int i = 0; i < matchingIdents.size(); i++) {
+            count += mKeysByIdent.get(matchingIdents.valueAt(i)).size();
+        }
+        final int[] indices = new int[count];
+        int index = 0;
+        // When most keys match, e.g. for templates matching all networks, a scan of mStats is
+        // cheaper than looking up the index of each key and sorting them.
+        if (count > mStats.size() / LINEAR_SCAN_MATCH_RATIO) {
+            for (int i = 0; i < mStats.size() && index < count; i++) {
+                if (matchingIdents.contains(mStats.keyAt(i).ident)) indices[index++] = i;
+            }
+            return indices;
+        }
+        for (int i = 0; i < matchingIdents.size(); i++) {
+            final ArraySet<Key> identKeys = mKeysByIdent.get(matchingIdents.valueAt(i));
+            for (int j = 0; j < identKeys.size(); j++) {
+                indices[index++] = mStats.indexOfKey(identKeys.valueAt(j));
+            }
+        }
+        Arrays.sort(indices);
+        return indices;
+    }
+
     private int estimateBuckets() {
         return (int) (Math.min(mEndMillis - mStartMillis, WEEK_IN_MILLIS * 5)
                 / mBucketDurationMillis);
@@ -106,6 +106,22 @@ public final class NetworkStatsHistory implements Parcelable {
     private long[] operations;
     private long totalBytes;
 
+    // Range queries covering at least this many whole buckets are answered with prefix sums.
+    private static final int PREFIX_SUMS_MIN_BUCKETS = 32;
+    // Prefix sums are kept per block of this many buckets, so that they only take a fraction of
+    // the memory of the buckets. Range queries still iterate over the buckets of the partial
+    // blocks at either end.
+    private static final int PREFIX_SUMS_BLOCK_BUCKETS = 16;
+
+    // Cumulative sums of whole blocks of completed buckets, used to total long ranges without
+    // iterating over every bucket. Built lazily by range queries. Published objects are never
+    // modified, so that concurrent readers of the same history can share them.
+    private volatile PrefixSums prefixSums;
+    // The number of leading blocks for which prefixSums is still correct. Mutations lower it to
+    // the block they change. Recording into the active bucket, which is never part of a summed
+    // block, leaves it alone.
+    private volatile int prefixSumsValidBlocks;
+
     /** @hide */
     public NetworkStatsHistory(long bucketDuration, long[] bucketStart, long[] activeTime,
             long[] rxBytes, long[] rxPackets, long[] txBytes, long[] txPackets,
@@ -522,6 +538,7 @@ public final class NetworkStatsHistory implements Parcelable {
         // Apply new values
         if (rxBytes != null) totalBytes += rxBytes[i];
         if (txBytes != null) totalBytes += txBytes[i];
+        invalidatePrefixSums(i);
     }
 
     /**
@@ -592,6 +609,7 @@ public final class NetworkStatsHistory implements Parcelable {
             addLong(this.operations, i, fracOperations); operations -= fracOperations;
 
             duration -= overlap;
+            invalidatePrefixSums(i);
         }
 
         totalBytes += entry.rxBytes + entry.txBytes;
@@ -617,12 +635,12 @@ public final class NetworkStatsHistory implements Parcelable {
         final NetworkStats.Entry entry = new NetworkStats.Entry(
                 IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
                 DEFAULT_NETWORK_NO, 0L, 0L, 0L, 0L, 0L);
-        for (int i = 0; i < input.bucketCount; i++) {
+        for (int i = input.countBucketsStartingBefore(start); i < input.bucketCount; i++) {
             final long bucketStart = input.bucketStart[i];
             final long bucketEnd = bucketStart + input.bucketDuration;
 
             // skip when bucket is outside requested range
-            if (bucketStart < start || bucketEnd > end) continue;
+            if (bucketEnd > end) break;
 
             entry.rxBytes = getLong(input.rxBytes, i, 0L);
             entry.rxPackets = getLong(input.rxPackets, i, 0L);
@@ -690,6 +708,7 @@ public final class NetworkStatsHistory implements Parcelable {
         setLong(txPackets, index, 0L);
         setLong(operations, index, 0L);
         bucketCount++;
+        invalidatePrefixSums(index);
     }
 
     /**
@@ -706,6 +725,7 @@ public final class NetworkStatsHistory implements Parcelable {
         if (operations != null) operations = EmptyArray.LONG;
         bucketCount = 0;
         totalBytes = 0;
+        invalidatePrefixSums(0);
     }
 
     /**
@@ -740,6 +760,7 @@ public final class NetworkStatsHistory implements Parcelable {
             totalBytes = 0;
             if (rxBytes != null) totalBytes += CollectionUtils.total(rxBytes);
             if (txBytes != null) totalBytes += CollectionUtils.total(txBytes);
+            invalidatePrefixSums(0);
         }
     }
 
@@ -785,8 +806,33 @@ public final class NetworkStatsHistory implements Parcelable {
         // Return fast if there is no entry.
         if (bucketCount == 0) return entry;
 
+        // Completed buckets entirely within the range are counted as a whole. When there are
+        // many of them, total the blocks they cover with the prefix sums and only iterate over
+        // the others.
+        int summedStart = 0;
+        int summedEnd = 0;
+        if (bucketDuration > 0) {
+            final long wholeLimit = Math.min(end, now);
+            final int wholeStart = countBucketsStartingBefore(start);
+            final int wholeEnd = wholeLimit < Long.MIN_VALUE + bucketDuration ? 0
+                    : countBucketsStartingBefore(wholeLimit - bucketDuration + 1);
+            if (wholeEnd - wholeStart >= PREFIX_SUMS_MIN_BUCKETS) {
+                final int firstBlock =
+                        (wholeStart + PREFIX_SUMS_BLOCK_BUCKETS - 1) / PREFIX_SUMS_BLOCK_BUCKETS;
+                final int lastBlock = wholeEnd / PREFIX_SUMS_BLOCK_BUCKETS;
+                getPrefixSums(lastBlock).addBlocks(firstBlock, lastBlock, entry);
+                summedStart = firstBlock * PREFIX_SUMS_BLOCK_BUCKETS;
+                summedEnd = lastBlock * PREFIX_SUMS_BLOCK_BUCKETS;
+            }
+        }
+
         final int startIndex = getIndexAfter(end);
         for (int i = startIndex; i >= 0; i--) {
+            if (i < summedEnd && i >= summedStart) {
+                // Already counted ; skip to the bucket before the summed ones.
+                i = summedStart;
+                continue;
+            }
             final long curStart = bucketStart[i];
             long curEnd = curStart + bucketDuration;
 
@@ -830,6 +876,121 @@ public final class NetworkStatsHistory implements Parcelable {
         return entry;
     }
 
+    /**
+     * Return the number of buckets starting strictly before the requested time.
+     */
+    private int countBucketsStartingBefore(long time) {
+        int low = 0;
+        int high = bucketCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (bucketStart[mid] < time) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Mark the prefix sums as stale from the block of the given bucket onwards.
+     */
+    private void invalidatePrefixSums(int index) {
+        final int block = index / PREFIX_SUMS_BLOCK_BUCKETS;
+        if (block < prefixSumsValidBlocks) prefixSumsValidBlocks = block;
+    }
+
+    /**
+     * Return prefix sums covering at least the given number of blocks, updating them if needed.
+     * Only the blocks that are not already summed correctly are computed.
+     */
+    private PrefixSums getPrefixSums(int blocks) {
+        // Read the count before the sums : they are published in the opposite order, so the
+        // count never covers more than the sums read below.
+        final int validBlocks = prefixSumsValidBlocks;
+        final PrefixSums current = prefixSums;
+        if (current != null && current.blocks >= blocks && validBlocks >= blocks) {
+            return current;
+        }
+        final int reuseBlocks = current == null ? 0
+                : Math.min(Math.min(validBlocks, current.blocks), blocks);
+        final PrefixSums updated = new PrefixSums(this, blocks, current, reuseBlocks);
+        prefixSums = updated;
+        prefixSumsValidBlocks = blocks;
+        return updated;
+    }
+
+    /**
+     * Cumulative sums of the fields of a history, per block of
+     * {@link #PREFIX_SUMS_BLOCK_BUCKETS} buckets : element i of each array is the sum of the
+     * first i blocks, so the total of blocks [a, b) is sums[b] - sums[a]. Fields absent from
+     * the history have null sums.
+     */
+    private static final class PrefixSums {
+        final int blocks;
+        final long[] activeTime;
+        final long[] rxBytes;
+        final long[] rxPackets;
+        final long[] txBytes;
+        final long[] txPackets;
+        final long[] operations;
+
+        /**
+         * Compute the sums of the first {@code blocks} blocks of the given history, reusing the
+         * first {@code reuseBlocks} blocks of the previous sums if any.
+         */
+        PrefixSums(@NonNull NetworkStatsHistory history, int blocks,
+                @Nullable PrefixSums previous, int reuseBlocks) {
+            this.blocks = blocks;
+            final boolean reuse = previous != null;
+            activeTime = accumulate(history.activeTime, blocks,
+                    reuse ? previous.activeTime : null, reuseBlocks);
+            rxBytes = accumulate(history.rxBytes, blocks,
+                    reuse ? previous.rxBytes : null, reuseBlocks);
+            rxPackets = accumulate(history.rxPackets, blocks,
+                    reuse ? previous.rxPackets : null, reuseBlocks);
+            txBytes = accumulate(history.txBytes, blocks,
+                    reuse ? previous.txBytes : null, reuseBlocks);
+            txPackets = accumulate(history.txPackets, blocks,
+                    reuse ? previous.txPackets : null, reuseBlocks);
+            operations = accumulate(history.operations, blocks,
+                    reuse ? previous.operations : null, reuseBlocks);
+        }
+
+        private static long[] accumulate(@Nullable long[] values, int blocks,
+                @Nullable long[] previous, int reuseBlocks) {
+            if (values == null) return null;
+            final long[] sums = new long[blocks + 1];
+            int block = 0;
+            if (previous != null) {
+                System.arraycopy(previous, 0, sums, 0, reuseBlocks + 1);
+                block = reuseBlocks;
+            }
+            for (; block < blocks; block++) {
+                long sum = sums[block];
+                final int end = (block + 1) * PREFIX_SUMS_BLOCK_BUCKETS;
+                for (int i = block * PREFIX_SUMS_BLOCK_BUCKETS; i < end; i++) {
+                    sum += values[i];
+                }
+                sums[block + 1] = sum;
+            }
+            return sums;
+        }
+
+        /**
+         * Add the totals of blocks [start, end) to the given entry.
+         */
+        void addBlocks(int start, int end, @NonNull Entry entry) {
+            if (activeTime != null) entry.activeTime += activeTime[end] - activeTime[start];
+            if (rxBytes != null) entry.rxBytes += rxBytes[end] - rxBytes[start];
+            if (rxPackets != null) entry.rxPackets += rxPackets[end] - rxPackets[start];
+            if (txBytes != null) entry.txBytes += txBytes[end] - txBytes[start];
+            if (txPackets != null) entry.txPackets += txPackets[end] - txPackets[start];
+            if (operations != null) entry.operations += operations[end] - operations[start];
+        }
+    }
+
     /**
      * @deprecated only for temporary testing
      * @hide
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.net;
+
+import android.annotation.Nullable;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A process-wide dictionary of interface names, used by {@link NetworkStats} to store the
+ * interface of each row as a small int.
+ *
+ * A device only ever has a few dozen interface names, so names are never removed from the
+ * dictionary : an id stays valid for the lifetime of the process. Ids are only meaningful within
+ * a process, so they must never be persisted or sent to another process.
+ *
+ * Names come from other processes too, e.g. in parcels, so the dictionary holds at most
+ * {@link #MAX_IDS} names. Names added once it is full all get {@link #ID_OVERFLOW}. Two rows with
+ * the same id are on the same interface, unless that id is {@link #ID_OVERFLOW}, in which case
+ * their names must be compared.
+ *
+ * This class is thread-safe. Getting the name of an id never takes a lock.
+ * @hide
+ */
+final class NetworkStatsIfaceDictionary {
+    /** The id of the null interface name, i.e. {@link NetworkStats#IFACE_ALL}. */
+    static final int ID_IFACE_ALL = 0;
+    /** Returned by {@link #findId(String)} for names that were never added. */
+    static final int ID_UNKNOWN = -1;
+    /** The id of the names added once the dictionary is full. It has no name. */
+    static final int ID_OVERFLOW = -2;
+
+    @VisibleForTesting
+    static final int MAX_IDS = 1024;
+
+    private static final Object sLock = new Object();
+    private static final ConcurrentHashMap<String, Integer> sIds = new ConcurrentHashMap<>();
+    // Names by id. Only ever grows ; a name is always stored, and the array published, before its
+    // id is added to sIds, so that any thread that got an id can read its name.
+    @GuardedBy("sLock")
+    private static volatile String[] sNames = new String[] { NetworkStats.IFACE_ALL, null, null,
+            null, null, null, null, null };
+    @GuardedBy("sLock")
+    private static int sCount = 1;
+    // Set once sCount reaches MAX_IDS, never cleared.
+    private static volatile boolean sFull = false;
+
+    private NetworkStatsIfaceDictionary() {}
+
+    /**
+     * Get the id of the passed interface name, adding it to the dictionary if needed.
+     *
+     * @return the id of the name, or {@link #ID_OVERFLOW} if the dictionary is full.
+     */
+    static int getId(@Nullable String name) {
+        if (name == null) return ID_IFACE_ALL;
+        final Integer id = sIds.get(name);
+        if (id != null) return id;
+        synchronized (sLock) {
+            final Integer existing = sIds.get(name);
+            if (existing != null) return existing;
+            if (sCount >= MAX_IDS) return ID_OVERFLOW;
+            String[] names = sNames;
+            if (sCount == names.length) {
+                names = Arrays.copyOf(names, names.length * 2);
+            }
+            final int newId = sCount++;
+            names[newId] = name;
+            sNames = names;
+            sIds.put(name, newId);
+            if (sCount >= MAX_IDS) sFull = true;
+            return newId;
+        }
+    }
+
+    /**
+     * Get the id of the passed interface name without adding it. Rows on an interface that is
+     * not in the dictionary have {@link #ID_OVERFLOW} if the dictionary is full, and there are
+     * no such rows otherwise.
+     *
+     * @return the id of the name, {@link #ID_OVERFLOW} if it is not in the dictionary and the
+     *         dictionary is full, or {@link #ID_UNKNOWN} if it is not in the dictionary.
+     */
+    static int findId(@Nullable String name) {
+        if (name == null) return ID_IFACE_ALL;
+        final Integer id = sIds.get(name);
+        if (id != null) return id;
+        return sFull ? ID_OVERFLOW : ID_UNKNOWN;
+    }
+
+    /**
+     * Get the interface name of the passed id, which must have been returned by
+     * {@link #getId(String)} and not be {@link #ID_OVERFLOW}.
+     */
+    @Nullable
+    static String getName(int id) {
+        return sNames[id];
+    }
+}
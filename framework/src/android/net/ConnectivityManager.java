@@ -4058,6 +4058,16 @@ public class ConnectivityManager {
     public static final int CALLBACK_RESUMED             = 10;
     /** @hide */
     public static final int CALLBACK_BLK_CHANGED         = 11;
+    /**
+     * Several callbacks for the same messenger, sent in a single transaction. The data bundle
+     * contains the list of callback messages under {@link #KEY_BATCHED_CALLBACKS}, in the order
+     * they should be processed.
+     * @hide
+     */
+    public static final int CALLBACK_BATCH               = 12;
+
+    /** @hide */
+    public static final String KEY_BATCHED_CALLBACKS = "batched_callbacks";
 
     /** @hide */
     public static String getCallbackName(int whichCallback) {
@@ -4073,6 +4083,7 @@ public class ConnectivityManager {
             case CALLBACK_SUSPENDED:    return "CALLBACK_SUSPENDED";
             case CALLBACK_RESUMED:      return "CALLBACK_RESUMED";
             case CALLBACK_BLK_CHANGED:  return "CALLBACK_BLK_CHANGED";
+            case CALLBACK_BATCH:        return "CALLBACK_BATCH";
             default:
                 return Integer.toString(whichCallback);
         }
@@ -4096,6 +4107,15 @@ public class ConnectivityManager {
                 expireRequest((NetworkCapabilities) message.obj, message.arg1);
                 return;
             }
+            if (message.what == CALLBACK_BATCH) {
+                final ArrayList<Message> batch =
+                        message.getData().getParcelableArrayList(KEY_BATCHED_CALLBACKS);
+                if (null == batch) return;
+                for (final Message m : batch) {
+                    handleMessage(m);
+                }
+                return;
+            }
 
             final NetworkRequest request = getObject(message, NetworkRequest.class);
             final Network network = getObject(message, Network.class);
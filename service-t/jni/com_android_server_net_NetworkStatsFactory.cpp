@@ -20,6 +20,8 @@
 #include <inttypes.h>
 #include <sys/stat.h>
 #include <sys/types.h>
+#include <string>
+#include <unordered_map>
 #include <vector>
 
 #include <jni.h>
@@ -43,10 +45,16 @@ namespace android {
 
 static jclass gStringClass;
 
+static struct {
+    jclass clazz;
+    jmethodID getId;
+} gIfaceDictionaryClassInfo;
+
 static struct {
     jfieldID size;
     jfieldID capacity;
     jfieldID iface;
+    jfieldID ifaceId;
     jfieldID uid;
     jfieldID set;
     jfieldID tag;
@@ -102,6 +110,9 @@ static int statsLinesToNetworkStats(JNIEnv* env, jclass clazz, jobject stats,
     ScopedLocalRef<jobjectArray> iface(env, get_string_array(env, stats,
             gNetworkStatsClassInfo.iface, size, grow));
     if (iface.get() == NULL) return -1;
+    ScopedIntArrayRW ifaceId(env, get_int_array(env, stats,
+            gNetworkStatsClassInfo.ifaceId, size, grow));
+    if (ifaceId.get() == NULL) return -1;
     ScopedIntArrayRW uid(env, get_int_array(env, stats,
             gNetworkStatsClassInfo.uid, size, grow));
     if (uid.get() == NULL) return -1;
@@ -136,24 +147,50 @@ static int statsLinesToNetworkStats(JNIEnv* env, jclass clazz, jobject stats,
             gNetworkStatsClassInfo.operations, size, grow));
     if (operations.get() == NULL) return -1;
 
+    // There are only a few interfaces, so only create the name and look up the id of each of
+    // them once. Later rows on the same interface share the name of the first one.
+    struct IfaceInfo {
+        jint id;
+        int firstRow;
+    };
+    std::unordered_map<std::string, IfaceInfo> ifaceInfos;
     for (int i = 0; i < size; i++) {
-        ScopedLocalRef<jstring> ifaceString(env, env->NewStringUTF(lines[i].iface));
-        env->SetObjectArrayElement(iface.get(), i, ifaceString.get());
+        auto it = ifaceInfos.find(lines[i].iface);
+        if (it == ifaceInfos.end()) {
+            ScopedLocalRef<jstring> ifaceString(env, env->NewStringUTF(lines[i].iface));
+            if (ifaceString.get() == NULL) return -1;
+            const jint id = env->CallStaticIntMethod(gIfaceDictionaryClassInfo.clazz,
+                    gIfaceDictionaryClassInfo.getId, ifaceString.get());
+            if (env->ExceptionCheck()) return -1;
+            env->SetObjectArrayElement(iface.get(), i, ifaceString.get());
+            it = ifaceInfos.emplace(lines[i].iface, IfaceInfo{id, i}).first;
+        } else {
+            ScopedLocalRef<jobject> ifaceString(env,
+                    env->GetObjectArrayElement(iface.get(), it->second.firstRow));
+            env->SetObjectArrayElement(iface.get(), i, ifaceString.get());
+        }
+        ifaceId[i] = it->second.id;
 
         uid[i] = lines[i].uid;
         set[i] = lines[i].set;
         tag[i] = lines[i].tag;
-        // Metered, roaming and defaultNetwork are populated in Java-land.
+        // Metered, roaming and defaultNetwork are populated in Java-land. The arrays may be
+        // reused from a previous read, so reset them.
+        metered[i] = 0;
+        roaming[i] = 0;
+        defaultNetwork[i] = 0;
         rxBytes[i] = lines[i].rxBytes;
         rxPackets[i] = lines[i].rxPackets;
         txBytes[i] = lines[i].txBytes;
         txPackets[i] = lines[i].txPackets;
+        operations[i] = 0;
     }
 
     env->SetIntField(stats, gNetworkStatsClassInfo.size, size);
     if (grow) {
         env->SetIntField(stats, gNetworkStatsClassInfo.capacity, size);
         env->SetObjectField(stats, gNetworkStatsClassInfo.iface, iface.get());
+        env->SetObjectField(stats, gNetworkStatsClassInfo.ifaceId, ifaceId.getJavaArray());
         env->SetObjectField(stats, gNetworkStatsClassInfo.uid, uid.getJavaArray());
         env->SetObjectField(stats, gNetworkStatsClassInfo.set, set.getJavaArray());
         env->SetObjectField(stats, gNetworkStatsClassInfo.tag, tag.getJavaArray());
@@ -214,11 +251,16 @@ int register_android_server_net_NetworkStatsFactory(JNIEnv* env) {
             NELEM(gMethods));
     gStringClass = env->FindClass("java/lang/String");
     gStringClass = static_cast<jclass>(env->NewGlobalRef(gStringClass));
+    jclass dictionaryClazz = env->FindClass("android/net/NetworkStatsIfaceDictionary");
+    gIfaceDictionaryClassInfo.clazz = static_cast<jclass>(env->NewGlobalRef(dictionaryClazz));
+    gIfaceDictionaryClassInfo.getId = env->GetStaticMethodID(dictionaryClazz, "getId",
+            "(Ljava/lang/String;)I");
 
     jclass clazz = env->FindClass("android/net/NetworkStats");
     gNetworkStatsClassInfo.size = env->GetFieldID(clazz, "size", "I");
     gNetworkStatsClassInfo.capacity = env->GetFieldID(clazz, "capacity", "I");
     gNetworkStatsClassInfo.iface = env->GetFieldID(clazz, "iface", "[Ljava/lang/String;");
+    gNetworkStatsClassInfo.ifaceId = env->GetFieldID(clazz, "ifaceId", "[I");
     gNetworkStatsClassInfo.uid = env->GetFieldID(clazz, "uid", "[I");
     gNetworkStatsClassInfo.set = env->GetFieldID(clazz, "set", "[I");
     gNetworkStatsClassInfo.tag = env->GetFieldID(clazz, "tag", "[I");
@@ -75,6 +75,18 @@ public class NetworkStatsFactory {
     @GuardedBy("mPersistentDataLock")
     private NetworkStats mTunAnd464xlatAdjustedStats;
 
+    // Buffers reused by every read of the detailed stats, so that reads don't allocate once the
+    // buffers are large enough. Their contents are only meaningful during a read.
+    // Stats read from bpf since the previous read.
+    @GuardedBy("mPersistentDataLock")
+    private final NetworkStats mReadBuffer = new NetworkStats(0L, -1);
+    // Copy of mPersistSnapshot before the stats read from bpf are added to it.
+    @GuardedBy("mPersistentDataLock")
+    private final NetworkStats mPrevPersistSnapshot = new NetworkStats(0L, -1);
+    // Difference between mPersistSnapshot and mPrevPersistSnapshot.
+    @GuardedBy("mPersistentDataLock")
+    private NetworkStats mDeltaBuffer = new NetworkStats(0L, -1);
+
     private final Dependencies mDeps;
     /**
      * Dependencies of NetworkStatsFactory, for injection in tests.
@@ -82,20 +94,17 @@ public class NetworkStatsFactory {
     @VisibleForTesting
     public static class Dependencies {
         /**
-         * Parse detailed statistics from bpf into given {@link NetworkStats} object. Values
-         * are expected to monotonically increase since device boot.
+         * Parse detailed statistics from the inactive bpf stats map into given
+         * {@link NetworkStats} object, replacing its contents. The arrays of the object are
+         * reused if they are large enough. Values are the traffic since the previous swap of
+         * the stats maps.
          */
-        @NonNull
-        public NetworkStats getNetworkStatsDetail(int limitUid, @Nullable String[] limitIfaces,
-                int limitTag) throws IOException {
-            final NetworkStats stats = new NetworkStats(SystemClock.elapsedRealtime(), 0);
-            // TODO: remove both path and useBpfStats arguments.
-            // The path is never used if useBpfStats is true.
-            final int ret = nativeReadNetworkStatsDetail(stats, limitUid, limitIfaces, limitTag);
+        public void readNetworkStatsDetail(@NonNull NetworkStats stats) throws IOException {
+            stats.setElapsedRealtime(SystemClock.elapsedRealtime());
+            final int ret = nativeReadNetworkStatsDetail(stats, UID_ALL, INTERFACES_ALL, TAG_ALL);
             if (ret != 0) {
                 throw new IOException("Failed to parse network stats");
             }
-            return stats;
         }
         /**
          * Parse device summary statistics from bpf into given {@link NetworkStats} object. Values
@@ -250,18 +259,18 @@ public class NetworkStatsFactory {
             // Take a reference. If this gets swapped out, we still have the old reference.
             final UnderlyingNetworkInfo[] vpnArray = mUnderlyingNetworkInfos;
             // Take a defensive copy. mPersistSnapshot is mutated in some cases below
-            final NetworkStats prev = mPersistSnapshot.clone();
+            mPrevPersistSnapshot.copyFrom(mPersistSnapshot);
 
             requestSwapActiveStatsMapLocked();
             // Stats are always read from the inactive map, so they must be read after the
             // swap
-            final NetworkStats stats = mDeps.getNetworkStatsDetail(
-                    UID_ALL, INTERFACES_ALL, TAG_ALL);
+            mDeps.readNetworkStatsDetail(mReadBuffer);
             // BPF stats are incremental; fold into mPersistSnapshot.
-            mPersistSnapshot.setElapsedRealtime(stats.getElapsedRealtime());
-            mPersistSnapshot.combineAllValues(stats);
+            mPersistSnapshot.setElapsedRealtime(mReadBuffer.getElapsedRealtime());
+            mPersistSnapshot.combineAllValues(mReadBuffer);
 
-            NetworkStats adjustedStats = adjustForTunAnd464Xlat(mPersistSnapshot, prev, vpnArray);
+            NetworkStats adjustedStats = adjustForTunAnd464Xlat(mPersistSnapshot,
+                    mPrevPersistSnapshot, vpnArray);
 
             // Filter return values
             adjustedStats.filter(limitUid, limitIfaces, limitTag);
@@ -273,7 +282,10 @@ public class NetworkStatsFactory {
     private NetworkStats adjustForTunAnd464Xlat(NetworkStats uidDetailStats,
             NetworkStats previousStats, UnderlyingNetworkInfo[] vpnArray) {
         // Calculate delta from last snapshot
-        final NetworkStats delta = uidDetailStats.subtract(previousStats);
+        final NetworkStats delta = NetworkStats.subtract(uidDetailStats, previousStats,
+                null /* observer */, null /* cookie */, mDeltaBuffer);
+        // subtract only reuses the buffer if it is large enough.
+        mDeltaBuffer = delta;
 
         // Apply 464xlat adjustments before VPN adjustments. If VPNs are using v4 on a v6 only
         // network, the overhead is their fault.
@@ -293,6 +305,7 @@ public class NetworkStatsFactory {
         mTunAnd464xlatAdjustedStats.combineAllValues(delta);
         mTunAnd464xlatAdjustedStats.setElapsedRealtime(uidDetailStats.getElapsedRealtime());
 
+        // The caller owns the returned object, so this can't be one of the reused buffers.
         return mTunAnd464xlatAdjustedStats.clone();
     }
 
@@ -17,18 +17,20 @@
 package com.android.server.net;
 
 import static android.app.usage.NetworkStatsManager.MIN_THRESHOLD_BYTES;
+import static android.net.NetworkStats.SET_DEBUG_START;
+import static android.net.NetworkStats.TAG_NONE;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.app.usage.NetworkStatsManager;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.net.DataUsageRequest;
+import android.net.NetworkIdentity;
 import android.net.NetworkIdentitySet;
 import android.net.NetworkStack;
 import android.net.NetworkStats;
 import android.net.NetworkStatsAccess;
-import android.net.NetworkStatsCollection;
-import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.net.netstats.IUsageCallback;
 import android.os.Handler;
@@ -42,10 +44,12 @@ import android.util.ArrayMap;
 import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseLongArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.net.module.util.PerUidCounter;
 
+import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -72,6 +76,11 @@ class NetworkStatsObservers {
     // indexed by DataUsageRequest#requestId
     private final SparseArray<RequestInfo> mDataUsageRequests = new SparseArray<>();
 
+    // Last snapshots received while there were requests, used to compute the traffic of the
+    // next poll. Only accessed from the handler thread.
+    private NetworkStats mLastXtSnapshot;
+    private NetworkStats mLastUidSnapshot;
+
     // Request counters per uid, this is thread safe.
     private final PerUidCounter mDataUsageRequestsPerUid = new PerUidCounter(MAX_REQUESTS_PER_UID);
 
@@ -205,12 +214,24 @@ class NetworkStatsObservers {
 
     private void handleUpdateStats(StatsContext statsContext) {
         if (mDataUsageRequests.size() == 0) {
+            // Requests registered later take their own baseline, so there is no need to keep
+            // the snapshots.
+            mLastXtSnapshot = null;
+            mLastUidSnapshot = null;
             return;
         }
 
+        // Compute the traffic since the previous poll once, and share it among all requests.
+        final PollDelta xtDelta = PollDelta.create(mLastXtSnapshot, statsContext.mXtSnapshot,
+                statsContext.mActiveIfaces);
+        final PollDelta uidDelta = PollDelta.create(mLastUidSnapshot, statsContext.mUidSnapshot,
+                statsContext.mActiveUidIfaces);
+        if (statsContext.mXtSnapshot != null) mLastXtSnapshot = statsContext.mXtSnapshot;
+        if (statsContext.mUidSnapshot != null) mLastUidSnapshot = statsContext.mUidSnapshot;
+
         for (int i = 0; i < mDataUsageRequests.size(); i++) {
             RequestInfo requestInfo = mDataUsageRequests.valueAt(i);
-            requestInfo.updateStats(statsContext);
+            requestInfo.updateStats(requestInfo.usesUidStats() ? uidDelta : xtDelta);
         }
     }
 
@@ -259,8 +280,9 @@ class NetworkStatsObservers {
         protected final int mCallingUid;
         protected final String mCallingPackage;
         protected final @NetworkStatsAccess.Level int mAccessLevel;
-        protected NetworkStatsRecorder mRecorder;
-        protected NetworkStatsCollection mCollection;
+        // Whether this request has seen a snapshot. Usage is counted from the first snapshot
+        // seen by the request.
+        private boolean mHasBaseline;
 
         RequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
@@ -301,23 +323,41 @@ class NetworkStatsObservers {
         }
 
         /**
-         * Update stats given the samples and interface to identity mappings.
+         * Update usage given the traffic of a poll, and notify if the threshold is reached.
+         *
+         * @param delta the traffic of the poll in the stats used by this request, or null if the
+         *              poll had no such stats.
          */
-        private void updateStats(StatsContext statsContext) {
-            if (mRecorder == null) {
+        private void updateStats(@Nullable PollDelta delta) {
+            if (delta == null) return;
+            if (!mHasBaseline) {
                 // First run; establish baseline stats
-                resetRecorder();
-                recordSample(statsContext);
+                mHasBaseline = true;
                 return;
             }
-            recordSample(statsContext);
+            if (delta.isBaseline()) return;
+            addUsage(delta.getUsage(mRequest.template));
 
             if (checkStats()) {
-                resetRecorder();
+                resetUsage();
                 callCallback(NetworkStatsManager.CALLBACK_LIMIT_REACHED);
             }
         }
 
+        /**
+         * Add the passed usage to this request, ignoring uids that the caller can't access.
+         */
+        protected abstract void addUsageForUid(int uid, long bytes);
+
+        private void addUsage(@NonNull SparseLongArray bytesByUid) {
+            for (int i = 0; i < bytesByUid.size(); i++) {
+                final int uid = bytesByUid.keyAt(i);
+                if (NetworkStatsAccess.isAccessibleToUser(uid, mCallingUid, mAccessLevel)) {
+                    addUsageForUid(uid, bytesByUid.valueAt(i));
+                }
+            }
+        }
+
         private void callCallback(int callbackType) {
             try {
                 if (LOGV) {
@@ -338,14 +378,12 @@ class NetworkStatsObservers {
             }
         }
 
-        private void resetRecorder() {
-            mRecorder = new NetworkStatsRecorder();
-            mCollection = mRecorder.getSinceBoot();
-        }
+        /** Whether this request counts usage from the per-uid stats or from the xt stats. */
+        protected abstract boolean usesUidStats();
 
         protected abstract boolean checkStats();
 
-        protected abstract void recordSample(StatsContext statsContext);
+        protected abstract void resetUsage();
 
         private String callbackTypeToName(int callbackType) {
             switch (callbackType) {
@@ -360,6 +398,9 @@ class NetworkStatsObservers {
     }
 
     private static class NetworkUsageRequestInfo extends RequestInfo {
+        // Bytes used on networks matching the template since the last notification.
+        private long mBytesSoFar;
+
         NetworkUsageRequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
                 @NonNull String callingPackage, @NetworkStatsAccess.Level int accessLevel) {
@@ -367,42 +408,37 @@ class NetworkStatsObservers {
                     accessLevel);
         }
 
+        @Override
+        protected boolean usesUidStats() {
+            // Usage is aggregated by uid in xt stats, so VPN traffic can't be reattributed to
+            // responsible apps.
+            return false;
+        }
+
+        @Override
+        protected void addUsageForUid(int uid, long bytes) {
+            mBytesSoFar += bytes;
+        }
+
         @Override
         protected boolean checkStats() {
-            long bytesSoFar = getTotalBytesForNetwork(mRequest.template);
             if (LOGV) {
-                Log.v(TAG, bytesSoFar + " bytes so far since notification for "
+                Log.v(TAG, mBytesSoFar + " bytes so far since notification for "
                         + mRequest.template);
             }
-            if (bytesSoFar > mRequest.thresholdInBytes) {
-                return true;
-            }
-            return false;
+            return mBytesSoFar > mRequest.thresholdInBytes;
         }
 
         @Override
-        protected void recordSample(StatsContext statsContext) {
-            // Recorder does not need to be locked in this context since only the handler
-            // thread will update it. We pass a null VPN array because usage is aggregated by uid
-            // for this snapshot, so VPN traffic can't be reattributed to responsible apps.
-            mRecorder.recordSnapshotLocked(statsContext.mXtSnapshot, statsContext.mActiveIfaces,
-                    statsContext.mCurrentTime);
-        }
-
-        /**
-         * Reads stats matching the given template. {@link NetworkStatsCollection} will aggregate
-         * over all buckets, which in this case should be only one since we built it big enough
-         * that it will outlive the caller. If it doesn't, then there will be multiple buckets.
-         */
-        private long getTotalBytesForNetwork(NetworkTemplate template) {
-            NetworkStats stats = mCollection.getSummary(template,
-                    Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
-                    mAccessLevel, mCallingUid);
-            return stats.getTotalBytes();
+        protected void resetUsage() {
+            mBytesSoFar = 0;
         }
     }
 
     private static class UserUsageRequestInfo extends RequestInfo {
+        // Bytes used by each uid on networks matching the template since the last notification.
+        private final SparseLongArray mBytesSoFarByUid = new SparseLongArray();
+
         UserUsageRequestInfo(NetworkStatsObservers statsObserver, DataUsageRequest request,
                 IUsageCallback callback, int callingPid, int callingUid,
                 @NonNull String callingPackage, @NetworkStatsAccess.Level int accessLevel) {
@@ -411,12 +447,21 @@ class NetworkStatsObservers {
         }
 
         @Override
-        protected boolean checkStats() {
-            int[] uidsToMonitor = mCollection.getRelevantUids(mAccessLevel, mCallingUid);
+        protected boolean usesUidStats() {
+            // Per-uid stats include the VPN info, so VPN traffic is reattributed to responsible
+            // apps.
+            return true;
+        }
 
-            for (int i = 0; i < uidsToMonitor.length; i++) {
-                long bytesSoFar = getTotalBytesForNetworkUid(mRequest.template, uidsToMonitor[i]);
-                if (bytesSoFar > mRequest.thresholdInBytes) {
+        @Override
+        protected void addUsageForUid(int uid, long bytes) {
+            mBytesSoFarByUid.put(uid, mBytesSoFarByUid.get(uid) + bytes);
+        }
+
+        @Override
+        protected boolean checkStats() {
+            for (int i = 0; i < mBytesSoFarByUid.size(); i++) {
+                if (mBytesSoFarByUid.valueAt(i) > mRequest.thresholdInBytes) {
                     return true;
                 }
             }
@@ -424,34 +469,123 @@ class NetworkStatsObservers {
         }
 
         @Override
-        protected void recordSample(StatsContext statsContext) {
-            // Recorder does not need to be locked in this context since only the handler
-            // thread will update it. We pass the VPN info so VPN traffic is reattributed to
-            // responsible apps.
-            mRecorder.recordSnapshotLocked(statsContext.mUidSnapshot, statsContext.mActiveUidIfaces,
-                    statsContext.mCurrentTime);
+        protected void resetUsage() {
+            mBytesSoFarByUid.clear();
+        }
+    }
+
+    /**
+     * The traffic between two consecutive snapshots, restricted to what data usage requests
+     * count : untagged traffic outside of debug sets, on interfaces with a known identity.
+     *
+     * Usage for a template is computed the first time it is requested, and shared by all
+     * requests with that template.
+     */
+    private static class PollDelta {
+        private static final PollDelta BASELINE = new PollDelta(0, new NetworkIdentitySet[0]);
+
+        private int mSize;
+        // Index in mIdents of the identity of each row.
+        private final int[] mIdentIndices;
+        private final int[] mUids;
+        private final long[] mBytes;
+        private final NetworkIdentitySet[] mIdents;
+        private final ArrayMap<NetworkTemplate, SparseLongArray> mUsageByTemplate =
+                new ArrayMap<>();
+
+        private PollDelta(int capacity, @NonNull NetworkIdentitySet[] idents) {
+            mIdentIndices = new int[capacity];
+            mUids = new int[capacity];
+            mBytes = new long[capacity];
+            mIdents = idents;
         }
 
         /**
-         * Reads all stats matching the given template and uid. Ther history will likely only
-         * contain one bucket per ident since we build it big enough that it will outlive the
-         * caller lifetime.
+         * Compute the traffic between two snapshots.
+         *
+         * @return the traffic, or null if there is no current snapshot, or a delta for which
+         *         {@link #isBaseline()} is true if there is no previous snapshot.
          */
-        private long getTotalBytesForNetworkUid(NetworkTemplate template, int uid) {
-            try {
-                NetworkStatsHistory history = mCollection.getHistory(template, null, uid,
-                        NetworkStats.SET_ALL, NetworkStats.TAG_NONE,
-                        NetworkStatsHistory.FIELD_ALL,
-                        Long.MIN_VALUE /* start */, Long.MAX_VALUE /* end */,
-                        mAccessLevel, mCallingUid);
-                return history.getTotalBytes();
-            } catch (SecurityException e) {
-                if (LOGV) {
-                    Log.w(TAG, "CallerUid " + mCallingUid + " may have lost access to uid "
-                            + uid);
+        @Nullable
+        static PollDelta create(@Nullable NetworkStats last, @Nullable NetworkStats snapshot,
+                @NonNull ArrayMap<String, NetworkIdentitySet> ifaceIdent) {
+            if (snapshot == null) return null;
+            if (last == null) return BASELINE;
+
+            final NetworkStats delta = NetworkStats.subtract(snapshot, last,
+                    null /* observer */, null /* cookie */);
+            // There are only a few interfaces, so map each of them to an identity only once.
+            final ArrayMap<String, Integer> identIndexByIface = new ArrayMap<>();
+            final ArrayList<NetworkIdentitySet> idents = new ArrayList<>();
+            final int[] rowIdentIndices = new int[delta.size()];
+            NetworkStats.Entry entry = null;
+            for (int i = 0; i < delta.size(); i++) {
+                entry = delta.getValues(i, entry);
+                Integer index = identIndexByIface.get(entry.iface);
+                if (index == null) {
+                    final NetworkIdentitySet ident = ifaceIdent.get(entry.iface);
+                    index = (ident == null) ? -1 : idents.size();
+                    if (ident != null) idents.add(ident);
+                    identIndexByIface.put(entry.iface, index);
                 }
-                return 0;
+                rowIdentIndices[i] = index;
             }
+
+            final PollDelta result = new PollDelta(delta.size(),
+                    idents.toArray(new NetworkIdentitySet[0]));
+            for (int i = 0; i < delta.size(); i++) {
+                entry = delta.getValues(i, entry);
+                // Unknown interfaces are ignored, like in NetworkStatsRecorder, and only
+                // untagged traffic outside of debug sets is counted, like in
+                // NetworkStatsCollection summaries.
+                if (rowIdentIndices[i] < 0) continue;
+                if (entry.tag != TAG_NONE || entry.set >= SET_DEBUG_START) continue;
+                final long bytes = entry.rxBytes + entry.txBytes;
+                if (bytes == 0) continue;
+                result.mIdentIndices[result.mSize] = rowIdentIndices[i];
+                result.mUids[result.mSize] = entry.uid;
+                result.mBytes[result.mSize] = bytes;
+                result.mSize++;
+            }
+            return result;
+        }
+
+        /** Whether this is the first snapshot, and there is no traffic to count yet. */
+        boolean isBaseline() {
+            return this == BASELINE;
+        }
+
+        /**
+         * Get the bytes used by each uid on networks matching the passed template. The returned
+         * object is shared and must not be modified.
+         */
+        @NonNull
+        SparseLongArray getUsage(@NonNull NetworkTemplate template) {
+            SparseLongArray usage = mUsageByTemplate.get(template);
+            if (usage != null) return usage;
+
+            final boolean[] identMatches = new boolean[mIdents.length];
+            for (int i = 0; i < mIdents.length; i++) {
+                identMatches[i] = templateMatches(template, mIdents[i]);
+            }
+            usage = new SparseLongArray();
+            for (int i = 0; i < mSize; i++) {
+                if (identMatches[mIdentIndices[i]]) {
+                    usage.put(mUids[i], usage.get(mUids[i]) + mBytes[i]);
+                }
+            }
+            mUsageByTemplate.put(template, usage);
+            return usage;
+        }
+
+        private static boolean templateMatches(@NonNull NetworkTemplate template,
+                @NonNull NetworkIdentitySet identSet) {
+            for (NetworkIdentity ident : identSet) {
+                if (template.matches(ident)) {
+                    return true;
+                }
+            }
+            return false;
         }
     }
 
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.annotation.NonNull;
+import android.util.IndentingPrintWriter;
+
+/**
+ * Decides whether the periodic polls of {@link NetworkStatsService} need to take a full
+ * snapshot, based on the total traffic counters of the device, which are much cheaper to read
+ * than the per-UID stats.
+ * <p>
+ * A periodic poll is skipped when less than {@code skipThresholdBytes} were transferred since
+ * the last full poll, at most {@code maxConsecutiveSkips} times in a row so that recorded
+ * history never lags behind for too long. Polls triggered for other reasons, e.g. the global
+ * alert or a change of default network, are never skipped. Conversely, when more than
+ * {@code heavyThresholdBytes} were transferred between two full polls, the service brings the
+ * next periodic poll forward.
+ * <p>
+ * This class is thread-safe.
+ */
+public class NetworkStatsPollScheduler {
+    /** Value of the total bytes when the counters could not be read. */
+    public static final long UNKNOWN_BYTES = -1;
+
+    private final long mSkipThresholdBytes;
+    private final long mHeavyThresholdBytes;
+    private final int mMaxConsecutiveSkips;
+
+    // Total bytes at the start of the last full poll.
+    private long mLastPolledTotalBytes = UNKNOWN_BYTES;
+    // Bytes transferred between the last two full polls.
+    private long mLastPollDeltaBytes = UNKNOWN_BYTES;
+    private int mConsecutiveSkips;
+
+    private long mPollCount;
+    private long mSkipCount;
+    private long mEarlyPollCount;
+    private long mLastPollDurationMs;
+    private long mMaxPollDurationMs;
+    private long mTotalPollDurationMs;
+
+    /**
+     * Construct a {@link NetworkStatsPollScheduler}.
+     *
+     * @param skipThresholdBytes periodic polls are skipped when fewer bytes were transferred
+     *         since the last full poll.
+     * @param heavyThresholdBytes traffic is considered heavy when at least this many bytes
+     *         were transferred between two full polls.
+     * @param maxConsecutiveSkips the maximum number of periodic polls skipped in a row.
+     */
+    public NetworkStatsPollScheduler(long skipThresholdBytes, long heavyThresholdBytes,
+            int maxConsecutiveSkips) {
+        mSkipThresholdBytes = skipThresholdBytes;
+        mHeavyThresholdBytes = heavyThresholdBytes;
+        mMaxConsecutiveSkips = maxConsecutiveSkips;
+    }
+
+    /**
+     * Decide whether a periodic poll should take a full snapshot. If not, the poll is counted
+     * as skipped.
+     *
+     * @param totalBytes the current total bytes of the device, or {@link #UNKNOWN_BYTES}.
+     * @return whether the poll should be performed.
+     */
+    public synchronized boolean shouldPoll(long totalBytes) {
+        if (totalBytes == UNKNOWN_BYTES || mLastPolledTotalBytes == UNKNOWN_BYTES
+                // Counters went backwards, e.g. because an interface was removed.
+                || totalBytes < mLastPolledTotalBytes
+                || totalBytes - mLastPolledTotalBytes >= mSkipThresholdBytes
+                || mConsecutiveSkips >= mMaxConsecutiveSkips) {
+            return true;
+        }
+        mConsecutiveSkips++;
+        mSkipCount++;
+        return false;
+    }
+
+    /**
+     * Note that a full poll was performed, whatever triggered it.
+     *
+     * @param totalBytes the total bytes of the device when the poll started, or
+     *         {@link #UNKNOWN_BYTES}.
+     * @param durationMs how long the poll took.
+     */
+    public synchronized void notePoll(long totalBytes, long durationMs) {
+        mLastPollDeltaBytes = (totalBytes != UNKNOWN_BYTES
+                && mLastPolledTotalBytes != UNKNOWN_BYTES && totalBytes >= mLastPolledTotalBytes)
+                ? totalBytes - mLastPolledTotalBytes : UNKNOWN_BYTES;
+        mLastPolledTotalBytes = totalBytes;
+        mConsecutiveSkips = 0;
+
+        mPollCount++;
+        mLastPollDurationMs = durationMs;
+        mMaxPollDurationMs = Math.max(mMaxPollDurationMs, durationMs);
+        mTotalPollDurationMs += durationMs;
+    }
+
+    /**
+     * Note that a periodic poll was brought forward because of heavy traffic.
+     */
+    public synchronized void noteEarlyPoll() {
+        mEarlyPollCount++;
+    }
+
+    /**
+     * Whether traffic was heavy between the last two full polls, in which case the next
+     * periodic poll should be brought forward.
+     */
+    public synchronized boolean isTrafficHeavy() {
+        return mLastPollDeltaBytes != UNKNOWN_BYTES && mLastPollDeltaBytes >= mHeavyThresholdBytes;
+    }
+
+    /**
+     * Get the number of periodic polls skipped so far.
+     */
+    public synchronized long getSkipCount() {
+        return mSkipCount;
+    }
+
+    /**
+     * Dump the poll costs and counters, for debugging.
+     */
+    public synchronized void dump(@NonNull IndentingPrintWriter pw) {
+        pw.print("polls", mPollCount);
+        pw.print("skipped", mSkipCount);
+        pw.print("early", mEarlyPollCount);
+        pw.println();
+        pw.print("lastPollMs", mLastPollDurationMs);
+        pw.print("maxPollMs", mMaxPollDurationMs);
+        pw.print("avgPollMs", mPollCount == 0 ? 0 : mTotalPollDurationMs / mPollCount);
+        pw.println();
+        pw.print("lastPollDeltaBytes", mLastPollDeltaBytes);
+        pw.print("consecutiveSkips", mConsecutiveSkips);
+        pw.println();
+    }
+}
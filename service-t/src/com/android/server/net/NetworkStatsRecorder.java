@@ -22,6 +22,7 @@ import static android.net.TrafficStats.MB_IN_BYTES;
 import static android.text.format.DateUtils.YEAR_IN_MILLIS;
 
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.net.NetworkIdentitySet;
 import android.net.NetworkStats;
 import android.net.NetworkStats.NonMonotonicObserver;
@@ -37,6 +38,7 @@ import android.util.IndentingPrintWriter;
 import android.util.Log;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.util.FileRotator;
 import com.android.net.module.util.NetworkStatsUtils;
 
@@ -57,9 +59,13 @@ import java.util.Objects;
  * Logic to record deltas between periodic {@link NetworkStats} snapshots into
  * {@link NetworkStatsHistory} that belong to {@link NetworkStatsCollection}.
  * Keeps pending changes in memory until they pass a specific threshold, in
- * bytes. Uses {@link FileRotator} for persistence logic if present.
+ * bytes. Uses {@link FileRotator} for persistence logic if present, or a
+ * {@link NetworkStatsSegmentStore} if one is given.
  * <p>
- * Not inherently thread safe.
+ * Not inherently thread safe, except that {@link #persistDetached(long)},
+ * {@link #removePersistedUids(int[])} and {@link #getOrLoadComplete(Object)} may run
+ * concurrently with the other methods : persisted data is protected by an internal lock, which
+ * they take without holding the lock of the caller.
  */
 public class NetworkStatsRecorder {
     private static final String TAG = "NetworkStatsRecorder";
@@ -72,6 +78,10 @@ public class NetworkStatsRecorder {
     private static final boolean DUMP_BEFORE_DELETE = true;
 
     private final FileRotator mRotator;
+    // If present, persisted data is stored here instead of in mRotator, which is then only
+    // read to migrate data in the older format.
+    @Nullable
+    private final NetworkStatsSegmentStore mSegmentStore;
     private final NonMonotonicObserver<String> mObserver;
     private final DropBoxManager mDropBox;
     private final String mCookie;
@@ -90,11 +100,30 @@ public class NetworkStatsRecorder {
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
+    // Held while persisted data is read or written, so that pending deltas can be written by
+    // persistDetached without holding the lock of the caller protecting the rest of this recorder.
+    // Methods called with the lock of the caller only take it when nothing else is writing, e.g.
+    // at boot or on shutdown, so that callers are never blocked by disk writes.
+    private final Object mPersistLock = new Object();
+    // Only held briefly, so that detachPendingLocked does not need mPersistLock. Taken after
+    // mPersistLock and after the lock of the caller.
+    private final Object mDetachedLock = new Object();
+    // Pending deltas detached by detachPendingLocked, not yet written by persistDetached. Only
+    // modified under mPersistLock, except by detachPendingLocked.
+    @GuardedBy("mDetachedLock")
+    @Nullable
+    private NetworkStatsCollection mPersisting;
+    // Incremented under the lock of the caller when deltas move out of mPending or data is
+    // removed, so that getOrLoadComplete can tell whether what it read from disk is still
+    // consistent with mPending.
+    private long mLoadGeneration;
+
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
      */
     public NetworkStatsRecorder() {
         mRotator = null;
+        mSegmentStore = null;
         mObserver = null;
         mDropBox = null;
         mCookie = null;
@@ -117,7 +146,21 @@ public class NetworkStatsRecorder {
     public NetworkStatsRecorder(FileRotator rotator, NonMonotonicObserver<String> observer,
             DropBoxManager dropBox, String cookie, long bucketDuration, boolean onlyTags,
             boolean wipeOnError) {
+        this(rotator, null /* segmentStore */, observer, dropBox, cookie, bucketDuration,
+                onlyTags, wipeOnError);
+    }
+
+    /**
+     * Persisted recorder storing its data in a {@link NetworkStatsSegmentStore}. The
+     * {@link FileRotator} is only used to migrate data persisted in the older format, see
+     * {@link #maybeMigrateToSegmentStoreLocked()}.
+     */
+    public NetworkStatsRecorder(FileRotator rotator,
+            @Nullable NetworkStatsSegmentStore segmentStore,
+            NonMonotonicObserver<String> observer, DropBoxManager dropBox, String cookie,
+            long bucketDuration, boolean onlyTags, boolean wipeOnError) {
         mRotator = Objects.requireNonNull(rotator, "missing FileRotator");
+        mSegmentStore = segmentStore;
         mObserver = Objects.requireNonNull(observer, "missing NonMonotonicObserver");
         mDropBox = Objects.requireNonNull(dropBox, "missing DropBoxManager");
         mCookie = cookie;
@@ -139,6 +182,7 @@ public class NetworkStatsRecorder {
     }
 
     public void resetLocked() {
+        mLoadGeneration++;
         mLastSnapshot = null;
         if (mPending != null) {
             mPending.reset();
@@ -174,6 +218,9 @@ public class NetworkStatsRecorder {
      * internally as a {@link WeakReference}, and updated with future
      * {@link #recordSnapshotLocked(NetworkStats, Map, long)} snapshots as long
      * as reference is valid.
+     * <p>
+     * This reads from disk while holding the lock of the caller, see
+     * {@link #getOrLoadComplete(Object)} to avoid blocking other threads.
      */
     public NetworkStatsCollection getOrLoadCompleteLocked() {
         Objects.requireNonNull(mRotator, "missing FileRotator");
@@ -194,18 +241,81 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Same as {@link #getOrLoadCompleteLocked()}, except that {@code lock}, the lock of the
+     * caller protecting this recorder, is not held while reading from disk. Must be called
+     * without holding {@code lock}.
+     */
+    public NetworkStatsCollection getOrLoadComplete(@NonNull Object lock) {
+        return load(lock, Long.MIN_VALUE, Long.MAX_VALUE, true /* complete */);
+    }
+
+    /**
+     * Same as {@link #getOrLoadPartialLocked(long, long)}, except that {@code lock} is not held
+     * while reading from disk. Must be called without holding {@code lock}.
+     */
+    public NetworkStatsCollection getOrLoadPartial(@NonNull Object lock, long start, long end) {
+        return load(lock, start, end, false /* complete */);
+    }
+
+    private NetworkStatsCollection load(@NonNull Object lock, long start, long end,
+            boolean complete) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        while (true) {
+            final long generation;
+            synchronized (lock) {
+                final NetworkStatsCollection cached = mComplete != null ? mComplete.get() : null;
+                if (cached != null) return cached;
+                generation = mLoadGeneration;
+            }
+            final NetworkStatsCollection res = readPersisted(start, end);
+            synchronized (lock) {
+                // Deltas detached while reading may be missing from both the persisted data
+                // that was read and mPending : read again.
+                if (generation != mLoadGeneration) continue;
+                final NetworkStatsCollection cached = mComplete != null ? mComplete.get() : null;
+                if (cached != null) return cached;
+                res.recordCollection(mPending);
+                if (complete) {
+                    mComplete = new WeakReference<NetworkStatsCollection>(res);
+                }
+                return res;
+            }
+        }
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
-        if (LOGD) Log.d(TAG, "loadLocked() reading from disk for " + mCookie);
+        final NetworkStatsCollection res = readPersisted(start, end);
+        res.recordCollection(mPending);
+        return res;
+    }
+
+    /**
+     * Read persisted data along with detached deltas that are not written yet. Does not need
+     * the lock of the caller.
+     */
+    private NetworkStatsCollection readPersisted(long start, long end) {
+        if (LOGD) Log.d(TAG, "readPersisted() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
-        try {
-            mRotator.readMatching(res, start, end);
-            res.recordCollection(mPending);
-        } catch (IOException e) {
-            Log.wtf(TAG, "problem completely reading network stats", e);
-            recoverAndDeleteData();
-        } catch (OutOfMemoryError e) {
-            Log.wtf(TAG, "problem completely reading network stats", e);
-            recoverAndDeleteData();
+        synchronized (mPersistLock) {
+            try {
+                if (mSegmentStore != null) {
+                    mSegmentStore.read(res, start, end);
+                } else {
+                    mRotator.readMatching(res, start, end);
+                }
+                synchronized (mDetachedLock) {
+                    if (mPersisting != null) {
+                        res.recordCollection(mPersisting);
+                    }
+                }
+            } catch (IOException e) {
+                Log.wtf(TAG, "problem completely reading network stats", e);
+                recoverAndDeleteData();
+            } catch (OutOfMemoryError e) {
+                Log.wtf(TAG, "problem completely reading network stats", e);
+                recoverAndDeleteData();
+            }
         }
         return res;
     }
@@ -295,8 +405,14 @@ public class NetworkStatsRecorder {
         final long pendingBytes = mPending.getTotalBytes();
         if (pendingBytes >= mPersistThresholdBytes) {
             forcePersistLocked(currentTimeMillis);
-        } else {
-            mRotator.maybeRotate(currentTimeMillis);
+            return;
+        }
+        synchronized (mPersistLock) {
+            if (mSegmentStore != null) {
+                maybeExpireAndCompactSegments(currentTimeMillis);
+            } else {
+                mRotator.maybeRotate(currentTimeMillis);
+            }
         }
     }
 
@@ -307,37 +423,168 @@ public class NetworkStatsRecorder {
         Objects.requireNonNull(mRotator, "missing FileRotator");
         if (mPending.isDirty()) {
             if (LOGD) Log.d(TAG, "forcePersistLocked() writing for " + mCookie);
+            synchronized (mPersistLock) {
+                try {
+                    if (mSegmentStore != null) {
+                        // Only the pending deltas are appended, existing data is not rewritten.
+                        mSegmentStore.append(mPending);
+                        maybeExpireAndCompactSegments(currentTimeMillis);
+                    } else {
+                        mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
+                        mRotator.maybeRotate(currentTimeMillis);
+                    }
+                    mPending.reset();
+                    mLoadGeneration++;
+                } catch (IOException e) {
+                    Log.wtf(TAG, "problem persisting pending stats", e);
+                    recoverAndDeleteData();
+                } catch (OutOfMemoryError e) {
+                    Log.wtf(TAG, "problem persisting pending stats", e);
+                    recoverAndDeleteData();
+                }
+            }
+        }
+    }
+
+    /**
+     * Detach pending deltas so that they can be written by {@link #persistDetached(long)}, if
+     * they are beyond {@link #mPersistThresholdBytes} or if {@code force} is true. Detached deltas
+     * are still included in data loaded by this recorder until they have been written.
+     */
+    public void detachPendingLocked(boolean force) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        final boolean shouldPersist = force
+                ? mPending.isDirty() : mPending.getTotalBytes() >= mPersistThresholdBytes;
+        if (!shouldPersist) return;
+        synchronized (mDetachedLock) {
+            if (mPersisting == null) {
+                mPersisting = new NetworkStatsCollection(mBucketDuration);
+            }
+            mPersisting.recordCollection(mPending);
+        }
+        mPending.reset();
+        mLoadGeneration++;
+    }
+
+    /**
+     * Write any deltas detached by {@link #detachPendingLocked(boolean)}, and rotate or delete
+     * persisted data as needed. Unlike other methods of this class, this does not need the lock
+     * of the caller, so that recording and queries are not blocked while writing to disk.
+     */
+    public void persistDetached(long currentTimeMillis) {
+        Objects.requireNonNull(mRotator, "missing FileRotator");
+        synchronized (mPersistLock) {
+            // Loads also take mPersistLock, so they cannot miss these deltas once detached.
+            final NetworkStatsCollection persisting;
+            synchronized (mDetachedLock) {
+                persisting = mPersisting;
+                mPersisting = null;
+            }
+            if (persisting == null) {
+                if (mSegmentStore != null) {
+                    maybeExpireAndCompactSegments(currentTimeMillis);
+                } else {
+                    mRotator.maybeRotate(currentTimeMillis);
+                }
+                return;
+            }
+            if (LOGD) Log.d(TAG, "persistDetached() writing for " + mCookie);
             try {
-                mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
-                mRotator.maybeRotate(currentTimeMillis);
-                mPending.reset();
+                if (mSegmentStore != null) {
+                    mSegmentStore.append(persisting);
+                    maybeExpireAndCompactSegments(currentTimeMillis);
+                } else {
+                    mRotator.rewriteActive(new CombiningRewriter(persisting), currentTimeMillis);
+                    mRotator.maybeRotate(currentTimeMillis);
+                }
             } catch (IOException e) {
                 Log.wtf(TAG, "problem persisting pending stats", e);
+                restoreDetached(persisting);
                 recoverAndDeleteData();
             } catch (OutOfMemoryError e) {
                 Log.wtf(TAG, "problem persisting pending stats", e);
+                restoreDetached(persisting);
                 recoverAndDeleteData();
             }
         }
     }
 
+    /**
+     * Put back deltas that could not be written, so that they are still included in loaded data
+     * and written by the next {@link #persistDetached(long)}.
+     */
+    @GuardedBy("mPersistLock")
+    private void restoreDetached(@NonNull NetworkStatsCollection persisting) {
+        synchronized (mDetachedLock) {
+            if (mPersisting != null) {
+                persisting.recordCollection(mPersisting);
+            }
+            mPersisting = persisting;
+        }
+    }
+
+    /**
+     * Delete expired segments and compact at most one aged segment, so that compaction is
+     * spread over persist passes rather than done all at once.
+     */
+    @GuardedBy("mPersistLock")
+    private void maybeExpireAndCompactSegments(long currentTimeMillis) {
+        mSegmentStore.maybeDeleteExpired(currentTimeMillis);
+        try {
+            mSegmentStore.maybeCompactOne(currentTimeMillis);
+        } catch (IOException e) {
+            // Segments are replaced atomically, so the segment is left as it was.
+            Log.e(TAG, "problem compacting " + mCookie + " stats", e);
+        }
+    }
+
     /**
      * Remove the given UID from all {@link FileRotator} history, migrating it
      * to {@link TrafficStats#UID_REMOVED}.
      */
     public void removeUidsLocked(int[] uids) {
+        removePersistedUids(uids);
+        removeUidsFromMemoryLocked(uids);
+    }
+
+    /**
+     * Remove the given UIDs from persisted data and detached deltas only. Like
+     * {@link #persistDetached(long)}, this does not need the lock of the caller, which must then
+     * call {@link #removeUidsFromMemoryLocked(int[])}.
+     */
+    public void removePersistedUids(int[] uids) {
         if (mRotator != null) {
-            try {
-                // Rewrite all persisted data to migrate UID stats
-                mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
-            } catch (IOException e) {
-                Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
-                recoverAndDeleteData();
-            } catch (OutOfMemoryError e) {
-                Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
-                recoverAndDeleteData();
+            synchronized (mPersistLock) {
+                try {
+                    // Rewrite all persisted data to migrate UID stats
+                    if (mSegmentStore != null) {
+                        mSegmentStore.removeUids(uids);
+                    } else {
+                        mRotator.rewriteAll(new RemoveUidRewriter(mBucketDuration, uids));
+                    }
+                } catch (IOException e) {
+                    Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
+                    recoverAndDeleteData();
+                } catch (OutOfMemoryError e) {
+                    Log.wtf(TAG, "problem removing UIDs " + Arrays.toString(uids), e);
+                    recoverAndDeleteData();
+                }
+                synchronized (mDetachedLock) {
+                    if (mPersisting != null) {
+                        mPersisting.removeUids(uids);
+                    }
+                }
             }
         }
+    }
+
+    /**
+     * Remove the given UIDs from data held in memory, after
+     * {@link #removePersistedUids(int[])}.
+     */
+    public void removeUidsFromMemoryLocked(int[] uids) {
+        // Data loaded concurrently may have been read before the UIDs were removed from disk
+        mLoadGeneration++;
 
         // Remove any pending stats
         if (mPending != null) {
@@ -433,10 +680,15 @@ public class NetworkStatsRecorder {
      */
     public void importCollectionLocked(@NonNull NetworkStatsCollection collection)
             throws IOException {
-        if (mRotator != null) {
-            mRotator.rewriteSingle(new CombiningRewriter(collection), collection.getStartMillis(),
-                    collection.getEndMillis());
+        synchronized (mPersistLock) {
+            if (mSegmentStore != null) {
+                mSegmentStore.append(collection);
+            } else if (mRotator != null) {
+                mRotator.rewriteSingle(new CombiningRewriter(collection),
+                        collection.getStartMillis(), collection.getEndMillis());
+            }
         }
+        mLoadGeneration++;
 
         if (mComplete != null) {
             throw new IllegalStateException("cannot import data when data already loaded");
@@ -484,17 +736,29 @@ public class NetworkStatsRecorder {
      */
     public void removeDataBefore(long cutoffMillis) throws IOException {
         if (mRotator != null) {
-            try {
-                mRotator.rewriteAll(new RemoveDataBeforeRewriter(
-                        mBucketDuration, cutoffMillis));
-            } catch (IOException e) {
-                Log.wtf(TAG, "problem importing netstats", e);
-                recoverAndDeleteData();
-            } catch (OutOfMemoryError e) {
-                Log.wtf(TAG, "problem importing netstats", e);
-                recoverAndDeleteData();
+            synchronized (mPersistLock) {
+                try {
+                    if (mSegmentStore != null) {
+                        mSegmentStore.removeDataBefore(cutoffMillis);
+                    } else {
+                        mRotator.rewriteAll(new RemoveDataBeforeRewriter(
+                                mBucketDuration, cutoffMillis));
+                    }
+                } catch (IOException e) {
+                    Log.wtf(TAG, "problem importing netstats", e);
+                    recoverAndDeleteData();
+                } catch (OutOfMemoryError e) {
+                    Log.wtf(TAG, "problem importing netstats", e);
+                    recoverAndDeleteData();
+                }
+                synchronized (mDetachedLock) {
+                    if (mPersisting != null) {
+                        mPersisting.removeHistoryBefore(cutoffMillis);
+                    }
+                }
             }
         }
+        mLoadGeneration++;
 
         // Clean up any pending stats
         if (mPending != null) {
@@ -510,10 +774,130 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /**
+     * Migrate the data persisted by the {@link FileRotator} in the {@code VERSION_UNIFIED_INIT}
+     * format to the {@link NetworkStatsSegmentStore}, if any. The older files are deleted once
+     * their contents have been completely written to segments. Data already in segments is
+     * kept, so that migrating is always safe.
+     *
+     * This must be called before any data is persisted. See
+     * {@link #maybeMigrateFromSegmentStoreLocked(NetworkStatsSegmentStore)} for the reverse.
+     */
+    public void maybeMigrateToSegmentStoreLocked() {
+        if (mSegmentStore == null) return;
+        synchronized (mPersistLock) {
+            try {
+                recoverInterruptedMigrationLocked(mSegmentStore);
+                final NetworkStatsCollection legacy = new NetworkStatsCollection(mBucketDuration);
+                mRotator.readMatching(legacy, Long.MIN_VALUE, Long.MAX_VALUE);
+                if (legacy.getEntries().isEmpty()) {
+                    // Nothing to migrate, but clean up any empty file.
+                    mRotator.deleteAll();
+                    return;
+                }
+                Log.i(TAG, "Migrating " + mCookie + " stats to segment files");
+                mSegmentStore.importCollection(legacy);
+                mRotator.deleteAll();
+                mSegmentStore.clearJournal();
+            } catch (IOException e) {
+                Log.wtf(TAG, "problem migrating network stats", e);
+                recoverAndDeleteData();
+            } catch (OutOfMemoryError e) {
+                Log.wtf(TAG, "problem migrating network stats", e);
+                recoverAndDeleteData();
+            }
+        }
+    }
+
+    /**
+     * Migrate the data persisted in the given {@link NetworkStatsSegmentStore} back to the
+     * {@link FileRotator}, for recorders not using segment files, so that no data is lost when
+     * segment files are disabled after having been enabled. Segments are deleted once their
+     * contents have been written in a single file.
+     *
+     * This must be called before any data is persisted.
+     */
+    public void maybeMigrateFromSegmentStoreLocked(@NonNull NetworkStatsSegmentStore store) {
+        if (mSegmentStore != null) return;
+        synchronized (mPersistLock) {
+            try {
+                recoverInterruptedMigrationLocked(store);
+                final NetworkStatsCollection segments = new NetworkStatsCollection(mBucketDuration);
+                store.read(segments, Long.MIN_VALUE, Long.MAX_VALUE);
+                if (segments.getEntries().isEmpty()) {
+                    store.deleteAll();
+                    return;
+                }
+                if (!isRotatorEmptyLocked()) {
+                    // Completing the export could not be told apart from an interrupted one.
+                    // Keep the segments, which are migrated again when segment files are enabled.
+                    Log.wtf(TAG, "Not migrating " + mCookie + " segment files: older files exist");
+                    return;
+                }
+                Log.i(TAG, "Migrating " + mCookie + " stats back from segment files");
+                store.beginExport();
+                mRotator.rewriteSingle(new CombiningRewriter(segments),
+                        segments.getStartMillis(), segments.getEndMillis());
+                store.deleteAll();
+            } catch (IOException e) {
+                Log.wtf(TAG, "problem migrating network stats", e);
+                recoverAndDeleteData();
+            } catch (OutOfMemoryError e) {
+                Log.wtf(TAG, "problem migrating network stats", e);
+                recoverAndDeleteData();
+            }
+        }
+    }
+
+    /**
+     * Roll back or complete a migration between the {@link FileRotator} and the given store that
+     * was interrupted, e.g. by a crash. Afterwards, each bucket is stored in only one of them.
+     */
+    @GuardedBy("mPersistLock")
+    private void recoverInterruptedMigrationLocked(@NonNull NetworkStatsSegmentStore store)
+            throws IOException {
+        switch (store.getJournalState()) {
+            case NetworkStatsSegmentStore.JOURNAL_IMPORTING:
+                // The older files are intact, drop what was copied from them.
+                Log.i(TAG, "Rolling back interrupted migration of " + mCookie + " stats");
+                store.rollbackImport();
+                break;
+            case NetworkStatsSegmentStore.JOURNAL_IMPORTED:
+                // Segments hold a complete copy of the older files.
+                mRotator.deleteAll();
+                store.clearJournal();
+                break;
+            case NetworkStatsSegmentStore.JOURNAL_EXPORTING:
+                // Exports only start when the FileRotator is empty, and write a single file :
+                // if it has any data, it holds a complete copy of the segments.
+                if (!isRotatorEmptyLocked()) {
+                    if (mSegmentStore != null) {
+                        mRotator.deleteAll();
+                    } else {
+                        store.deleteAll();
+                    }
+                }
+                store.clearJournal();
+                break;
+            default:
+                break;
+        }
+    }
+
+    @GuardedBy("mPersistLock")
+    private boolean isRotatorEmptyLocked() throws IOException {
+        final NetworkStatsCollection legacy = new NetworkStatsCollection(mBucketDuration);
+        mRotator.readMatching(legacy, Long.MIN_VALUE, Long.MAX_VALUE);
+        return legacy.getEntries().isEmpty();
+    }
+
     public void dumpLocked(IndentingPrintWriter pw, boolean fullHistory) {
         if (mPending != null) {
             pw.print("Pending bytes: "); pw.println(mPending.getTotalBytes());
         }
+        if (mSegmentStore != null) {
+            pw.print("Segment files: "); pw.println(mSegmentStore.getSegmentCount());
+        }
         if (fullHistory) {
             pw.println("Complete history:");
             getOrLoadCompleteLocked().dump(pw);
@@ -534,9 +918,13 @@ public class NetworkStatsRecorder {
         proto.end(start);
     }
 
-    public void dumpCheckin(PrintWriter pw, long start, long end) {
+    /**
+     * Dump stats from the requested window. Must be called without holding {@code lock}, the
+     * lock of the caller protecting this recorder.
+     */
+    public void dumpCheckin(@NonNull Object lock, PrintWriter pw, long start, long end) {
         // Only load and dump stats from the requested window
-        getOrLoadPartialLocked(start, end).dumpCheckin(pw, start, end);
+        getOrLoadPartial(lock, start, end).dumpCheckin(pw, start, end);
     }
 
     /**
@@ -545,10 +933,21 @@ public class NetworkStatsRecorder {
      * sets {@code mWipeOnError} to true, otherwise keep the contents.
      */
     void recoverAndDeleteData() {
+        synchronized (mPersistLock) {
+            recoverAndDeleteDataLocked();
+        }
+    }
+
+    @GuardedBy("mPersistLock")
+    private void recoverAndDeleteDataLocked() {
         if (DUMP_BEFORE_DELETE) {
             final ByteArrayOutputStream os = new ByteArrayOutputStream();
             try {
-                mRotator.dumpAll(os);
+                if (mSegmentStore != null) {
+                    mSegmentStore.dumpAll(os);
+                } else {
+                    mRotator.dumpAll(os);
+                }
             } catch (IOException e) {
                 // ignore partial contents
                 os.reset();
@@ -560,6 +959,9 @@ public class NetworkStatsRecorder {
         // Delete all files if this recorder is set wipe on error.
         if (mWipeOnError) {
             mRotator.deleteAll();
+            if (mSegmentStore != null) {
+                mSegmentStore.deleteAll();
+            }
         }
     }
 }
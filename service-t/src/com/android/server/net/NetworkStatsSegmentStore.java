@@ -0,0 +1,938 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkIdentitySet;
+import android.net.NetworkStatsCollection;
+import android.net.NetworkStatsCollection.Key;
+import android.net.NetworkStatsHistory;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Append-only storage for the history of a {@link NetworkStatsRecorder}, used instead of the
+ * {@link com.android.internal.util.FileRotator} based storage when enabled.
+ * <p>
+ * History is stored in segment files that each cover a window of {@code rotateAgeMillis}, and
+ * are named {@code <prefix>.seg.<windowStart>}. Each bucket of history is written as a
+ * fixed-width record in the segment covering its start time. Persisting pending data only
+ * appends records and never rewrites existing data. Segment files are memory-mapped for
+ * reads, and records outside of the requested time range are skipped without being decoded.
+ * <p>
+ * Segment file format, big-endian :
+ * <pre>
+ *   segment := magic(int) version(int) bucketDuration(long) *record
+ *   record  := ident | key | bucket
+ *   ident   := RECORD_IDENT(byte) identId(int) NetworkIdentitySet
+ *   key     := RECORD_KEY(byte) keyId(int) identId(int) uid(int) set(int) tag(int)
+ *   bucket  := RECORD_BUCKET(byte) keyId(int) bucketStart(long) activeTime(long)
+ *              rxBytes(long) rxPackets(long) txBytes(long) txPackets(long) operations(long)
+ * </pre>
+ * Ids are local to each file and allocated sequentially. Buckets recorded several times for
+ * the same key are added up when read. A crash or power loss while appending can leave a
+ * partially written or zero-filled tail : reading stops at the last valid record, and the
+ * file is truncated there.
+ * <p>
+ * Data moved in or out of the store by a migration, see
+ * {@link #importCollection(NetworkStatsCollection)} and {@link #beginExport()}, is tracked in a
+ * journal file named {@code <prefix>.journal}, so that a migration interrupted by a crash can
+ * be either rolled back or completed without losing or double counting any data.
+ * <p>
+ * Segments older than {@code compactAgeMillis} can be compacted by
+ * {@link #maybeCompactOne(long)}, which rewrites them with the coarser
+ * {@code compactBucketDuration}. Each bucket is added whole to the coarse bucket containing
+ * its start, so totals are preserved exactly. Compacted segments keep their bucket duration
+ * in their header, and late appends to them are aligned to it.
+ * <p>
+ * Not inherently thread safe.
+ */
+public class NetworkStatsSegmentStore {
+    private static final String TAG = NetworkStatsSegmentStore.class.getSimpleName();
+
+    /** File header magic number: "ANSG" */
+    private static final int FILE_MAGIC = 0x414E5347;
+    private static final int VERSION_SEGMENT_INIT = 1;
+    private static final int HEADER_SIZE = Integer.BYTES * 2 + Long.BYTES;
+
+    private static final byte RECORD_IDENT = 1;
+    private static final byte RECORD_KEY = 2;
+    private static final byte RECORD_BUCKET = 3;
+    // Size of the values of a bucket record, after the record type and the key id.
+    private static final int BUCKET_VALUES_SIZE = Long.BYTES * 7;
+
+    private static final String SEGMENT_INFIX = ".seg.";
+    private static final String JOURNAL_SUFFIX = ".journal";
+    /** Journal file magic number: "ANSJ" */
+    private static final int JOURNAL_MAGIC = 0x414E534A;
+
+    /** No migration is in progress. */
+    public static final int JOURNAL_NONE = 0;
+    /**
+     * Data is being imported by {@link #importCollection(NetworkStatsCollection)}, and may be
+     * partially written. See {@link #rollbackImport()}.
+     */
+    public static final int JOURNAL_IMPORTING = 1;
+    /** Data was completely imported, but its source may not have been deleted yet. */
+    public static final int JOURNAL_IMPORTED = 2;
+    /**
+     * Data is being exported to another storage, and may already have been completely written
+     * there. See {@link #beginExport()}.
+     */
+    public static final int JOURNAL_EXPORTING = 3;
+
+    private final File mBasePath;
+    private final String mPrefix;
+    private final long mRotateAgeMillis;
+    private final long mDeleteAgeMillis;
+    private final long mBucketDuration;
+    private final long mCompactAgeMillis;
+    // 0 if compaction is disabled.
+    private final long mCompactBucketDuration;
+
+    // All segments starting before this are known to be compacted, so that they are not read
+    // again by each call to maybeCompactOne.
+    private long mCompactedUntil = Long.MIN_VALUE;
+
+    // Records defined in the segment last appended to, so that the next persist doesn't need
+    // to scan it again. Null when unknown.
+    @Nullable
+    private SegmentIndex mLastAppendedIndex;
+
+    /**
+     * Construct a {@link NetworkStatsSegmentStore}.
+     *
+     * @param basePath the directory to store segment files in.
+     * @param prefix the prefix of the segment files, e.g. {@code "uid"}.
+     * @param rotateAgeMillis the duration covered by each segment file.
+     * @param deleteAgeMillis the age after which segment files are deleted.
+     * @param bucketDuration the bucket duration of the stored history.
+     */
+    public NetworkStatsSegmentStore(@NonNull File basePath, @NonNull String prefix,
+            long rotateAgeMillis, long deleteAgeMillis, long bucketDuration) {
+        this(basePath, prefix, rotateAgeMillis, deleteAgeMillis, bucketDuration,
+                0 /* compactAgeMillis */, 0 /* compactBucketDuration */);
+    }
+
+    /**
+     * Construct a {@link NetworkStatsSegmentStore} compacting aged segments.
+     *
+     * @param compactAgeMillis the age after which segments are compacted.
+     * @param compactBucketDuration the bucket duration of compacted segments. Compaction is
+     *         disabled unless this is a multiple of {@code bucketDuration} dividing
+     *         {@code rotateAgeMillis}, so that coarse buckets never span two segments.
+     */
+    public NetworkStatsSegmentStore(@NonNull File basePath, @NonNull String prefix,
+            long rotateAgeMillis, long deleteAgeMillis, long bucketDuration,
+            long compactAgeMillis, long compactBucketDuration) {
+        mBasePath = Objects.requireNonNull(basePath, "missing basePath");
+        mPrefix = Objects.requireNonNull(prefix, "missing prefix");
+        mRotateAgeMillis = Math.max(rotateAgeMillis, 1);
+        mDeleteAgeMillis = deleteAgeMillis;
+        mBucketDuration = bucketDuration;
+        mCompactAgeMillis = compactAgeMillis;
+        final boolean canCompact = bucketDuration > 0
+                && compactBucketDuration > bucketDuration
+                && compactBucketDuration % bucketDuration == 0
+                && mRotateAgeMillis % compactBucketDuration == 0;
+        if (compactBucketDuration != 0 && !canCompact) {
+            Log.e(TAG, "Ignoring invalid compact bucket duration " + compactBucketDuration
+                    + " for " + prefix);
+        }
+        mCompactBucketDuration = canCompact ? compactBucketDuration : 0;
+
+        // Ensure that the base path exists.
+        mBasePath.mkdirs();
+    }
+
+    /**
+     * Identity sets and keys defined in a segment file, along with the length of its
+     * valid contents.
+     */
+    private static class SegmentIndex {
+        public final long windowStart;
+        public final ArrayMap<NetworkIdentitySet, Integer> identIds = new ArrayMap<>();
+        public final ArrayMap<Key, Integer> keyIds = new ArrayMap<>();
+        public long validLength;
+        // Bucket duration from the header of the segment, 0 if not read yet.
+        public long bucketDuration;
+
+        SegmentIndex(long windowStart) {
+            this.windowStart = windowStart;
+        }
+
+        /**
+         * Write a bucket record, preceded by the records defining its key if needed.
+         */
+        void writeBucket(@NonNull DataOutputStream out, @NonNull Key key,
+                @NonNull NetworkStatsHistory.Entry entry) throws IOException {
+            Integer keyId = keyIds.get(key);
+            if (keyId == null) {
+                Integer identId = identIds.get(key.ident);
+                if (identId == null) {
+                    identId = identIds.size();
+                    out.writeByte(RECORD_IDENT);
+                    out.writeInt(identId);
+                    key.ident.writeToStream(out);
+                    identIds.put(key.ident, identId);
+                }
+                keyId = keyIds.size();
+                out.writeByte(RECORD_KEY);
+                out.writeInt(keyId);
+                out.writeInt(identId);
+                out.writeInt(key.uid);
+                out.writeInt(key.set);
+                out.writeInt(key.tag);
+                keyIds.put(key, keyId);
+            }
+            out.writeByte(RECORD_BUCKET);
+            out.writeInt(keyId);
+            // Finer buckets appended to a compacted segment are added to the coarse bucket
+            // containing them.
+            out.writeLong(entry.bucketStart - Math.floorMod(entry.bucketStart, bucketDuration));
+            out.writeLong(entry.activeTime);
+            out.writeLong(entry.rxBytes);
+            out.writeLong(entry.rxPackets);
+            out.writeLong(entry.txBytes);
+            out.writeLong(entry.txPackets);
+            out.writeLong(entry.operations);
+        }
+    }
+
+    /**
+     * Contents of a segment file as read from disk.
+     */
+    private static class Segment {
+        public final SegmentIndex index;
+        // Histories of the buckets read, by key. Null if buckets were not requested.
+        @Nullable
+        public final ArrayMap<Key, NetworkStatsHistory.Builder> histories;
+
+        Segment(long windowStart, boolean readBuckets) {
+            index = new SegmentIndex(windowStart);
+            histories = readBuckets ? new ArrayMap<>() : null;
+        }
+    }
+
+    /**
+     * An {@link InputStream} reading from a {@link ByteBuffer}, so that variable-length
+     * records can be parsed in place with a {@link DataInputStream}.
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        ByteBufferInputStream(@NonNull ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            final int count = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, count);
+            return count;
+        }
+    }
+
+    /**
+     * Read the buckets of all segments that overlap the given time range into the given
+     * collection, which must have the bucket duration of this store.
+     *
+     * Compacted segments are read first, since they are the oldest. Their buckets are
+     * resampled to the bucket duration of the store before being recorded, so that the
+     * histories of the collection are not created with the compacted bucket duration, which
+     * would also coarsen the recent data recorded into them afterwards.
+     */
+    public void read(@NonNull NetworkStatsCollection out, long start, long end)
+            throws IOException {
+        for (final long windowStart : listSegments()) {
+            // Segments only contain buckets starting in their window, and are sorted.
+            if (windowStart > end) break;
+            final Segment segment = readSegment(windowStart, start, end, true /* readBuckets */);
+            recordSegment(out, segment, mBucketDuration);
+        }
+    }
+
+    /**
+     * Append all the buckets of the given collection to the segments covering their start.
+     */
+    public void append(@NonNull NetworkStatsCollection collection) throws IOException {
+        final LongSparseArray<SegmentAppender> appenders = new LongSparseArray<>();
+        boolean success = false;
+        try {
+            NetworkStatsHistory.Entry entry = null;
+            for (final Map.Entry<Key, NetworkStatsHistory> e
+                    : collection.getEntries().entrySet()) {
+                final Key key = e.getKey();
+                NetworkStatsHistory history = e.getValue();
+                if (history.getBucketDuration() != mBucketDuration) {
+                    history = new NetworkStatsHistory(history, mBucketDuration);
+                }
+                for (int i = 0; i < history.size(); i++) {
+                    entry = history.getValues(i, entry);
+                    final long windowStart = getWindowStart(entry.bucketStart);
+                    SegmentAppender appender = appenders.get(windowStart);
+                    if (appender == null) {
+                        appender = new SegmentAppender(getOrReadIndexForAppend(windowStart));
+                        appenders.put(windowStart, appender);
+                    }
+                    appender.index.writeBucket(appender.out, key, entry);
+                }
+            }
+            for (int i = 0; i < appenders.size(); i++) {
+                appenders.valueAt(i).commit();
+            }
+            success = true;
+        } finally {
+            for (int i = 0; i < appenders.size(); i++) {
+                appenders.valueAt(i).close();
+            }
+            // Remember the most recent segment, which the next persist will most likely
+            // append to. On failure, the index may not match the file anymore.
+            mLastAppendedIndex = (success && appenders.size() > 0)
+                    ? appenders.valueAt(appenders.size() - 1).index : null;
+        }
+    }
+
+    /**
+     * Append all the buckets of the given collection, as imported from another storage by a
+     * migration. Until {@link #clearJournal()} is called, the journal records the valid length
+     * of all segments before the import, so that an import interrupted by a crash can be rolled
+     * back by {@link #rollbackImport()} without touching any data stored before.
+     * <p>
+     * Once this returns, the journal state is {@link #JOURNAL_IMPORTED}.
+     */
+    public void importCollection(@NonNull NetworkStatsCollection collection) throws IOException {
+        beginImport();
+        append(collection);
+        writeJournal(JOURNAL_IMPORTED, new long[0], new long[0]);
+    }
+
+    @VisibleForTesting
+    void beginImport() throws IOException {
+        final long[] windowStarts = listSegments();
+        final long[] validLengths = new long[windowStarts.length];
+        for (int i = 0; i < windowStarts.length; i++) {
+            validLengths[i] = readSegment(windowStarts[i], Long.MIN_VALUE, Long.MAX_VALUE,
+                    false /* readBuckets */).index.validLength;
+        }
+        writeJournal(JOURNAL_IMPORTING, windowStarts, validLengths);
+    }
+
+    /**
+     * Undo an import interrupted while the journal state was {@link #JOURNAL_IMPORTING}:
+     * segments are truncated to their length before the import, and segments created by the
+     * import are deleted. Clears the journal.
+     */
+    public void rollbackImport() throws IOException {
+        final Journal journal = readJournal();
+        if (journal.state != JOURNAL_IMPORTING) {
+            throw new IllegalStateException("No import to roll back: " + journal.state);
+        }
+        mLastAppendedIndex = null;
+        for (final long windowStart : listSegments()) {
+            final int i = Arrays.binarySearch(journal.windowStarts, windowStart);
+            if (i < 0) {
+                deleteSegment(windowStart);
+                continue;
+            }
+            final File file = getSegmentFile(windowStart);
+            if (file.length() > journal.validLengths[i]) {
+                truncateSegment(file, journal.validLengths[i]);
+            }
+        }
+        clearJournal();
+    }
+
+    /**
+     * Note that the contents of this store are about to be copied to another storage, after
+     * which they will be deleted. The journal state is {@link #JOURNAL_EXPORTING} until
+     * {@link #clearJournal()} or {@link #deleteAll()} is called.
+     */
+    public void beginExport() throws IOException {
+        writeJournal(JOURNAL_EXPORTING, new long[0], new long[0]);
+    }
+
+    /**
+     * Get the state of the migration journal, one of the {@code JOURNAL_*} constants.
+     */
+    public int getJournalState() throws IOException {
+        return readJournal().state;
+    }
+
+    /**
+     * Delete the migration journal, once a migration is complete.
+     */
+    public void clearJournal() {
+        getJournalFile().delete();
+    }
+
+    /**
+     * Remove the given UIDs from all segments, migrating their untagged history to
+     * {@link android.net.TrafficStats#UID_REMOVED}. Only rewrites the segments containing
+     * any of the UIDs.
+     */
+    public void removeUids(@NonNull int[] uids) throws IOException {
+        for (final long windowStart : listSegments()) {
+            final Segment segment = readSegment(windowStart, Long.MIN_VALUE, Long.MAX_VALUE,
+                    true /* readBuckets */);
+            final NetworkStatsCollection collection = toCollection(segment);
+            collection.clearDirty();
+            collection.removeUids(uids);
+            if (collection.isDirty()) {
+                rewriteSegment(windowStart, collection, segment.index.bucketDuration);
+            }
+        }
+    }
+
+    /**
+     * Remove the buckets which contain or are before the cutoff timestamp.
+     */
+    public void removeDataBefore(long cutoffMillis) throws IOException {
+        for (final long windowStart : listSegments()) {
+            final Segment segment = readSegment(windowStart, Long.MIN_VALUE, Long.MAX_VALUE,
+                    true /* readBuckets */);
+            final NetworkStatsCollection collection = toCollection(segment);
+            if (collection.getStartMillis() > cutoffMillis) continue;
+            collection.clearDirty();
+            collection.removeHistoryBefore(cutoffMillis);
+            if (collection.isDirty()) {
+                rewriteSegment(windowStart, collection, segment.index.bucketDuration);
+            }
+        }
+    }
+
+    /**
+     * Delete the segments that ended more than {@code deleteAgeMillis} ago.
+     */
+    public void maybeDeleteExpired(long currentTimeMillis) {
+        final long deleteBefore = currentTimeMillis - mDeleteAgeMillis;
+        for (final long windowStart : listSegments()) {
+            if (windowStart + mRotateAgeMillis < deleteBefore) {
+                deleteSegment(windowStart);
+            }
+        }
+    }
+
+    /**
+     * Compact the oldest segment that is older than {@code compactAgeMillis} and not compacted
+     * yet, if any. Only one segment is rewritten per call, so that compaction can be spread
+     * over several persist passes instead of blocking one of them for long.
+     *
+     * @return whether a segment was rewritten.
+     */
+    public boolean maybeCompactOne(long currentTimeMillis) throws IOException {
+        if (mCompactBucketDuration == 0) return false;
+        final long compactBefore = currentTimeMillis - mCompactAgeMillis;
+        for (final long windowStart : listSegments()) {
+            if (windowStart < mCompactedUntil) continue;
+            final long windowEnd = windowStart + mRotateAgeMillis;
+            if (windowEnd > compactBefore) break;
+            final Segment segment = readSegment(windowStart, Long.MIN_VALUE, Long.MAX_VALUE,
+                    true /* readBuckets */);
+            if (segment.index.bucketDuration >= mCompactBucketDuration) {
+                mCompactedUntil = windowEnd;
+                continue;
+            }
+
+            final NetworkStatsCollection compacted =
+                    new NetworkStatsCollection(mCompactBucketDuration);
+            for (int i = 0; i < segment.histories.size(); i++) {
+                final NetworkStatsHistory history = segment.histories.valueAt(i).build();
+                compacted.recordHistory(segment.histories.keyAt(i),
+                        downsample(history, mCompactBucketDuration));
+            }
+            rewriteSegment(windowStart, compacted, mCompactBucketDuration);
+            // Only skip the segment from now on once it has been replaced, so that it is
+            // compacted again by the next call if reading or rewriting it failed.
+            mCompactedUntil = windowEnd;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add each bucket of the given history whole to the coarser bucket containing its start.
+     * Unlike resampling, this never splits a bucket, so all values including active time are
+     * preserved exactly.
+     */
+    @NonNull
+    private static NetworkStatsHistory downsample(@NonNull NetworkStatsHistory history,
+            long bucketDuration) {
+        final NetworkStatsHistory.Builder builder =
+                new NetworkStatsHistory.Builder(bucketDuration, history.size());
+        NetworkStatsHistory.Entry entry = null;
+        for (int i = 0; i < history.size(); i++) {
+            entry = history.getValues(i, entry);
+            builder.addEntry(new NetworkStatsHistory.Entry(
+                    entry.bucketStart - Math.floorMod(entry.bucketStart, bucketDuration),
+                    entry.activeTime, entry.rxBytes, entry.rxPackets, entry.txBytes,
+                    entry.txPackets, entry.operations));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Delete all segments, then the migration journal.
+     */
+    public void deleteAll() {
+        mCompactedUntil = Long.MIN_VALUE;
+        for (final long windowStart : listSegments()) {
+            deleteSegment(windowStart);
+        }
+        clearJournal();
+    }
+
+    /**
+     * Dump the raw contents of all segments as a zip archive, for debugging.
+     */
+    public void dumpAll(@NonNull OutputStream os) throws IOException {
+        final ZipOutputStream zos = new ZipOutputStream(os);
+        try {
+            for (final long windowStart : listSegments()) {
+                final File file = getSegmentFile(windowStart);
+                zos.putNextEntry(new ZipEntry(file.getName()));
+                Files.copy(file.toPath(), zos);
+                zos.closeEntry();
+            }
+        } finally {
+            zos.finish();
+        }
+    }
+
+    /**
+     * Get the number of segment files, for debugging.
+     */
+    public int getSegmentCount() {
+        return listSegments().length;
+    }
+
+    @VisibleForTesting
+    long getWindowStart(long time) {
+        return time - Math.floorMod(time, mRotateAgeMillis);
+    }
+
+    @NonNull
+    private File getSegmentFile(long windowStart) {
+        return new File(mBasePath, mPrefix + SEGMENT_INFIX + windowStart);
+    }
+
+    /**
+     * Return the window start of all segment files, in ascending order.
+     */
+    @NonNull
+    private long[] listSegments() {
+        final String[] names = mBasePath.list();
+        if (names == null) return new long[0];
+        final String segmentPrefix = mPrefix + SEGMENT_INFIX;
+        final long[] windowStarts = new long[names.length];
+        int count = 0;
+        for (final String name : names) {
+            if (!name.startsWith(segmentPrefix)) continue;
+            try {
+                windowStarts[count] = Long.parseLong(name.substring(segmentPrefix.length()));
+                count++;
+            } catch (NumberFormatException e) {
+                // Temporary file of an interrupted rewrite : ignore.
+            }
+        }
+        final long[] sorted = Arrays.copyOf(windowStarts, count);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    @NonNull
+    private AtomicFile getJournalFile() {
+        return new AtomicFile(new File(mBasePath, mPrefix + JOURNAL_SUFFIX));
+    }
+
+    /**
+     * State of the migration journal, along with the valid length of each segment before an
+     * import, sorted by window start.
+     */
+    private static class Journal {
+        public final int state;
+        public final long[] windowStarts;
+        public final long[] validLengths;
+
+        Journal(int state, @NonNull long[] windowStarts, @NonNull long[] validLengths) {
+            this.state = state;
+            this.windowStarts = windowStarts;
+            this.validLengths = validLengths;
+        }
+    }
+
+    @NonNull
+    private Journal readJournal() throws IOException {
+        final AtomicFile file = getJournalFile();
+        if (!file.exists()) return new Journal(JOURNAL_NONE, new long[0], new long[0]);
+        try (DataInputStream in = new DataInputStream(file.openRead())) {
+            final int magic = in.readInt();
+            if (magic != JOURNAL_MAGIC) {
+                throw new ProtocolException("unexpected journal magic: " + magic);
+            }
+            final int state = in.readInt();
+            final int count = in.readInt();
+            if (count < 0) throw new ProtocolException("unexpected journal size: " + count);
+            final long[] windowStarts = new long[count];
+            final long[] validLengths = new long[count];
+            for (int i = 0; i < count; i++) {
+                windowStarts[i] = in.readLong();
+                validLengths[i] = in.readLong();
+            }
+            return new Journal(state, windowStarts, validLengths);
+        }
+    }
+
+    private void writeJournal(int state, @NonNull long[] windowStarts,
+            @NonNull long[] validLengths) throws IOException {
+        final AtomicFile file = getJournalFile();
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(JOURNAL_MAGIC);
+            out.writeInt(state);
+            out.writeInt(windowStarts.length);
+            for (int i = 0; i < windowStarts.length; i++) {
+                out.writeLong(windowStarts[i]);
+                out.writeLong(validLengths[i]);
+            }
+            out.flush();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            file.failWrite(fos);
+            throw e;
+        }
+    }
+
+    private void deleteSegment(long windowStart) {
+        if (mLastAppendedIndex != null && mLastAppendedIndex.windowStart == windowStart) {
+            mLastAppendedIndex = null;
+        }
+        getSegmentFile(windowStart).delete();
+    }
+
+    /**
+     * Read a segment file by mapping it in memory. Bucket records outside of the given time
+     * range are skipped. If buckets are requested and none of them can be in the time range,
+     * only the header is read and the returned index is incomplete.
+     */
+    @NonNull
+    private Segment readSegment(long windowStart, long start, long end, boolean readBuckets)
+            throws IOException {
+        final Segment segment = new Segment(windowStart, readBuckets);
+        final File file = getSegmentFile(windowStart);
+        if (!file.exists()) return segment;
+
+        final long size;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            size = channel.size();
+            // An incomplete header can only come from a crash while creating the file.
+            if (size < HEADER_SIZE) return segment;
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            final int magic = buffer.getInt();
+            final int version = buffer.getInt();
+            final long bucketDuration = buffer.getLong();
+            if (magic == 0 && version == 0 && bucketDuration == 0) {
+                // A zero-filled header can only come from a crash before the file was synced.
+                Log.w(TAG, "Ignoring zero-filled header in " + file);
+                return segment;
+            }
+            if (magic != FILE_MAGIC) {
+                throw new ProtocolException("unexpected magic: " + magic);
+            }
+            if (version != VERSION_SEGMENT_INIT) {
+                throw new ProtocolException("unexpected version: " + version);
+            }
+            segment.index.bucketDuration = bucketDuration;
+            segment.index.validLength = buffer.position();
+            if (readBuckets && (windowStart > end
+                    || windowStart + mRotateAgeMillis + bucketDuration < start)) {
+                return segment;
+            }
+
+            final ArrayList<NetworkIdentitySet> idents = new ArrayList<>();
+            final ArrayList<Key> keys = new ArrayList<>();
+            final DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+            try {
+                while (buffer.hasRemaining()) {
+                    final byte type = buffer.get();
+                    switch (type) {
+                        case RECORD_IDENT: {
+                            final int identId = buffer.getInt();
+                            if (identId != idents.size()) {
+                                throw new ProtocolException("unexpected ident id: " + identId);
+                            }
+                            final NetworkIdentitySet ident = new NetworkIdentitySet(in);
+                            idents.add(ident);
+                            segment.index.identIds.put(ident, identId);
+                            break;
+                        }
+                        case RECORD_KEY: {
+                            final int keyId = buffer.getInt();
+                            final int identId = buffer.getInt();
+                            if (keyId != keys.size() || identId >= idents.size()) {
+                                throw new ProtocolException("unexpected key id: " + keyId);
+                            }
+                            final Key key = new Key(idents.get(identId), buffer.getInt(),
+                                    buffer.getInt(), buffer.getInt());
+                            keys.add(key);
+                            segment.index.keyIds.put(key, keyId);
+                            break;
+                        }
+                        case RECORD_BUCKET: {
+                            if (buffer.remaining() < Integer.BYTES + BUCKET_VALUES_SIZE) {
+                                throw new BufferUnderflowException();
+                            }
+                            final int keyId = buffer.getInt();
+                            if (keyId >= keys.size()) {
+                                throw new ProtocolException("unexpected bucket key: " + keyId);
+                            }
+                            final int valuesStart = buffer.position();
+                            final long bucketStart = buffer.getLong();
+                            if (readBuckets && bucketStart <= end
+                                    && bucketStart + segment.index.bucketDuration >= start) {
+                                readBucket(segment, keys.get(keyId), bucketStart, buffer);
+                            }
+                            buffer.position(valuesStart + BUCKET_VALUES_SIZE);
+                            break;
+                        }
+                        default:
+                            throw new ProtocolException("unexpected record type: " + type);
+                    }
+                    segment.index.validLength = buffer.position();
+                }
+            } catch (BufferUnderflowException | EOFException | ProtocolException e) {
+                // The last records were only partially written, or not at all if the tail of
+                // the file is zero-filled.
+                Log.w(TAG, "Ignoring invalid records after " + segment.index.validLength
+                        + " in " + file + ": " + e);
+            }
+        }
+        if (segment.index.validLength < size) {
+            truncateSegment(file, segment.index.validLength);
+        }
+        return segment;
+    }
+
+    private static void truncateSegment(@NonNull File file, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            channel.truncate(length);
+        }
+    }
+
+    private static void readBucket(@NonNull Segment segment, @NonNull Key key, long bucketStart,
+            @NonNull ByteBuffer buffer) {
+        final NetworkStatsHistory.Entry entry = new NetworkStatsHistory.Entry(bucketStart,
+                buffer.getLong() /* activeTime */, buffer.getLong() /* rxBytes */,
+                buffer.getLong() /* rxPackets */, buffer.getLong() /* txBytes */,
+                buffer.getLong() /* txPackets */, buffer.getLong() /* operations */);
+        NetworkStatsHistory.Builder builder = segment.histories.get(key);
+        if (builder == null) {
+            builder = new NetworkStatsHistory.Builder(segment.index.bucketDuration, 10);
+            segment.histories.put(key, builder);
+        }
+        builder.addEntry(entry);
+    }
+
+    private static void recordSegment(@NonNull NetworkStatsCollection out,
+            @NonNull Segment segment, long bucketDuration) {
+        for (int i = 0; i < segment.histories.size(); i++) {
+            NetworkStatsHistory history = segment.histories.valueAt(i).build();
+            if (history.getBucketDuration() != bucketDuration) {
+                history = new NetworkStatsHistory(history, bucketDuration);
+            }
+            out.recordHistory(segment.histories.keyAt(i), history);
+        }
+    }
+
+    @NonNull
+    private NetworkStatsCollection toCollection(@NonNull Segment segment) {
+        final long bucketDuration = segment.index.bucketDuration != 0
+                ? segment.index.bucketDuration : mBucketDuration;
+        final NetworkStatsCollection collection = new NetworkStatsCollection(bucketDuration);
+        recordSegment(collection, segment, bucketDuration);
+        return collection;
+    }
+
+    /**
+     * Get the index of the given segment for appending to it, reusing the index of the last
+     * append if the file has not changed since. Segments with a different bucket duration are
+     * resampled first.
+     */
+    @NonNull
+    private SegmentIndex getOrReadIndexForAppend(long windowStart) throws IOException {
+        final SegmentIndex last = mLastAppendedIndex;
+        if (last != null && last.windowStart == windowStart
+                && getSegmentFile(windowStart).length() == last.validLength) {
+            return last;
+        }
+        final Segment segment = readSegment(windowStart, Long.MIN_VALUE, Long.MAX_VALUE,
+                false /* readBuckets */);
+        if (segment.index.validLength == 0) {
+            // A new segment may be created in a window that was already compacted, e.g. when
+            // importing data. Check it again on the next compaction.
+            mCompactedUntil = Math.min(mCompactedUntil, windowStart);
+            segment.index.bucketDuration = mBucketDuration;
+            return segment.index;
+        }
+        if (segment.index.bucketDuration == mBucketDuration || (mCompactBucketDuration != 0
+                && segment.index.bucketDuration == mCompactBucketDuration)) {
+            return segment.index;
+        }
+
+        // The bucket duration changed since this segment was created.
+        final NetworkStatsCollection existing = toCollection(readSegment(windowStart,
+                Long.MIN_VALUE, Long.MAX_VALUE, true /* readBuckets */));
+        final NetworkStatsCollection resampled = new NetworkStatsCollection(mBucketDuration);
+        for (final Map.Entry<Key, NetworkStatsHistory> e : existing.getEntries().entrySet()) {
+            resampled.recordHistory(e.getKey(),
+                    new NetworkStatsHistory(e.getValue(), mBucketDuration));
+        }
+        return rewriteSegment(windowStart, resampled, mBucketDuration);
+    }
+
+    /**
+     * Atomically replace the given segment with the contents of the given collection, whose
+     * histories all have the given bucket duration.
+     *
+     * @return the index of the new segment.
+     */
+    @NonNull
+    private SegmentIndex rewriteSegment(long windowStart,
+            @NonNull NetworkStatsCollection collection, long bucketDuration) throws IOException {
+        final SegmentIndex index = new SegmentIndex(windowStart);
+        index.bucketDuration = bucketDuration;
+        if (mLastAppendedIndex != null && mLastAppendedIndex.windowStart == windowStart) {
+            mLastAppendedIndex = null;
+        }
+        final Map<Key, NetworkStatsHistory> entries = collection.getEntries();
+        if (entries.isEmpty()) {
+            deleteSegment(windowStart);
+            return index;
+        }
+
+        final AtomicFile file = new AtomicFile(getSegmentFile(windowStart));
+        FileOutputStream fos = null;
+        try {
+            fos = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            writeHeader(out, index.bucketDuration);
+            NetworkStatsHistory.Entry entry = null;
+            for (final Map.Entry<Key, NetworkStatsHistory> e : entries.entrySet()) {
+                final NetworkStatsHistory history = e.getValue();
+                for (int i = 0; i < history.size(); i++) {
+                    entry = history.getValues(i, entry);
+                    index.writeBucket(out, e.getKey(), entry);
+                }
+            }
+            out.flush();
+            index.validLength = out.size();
+            file.finishWrite(fos);
+        } catch (IOException e) {
+            file.failWrite(fos);
+            throw e;
+        }
+        return index;
+    }
+
+    private static void writeHeader(@NonNull DataOutputStream out, long bucketDuration)
+            throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeInt(VERSION_SEGMENT_INIT);
+        out.writeLong(bucketDuration);
+    }
+
+    /**
+     * Appends records to a segment file, creating it if needed.
+     */
+    private class SegmentAppender {
+        public final SegmentIndex index;
+        public final DataOutputStream out;
+        private final FileOutputStream mFileStream;
+
+        SegmentAppender(@NonNull SegmentIndex index) throws IOException {
+            this.index = index;
+            mFileStream = new FileOutputStream(getSegmentFile(index.windowStart),
+                    true /* append */);
+            boolean success = false;
+            try {
+                // Drop any record truncated by a previous crash.
+                final FileChannel channel = mFileStream.getChannel();
+                if (channel.size() > index.validLength) channel.truncate(index.validLength);
+                out = new DataOutputStream(new BufferedOutputStream(mFileStream));
+                if (index.validLength == 0) writeHeader(out, index.bucketDuration);
+                success = true;
+            } finally {
+                if (!success) mFileStream.close();
+            }
+        }
+
+        /**
+         * Flush the appended records to disk.
+         */
+        void commit() throws IOException {
+            out.flush();
+            mFileStream.getFD().sync();
+            index.validLength += out.size();
+        }
+
+        void close() {
+            try {
+                mFileStream.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close segment " + index.windowStart, e);
+            }
+        }
+    }
+}
@@ -56,6 +56,7 @@ import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_UID_TAG
 import static android.net.netstats.NetworkStatsDataMigrationUtils.PREFIX_XT;
 import static android.os.Trace.TRACE_TAG_NETWORK;
 import static android.system.OsConstants.ENOENT;
+import static android.system.OsConstants.POLLOUT;
 import static android.system.OsConstants.R_OK;
 import static android.telephony.SubscriptionManager.INVALID_SUBSCRIPTION_ID;
 import static android.text.format.DateUtils.DAY_IN_MILLIS;
@@ -122,6 +123,7 @@ import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
+import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
@@ -135,6 +137,7 @@ import android.service.NetworkInterfaceProto;
 import android.service.NetworkStatsServiceDumpProto;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.system.StructPollfd;
 import android.telephony.PhoneStateListener;
 import android.telephony.SubscriptionPlan;
 import android.text.TextUtils;
@@ -167,6 +170,10 @@ import com.android.net.module.util.Struct.U8;
 import com.android.net.module.util.bpf.CookieTagMapKey;
 import com.android.net.module.util.bpf.CookieTagMapValue;
 
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
@@ -185,9 +192,17 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -212,6 +227,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     // A message for broadcasting ACTION_NETWORK_STATS_UPDATED in handler thread to prevent
     // deadlock.
     private static final int MSG_BROADCAST_NETWORK_STATS_UPDATED = 4;
+    // Perform a periodic poll brought forward by the adaptive poll scheduler.
+    private static final int MSG_PERFORM_EARLY_POLL = 5;
 
     /** Flags to control detail level of poll event. */
     private static final int FLAG_PERSIST_NETWORK = 0x1;
@@ -265,6 +282,23 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     static final String NETSTATS_IMPORT_LEGACY_TARGET_ATTEMPTS =
             "netstats_import_legacy_target_attempts";
     static final int DEFAULT_NETSTATS_IMPORT_LEGACY_TARGET_ATTEMPTS = 1;
+    /**
+     * DeviceConfig flag used to indicate whether persisted data should be stored in append-only
+     * segment files, see {@link NetworkStatsSegmentStore}. Data in the older format is migrated
+     * to segment files when this is enabled, and back when it is disabled.
+     */
+    static final String NETSTATS_STORE_SEGMENT_FILES = "netstats_store_segment_files";
+    /**
+     * DeviceConfig flag used to indicate whether snapshots should be recorded into the dev, xt,
+     * uid and uid tag recorders concurrently. This is read in {@link #systemReady()}.
+     */
+    static final String NETSTATS_PARALLEL_RECORDING = "netstats_parallel_recording";
+    /**
+     * DeviceConfig flag used to indicate whether periodic polls should be skipped when there
+     * was little traffic, and brought forward when there is heavy traffic. See
+     * {@link NetworkStatsPollScheduler}. This is read in {@link #systemReady()}.
+     */
+    static final String NETSTATS_ADAPTIVE_POLLING = "netstats_adaptive_polling";
     static final String NETSTATS_IMPORT_ATTEMPTS_COUNTER_NAME = "import.attempts";
     static final String NETSTATS_IMPORT_SUCCESSES_COUNTER_NAME = "import.successes";
     static final String NETSTATS_IMPORT_FALLBACKS_COUNTER_NAME = "import.fallbacks";
@@ -322,11 +356,23 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public final long bucketDuration;
             public final long rotateAgeMillis;
             public final long deleteAgeMillis;
+            // Age after which persisted history is downsampled to compactBucketDuration, see
+            // NetworkStatsSegmentStore#maybeCompactOne. Disabled when compactBucketDuration is 0.
+            public final long compactAgeMillis;
+            public final long compactBucketDuration;
 
             public Config(long bucketDuration, long rotateAgeMillis, long deleteAgeMillis) {
+                this(bucketDuration, rotateAgeMillis, deleteAgeMillis, 0 /* compactAgeMillis */,
+                        0 /* compactBucketDuration */);
+            }
+
+            public Config(long bucketDuration, long rotateAgeMillis, long deleteAgeMillis,
+                    long compactAgeMillis, long compactBucketDuration) {
                 this.bucketDuration = bucketDuration;
                 this.rotateAgeMillis = rotateAgeMillis;
                 this.deleteAgeMillis = deleteAgeMillis;
+                this.compactAgeMillis = compactAgeMillis;
+                this.compactBucketDuration = compactBucketDuration;
             }
         }
 
@@ -342,8 +388,32 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         long getUidTagPersistBytes(long def);
     }
 
+    /**
+     * Lock serializing polls, so that snapshots are recorded in the order they were taken.
+     * Snapshots are read from the kernel and stats providers, and recorded data is written to
+     * disk, while only holding this lock : {@link #mStatsLock} is only held while recording, so
+     * that queries are not blocked by a poll in progress. When both locks are needed, this one
+     * must be acquired first.
+     */
+    private final Object mPollLock = new Object();
+
     private final Object mStatsLock = new Object();
 
+    // Periodic polls are skipped when less than this was transferred since the last full poll,
+    // and brought forward when more than the heavy threshold was transferred between two polls.
+    private static final long ADAPTIVE_POLL_SKIP_THRESHOLD_BYTES = 128 * KB_IN_BYTES;
+    private static final long ADAPTIVE_POLL_HEAVY_THRESHOLD_BYTES = 16 * MB_IN_BYTES;
+    private static final int ADAPTIVE_POLL_MAX_CONSECUTIVE_SKIPS = 3;
+    // Periodic polls are brought forward to this fraction of the poll interval.
+    private static final int ADAPTIVE_POLL_EARLY_DIVISOR = 4;
+
+    private final NetworkStatsPollScheduler mPollScheduler = new NetworkStatsPollScheduler(
+            ADAPTIVE_POLL_SKIP_THRESHOLD_BYTES, ADAPTIVE_POLL_HEAVY_THRESHOLD_BYTES,
+            ADAPTIVE_POLL_MAX_CONSECUTIVE_SKIPS);
+    // Whether periodic polls go through mPollScheduler. See NETSTATS_ADAPTIVE_POLLING.
+    @GuardedBy("mPollLock")
+    private boolean mAdaptivePolling;
+
     /** Set of currently active ifaces. */
     @GuardedBy("mStatsLock")
     private final ArrayMap<String, NetworkIdentitySet> mActiveIfaces = new ArrayMap<>();
@@ -398,6 +468,48 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     @GuardedBy("mStatsLock")
     private NetworkStatsCollection mXtStatsCached;
 
+    // The recorders are independent, so there is no point in having more threads than recorders.
+    private static final int MAX_RECORDING_THREADS = 4;
+    private static final long RECORDING_THREAD_KEEP_ALIVE_MS = 30 * SECOND_IN_MILLIS;
+
+    /**
+     * Executor recording snapshots into the recorders concurrently, or null if they are recorded
+     * one after another. See {@link #NETSTATS_PARALLEL_RECORDING}.
+     */
+    @GuardedBy("mStatsLock")
+    @Nullable
+    private ExecutorService mRecordingExecutor;
+
+    // Each stream blocks a thread while its pipe is full, so bound both the threads and the
+    // streams waiting for one. A stream whose reader stops reading is abandoned after a timeout.
+    // Callers that cannot get a stream fall back to getting the summary in a binder reply.
+    private static final int MAX_SUMMARY_STREAM_THREADS = 4;
+    private static final int MAX_QUEUED_SUMMARY_STREAMS = 32;
+    private static final long SUMMARY_STREAM_THREAD_KEEP_ALIVE_MS = 30 * SECOND_IN_MILLIS;
+    @VisibleForTesting
+    static final int MAX_SUMMARY_STREAMS_PER_UID = 4;
+    @VisibleForTesting
+    static final long SUMMARY_STREAM_TIMEOUT_MS = 30 * SECOND_IN_MILLIS;
+    // Number of keys whose summary rows are written to a stream per page, i.e. each time
+    // mStatsLock is taken. A page is a few kilobytes at most.
+    @VisibleForTesting
+    static final int SUMMARY_STREAM_PAGE_KEYS = 256;
+    // Writes of at most PIPE_BUF bytes never block once poll(2) reports the pipe as writable.
+    private static final int PIPE_BUF = 4096;
+
+    /** Executor writing streamed summaries to their pipe. */
+    private final ThreadPoolExecutor mSummaryStreamExecutor = makeSummaryStreamExecutor();
+
+    /** Map from UID to the number of summary streams it has open. */
+    @GuardedBy("mOpenSummaryStreamsPerUid")
+    private final SparseIntArray mOpenSummaryStreamsPerUid = new SparseIntArray();
+
+    /**
+     * Copy of {@link #mXtStatsCached} as of the last recorded snapshot, which is read without
+     * holding {@link #mStatsLock}. This is replaced after each recording and never modified.
+     */
+    private volatile NetworkStatsCollection mXtStatsCommitted;
+
     /**
      * Current counter sets for each UID.
      * TODO: maybe remove mActiveUidCounterSet and read UidCouneterSet value from mUidCounterSetMap
@@ -521,6 +633,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     registerGlobalAlert();
                     break;
                 }
+                case MSG_PERFORM_EARLY_POLL: {
+                    performPeriodicPoll(true /* early */);
+                    break;
+                }
                 case MSG_BROADCAST_NETWORK_STATS_UPDATED: {
                     final Intent updatedIntent = new Intent(ACTION_NETWORK_STATS_UPDATED);
                     updatedIntent.setFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY);
@@ -659,6 +775,48 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NETSTATS_STORE_FILES_IN_APEXDATA, true);
         }
 
+        /**
+         * Get the flag of storing persisted data in append-only segment files.
+         * @return whether to store persisted data in segment files.
+         */
+        public boolean getStoreSegmentFiles() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_STORE_SEGMENT_FILES, false);
+        }
+
+        /**
+         * Get the flag of recording snapshots into the recorders concurrently.
+         * @return whether to record snapshots concurrently.
+         */
+        public boolean getParallelRecording() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_PARALLEL_RECORDING, false);
+        }
+
+        /**
+         * Get the flag of skipping or bringing forward periodic polls depending on traffic.
+         * @return whether periodic polls are adaptive.
+         */
+        public boolean getAdaptivePolling() {
+            return DeviceConfigUtils.getDeviceConfigPropertyBoolean(
+                    DeviceConfig.NAMESPACE_TETHERING,
+                    NETSTATS_ADAPTIVE_POLLING, false);
+        }
+
+        /**
+         * Get the total bytes received and transmitted by the device, which is much cheaper than
+         * reading per-UID stats.
+         * @return the total bytes, or {@link NetworkStatsPollScheduler#UNKNOWN_BYTES}.
+         */
+        public long getTotalBytes() {
+            final long rxBytes = nativeGetTotalStat(TrafficStats.TYPE_RX_BYTES);
+            final long txBytes = nativeGetTotalStat(TrafficStats.TYPE_TX_BYTES);
+            if (rxBytes < 0 || txBytes < 0) return NetworkStatsPollScheduler.UNKNOWN_BYTES;
+            return rxBytes + txBytes;
+        }
+
         /**
          * Read legacy persisted network stats from disk.
          */
@@ -804,30 +962,47 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     }
 
     public void systemReady() {
-        synchronized (mStatsLock) {
-            mSystemReady = true;
-
-            // create data recorders along with historical rotators
-            mDevRecorder = buildRecorder(PREFIX_DEV, mSettings.getDevConfig(), false, mStatsDir,
-                    true /* wipeOnError */);
-            mXtRecorder = buildRecorder(PREFIX_XT, mSettings.getXtConfig(), false, mStatsDir,
-                    true /* wipeOnError */);
-            mUidRecorder = buildRecorder(PREFIX_UID, mSettings.getUidConfig(), false, mStatsDir,
-                    true /* wipeOnError */);
-            mUidTagRecorder = buildRecorder(PREFIX_UID_TAG, mSettings.getUidTagConfig(), true,
-                    mStatsDir, true /* wipeOnError */);
-
-            updatePersistThresholdsLocked();
-
-            // upgrade any legacy stats
-            maybeUpgradeLegacyStatsLocked();
-
-            // read historical network stats from disk, since policy service
-            // might need them right away.
-            mXtStatsCached = mXtRecorder.getOrLoadCompleteLocked();
-
-            // bootstrap initial stats to prevent double-counting later
-            bootstrapStatsLocked();
+        synchronized (mPollLock) {
+            synchronized (mStatsLock) {
+                mSystemReady = true;
+
+                // create data recorders along with historical rotators
+                final boolean useSegmentStore = mDeps.getStoreSegmentFiles();
+                mDevRecorder = buildRecorder(PREFIX_DEV, mSettings.getDevConfig(), false,
+                        mStatsDir, true /* wipeOnError */, useSegmentStore);
+                mXtRecorder = buildRecorder(PREFIX_XT, mSettings.getXtConfig(), false, mStatsDir,
+                        true /* wipeOnError */, useSegmentStore);
+                mUidRecorder = buildRecorder(PREFIX_UID, mSettings.getUidConfig(), false,
+                        mStatsDir, true /* wipeOnError */, useSegmentStore);
+                mUidTagRecorder = buildRecorder(PREFIX_UID_TAG, mSettings.getUidTagConfig(), true,
+                        mStatsDir, true /* wipeOnError */, useSegmentStore);
+
+                updatePersistThresholdsLocked();
+                updateRecordingExecutorLocked(mDeps.getParallelRecording());
+                mAdaptivePolling = mDeps.getAdaptivePolling();
+
+                // migrate data persisted in the older format to segment files if enabled, or
+                // back from segment files if disabled
+                maybeMigrateSegmentStoreLocked(mDevRecorder, PREFIX_DEV, mSettings.getDevConfig(),
+                        useSegmentStore);
+                maybeMigrateSegmentStoreLocked(mXtRecorder, PREFIX_XT, mSettings.getXtConfig(),
+                        useSegmentStore);
+                maybeMigrateSegmentStoreLocked(mUidRecorder, PREFIX_UID, mSettings.getUidConfig(),
+                        useSegmentStore);
+                maybeMigrateSegmentStoreLocked(mUidTagRecorder, PREFIX_UID_TAG,
+                        mSettings.getUidTagConfig(), useSegmentStore);
+
+                // upgrade any legacy stats
+                maybeUpgradeLegacyStatsLocked();
+
+                // read historical network stats from disk, since policy service
+                // might need them right away.
+                mXtStatsCached = mXtRecorder.getOrLoadCompleteLocked();
+                commitXtStatsLocked();
+
+                // bootstrap initial stats to prevent double-counting later
+                bootstrapStatsLocked();
+            }
         }
 
         // watch for tethering changes
@@ -881,12 +1056,39 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     private NetworkStatsRecorder buildRecorder(
             String prefix, NetworkStatsSettings.Config config, boolean includeTags,
             File baseDir, boolean wipeOnError) {
+        return buildRecorder(prefix, config, includeTags, baseDir, wipeOnError,
+                false /* useSegmentStore */);
+    }
+
+    private NetworkStatsRecorder buildRecorder(
+            String prefix, NetworkStatsSettings.Config config, boolean includeTags,
+            File baseDir, boolean wipeOnError, boolean useSegmentStore) {
         final DropBoxManager dropBox = (DropBoxManager) mContext.getSystemService(
                 Context.DROPBOX_SERVICE);
+        final NetworkStatsSegmentStore segmentStore = useSegmentStore
+                ? buildSegmentStore(prefix, config, baseDir) : null;
         return new NetworkStatsRecorder(new FileRotator(
                 baseDir, prefix, config.rotateAgeMillis, config.deleteAgeMillis),
-                mNonMonotonicObserver, dropBox, prefix, config.bucketDuration, includeTags,
-                wipeOnError);
+                segmentStore, mNonMonotonicObserver, dropBox, prefix, config.bucketDuration,
+                includeTags, wipeOnError);
+    }
+
+    private NetworkStatsSegmentStore buildSegmentStore(String prefix,
+            NetworkStatsSettings.Config config, File baseDir) {
+        return new NetworkStatsSegmentStore(baseDir, prefix, config.rotateAgeMillis,
+                config.deleteAgeMillis, config.bucketDuration, config.compactAgeMillis,
+                config.compactBucketDuration);
+    }
+
+    @GuardedBy("mStatsLock")
+    private void maybeMigrateSegmentStoreLocked(NetworkStatsRecorder recorder, String prefix,
+            NetworkStatsSettings.Config config, boolean useSegmentStore) {
+        if (useSegmentStore) {
+            recorder.maybeMigrateToSegmentStoreLocked();
+        } else {
+            recorder.maybeMigrateFromSegmentStoreLocked(
+                    buildSegmentStore(prefix, config, mStatsDir));
+        }
     }
 
     @GuardedBy("mStatsLock")
@@ -912,6 +1114,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         mUidRecorder.forcePersistLocked(currentTime);
         mUidTagRecorder.forcePersistLocked(currentTime);
 
+        updateRecordingExecutorLocked(false /* parallelRecording */);
+
         mSystemReady = false;
     }
 
@@ -1378,18 +1582,29 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             private NetworkStatsCollection mUidTagComplete;
 
             private NetworkStatsCollection getUidComplete() {
+                synchronized (mStatsLock) {
+                    if (mUidComplete != null) return mUidComplete;
+                }
+                // Load without holding mStatsLock, so that other queries are not blocked
+                final NetworkStatsCollection complete = mUidRecorder.getOrLoadComplete(mStatsLock);
                 synchronized (mStatsLock) {
                     if (mUidComplete == null) {
-                        mUidComplete = mUidRecorder.getOrLoadCompleteLocked();
+                        mUidComplete = complete;
                     }
                     return mUidComplete;
                 }
             }
 
             private NetworkStatsCollection getUidTagComplete() {
+                synchronized (mStatsLock) {
+                    if (mUidTagComplete != null) return mUidTagComplete;
+                }
+                // Load without holding mStatsLock, so that other queries are not blocked
+                final NetworkStatsCollection complete =
+                        mUidTagRecorder.getOrLoadComplete(mStatsLock);
                 synchronized (mStatsLock) {
                     if (mUidTagComplete == null) {
-                        mUidTagComplete = mUidTagRecorder.getOrLoadCompleteLocked();
+                        mUidTagComplete = complete;
                     }
                     return mUidTagComplete;
                 }
@@ -1465,6 +1680,26 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            @Override
+            public ParcelFileDescriptor openSummaryStreamForAllUid(
+                    NetworkTemplate template, long start, long end, boolean includeTags) {
+                enforceTemplatePermissions(template, callingPackage);
+                if (includeTags) {
+                    return openSummaryStream(template, start, end, mAccessLevel, mCallingUid,
+                            getUidComplete(), getUidTagComplete());
+                }
+                return openSummaryStream(template, start, end, mAccessLevel, mCallingUid,
+                        getUidComplete());
+            }
+
+            @Override
+            public ParcelFileDescriptor openTaggedSummaryStreamForAllUid(
+                    NetworkTemplate template, long start, long end) {
+                enforceTemplatePermissions(template, callingPackage);
+                return openSummaryStream(template, start, end, mAccessLevel, mCallingUid,
+                        getUidTagComplete());
+            }
+
             @Override
             public NetworkStatsHistory getHistoryForUid(
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
@@ -1507,6 +1742,136 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         };
     }
 
+    private static ThreadPoolExecutor makeSummaryStreamExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_SUMMARY_STREAM_THREADS,
+                MAX_SUMMARY_STREAM_THREADS, SUMMARY_STREAM_THREAD_KEEP_ALIVE_MS,
+                TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(MAX_QUEUED_SUMMARY_STREAMS),
+                (r) -> new Thread(r, TAG + ".stream"));
+        // Streams are rare, so don't keep idle threads around.
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Stream the summaries of the passed collections to a new pipe, and return its read end.
+     *
+     * The summary rows are written to the pipe by {@link #mSummaryStreamExecutor} page by page,
+     * each page being computed under {@link #mStatsLock}, so that neither the lock nor the whole
+     * summary are held while the reader reads. The writer stops when the reader closes the pipe,
+     * e.g. because it died, or does not read a page within {@link #SUMMARY_STREAM_TIMEOUT_MS}.
+     *
+     * @return the read end of the pipe, or null if the caller has too many streams open or too
+     *         many streams are waiting to be written, in which case the caller should get the
+     *         summary in a binder reply instead.
+     */
+    @Nullable
+    private ParcelFileDescriptor openSummaryStream(@NonNull NetworkTemplate template, long start,
+            long end, @NetworkStatsAccess.Level int accessLevel, int callingUid,
+            @NonNull NetworkStatsCollection... collections) {
+        synchronized (mOpenSummaryStreamsPerUid) {
+            final int streams = mOpenSummaryStreamsPerUid.get(callingUid, 0);
+            if (streams >= MAX_SUMMARY_STREAMS_PER_UID) return null;
+            mOpenSummaryStreamsPerUid.put(callingUid, streams + 1);
+        }
+        boolean started = false;
+        try {
+            final ParcelFileDescriptor[] pipe;
+            try {
+                pipe = ParcelFileDescriptor.createPipe();
+            } catch (IOException e) {
+                Log.w(TAG, "Cannot create pipe to stream stats: " + e);
+                return null;
+            }
+            try {
+                mSummaryStreamExecutor.execute(() -> {
+                    try {
+                        writeSummaryStream(pipe[1].getFileDescriptor(), template, start, end,
+                                accessLevel, callingUid, collections);
+                    } catch (ErrnoException | IOException | RuntimeException e) {
+                        // The reader sees the missing end of the stream and fails the query.
+                        Log.w(TAG, "Failed to stream stats summary: " + e);
+                    } finally {
+                        // Release before closing, so the stream no longer counts towards the
+                        // limit once the reader sees its end.
+                        releaseSummaryStream(callingUid);
+                        IoUtils.closeQuietly(pipe[1]);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                IoUtils.closeQuietly(pipe[0]);
+                IoUtils.closeQuietly(pipe[1]);
+                return null;
+            }
+            started = true;
+            return pipe[0];
+        } finally {
+            if (!started) releaseSummaryStream(callingUid);
+        }
+    }
+
+    private void releaseSummaryStream(int uid) {
+        synchronized (mOpenSummaryStreamsPerUid) {
+            final int streams = mOpenSummaryStreamsPerUid.get(uid, 0) - 1;
+            if (streams > 0) {
+                mOpenSummaryStreamsPerUid.put(uid, streams);
+            } else {
+                mOpenSummaryStreamsPerUid.delete(uid);
+            }
+        }
+    }
+
+    /**
+     * Write the summaries of the passed collections to a pipe, one page of at most
+     * {@link #SUMMARY_STREAM_PAGE_KEYS} keys at a time.
+     */
+    private void writeSummaryStream(@NonNull FileDescriptor fd,
+            @NonNull NetworkTemplate template, long start, long end,
+            @NetworkStatsAccess.Level int accessLevel, int callingUid,
+            @NonNull NetworkStatsCollection... collections)
+            throws ErrnoException, IOException {
+        final ByteArrayOutputStream page = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(page);
+        for (final NetworkStatsCollection collection : collections) {
+            // The collections are updated by recordings, which hold mStatsLock.
+            final NetworkStatsCollection.SummaryCursor cursor;
+            synchronized (mStatsLock) {
+                cursor = collection.openSummaryCursor(template, start, end, accessLevel,
+                        callingUid);
+            }
+            while (cursor.hasNext()) {
+                synchronized (mStatsLock) {
+                    cursor.writePage(out, SUMMARY_STREAM_PAGE_KEYS);
+                }
+                writeToPipe(fd, page);
+            }
+        }
+        NetworkStatsCollection.writeSummaryEnd(out);
+        writeToPipe(fd, page);
+    }
+
+    /**
+     * Write the contents of the passed buffer to a pipe and reset it, giving up if the reader
+     * does not read them in time.
+     */
+    private static void writeToPipe(@NonNull FileDescriptor fd,
+            @NonNull ByteArrayOutputStream buffer) throws ErrnoException, IOException {
+        final byte[] bytes = buffer.toByteArray();
+        buffer.reset();
+        final long deadline = SystemClock.elapsedRealtime() + SUMMARY_STREAM_TIMEOUT_MS;
+        final StructPollfd pollFd = new StructPollfd();
+        pollFd.fd = fd;
+        pollFd.events = (short) POLLOUT;
+        final StructPollfd[] pollFds = new StructPollfd[] { pollFd };
+        int offset = 0;
+        while (offset < bytes.length) {
+            final long remaining = deadline - SystemClock.elapsedRealtime();
+            if (remaining <= 0 || Os.poll(pollFds, (int) remaining) == 0) {
+                throw new IOException("Timed out waiting for the reader");
+            }
+            offset += Os.write(fd, bytes, offset, Math.min(PIPE_BUF, bytes.length - offset));
+        }
+    }
+
     private void enforceTemplatePermissions(@NonNull NetworkTemplate template,
             @NonNull String callingPackage) {
         // For a template with wifi network keys, it is possible for a malicious
@@ -1585,10 +1950,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         // We've been using pure XT stats long enough that we no longer need to
         // splice DEV and XT together.
         final SubscriptionPlan augmentPlan = resolveSubscriptionPlan(template, flags);
-        synchronized (mStatsLock) {
-            return mXtStatsCached.getHistory(template, augmentPlan,
-                    UID_ALL, SET_ALL, TAG_NONE, fields, start, end, accessLevel, callingUid);
-        }
+        // Read the last committed copy so that this doesn't wait for a poll in progress.
+        return mXtStatsCommitted.getHistory(template, augmentPlan,
+                UID_ALL, SET_ALL, TAG_NONE, fields, start, end, accessLevel, callingUid);
     }
 
     private long getNetworkTotalBytes(NetworkTemplate template, long start, long end) {
@@ -1602,10 +1966,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     private NetworkStats getNetworkUidBytes(NetworkTemplate template, long start, long end) {
         assertSystemReady();
 
-        final NetworkStatsCollection uidComplete;
-        synchronized (mStatsLock) {
-            uidComplete = mUidRecorder.getOrLoadCompleteLocked();
-        }
+        final NetworkStatsCollection uidComplete = mUidRecorder.getOrLoadComplete(mStatsLock);
         return uidComplete.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
                 android.os.Process.SYSTEM_UID);
     }
@@ -1796,15 +2157,23 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
         // update and persist if beyond new thresholds
         final long currentTime = mClock.millis();
-        synchronized (mStatsLock) {
-            if (!mSystemReady) return;
+        synchronized (mPollLock) {
+            final NetworkStatsRecorder[] recorders;
+            synchronized (mStatsLock) {
+                if (!mSystemReady) return;
 
-            updatePersistThresholdsLocked();
+                updatePersistThresholdsLocked();
 
-            mDevRecorder.maybePersistLocked(currentTime);
-            mXtRecorder.maybePersistLocked(currentTime);
-            mUidRecorder.maybePersistLocked(currentTime);
-            mUidTagRecorder.maybePersistLocked(currentTime);
+                recorders = new NetworkStatsRecorder[] {
+                        mDevRecorder, mXtRecorder, mUidRecorder, mUidTagRecorder};
+                for (final NetworkStatsRecorder recorder : recorders) {
+                    recorder.detachPendingLocked(false /* force */);
+                }
+            }
+            // persist outside of mStatsLock, like performPollLocked
+            for (final NetworkStatsRecorder recorder : recorders) {
+                recorder.persistDetached(currentTime);
+            }
         }
 
         if (oldGlobalAlertBytes != mGlobalAlertBytes) {
@@ -1940,7 +2309,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         public void onReceive(Context context, Intent intent) {
             // on background handler thread, and verified UPDATE_DEVICE_STATS
             // permission above.
-            performPoll(FLAG_PERSIST_ALL);
+            performPeriodicPoll(false /* early */);
 
             // verify that we're watching global alert
             registerGlobalAlert();
@@ -1956,7 +2325,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             final int uid = intent.getIntExtra(EXTRA_UID, -1);
             if (uid == -1) return;
 
-            synchronized (mStatsLock) {
+            synchronized (mPollLock) {
                 mWakeLock.acquire();
                 try {
                     removeUidsLocked(uid);
@@ -1976,7 +2345,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             final UserHandle userHandle = intent.getParcelableExtra(Intent.EXTRA_USER);
             if (userHandle == null) return;
 
-            synchronized (mStatsLock) {
+            synchronized (mPollLock) {
                 mWakeLock.acquire();
                 try {
                     removeUserLocked(userHandle);
@@ -1991,8 +2360,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         @Override
         public void onReceive(Context context, Intent intent) {
             // SHUTDOWN is protected broadcast.
-            synchronized (mStatsLock) {
-                shutdownLocked();
+            synchronized (mPollLock) {
+                synchronized (mStatsLock) {
+                    shutdownLocked();
+                }
             }
         }
     };
@@ -2012,11 +2383,10 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             Network[] defaultNetworks,
             NetworkStateSnapshot[] snapshots,
             String activeIface) {
-        synchronized (mStatsLock) {
+        synchronized (mPollLock) {
             mWakeLock.acquire();
             try {
-                mActiveIface = activeIface;
-                handleNotifyNetworkStatusLocked(defaultNetworks, snapshots);
+                handleNotifyNetworkStatusLocked(defaultNetworks, snapshots, activeIface);
             } finally {
                 mWakeLock.release();
             }
@@ -2024,13 +2394,14 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     }
 
     /**
-     * Inspect all current {@link NetworkStateSnapshot}s to derive mapping from {@code iface} to
-     * {@link NetworkStatsHistory}. When multiple networks are active on a single {@code iface},
-     * they are combined under a single {@link NetworkIdentitySet}.
+     * Poll and then update the mapping from {@code iface} to {@link NetworkStatsHistory}, see
+     * {@link #updateActiveIfacesLocked(Network[], NetworkStateSnapshot[])}. Only takes
+     * {@link #mStatsLock} to record and update the mapping, so that queries are not blocked
+     * while persisting.
      */
-    @GuardedBy("mStatsLock")
+    @GuardedBy("mPollLock")
     private void handleNotifyNetworkStatusLocked(@NonNull Network[] defaultNetworks,
-            @NonNull NetworkStateSnapshot[] snapshots) {
+            @NonNull NetworkStateSnapshot[] snapshots, @Nullable String activeIface) {
         if (!mSystemReady) return;
         if (LOGV) Log.v(TAG, "handleNotifyNetworkStatusLocked()");
 
@@ -2042,6 +2413,20 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         // will be persisted during next alarm poll event.
         performPollLocked(FLAG_PERSIST_NETWORK);
 
+        synchronized (mStatsLock) {
+            mActiveIface = activeIface;
+            updateActiveIfacesLocked(defaultNetworks, snapshots);
+        }
+    }
+
+    /**
+     * Inspect all current {@link NetworkStateSnapshot}s to derive mapping from {@code iface} to
+     * {@link NetworkStatsHistory}. When multiple networks are active on a single {@code iface},
+     * they are combined under a single {@link NetworkIdentitySet}.
+     */
+    @GuardedBy("mStatsLock")
+    private void updateActiveIfacesLocked(@NonNull Network[] defaultNetworks,
+            @NonNull NetworkStateSnapshot[] snapshots) {
         // Rebuild active interfaces based on connected networks
         mActiveIfaces.clear();
         mActiveUidIfaces.clear();
@@ -2194,10 +2579,28 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         return ident;
     }
 
-    @GuardedBy("mStatsLock")
-    private void recordSnapshotLocked(long currentTime) throws RemoteException {
-        // snapshot and record current counters; read UID stats first to
-        // avoid over counting dev stats.
+    /** Counters read by a single poll, to be recorded by {@link #recordSnapshotLocked}. */
+    private static class PollSnapshot {
+        @NonNull public final NetworkStats uidSnapshot;
+        @NonNull public final NetworkStats xtSnapshot;
+        @NonNull public final NetworkStats devSnapshot;
+
+        PollSnapshot(@NonNull NetworkStats uidSnapshot, @NonNull NetworkStats xtSnapshot,
+                @NonNull NetworkStats devSnapshot) {
+            this.uidSnapshot = uidSnapshot;
+            this.xtSnapshot = xtSnapshot;
+            this.devSnapshot = devSnapshot;
+        }
+    }
+
+    /**
+     * Read current counters. This does not need {@link #mStatsLock}, but must be called with
+     * {@link #mPollLock} held until the returned snapshot is recorded, so that snapshots are
+     * recorded in the order they were taken.
+     */
+    @GuardedBy("mPollLock")
+    private PollSnapshot takeSnapshotLocked() throws RemoteException {
+        // snapshot current counters; read UID stats first to avoid over counting dev stats.
         Trace.traceBegin(TRACE_TAG_NETWORK, "snapshotUid");
         final NetworkStats uidSnapshot = getNetworkStatsUidDetail(INTERFACES_ALL);
         Trace.traceEnd(TRACE_TAG_NETWORK);
@@ -2216,22 +2619,36 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         xtSnapshot.combineAllValues(providersnapshot);
         devSnapshot.combineAllValues(providersnapshot);
 
-        // For xt/dev, we pass a null VPN array because usage is aggregated by UID, so VPN traffic
-        // can't be reattributed to responsible apps.
-        Trace.traceBegin(TRACE_TAG_NETWORK, "recordDev");
-        mDevRecorder.recordSnapshotLocked(devSnapshot, mActiveIfaces, currentTime);
-        Trace.traceEnd(TRACE_TAG_NETWORK);
-        Trace.traceBegin(TRACE_TAG_NETWORK, "recordXt");
-        mXtRecorder.recordSnapshotLocked(xtSnapshot, mActiveIfaces, currentTime);
-        Trace.traceEnd(TRACE_TAG_NETWORK);
+        return new PollSnapshot(uidSnapshot, xtSnapshot, devSnapshot);
+    }
 
-        // For per-UID stats, pass the VPN info so VPN traffic is reattributed to responsible apps.
-        Trace.traceBegin(TRACE_TAG_NETWORK, "recordUid");
-        mUidRecorder.recordSnapshotLocked(uidSnapshot, mActiveUidIfaces, currentTime);
-        Trace.traceEnd(TRACE_TAG_NETWORK);
-        Trace.traceBegin(TRACE_TAG_NETWORK, "recordUidTag");
-        mUidTagRecorder.recordSnapshotLocked(uidSnapshot, mActiveUidIfaces, currentTime);
-        Trace.traceEnd(TRACE_TAG_NETWORK);
+    @GuardedBy("mStatsLock")
+    private void recordSnapshotLocked(@NonNull PollSnapshot snapshot, long currentTime) {
+        final NetworkStats uidSnapshot = snapshot.uidSnapshot;
+        final NetworkStats xtSnapshot = snapshot.xtSnapshot;
+        final NetworkStats devSnapshot = snapshot.devSnapshot;
+
+        final Runnable[] recordTasks = new Runnable[] {
+                // For xt/dev, we pass a null VPN array because usage is aggregated by UID, so VPN
+                // traffic can't be reattributed to responsible apps.
+                makeRecordTask("recordDev", mDevRecorder, devSnapshot, mActiveIfaces,
+                        currentTime),
+                makeRecordTask("recordXt", mXtRecorder, xtSnapshot, mActiveIfaces, currentTime),
+                // For per-UID stats, pass the VPN info so VPN traffic is reattributed to
+                // responsible apps.
+                makeRecordTask("recordUid", mUidRecorder, uidSnapshot, mActiveUidIfaces,
+                        currentTime),
+                makeRecordTask("recordUidTag", mUidTagRecorder, uidSnapshot, mActiveUidIfaces,
+                        currentTime)};
+        if (mRecordingExecutor != null) {
+            runRecordTasksInParallelLocked(recordTasks);
+        } else {
+            for (final Runnable task : recordTasks) {
+                task.run();
+            }
+        }
+
+        commitXtStatsLocked();
 
         // We need to make copies of member fields that are sent to the observer to avoid
         // a race condition between the service handler thread and the observer's
@@ -2239,6 +2656,86 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 new ArrayMap<>(mActiveUidIfaces), currentTime);
     }
 
+    /**
+     * Make a task recording the passed snapshot into a recorder. Each recorder only depends on its
+     * own state and on the passed arguments, which are not modified, so the tasks for different
+     * recorders can run concurrently and give the same results in any order.
+     */
+    private static Runnable makeRecordTask(@NonNull String traceName,
+            @NonNull NetworkStatsRecorder recorder, @NonNull NetworkStats snapshot,
+            @NonNull Map<String, NetworkIdentitySet> ifaceIdent, long currentTime) {
+        return () -> {
+            Trace.traceBegin(TRACE_TAG_NETWORK, traceName);
+            try {
+                recorder.recordSnapshotLocked(snapshot, ifaceIdent, currentTime);
+            } finally {
+                Trace.traceEnd(TRACE_TAG_NETWORK);
+            }
+        };
+    }
+
+    /**
+     * Run the passed record tasks on {@link #mRecordingExecutor}, and wait until all of them
+     * have completed. Callers keep holding {@link #mStatsLock} while the tasks run, so that
+     * the recorders are not accessed by anything else.
+     */
+    @GuardedBy("mStatsLock")
+    private void runRecordTasksInParallelLocked(@NonNull Runnable[] tasks) {
+        Trace.traceBegin(TRACE_TAG_NETWORK, "recordParallel");
+        final ArrayList<Callable<Object>> callables = new ArrayList<>(tasks.length);
+        for (final Runnable task : tasks) {
+            callables.add(Executors.callable(task));
+        }
+        try {
+            // invokeAll waits for all tasks to complete, even if some of them fail. Results are
+            // checked in a fixed order, so the same exception is thrown whatever the timing.
+            for (final Future<Object> future : mRecordingExecutor.invokeAll(callables)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            // The tasks are cancelled by invokeAll, so some recorders may have missed this
+            // snapshot. The next one will be recorded as usual.
+            Thread.currentThread().interrupt();
+            Log.wtf(TAG, "Interrupted while recording network stats", e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        } finally {
+            Trace.traceEnd(TRACE_TAG_NETWORK);
+        }
+    }
+
+    @GuardedBy("mStatsLock")
+    private void updateRecordingExecutorLocked(boolean parallelRecording) {
+        if (parallelRecording == (mRecordingExecutor != null)) return;
+        if (!parallelRecording) {
+            mRecordingExecutor.shutdown();
+            mRecordingExecutor = null;
+            return;
+        }
+        final int threads = Math.min(MAX_RECORDING_THREADS,
+                Runtime.getRuntime().availableProcessors());
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                RECORDING_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+                (r) -> new Thread(r, TAG + ".record"));
+        // Polls are usually far apart, so don't keep idle threads around.
+        executor.allowCoreThreadTimeOut(true);
+        mRecordingExecutor = executor;
+    }
+
+    /**
+     * Publish a copy of {@link #mXtStatsCached} for readers that don't take {@link #mStatsLock}.
+     */
+    @GuardedBy("mStatsLock")
+    private void commitXtStatsLocked() {
+        final NetworkStatsCollection committed =
+                new NetworkStatsCollection(mXtRecorder.getBucketDuration());
+        committed.recordCollection(mXtStatsCached);
+        mXtStatsCommitted = committed;
+    }
+
     /**
      * Bootstrap initial stats snapshot, usually during {@link #systemReady()}
      * so we have baseline values without double-counting.
@@ -2248,7 +2745,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         final long currentTime = mClock.millis();
 
         try {
-            recordSnapshotLocked(currentTime);
+            recordSnapshotLocked(takeSnapshotLocked(), currentTime);
         } catch (IllegalStateException e) {
             Log.w(TAG, "problem reading network stats: " + e);
         } catch (RemoteException e) {
@@ -2257,7 +2754,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     }
 
     private void performPoll(int flags) {
-        synchronized (mStatsLock) {
+        synchronized (mPollLock) {
             mWakeLock.acquire();
 
             try {
@@ -2268,11 +2765,40 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         }
     }
 
+    /**
+     * Poll triggered by the poll alarm, or brought forward by {@link #mPollScheduler}. Unlike
+     * other polls, this is skipped when there was little traffic since the last poll if
+     * {@link #NETSTATS_ADAPTIVE_POLLING} is enabled.
+     */
+    private void performPeriodicPoll(boolean early) {
+        synchronized (mPollLock) {
+            if (!mSystemReady) return;
+            if (mAdaptivePolling && !mPollScheduler.shouldPoll(mDeps.getTotalBytes())) {
+                if (LOGV) Log.v(TAG, "skipping periodic poll, little traffic since last poll");
+                return;
+            }
+            if (early) mPollScheduler.noteEarlyPoll();
+            performPoll(FLAG_PERSIST_ALL);
+
+            // Keep polling more often as long as traffic is heavy. A poll brought forward is
+            // skipped like any periodic poll once traffic drops.
+            mHandler.removeMessages(MSG_PERFORM_EARLY_POLL);
+            if (mAdaptivePolling && mPollScheduler.isTrafficHeavy()) {
+                mHandler.sendEmptyMessageDelayed(MSG_PERFORM_EARLY_POLL,
+                        Math.max(POLL_RATE_LIMIT_MS,
+                                mSettings.getPollInterval() / ADAPTIVE_POLL_EARLY_DIVISOR));
+            }
+        }
+    }
+
     /**
      * Periodic poll operation, reading current statistics and recording into
      * {@link NetworkStatsHistory}.
+     *
+     * Only {@link #mPollLock} needs to be held by callers. {@link #mStatsLock} is only taken while
+     * recording, so that queries don't wait for stats providers or for disk writes.
      */
-    @GuardedBy("mStatsLock")
+    @GuardedBy("mPollLock")
     private void performPollLocked(int flags) {
         if (!mSystemReady) return;
         if (LOGV) Log.v(TAG, "performPollLocked(flags=0x" + Integer.toHexString(flags) + ")");
@@ -2282,13 +2808,18 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         final boolean persistUid = (flags & FLAG_PERSIST_UID) != 0;
         final boolean persistForce = (flags & FLAG_PERSIST_FORCE) != 0;
 
+        final long pollStartRealtime = SystemClock.elapsedRealtime();
+        final long totalBytes = mAdaptivePolling
+                ? mDeps.getTotalBytes() : NetworkStatsPollScheduler.UNKNOWN_BYTES;
+
         performPollFromProvidersLocked();
 
         // TODO: consider marking "untrusted" times in historical stats
         final long currentTime = mClock.millis();
 
+        final PollSnapshot snapshot;
         try {
-            recordSnapshotLocked(currentTime);
+            snapshot = takeSnapshotLocked();
         } catch (IllegalStateException e) {
             Log.wtf(TAG, "problem reading network stats", e);
             return;
@@ -2297,29 +2828,38 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             return;
         }
 
-        // persist any pending data depending on requested flags
-        Trace.traceBegin(TRACE_TAG_NETWORK, "[persisting]");
-        if (persistForce) {
-            mDevRecorder.forcePersistLocked(currentTime);
-            mXtRecorder.forcePersistLocked(currentTime);
-            mUidRecorder.forcePersistLocked(currentTime);
-            mUidTagRecorder.forcePersistLocked(currentTime);
-        } else {
-            if (persistNetwork) {
-                mDevRecorder.maybePersistLocked(currentTime);
-                mXtRecorder.maybePersistLocked(currentTime);
+        final ArrayList<NetworkStatsRecorder> toPersist = new ArrayList<>();
+        synchronized (mStatsLock) {
+            recordSnapshotLocked(snapshot, currentTime);
+
+            // detach any pending data to persist depending on requested flags
+            if (persistForce || persistNetwork) {
+                toPersist.add(mDevRecorder);
+                toPersist.add(mXtRecorder);
             }
-            if (persistUid) {
-                mUidRecorder.maybePersistLocked(currentTime);
-                mUidTagRecorder.maybePersistLocked(currentTime);
+            if (persistForce || persistUid) {
+                toPersist.add(mUidRecorder);
+                toPersist.add(mUidTagRecorder);
+            }
+            for (final NetworkStatsRecorder recorder : toPersist) {
+                recorder.detachPendingLocked(persistForce);
             }
         }
+
+        // persist outside of mStatsLock, so that queries are not blocked by disk writes
+        Trace.traceBegin(TRACE_TAG_NETWORK, "[persisting]");
+        for (final NetworkStatsRecorder recorder : toPersist) {
+            recorder.persistDetached(currentTime);
+        }
         Trace.traceEnd(TRACE_TAG_NETWORK);
 
         if (mSettings.getSampleEnabled()) {
             // sample stats after each full poll
-            performSampleLocked();
+            synchronized (mStatsLock) {
+                performSampleLocked();
+            }
         }
+        mPollScheduler.notePoll(totalBytes, SystemClock.elapsedRealtime() - pollStartRealtime);
 
         // finally, dispatch updated event to any listeners
         mHandler.sendMessage(mHandler.obtainMessage(MSG_BROADCAST_NETWORK_STATS_UPDATED));
@@ -2327,7 +2867,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         Trace.traceEnd(TRACE_TAG_NETWORK);
     }
 
-    @GuardedBy("mStatsLock")
+    @GuardedBy("mPollLock")
     private void performPollFromProvidersLocked() {
         // Request asynchronous stats update from all providers for next poll. And wait a bit of
         // time to allow providers report-in given that normally binder call should be fast. Note
@@ -2456,17 +2996,22 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     }
 
     /**
-     * Clean up {@link #mUidRecorder} after UID is removed.
+     * Clean up {@link #mUidRecorder} after UID is removed. Persisted data is rewritten without
+     * holding {@link #mStatsLock}, so that queries are not blocked meanwhile.
      */
-    @GuardedBy("mStatsLock")
+    @GuardedBy("mPollLock")
     private void removeUidsLocked(int... uids) {
         if (LOGV) Log.v(TAG, "removeUidsLocked() for UIDs " + Arrays.toString(uids));
 
         // Perform one last poll before removing
         performPollLocked(FLAG_PERSIST_ALL);
 
-        mUidRecorder.removeUidsLocked(uids);
-        mUidTagRecorder.removeUidsLocked(uids);
+        mUidRecorder.removePersistedUids(uids);
+        mUidTagRecorder.removePersistedUids(uids);
+        synchronized (mStatsLock) {
+            mUidRecorder.removeUidsFromMemoryLocked(uids);
+            mUidTagRecorder.removeUidsFromMemoryLocked(uids);
+        }
 
         // Clear kernel stats associated with UID
         for (int uid : uids) {
@@ -2480,7 +3025,7 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
     /**
      * Clean up {@link #mUidRecorder} after user is removed.
      */
-    @GuardedBy("mStatsLock")
+    @GuardedBy("mPollLock")
     private void removeUserLocked(@NonNull UserHandle userHandle) {
         if (LOGV) Log.v(TAG, "removeUserLocked() for UserHandle=" + userHandle);
 
@@ -2536,40 +3081,55 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         final boolean includeUid = argSet.contains("--uid") || argSet.contains("detail");
         final boolean includeTag = argSet.contains("--tag") || argSet.contains("detail");
 
-        final IndentingPrintWriter pw = new IndentingPrintWriter(rawWriter, "  ");
+        final boolean proto = args.length > 0 && "--proto".equals(args[0]);
 
-        synchronized (mStatsLock) {
-            if (args.length > 0 && "--proto".equals(args[0])) {
-                // In this case ignore all other arguments.
-                dumpProtoLocked(fd);
-                return;
-            }
+        final IndentingPrintWriter pw = new IndentingPrintWriter(rawWriter, "  ");
 
-            if (poll) {
+        // In the proto case ignore all other arguments.
+        if (poll && !proto) {
+            synchronized (mPollLock) {
                 performPollLocked(FLAG_PERSIST_ALL | FLAG_PERSIST_FORCE);
-                pw.println("Forced poll");
-                return;
             }
+            pw.println("Forced poll");
+            return;
+        }
 
-            if (checkin) {
-                final long end = System.currentTimeMillis();
-                final long start = end - duration;
+        // Checkin only reads recorders, which load history without holding mStatsLock.
+        if (checkin && !proto) {
+            final long end = System.currentTimeMillis();
+            final long start = end - duration;
 
-                pw.print("v1,");
-                pw.print(start / SECOND_IN_MILLIS); pw.print(',');
-                pw.print(end / SECOND_IN_MILLIS); pw.println();
+            pw.print("v1,");
+            pw.print(start / SECOND_IN_MILLIS); pw.print(',');
+            pw.print(end / SECOND_IN_MILLIS); pw.println();
 
-                pw.println("xt");
-                mXtRecorder.dumpCheckin(rawWriter, start, end);
+            pw.println("xt");
+            mXtRecorder.dumpCheckin(mStatsLock, rawWriter, start, end);
 
-                if (includeUid) {
-                    pw.println("uid");
-                    mUidRecorder.dumpCheckin(rawWriter, start, end);
-                }
-                if (includeTag) {
-                    pw.println("tag");
-                    mUidTagRecorder.dumpCheckin(rawWriter, start, end);
-                }
+            if (includeUid) {
+                pw.println("uid");
+                mUidRecorder.dumpCheckin(mStatsLock, rawWriter, start, end);
+            }
+            if (includeTag) {
+                pw.println("tag");
+                mUidTagRecorder.dumpCheckin(mStatsLock, rawWriter, start, end);
+            }
+            return;
+        }
+
+        // Load complete history before taking mStatsLock, so that queries are not blocked while
+        // reading from disk. Recorders only keep weak references, hold them until done.
+        final ArrayList<NetworkStatsCollection> loaded = new ArrayList<>();
+        if (proto || fullHistory) {
+            for (final NetworkStatsRecorder recorder : new NetworkStatsRecorder[] {
+                    mDevRecorder, mXtRecorder, mUidRecorder, mUidTagRecorder}) {
+                loaded.add(recorder.getOrLoadComplete(mStatsLock));
+            }
+        }
+
+        synchronized (mStatsLock) {
+            if (proto) {
+                dumpProtoLocked(fd);
                 return;
             }
 
@@ -2586,6 +3146,12 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             pw.println();
             pw.print(NETSTATS_IMPORT_LEGACY_TARGET_ATTEMPTS, mDeps.getImportLegacyTargetAttempts());
             pw.println();
+            pw.print(NETSTATS_STORE_SEGMENT_FILES, mDeps.getStoreSegmentFiles());
+            pw.println();
+            pw.print(NETSTATS_PARALLEL_RECORDING, mRecordingExecutor != null);
+            pw.println();
+            pw.print(NETSTATS_ADAPTIVE_POLLING, mAdaptivePolling);
+            pw.println();
             if (mDeps.getStoreFilesInApexData()) {
                 try {
                     pw.print("platform legacy stats import attempts count",
@@ -2604,6 +3170,11 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
 
             pw.decreaseIndent();
 
+            pw.println("Poll scheduler:");
+            pw.increaseIndent();
+            mPollScheduler.dump(pw);
+            pw.decreaseIndent();
+
             pw.println("Active interfaces:");
             pw.increaseIndent();
             for (int i = 0; i < mActiveIfaces.size(); i++) {
@@ -2899,7 +3470,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         mStatsFactory.apply464xlatAdjustments(uidSnapshot, providerStats);
         uidSnapshot.combineAllValues(providerStats);
 
-        uidSnapshot.combineAllValues(mUidOperations);
+        synchronized (mStatsLock) {
+            uidSnapshot.combineAllValues(mUidOperations);
+        }
 
         return uidSnapshot;
     }
@@ -3175,7 +3748,8 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         }
         @Override
         public Config getUidConfig() {
-            return new Config(2 * HOUR_IN_MILLIS, 15 * DAY_IN_MILLIS, 90 * DAY_IN_MILLIS);
+            return new Config(2 * HOUR_IN_MILLIS, 15 * DAY_IN_MILLIS, 90 * DAY_IN_MILLIS,
+                    30 * DAY_IN_MILLIS, DAY_IN_MILLIS);
         }
         @Override
         public Config getUidTagConfig() {
@@ -35,10 +35,13 @@ import android.content.Context;
 import android.net.INetd;
 import android.os.RemoteException;
 import android.os.ServiceSpecificException;
+import android.os.SystemClock;
 import android.provider.DeviceConfig;
 import android.system.ErrnoException;
 import android.system.Os;
+import android.util.IndentingPrintWriter;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.modules.utils.build.SdkLevel;
@@ -49,9 +52,6 @@ import com.android.net.module.util.Struct.U32;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.stream.Collectors;
 
 /**
  * BpfNetMaps is responsible for providing traffic controller relevant functionality.
@@ -95,6 +95,23 @@ public class BpfNetMaps {
     // BpfMap for UID_OWNER_MAP_PATH. This map is not accessed by others.
     private static BpfMap<U32, UidOwnerValue> sUidOwnerMap = null;
 
+    // The system server is the only writer of the UID_RULES_CONFIGURATION_KEY entry and of
+    // sUidOwnerMap, so when they are written from Java, their contents are kept in the shadows
+    // below and reads are served from memory. The shadows are loaded on first use, kept up to
+    // date by every write, and compared with the kernel maps every SHADOW_CHECK_INTERVAL_MS.
+    // Shadows are not used when the maps are written by native code, see sEnableJavaBpfMap.
+    private static final long SHADOW_CHECK_INTERVAL_MS = 10 * 60 * 1000;
+    // Shadow of the UID_RULES_CONFIGURATION_KEY entry, or null if not loaded. Written with
+    // sUidRulesConfigBpfMapLock held.
+    private static volatile U32 sUidRulesConfigShadow = null;
+    // Shadow of sUidOwnerMap by uid, or null if not loaded. Guarded by sUidOwnerMap.
+    private static SparseArray<UidOwnerValue> sUidOwnerShadow = null;
+    private static final Object sShadowCheckLock = new Object();
+    // Guarded by sShadowCheckLock.
+    private static long sLastShadowCheckMs = 0;
+    private static int sShadowCheckCount = 0;
+    private static int sShadowDivergenceCount = 0;
+
     // LINT.IfChange(match_type)
     @VisibleForTesting public static final long NO_MATCH = 0;
     @VisibleForTesting public static final long HAPPY_BOX_MATCH = (1 << 0);
@@ -125,6 +142,7 @@ public class BpfNetMaps {
     @VisibleForTesting
     public static void setConfigurationMapForTest(BpfMap<U32, U32> configurationMap) {
         sConfigurationMap = configurationMap;
+        sUidRulesConfigShadow = null;
     }
 
     /**
@@ -133,6 +151,19 @@ public class BpfNetMaps {
     @VisibleForTesting
     public static void setUidOwnerMapForTest(BpfMap<U32, UidOwnerValue> uidOwnerMap) {
         sUidOwnerMap = uidOwnerMap;
+        sUidOwnerShadow = null;
+    }
+
+    /**
+     * Drop the shadows of the maps, so that they are reloaded from the maps, for tests writing
+     * to the maps directly.
+     */
+    @VisibleForTesting
+    public static void invalidateShadowsForTest() {
+        sUidRulesConfigShadow = null;
+        synchronized (sUidOwnerMap) {
+            sUidOwnerShadow = null;
+        }
     }
 
     private static BpfMap<U32, U32> getConfigurationMap() {
@@ -209,6 +240,13 @@ public class BpfNetMaps {
         public int getIfIndex(final String ifName) {
             return Os.if_nametoindex(ifName);
         }
+
+        /**
+         * Get the elapsed realtime, used to check the shadows of the maps periodically.
+         */
+        public long elapsedRealtime() {
+            return SystemClock.elapsedRealtime();
+        }
     }
 
     /** Constructor used after T that doesn't need to use netd anymore. */
@@ -297,7 +335,7 @@ public class BpfNetMaps {
     private void removeRule(final int uid, final long match, final String caller) {
         try {
             synchronized (sUidOwnerMap) {
-                final UidOwnerValue oldMatch = sUidOwnerMap.getValue(new U32(uid));
+                final UidOwnerValue oldMatch = getOrLoadUidOwnerShadow().get(uid);
 
                 if (oldMatch == null) {
                     throw new ServiceSpecificException(ENOENT,
@@ -309,16 +347,13 @@ public class BpfNetMaps {
                         oldMatch.rule & ~match
                 );
 
-                if (newMatch.rule == 0) {
-                    sUidOwnerMap.deleteEntry(new U32(uid));
-                } else {
-                    sUidOwnerMap.updateEntry(new U32(uid), newMatch);
-                }
+                writeUidOwnerValue(uid, newMatch.rule == 0 ? null : newMatch);
             }
         } catch (ErrnoException e) {
             throw new ServiceSpecificException(e.errno,
                     caller + " failed to remove rule: " + Os.strerror(e.errno));
         }
+        maybeCheckShadows();
     }
 
     private void addRule(final int uid, final long match, final long iif, final String caller) {
@@ -329,7 +364,7 @@ public class BpfNetMaps {
 
         try {
             synchronized (sUidOwnerMap) {
-                final UidOwnerValue oldMatch = sUidOwnerMap.getValue(new U32(uid));
+                final UidOwnerValue oldMatch = getOrLoadUidOwnerShadow().get(uid);
 
                 final UidOwnerValue newMatch;
                 if (oldMatch != null) {
@@ -343,18 +378,185 @@ public class BpfNetMaps {
                             match
                     );
                 }
-                sUidOwnerMap.updateEntry(new U32(uid), newMatch);
+                writeUidOwnerValue(uid, newMatch);
             }
         } catch (ErrnoException e) {
             throw new ServiceSpecificException(e.errno,
                     caller + " failed to add rule: " + Os.strerror(e.errno));
         }
+        maybeCheckShadows();
     }
 
     private void addRule(final int uid, final long match, final String caller) {
         addRule(uid, match, 0 /* iif */, caller);
     }
 
+    /**
+     * Write the entry of a uid to sUidOwnerMap, or delete it if value is null, and update
+     * sUidOwnerShadow accordingly. Must be called with sUidOwnerMap held.
+     */
+    private static void writeUidOwnerValue(final int uid, final UidOwnerValue value)
+            throws ErrnoException {
+        if (value == null) {
+            sUidOwnerMap.deleteEntry(new U32(uid));
+        } else {
+            sUidOwnerMap.updateEntry(new U32(uid), value);
+        }
+        if (sUidOwnerShadow != null) {
+            if (value == null) {
+                sUidOwnerShadow.remove(uid);
+            } else {
+                sUidOwnerShadow.put(uid, value);
+            }
+        }
+    }
+
+    /**
+     * Get sUidOwnerShadow, loading it from sUidOwnerMap if needed. Must be called with
+     * sUidOwnerMap held.
+     */
+    private static SparseArray<UidOwnerValue> getOrLoadUidOwnerShadow() throws ErrnoException {
+        if (sUidOwnerShadow == null) {
+            final SparseArray<UidOwnerValue> shadow = new SparseArray<>();
+            sUidOwnerMap.forEach((uid, config) -> {
+                // config could be null if there is a concurrent entry deletion.
+                // http://b/220084230.
+                if (config != null) shadow.put((int) uid.val, config);
+            });
+            sUidOwnerShadow = shadow;
+        }
+        return sUidOwnerShadow;
+    }
+
+    /**
+     * Get the UID_RULES_CONFIGURATION_KEY entry, from its shadow if loaded.
+     */
+    private static U32 getUidRulesConfig() throws ErrnoException {
+        final U32 config = sUidRulesConfigShadow;
+        if (config != null) return config;
+        synchronized (sUidRulesConfigBpfMapLock) {
+            if (sUidRulesConfigShadow == null) {
+                sUidRulesConfigShadow = sConfigurationMap.getValue(UID_RULES_CONFIGURATION_KEY);
+            }
+            return sUidRulesConfigShadow;
+        }
+    }
+
+    private void maybeCheckShadows() {
+        final long now = mDeps.elapsedRealtime();
+        synchronized (sShadowCheckLock) {
+            if (now - sLastShadowCheckMs < SHADOW_CHECK_INTERVAL_MS) return;
+            sLastShadowCheckMs = now;
+        }
+        checkShadows();
+    }
+
+    /**
+     * Compare the shadows of the maps with the kernel maps. Divergent shadows are reported
+     * and reloaded from the kernel maps.
+     *
+     * @return the number of divergent entries.
+     */
+    @VisibleForTesting
+    static int checkShadows() {
+        int divergences = 0;
+        try {
+            synchronized (sUidRulesConfigBpfMapLock) {
+                final U32 shadow = sUidRulesConfigShadow;
+                if (shadow != null) {
+                    final U32 config = sConfigurationMap.getValue(UID_RULES_CONFIGURATION_KEY);
+                    if (config == null || config.val != shadow.val) {
+                        Log.e(TAG, "Uid rules configuration diverged from its shadow: " + config
+                                + ", expected " + shadow.val);
+                        divergences++;
+                        sUidRulesConfigShadow = config;
+                    }
+                }
+            }
+            synchronized (sUidOwnerMap) {
+                final SparseArray<UidOwnerValue> shadow = sUidOwnerShadow;
+                if (shadow != null) {
+                    sUidOwnerShadow = null;
+                    final SparseArray<UidOwnerValue> current = getOrLoadUidOwnerShadow();
+                    final int uidDivergences = countDivergences(shadow, current);
+                    if (uidDivergences != 0) {
+                        Log.e(TAG, "Uid owner map diverged from its shadow for "
+                                + uidDivergences + " uids");
+                        divergences += uidDivergences;
+                    }
+                }
+            }
+        } catch (ErrnoException e) {
+            Log.e(TAG, "Failed to check the shadows of the maps: " + e);
+        }
+        synchronized (sShadowCheckLock) {
+            sShadowCheckCount++;
+            sShadowDivergenceCount += divergences;
+        }
+        return divergences;
+    }
+
+    private static int countDivergences(final SparseArray<UidOwnerValue> shadow,
+            final SparseArray<UidOwnerValue> current) {
+        int divergences = 0;
+        for (int i = 0; i < shadow.size(); i++) {
+            final UidOwnerValue expected = shadow.valueAt(i);
+            final UidOwnerValue actual = current.get(shadow.keyAt(i));
+            if (actual == null || actual.iif != expected.iif || actual.rule != expected.rule) {
+                divergences++;
+            }
+        }
+        for (int i = 0; i < current.size(); i++) {
+            if (shadow.indexOfKey(current.keyAt(i)) < 0) divergences++;
+        }
+        return divergences;
+    }
+
+    /**
+     * Compute the writes needed to set the given match for exactly the given uids, by walking
+     * the sorted keys of the shadow and the sorted uids together.
+     *
+     * @param shadow the current contents of sUidOwnerMap.
+     * @param sortedUids the uids that must have the match, sorted and without duplicates.
+     * @param outUids receives the uids whose entry must be written.
+     * @param outValues receives the new entry of each uid in outUids, null to delete it.
+     * @return the number of writes.
+     */
+    @VisibleForTesting
+    static int computeChainDelta(final SparseArray<UidOwnerValue> shadow, final long match,
+            final int[] sortedUids, final int[] outUids, final UidOwnerValue[] outValues) {
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < shadow.size() || j < sortedUids.length) {
+            final int shadowUid = i < shadow.size() ? shadow.keyAt(i) : Integer.MAX_VALUE;
+            final int uid = j < sortedUids.length ? sortedUids[j] : Integer.MAX_VALUE;
+            if (i < shadow.size() && (j == sortedUids.length || shadowUid < uid)) {
+                // Existing entry that must not have the match.
+                final UidOwnerValue config = shadow.valueAt(i++);
+                if ((config.rule & match) != 0) {
+                    final long rule = config.rule & ~match;
+                    outUids[count] = shadowUid;
+                    outValues[count++] = rule == 0 ? null : new UidOwnerValue(config.iif, rule);
+                }
+            } else if (i < shadow.size() && shadowUid == uid) {
+                // Existing entry that must have the match.
+                final UidOwnerValue config = shadow.valueAt(i++);
+                j++;
+                if ((config.rule & match) == 0) {
+                    outUids[count] = uid;
+                    outValues[count++] = new UidOwnerValue(config.iif, config.rule | match);
+                }
+            } else {
+                // New entry.
+                j++;
+                outUids[count] = uid;
+                outValues[count++] = new UidOwnerValue(0 /* iif */, match);
+            }
+        }
+        return count;
+    }
+
     /**
      * Add naughty app bandwidth rule for specific app
      *
@@ -443,14 +645,20 @@ public class BpfNetMaps {
             final long match = getMatchByFirewallChain(childChain);
             try {
                 synchronized (sUidRulesConfigBpfMapLock) {
-                    final U32 config = sConfigurationMap.getValue(UID_RULES_CONFIGURATION_KEY);
+                    final U32 config = getUidRulesConfig();
                     final long newConfig = enable ? (config.val | match) : (config.val & ~match);
-                    sConfigurationMap.updateEntry(UID_RULES_CONFIGURATION_KEY, new U32(newConfig));
+                    if (newConfig != config.val) {
+                        final U32 newValue = new U32(newConfig);
+                        sUidRulesConfigShadow = null;
+                        sConfigurationMap.updateEntry(UID_RULES_CONFIGURATION_KEY, newValue);
+                        sUidRulesConfigShadow = newValue;
+                    }
                 }
             } catch (ErrnoException e) {
                 throw new ServiceSpecificException(e.errno,
                         "Unable to set child chain: " + Os.strerror(e.errno));
             }
+            maybeCheckShadows();
         } else {
             final int err = native_setChildChain(childChain, enable);
             maybeThrow(err, "Unable to set child chain");
@@ -471,7 +679,10 @@ public class BpfNetMaps {
 
         final long match = getMatchByFirewallChain(childChain);
         try {
-            final U32 config = sConfigurationMap.getValue(UID_RULES_CONFIGURATION_KEY);
+            // The shadow is only up to date if the configuration is written from Java.
+            final U32 config = sEnableJavaBpfMap
+                    ? getUidRulesConfig()
+                    : sConfigurationMap.getValue(UID_RULES_CONFIGURATION_KEY);
             return (config.val & match) != 0;
         } catch (ErrnoException e) {
             throw new ServiceSpecificException(e.errno,
@@ -500,29 +711,31 @@ public class BpfNetMaps {
                 // ConnectivityManager#replaceFirewallChain API
                 throw new IllegalArgumentException("Invalid firewall chain: " + chain);
             }
-            final Set<Integer> uidSet = Arrays.stream(uids).boxed().collect(Collectors.toSet());
-            final Set<Integer> uidSetToRemoveRule = new HashSet<>();
+            final int[] sortedUids = sortedDistinct(uids);
             try {
                 synchronized (sUidOwnerMap) {
-                    sUidOwnerMap.forEach((uid, config) -> {
-                        // config could be null if there is a concurrent entry deletion.
-                        // http://b/220084230.
-                        if (config != null
-                                && !uidSet.contains((int) uid.val) && (config.rule & match) != 0) {
-                            uidSetToRemoveRule.add((int) uid.val);
+                    // Only the uids whose entry actually changes are written, without reading
+                    // the map : replacing a chain with mostly the same uids is cheap.
+                    final SparseArray<UidOwnerValue> shadow = getOrLoadUidOwnerShadow();
+                    final int maxWrites = shadow.size() + sortedUids.length;
+                    final int[] deltaUids = new int[maxWrites];
+                    final UidOwnerValue[] deltaValues = new UidOwnerValue[maxWrites];
+                    final int count = computeChainDelta(shadow, match, sortedUids, deltaUids,
+                            deltaValues);
+                    try {
+                        for (int i = 0; i < count; i++) {
+                            writeUidOwnerValue(deltaUids[i], deltaValues[i]);
                         }
-                    });
-
-                    for (final int uid : uidSetToRemoveRule) {
-                        removeRule(uid, match, "replaceUidChain");
-                    }
-                    for (final int uid : uids) {
-                        addRule(uid, match, "replaceUidChain");
+                    } catch (ErrnoException e) {
+                        // The map may have been partially written: reload the shadow next time.
+                        sUidOwnerShadow = null;
+                        throw e;
                     }
                 }
-            } catch (ErrnoException | ServiceSpecificException e) {
+            } catch (ErrnoException e) {
                 Log.e(TAG, "replaceUidChain failed: " + e);
             }
+            maybeCheckShadows();
         } else {
             final int err;
             switch (chain) {
@@ -561,6 +774,16 @@ public class BpfNetMaps {
         }
     }
 
+    private static int[] sortedDistinct(final int[] uids) {
+        final int[] sorted = uids.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (count == 0 || sorted[count - 1] != sorted[i]) sorted[count++] = sorted[i];
+        }
+        return count == sorted.length ? sorted : Arrays.copyOf(sorted, count);
+    }
+
     /**
      * Set firewall rule for uid
      *
@@ -739,6 +962,22 @@ public class BpfNetMaps {
         native_dump(fd, verbose);
     }
 
+    /**
+     * Dump the state of the shadows of the maps.
+     */
+    public void dumpShadows(final IndentingPrintWriter pw) {
+        if (PRE_T || !sEnableJavaBpfMap) return;
+        final int uidCount;
+        synchronized (sUidOwnerMap) {
+            uidCount = sUidOwnerShadow == null ? -1 : sUidOwnerShadow.size();
+        }
+        synchronized (sShadowCheckLock) {
+            pw.println("BPF map shadows: uidRulesConfig=" + sUidRulesConfigShadow
+                    + " uidOwnerEntries=" + uidCount + " checks=" + sShadowCheckCount
+                    + " divergences=" + sShadowDivergenceCount);
+        }
+    }
+
     private static native void native_init();
     private native int native_addNaughtyApp(int uid);
     private native int native_removeNaughtyApp(int uid);
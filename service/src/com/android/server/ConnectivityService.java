@@ -87,6 +87,7 @@ import static android.net.NetworkCapabilities.TRANSPORT_VPN;
 import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
 import static android.net.NetworkRequest.Type.LISTEN_FOR_BEST;
 import static android.net.NetworkScore.POLICY_TRANSPORT_PRIMARY;
+import static android.net.NetworkScore.POLICY_YIELD_TO_BAD_WIFI;
 import static android.net.OemNetworkPreferences.OEM_NETWORK_PREFERENCE_TEST;
 import static android.net.OemNetworkPreferences.OEM_NETWORK_PREFERENCE_TEST_ONLY;
 import static android.os.Process.INVALID_UID;
@@ -101,6 +102,9 @@ import static com.android.net.module.util.NetworkMonitorUtils.isPrivateDnsValida
 import static com.android.net.module.util.PermissionUtils.enforceAnyPermissionOf;
 import static com.android.net.module.util.PermissionUtils.enforceNetworkStackPermission;
 import static com.android.net.module.util.PermissionUtils.enforceNetworkStackPermissionOr;
+import static com.android.server.connectivity.FullScore.POLICY_ACCEPT_UNVALIDATED;
+import static com.android.server.connectivity.FullScore.POLICY_EVER_VALIDATED_NOT_AVOIDED_WHEN_BAD;
+import static com.android.server.connectivity.FullScore.POLICY_IS_VALIDATED;
 
 import static java.util.Map.Entry;
 
@@ -211,12 +215,14 @@ import android.os.BatteryStatsManager;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.DeadObjectException;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
 import android.os.Parcelable;
 import android.os.PersistableBundle;
@@ -277,6 +283,8 @@ import com.android.server.connectivity.NetworkNotificationManager;
 import com.android.server.connectivity.NetworkNotificationManager.NotificationType;
 import com.android.server.connectivity.NetworkOffer;
 import com.android.server.connectivity.NetworkRanker;
+import com.android.server.connectivity.NetworkRankingSnapshot;
+import com.android.server.connectivity.NetworkRequestIndex;
 import com.android.server.connectivity.PermissionMonitor;
 import com.android.server.connectivity.ProfileNetworkPreferenceList;
 import com.android.server.connectivity.ProxyTracker;
@@ -398,6 +406,15 @@ public class ConnectivityService extends IConnectivityManager.Stub
      */
     private final SparseIntArray mUidBlockedReasons = new SparseIntArray();
 
+    /**
+     * Uid blocked reasons received from NPMS that the handler thread has not processed yet,
+     * keyed by uid. Only the latest reasons for each uid are kept, so that a burst of changes
+     * is applied in a single pass by {@link #handleUidBlockedReasonsChanged}. A message is
+     * posted to the handler only when this goes from empty to non-empty.
+     */
+    @GuardedBy("mPendingUidBlockedReasons")
+    private final SparseIntArray mPendingUidBlockedReasons = new SparseIntArray();
+
     private final Context mContext;
     private final ConnectivityResources mResources;
     // The Context is created for UserHandle.ALL.
@@ -689,9 +706,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private static final int EVENT_SET_PROFILE_NETWORK_PREFERENCE = 50;
 
     /**
-     * Event to specify that reasons for why an uid is blocked changed.
-     * arg1 = uid
-     * arg2 = blockedReasons
+     * Event to specify that reasons for why some uids are blocked changed. The new reasons are
+     * stored in mPendingUidBlockedReasons.
      */
     private static final int EVENT_UID_BLOCKED_REASON_CHANGED = 51;
 
@@ -1475,6 +1491,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 null /* binder */, NetworkCallback.FLAG_INCLUDE_LOCATION_INFO,
                 null /* attributionTags */);
         mNetworkRequests.put(defaultInternetRequest, mDefaultRequest);
+        mNetworkRequestIndex.add(mDefaultRequest, defaultInternetRequest);
+        addNetworkRequestByUid(mDefaultRequest);
         mDefaultNetworkRequests.add(mDefaultRequest);
         mNetworkRequestInfoLogs.log("REGISTER " + mDefaultRequest);
 
@@ -2241,13 +2259,6 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 callingAttributionTag);
     }
 
-    private void redactUnderlyingNetworksForCapabilities(NetworkCapabilities nc, int pid, int uid) {
-        if (nc.getUnderlyingNetworks() != null
-                && !checkNetworkFactoryOrSettingsPermission(pid, uid)) {
-            nc.setUnderlyingNetworks(null);
-        }
-    }
-
     @VisibleForTesting
     NetworkCapabilities networkCapabilitiesRestrictedForCallerPermissions(
             NetworkCapabilities nc, int callerPid, int callerUid) {
@@ -2256,25 +2267,65 @@ public class ConnectivityService extends IConnectivityManager.Stub
         // sent) and possibly dangerous : apps normally can't lose ACCESS_NETWORK_STATE, if
         // it happens for some reason (e.g. the package is uninstalled while CS is trying to
         // send the callback) it would crash the system server with NPE.
+        return networkCapabilitiesRestrictedForPermissions(nc,
+                getCapabilitiesPermissionsForCaller(nc, callerPid, callerUid));
+    }
+
+    // Permissions of a caller that affect how NetworkCapabilities are restricted for it, as
+    // computed by getCapabilitiesPermissionsForCaller.
+    private static final long CAPS_PERMISSION_SETTINGS = 1 << 0;
+    private static final long CAPS_PERMISSION_NETWORK_STACK = 1 << 1;
+    private static final long CAPS_PERMISSION_NETWORK_FACTORY = 1 << 2;
+    private static final long CAPS_PERMISSION_FACTORY_OR_SETTINGS = 1 << 3;
+    // Whether the owner UID is kept when sanitizing the capabilities for the caller.
+    private static final long CAPS_KEEP_OWNER_UID = 1 << 4;
+    // Offset of the redactions in the redaction key computed by getCapabilitiesRedactionKey.
+    private static final int CAPS_REDACTIONS_SHIFT = 5;
+
+    private long getCapabilitiesPermissionsForCaller(@NonNull NetworkCapabilities nc,
+            int callerPid, int callerUid) {
+        long permissions = 0;
+        if (checkSettingsPermission(callerPid, callerUid)) {
+            permissions |= CAPS_PERMISSION_SETTINGS;
+        }
+        if (checkAnyPermissionOf(callerPid, callerUid, android.Manifest.permission.NETWORK_STACK,
+                NetworkStack.PERMISSION_MAINLINE_NETWORK_STACK)) {
+            permissions |= CAPS_PERMISSION_NETWORK_STACK;
+        }
+        if (checkAnyPermissionOf(
+                callerPid, callerUid, android.Manifest.permission.NETWORK_FACTORY)) {
+            permissions |= CAPS_PERMISSION_NETWORK_FACTORY;
+        }
+        // Only check this if it makes a difference, to avoid unnecessary permission checks.
+        if (nc.getUnderlyingNetworks() != null
+                && checkNetworkFactoryOrSettingsPermission(callerPid, callerUid)) {
+            permissions |= CAPS_PERMISSION_FACTORY_OR_SETTINGS;
+        }
+        return permissions;
+    }
+
+    @NonNull
+    private static NetworkCapabilities networkCapabilitiesRestrictedForPermissions(
+            @NonNull NetworkCapabilities nc, long permissions) {
         final NetworkCapabilities newNc = new NetworkCapabilities(nc);
-        if (!checkSettingsPermission(callerPid, callerUid)) {
+        if ((permissions & CAPS_PERMISSION_SETTINGS) == 0) {
             newNc.setUids(null);
             newNc.setSSID(null);
         }
         if (newNc.getNetworkSpecifier() != null) {
             newNc.setNetworkSpecifier(newNc.getNetworkSpecifier().redact());
         }
-        if (!checkAnyPermissionOf(callerPid, callerUid, android.Manifest.permission.NETWORK_STACK,
-                NetworkStack.PERMISSION_MAINLINE_NETWORK_STACK)) {
+        if ((permissions & CAPS_PERMISSION_NETWORK_STACK) == 0) {
             newNc.setAdministratorUids(new int[0]);
         }
-        if (!checkAnyPermissionOf(
-                callerPid, callerUid, android.Manifest.permission.NETWORK_FACTORY)) {
+        if ((permissions & CAPS_PERMISSION_NETWORK_FACTORY) == 0) {
             newNc.setAllowedUids(new ArraySet<>());
             newNc.setSubscriptionIds(Collections.emptySet());
         }
-        redactUnderlyingNetworksForCapabilities(newNc, callerPid, callerUid);
-
+        if (newNc.getUnderlyingNetworks() != null
+                && (permissions & CAPS_PERMISSION_FACTORY_OR_SETTINGS) == 0) {
+            newNc.setUnderlyingNetworks(null);
+        }
         return newNc;
     }
 
@@ -2407,31 +2458,75 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 nc.getApplicableRedactions(), redactionPermissionChecker,
                 includeLocationSensitiveInfo);
         final NetworkCapabilities newNc = new NetworkCapabilities(nc, redactions);
+        if (!shouldKeepOwnerUid(nc, includeLocationSensitiveInfo, callingUid, callingPkgName,
+                redactionPermissionChecker)) {
+            newNc.setOwnerUid(INVALID_UID);
+        }
+        return newNc;
+    }
+
+    private boolean shouldKeepOwnerUid(@NonNull NetworkCapabilities nc,
+            boolean includeLocationSensitiveInfo, int callingUid, @NonNull String callingPkgName,
+            @NonNull RedactionPermissionChecker redactionPermissionChecker) {
         // Reset owner uid if not destined for the owner app.
         // TODO : calling UID is redacted because apps should generally not know what UID is
         // bringing up the VPN, but this should not apply to some very privileged apps like settings
-        if (callingUid != nc.getOwnerUid()) {
-            newNc.setOwnerUid(INVALID_UID);
-            return newNc;
-        }
+        if (callingUid != nc.getOwnerUid()) return false;
         // Allow VPNs to see ownership of their own VPN networks - not location sensitive.
-        if (nc.hasTransport(TRANSPORT_VPN)) {
-            // Owner UIDs already checked above. No need to re-check.
-            return newNc;
-        }
+        // Owner UIDs already checked above. No need to re-check.
+        if (nc.hasTransport(TRANSPORT_VPN)) return true;
         // If the calling does not want location sensitive data & target SDK >= S, then mask info.
         // Else include the owner UID iff the calling has location permission to provide backwards
         // compatibility for older apps.
         if (!includeLocationSensitiveInfo
                 && isTargetSdkAtleast(
                         Build.VERSION_CODES.S, callingUid, callingPkgName)) {
-            newNc.setOwnerUid(INVALID_UID);
-            return newNc;
+            return false;
         }
         // Reset owner uid if the app has no location permission.
-        if (!redactionPermissionChecker.hasLocationPermission()) {
-            newNc.setOwnerUid(INVALID_UID);
-        }
+        return redactionPermissionChecker.hasLocationPermission();
+    }
+
+    /**
+     * Get the capabilities of a network redacted for the app that filed the passed request.
+     *
+     * This returns the same result as applying
+     * {@link #networkCapabilitiesRestrictedForCallerPermissions} then
+     * {@link #createWithLocationInfoSanitizedIfNecessaryWhenParceled}, but the result is cached
+     * in the network for all callers with the same permissions, and must not be modified.
+     */
+    @NonNull
+    private NetworkCapabilities getRedactedCapabilitiesForCallback(
+            @NonNull NetworkAgentInfo nai, @NonNull NetworkRequestInfo nri,
+            boolean includeLocationSensitiveInfo, @NonNull String callingPkgName) {
+        final NetworkCapabilities nc = nai.networkCapabilities;
+        if (nri.mPid == Process.myPid()) {
+            // Callbacks sent to the system server are not parceled, so the receiver gets the
+            // object itself and may modify it. Do not share it.
+            return createWithLocationInfoSanitizedIfNecessaryWhenParceled(
+                    networkCapabilitiesRestrictedForCallerPermissions(nc, nri.mPid, nri.mUid),
+                    includeLocationSensitiveInfo, nri.mPid, nri.mUid, callingPkgName,
+                    nri.mCallingAttributionTag);
+        }
+        final long permissions = getCapabilitiesPermissionsForCaller(nc, nri.mPid, nri.mUid);
+        final RedactionPermissionChecker redactionPermissionChecker =
+                new RedactionPermissionChecker(nri.mPid, nri.mUid, callingPkgName,
+                        nri.mCallingAttributionTag);
+        final long redactions = retrieveRequiredRedactions(nc.getApplicableRedactions(),
+                redactionPermissionChecker, includeLocationSensitiveInfo);
+        final boolean keepOwnerUid = shouldKeepOwnerUid(nc, includeLocationSensitiveInfo,
+                nri.mUid, callingPkgName, redactionPermissionChecker);
+        final long key = permissions | (keepOwnerUid ? CAPS_KEEP_OWNER_UID : 0)
+                | (redactions << CAPS_REDACTIONS_SHIFT);
+
+        final int generation = nai.getCapabilitiesGeneration();
+        final NetworkCapabilities cached =
+                nai.redactedSnapshots.getCapabilities(generation, key);
+        if (null != cached) return cached;
+        final NetworkCapabilities newNc = new NetworkCapabilities(
+                networkCapabilitiesRestrictedForPermissions(nc, permissions), redactions);
+        if (!keepOwnerUid) newNc.setOwnerUid(INVALID_UID);
+        nai.redactedSnapshots.putCapabilities(generation, key, newNc);
         return newNc;
     }
 
@@ -2445,14 +2540,34 @@ public class ConnectivityService extends IConnectivityManager.Stub
         // it happens for some reason (e.g. the package is uninstalled while CS is trying to
         // send the callback) it would crash the system server with NPE.
 
+        return linkPropertiesRestrictedForRedactionKey(lp,
+                getLinkPropertiesRedactionKey(lp, callerPid, callerUid));
+    }
+
+    // How LinkProperties are restricted for a caller, as computed by
+    // getLinkPropertiesRedactionKey.
+    private static final long LP_NO_SANITIZATION_NEEDED = 0;
+    private static final long LP_PARCEL_SENSITIVE_FIELDS = 1;
+    private static final long LP_CLEAR_SENSITIVE_FIELDS = 2;
+
+    private long getLinkPropertiesRedactionKey(@NonNull LinkProperties lp, int callerPid,
+            int callerUid) {
         // Only do a permission check if sanitization is needed, to avoid unnecessary binder calls.
         final boolean needsSanitization =
                 (lp.getCaptivePortalApiUrl() != null || lp.getCaptivePortalData() != null);
-        if (!needsSanitization) {
+        if (!needsSanitization) return LP_NO_SANITIZATION_NEEDED;
+        return checkSettingsPermission(callerPid, callerUid)
+                ? LP_PARCEL_SENSITIVE_FIELDS : LP_CLEAR_SENSITIVE_FIELDS;
+    }
+
+    @NonNull
+    private static LinkProperties linkPropertiesRestrictedForRedactionKey(
+            @NonNull LinkProperties lp, long redactionKey) {
+        if (redactionKey == LP_NO_SANITIZATION_NEEDED) {
             return new LinkProperties(lp);
         }
 
-        if (checkSettingsPermission(callerPid, callerUid)) {
+        if (redactionKey == LP_PARCEL_SENSITIVE_FIELDS) {
             return new LinkProperties(lp, true /* parcelSensitiveFields */);
         }
 
@@ -2464,6 +2579,32 @@ public class ConnectivityService extends IConnectivityManager.Stub
         return newLp;
     }
 
+    /**
+     * Get the link properties of a network restricted for the app that filed the passed request.
+     *
+     * This returns the same result as {@link #linkPropertiesRestrictedForCallerPermissions}, but
+     * the result is cached in the network for all callers with the same permissions, and must
+     * not be modified.
+     */
+    @NonNull
+    private LinkProperties getRedactedLinkPropertiesForCallback(@NonNull NetworkAgentInfo nai,
+            @NonNull NetworkRequestInfo nri) {
+        if (nri.mPid == Process.myPid()) {
+            // Callbacks sent to the system server are not parceled, so the receiver gets the
+            // object itself and may modify it. Do not share it.
+            return linkPropertiesRestrictedForCallerPermissions(
+                    nai.linkProperties, nri.mPid, nri.mUid);
+        }
+        final long key = getLinkPropertiesRedactionKey(nai.linkProperties, nri.mPid, nri.mUid);
+        final int generation = nai.getLinkPropertiesGeneration();
+        final LinkProperties cached = nai.redactedSnapshots.getLinkProperties(generation, key);
+        if (null != cached) return cached;
+        final LinkProperties newLp =
+                linkPropertiesRestrictedForRedactionKey(nai.linkProperties, key);
+        nai.redactedSnapshots.putLinkProperties(generation, key, newLp);
+        return newLp;
+    }
+
     private void restrictRequestUidsForCallerAndSetRequestorInfo(NetworkCapabilities nc,
             int callerUid, String callerPackageName) {
         // There is no need to track the effective UID of the request here. If the caller
@@ -2767,14 +2908,37 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private final NetworkPolicyCallback mPolicyCallback = new NetworkPolicyCallback() {
         @Override
         public void onUidBlockedReasonChanged(int uid, @BlockedReason int blockedReasons) {
-            mHandler.sendMessage(mHandler.obtainMessage(EVENT_UID_BLOCKED_REASON_CHANGED,
-                    uid, blockedReasons));
+            synchronized (mPendingUidBlockedReasons) {
+                final boolean wasEmpty = mPendingUidBlockedReasons.size() == 0;
+                mPendingUidBlockedReasons.put(uid, blockedReasons);
+                if (!wasEmpty) return;
+            }
+            mHandler.sendMessage(mHandler.obtainMessage(EVENT_UID_BLOCKED_REASON_CHANGED));
         }
     };
 
-    private void handleUidBlockedReasonChanged(int uid, @BlockedReason int blockedReasons) {
-        maybeNotifyNetworkBlockedForNewState(uid, blockedReasons);
-        setUidBlockedReasons(uid, blockedReasons);
+    private void handleUidBlockedReasonsChanged() {
+        final SparseIntArray blockedReasons;
+        synchronized (mPendingUidBlockedReasons) {
+            blockedReasons = mPendingUidBlockedReasons.clone();
+            mPendingUidBlockedReasons.clear();
+        }
+        handleUidBlockedReasonsChanged(blockedReasons);
+    }
+
+    /**
+     * Apply new blocked reasons for a batch of uids, notifying the affected requests.
+     *
+     * @param blockedReasons the new blocked reasons, keyed by uid.
+     */
+    private void handleUidBlockedReasonsChanged(@NonNull final SparseIntArray blockedReasons) {
+        ensureRunningOnConnectivityServiceThread();
+        for (int i = 0; i < blockedReasons.size(); i++) {
+            final int uid = blockedReasons.keyAt(i);
+            final int reasons = blockedReasons.valueAt(i);
+            maybeNotifyNetworkBlockedForNewState(uid, reasons);
+            setUidBlockedReasons(uid, reasons);
+        }
     }
 
     private boolean checkAnyPermissionOf(int pid, int uid, String... permissions) {
@@ -3507,6 +3671,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
     private void dumpTrafficController(IndentingPrintWriter pw, final FileDescriptor fd,
             boolean verbose) {
         try {
+            mBpfNetMaps.dumpShadows(pw);
+            // The native dump writes to fd directly.
+            pw.flush();
             mBpfNetMaps.dump(fd, verbose);
         } catch (ServiceSpecificException e) {
             pw.println(e.getMessage());
@@ -3738,7 +3905,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                     // This rematch is almost certainly not going to result in any changes, because
                     // the destroyed flag is only just above the "current satisfier wins"
                     // tie-breaker. But technically anything that affects scoring should rematch.
-                    rematchAllNetworksAndRequests();
+                    rematchNetworksAndRequestsAffectedBy(nai);
                     mHandler.postDelayed(() -> nai.disconnect(), timeoutMs);
                     break;
                 }
@@ -3766,6 +3933,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                     if (probePrivateDnsCompleted) {
                         if (nai.networkCapabilities.isPrivateDnsBroken() != privateDnsBroken) {
                             nai.networkCapabilities.setPrivateDnsBroken(privateDnsBroken);
+                            nai.noteNetworkCapabilitiesModified();
                             updateCapabilitiesForNetwork(nai);
                         }
                         // Only show the notification when the private DNS is broken and the
@@ -3781,6 +3949,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                         // done yet. In either case, the networkCapabilities should be updated to
                         // reflect the new status.
                         nai.networkCapabilities.setPrivateDnsBroken(false);
+                        nai.noteNetworkCapabilitiesModified();
                         updateCapabilitiesForNetwork(nai);
                         nai.networkAgentConfig.hasShownBroken = false;
                     }
@@ -4524,8 +4693,12 @@ public class ConnectivityService extends IConnectivityManager.Stub
         for (final NetworkRequestInfo nri : nris) {
             mNetworkRequestInfoLogs.log("REGISTER " + nri);
             checkNrisConsistency(nri);
+            addNetworkRequestByUid(nri);
             for (final NetworkRequest req : nri.mRequests) {
                 mNetworkRequests.put(req, nri);
+                if (nri.isMultilayerRequest() || !req.isListen()) {
+                    mNetworkRequestIndex.add(nri, req);
+                }
                 // TODO: Consider update signal strength for other types.
                 if (req.isListen()) {
                     for (final NetworkAgentInfo network : mNetworkAgentInfos) {
@@ -4733,11 +4906,16 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private void handleRemoveNetworkRequest(@NonNull final NetworkRequestInfo nri) {
         ensureRunningOnConnectivityServiceThread();
+        removeNetworkRequestByUid(nri);
         for (final NetworkRequest req : nri.mRequests) {
             if (null == mNetworkRequests.remove(req)) {
                 logw("Attempted removal of untracked request " + req + " for nri " + nri);
                 continue;
             }
+            mNetworkRequestIndex.remove(req);
+            for (final NetworkAgentInfo nai : mNetworkAgentInfos) {
+                nai.forgetSatisfactionOf(req);
+            }
             if (req.isListen()) {
                 removeListenRequestFromNetworks(req);
             }
@@ -4933,8 +5111,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
             // network, we should respect the user's option and don't need to popup the
             // PARTIAL_CONNECTIVITY notification to user again.
             nai.networkAgentConfig.acceptPartialConnectivity = accept;
+            final FullScore oldScore = nai.getScore();
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsAffectedBy(nai, oldScore);
         }
 
         if (always) {
@@ -5001,8 +5180,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
         if (!nai.avoidUnvalidated) {
             nai.avoidUnvalidated = true;
+            final FullScore oldScore = nai.getScore();
             nai.updateScoreForNetworkAgentUpdate();
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsAffectedBy(nai, oldScore);
         }
     }
 
@@ -5434,7 +5614,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
                             (PrivateDnsValidationUpdate) msg.obj);
                     break;
                 case EVENT_UID_BLOCKED_REASON_CHANGED:
-                    handleUidBlockedReasonChanged(msg.arg1, msg.arg2);
+                    handleUidBlockedReasonsChanged();
                     break;
                 case EVENT_SET_REQUIRE_VPN_FOR_UIDS:
                     handleSetRequireVpnForUids(toBool(msg.arg1), (UidRange[]) msg.obj);
@@ -6145,6 +6325,31 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private final HashMap<Messenger, NetworkProviderInfo> mNetworkProviderInfos = new HashMap<>();
     private final HashMap<NetworkRequest, NetworkRequestInfo> mNetworkRequests = new HashMap<>();
+    // Index of the requests in mNetworkRequests by transports and capabilities, used to find the
+    // requests that a network can possibly satisfy without scanning all of them. Non-multilayer
+    // listen requests are not indexed, as they are ignored by the rematch.
+    private final NetworkRequestIndex<NetworkRequestInfo> mNetworkRequestIndex =
+            new NetworkRequestIndex<>();
+    // The NRIs in mNetworkRequests, keyed by the uid they are filed as (NRI#mAsUid). This is
+    // used to find the requests affected by a change in the blocked reasons of a uid.
+    private final SparseArray<ArraySet<NetworkRequestInfo>> mNetworkRequestsByUid =
+            new SparseArray<>();
+
+    private void addNetworkRequestByUid(@NonNull final NetworkRequestInfo nri) {
+        ArraySet<NetworkRequestInfo> nris = mNetworkRequestsByUid.get(nri.mAsUid);
+        if (null == nris) {
+            nris = new ArraySet<>();
+            mNetworkRequestsByUid.put(nri.mAsUid, nris);
+        }
+        nris.add(nri);
+    }
+
+    private void removeNetworkRequestByUid(@NonNull final NetworkRequestInfo nri) {
+        final ArraySet<NetworkRequestInfo> nris = mNetworkRequestsByUid.get(nri.mAsUid);
+        if (null == nris) return;
+        nris.remove(nri);
+        if (nris.isEmpty()) mNetworkRequestsByUid.remove(nri.mAsUid);
+    }
 
     private static class NetworkProviderInfo {
         public final String name;
@@ -7493,9 +7698,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
         // TODO - move this check to cover the whole function
         if (!Objects.equals(newLp, oldLp)) {
-            synchronized (networkAgent) {
-                networkAgent.linkProperties = newLp;
-            }
+            networkAgent.setLinkProperties(newLp);
             // Start or stop DNS64 detection and 464xlat according to network state.
             networkAgent.clatd.update();
             notifyIfacesChangedForNetworkStats();
@@ -7978,7 +8181,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
         } else {
             // If the requestable capabilities have changed or the score changed, we can't have been
             // called by rematchNetworkAndRequests, so it's safe to start a rematch.
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsAffectedBy(nai, oldScore);
             notifyNetworkCallbacks(nai, ConnectivityManager.CALLBACK_CAP_CHANGED);
         }
         updateNetworkInfoForRoamingAndSuspended(nai, prevNc, newNc);
@@ -8356,16 +8559,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 (nri.mCallbackFlags & NetworkCallback.FLAG_INCLUDE_LOCATION_INFO) != 0;
         switch (notificationType) {
             case ConnectivityManager.CALLBACK_AVAILABLE: {
-                final NetworkCapabilities nc =
-                        createWithLocationInfoSanitizedIfNecessaryWhenParceled(
-                                networkCapabilitiesRestrictedForCallerPermissions(
-                                        networkAgent.networkCapabilities, nri.mPid, nri.mUid),
-                                includeLocationSensitiveInfo, nri.mPid, nri.mUid,
-                                nrForCallback.getRequestorPackageName(),
-                                nri.mCallingAttributionTag);
-                putParcelable(bundle, nc);
-                putParcelable(bundle, linkPropertiesRestrictedForCallerPermissions(
-                        networkAgent.linkProperties, nri.mPid, nri.mUid));
+                putParcelable(bundle, getRedactedCapabilitiesForCallback(networkAgent, nri,
+                        includeLocationSensitiveInfo, nrForCallback.getRequestorPackageName()));
+                putParcelable(bundle, getRedactedLinkPropertiesForCallback(networkAgent, nri));
                 // For this notification, arg1 contains the blocked status.
                 msg.arg1 = arg1;
                 break;
@@ -8376,20 +8572,12 @@ public class ConnectivityService extends IConnectivityManager.Stub
             }
             case ConnectivityManager.CALLBACK_CAP_CHANGED: {
                 // networkAgent can't be null as it has been accessed a few lines above.
-                final NetworkCapabilities netCap =
-                        networkCapabilitiesRestrictedForCallerPermissions(
-                                networkAgent.networkCapabilities, nri.mPid, nri.mUid);
-                putParcelable(
-                        bundle,
-                        createWithLocationInfoSanitizedIfNecessaryWhenParceled(
-                                netCap, includeLocationSensitiveInfo, nri.mPid, nri.mUid,
-                                nrForCallback.getRequestorPackageName(),
-                                nri.mCallingAttributionTag));
+                putParcelable(bundle, getRedactedCapabilitiesForCallback(networkAgent, nri,
+                        includeLocationSensitiveInfo, nrForCallback.getRequestorPackageName()));
                 break;
             }
             case ConnectivityManager.CALLBACK_IP_CHANGED: {
-                putParcelable(bundle, linkPropertiesRestrictedForCallerPermissions(
-                        networkAgent.linkProperties, nri.mPid, nri.mUid));
+                putParcelable(bundle, getRedactedLinkPropertiesForCallback(networkAgent, nri));
                 break;
             }
             case ConnectivityManager.CALLBACK_BLK_CHANGED: {
@@ -8400,6 +8588,11 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
         msg.what = notificationType;
         msg.setData(bundle);
+        if (null != mBatchedCallbacks) {
+            addBatchedCallback(new BatchedCallback(nri,
+                    null != networkAgent ? networkAgent.network : null, msg));
+            return;
+        }
         try {
             if (VDBG) {
                 String notification = ConnectivityManager.getCallbackName(notificationType);
@@ -8412,6 +8605,177 @@ public class ConnectivityService extends IConnectivityManager.Stub
         }
     }
 
+    // A callback message waiting to be sent as part of a batch.
+    private static class BatchedCallback {
+        @NonNull public final NetworkRequestInfo mNri;
+        @Nullable public final Network mNetwork;
+        @NonNull public final Message mMessage;
+
+        BatchedCallback(@NonNull final NetworkRequestInfo nri, @Nullable final Network network,
+                @NonNull final Message message) {
+            mNri = nri;
+            mNetwork = network;
+            mMessage = message;
+        }
+
+        // Whether this callback is made obsolete by the passed callback sent later to the same
+        // request. Only capabilities and link properties changes are superseded, as the later
+        // callback carries the full new state.
+        boolean isSupersededBy(@NonNull final BatchedCallback later) {
+            final int what = mMessage.what;
+            return (what == ConnectivityManager.CALLBACK_CAP_CHANGED
+                    || what == ConnectivityManager.CALLBACK_IP_CHANGED)
+                    && what == later.mMessage.what
+                    && Objects.equals(mNetwork, later.mNetwork);
+        }
+    }
+
+    // Bounds on the number and parcelled size of the callbacks sent in a single batch, so that a
+    // batch fits comfortably in a binder transaction. Larger groups are split into several
+    // batches.
+    @VisibleForTesting
+    static final int MAX_BATCHED_CALLBACKS = 32;
+    @VisibleForTesting
+    static final int MAX_BATCHED_CALLBACKS_BYTES = 64 * 1024;
+
+    // Callbacks produced while batching is active, grouped by destination messenger. Null when
+    // callbacks are sent immediately. Only accessed on the handler thread.
+    @Nullable
+    private ArrayMap<Messenger, ArrayList<BatchedCallback>> mBatchedCallbacks = null;
+
+    /**
+     * Start collecting callbacks instead of sending them, so that they can be sent with one
+     * transaction per messenger by {@link #sendBatchedCallbacks}.
+     *
+     * @return whether batching was started, i.e. false if it was already active.
+     */
+    private boolean startBatchingCallbacks() {
+        if (null != mBatchedCallbacks) return false;
+        mBatchedCallbacks = new ArrayMap<>();
+        return true;
+    }
+
+    private void addBatchedCallback(@NonNull final BatchedCallback callback) {
+        ArrayList<BatchedCallback> callbacks = mBatchedCallbacks.get(callback.mNri.mMessenger);
+        if (null == callbacks) {
+            callbacks = new ArrayList<>();
+            mBatchedCallbacks.put(callback.mNri.mMessenger, callbacks);
+        }
+        // Look for the last pending callback for the same request. If it is superseded by the new
+        // one, there is no point in sending it. Callbacks for other requests are independent, so
+        // they can be skipped over.
+        for (int i = callbacks.size() - 1; i >= 0; i--) {
+            final BatchedCallback pending = callbacks.get(i);
+            if (pending.mNri != callback.mNri) continue;
+            if (pending.isSupersededBy(callback)) callbacks.remove(i);
+            break;
+        }
+        callbacks.add(callback);
+    }
+
+    /**
+     * Stop batching callbacks and send all callbacks collected since
+     * {@link #startBatchingCallbacks}, with as few transactions per messenger as the bounds on
+     * the size of a batch allow.
+     */
+    private void sendBatchedCallbacks() {
+        final ArrayMap<Messenger, ArrayList<BatchedCallback>> batches = mBatchedCallbacks;
+        mBatchedCallbacks = null;
+        for (int i = 0; i < batches.size(); i++) {
+            final Messenger messenger = batches.keyAt(i);
+            final ArrayList<BatchedCallback> callbacks = batches.valueAt(i);
+            if (callbacks.size() == 1) {
+                sendCallbackMessage(messenger, callbacks.get(0).mMessage);
+                continue;
+            }
+            int start = 0;
+            int bytes = 0;
+            for (int end = 0; end < callbacks.size(); end++) {
+                final int size = getParcelledSize(callbacks.get(end).mMessage);
+                if (end > start && (end - start >= MAX_BATCHED_CALLBACKS
+                        || bytes + size > MAX_BATCHED_CALLBACKS_BYTES)) {
+                    if (!sendCallbackBatch(messenger, callbacks.subList(start, end))) break;
+                    start = end;
+                    bytes = 0;
+                }
+                bytes += size;
+            }
+            if (start < callbacks.size()) {
+                sendCallbackBatch(messenger, callbacks.subList(start, callbacks.size()));
+            }
+        }
+    }
+
+    /**
+     * Send the passed callbacks in a single {@link ConnectivityManager#CALLBACK_BATCH} message,
+     * or one by one if the batch can't be sent.
+     *
+     * @return false if the messenger is dead, so there is no point in sending it more callbacks.
+     */
+    private boolean sendCallbackBatch(@NonNull final Messenger messenger,
+            @NonNull final List<BatchedCallback> callbacks) {
+        if (callbacks.size() == 1) return sendCallbackMessage(messenger, callbacks.get(0).mMessage);
+        final ArrayList<Message> messages = new ArrayList<>(callbacks.size());
+        for (final BatchedCallback callback : callbacks) {
+            messages.add(callback.mMessage);
+        }
+        final Bundle bundle = new Bundle();
+        bundle.putParcelableArrayList(ConnectivityManager.KEY_BATCHED_CALLBACKS, messages);
+        final Message msg = Message.obtain();
+        msg.what = ConnectivityManager.CALLBACK_BATCH;
+        msg.setData(bundle);
+        try {
+            if (VDBG) log("sending " + callbacks.size() + " batched notifications");
+            messenger.send(msg);
+            return true;
+        } catch (DeadObjectException e) {
+            // may occur naturally in the race of binder death.
+            loge("DeadObjectException caught trying to send " + callbacks.size()
+                    + " batched callback msgs");
+            return false;
+        } catch (RemoteException e) {
+            // The batch may not fit in a transaction after all, e.g. if other transactions are
+            // using the buffer of the receiver. Callbacks must not be lost, so send them one by
+            // one instead.
+            loge("RemoteException caught trying to send " + callbacks.size()
+                    + " batched callback msgs, sending them individually: " + e);
+            for (final Message message : messages) {
+                if (!sendCallbackMessage(messenger, message)) return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Send a single callback message.
+     *
+     * @return false if the messenger is dead, so there is no point in sending it more callbacks.
+     */
+    private boolean sendCallbackMessage(@NonNull final Messenger messenger,
+            @NonNull final Message msg) {
+        try {
+            if (VDBG) {
+                log("sending notification " + ConnectivityManager.getCallbackName(msg.what));
+            }
+            messenger.send(msg);
+            return true;
+        } catch (RemoteException e) {
+            // may occur naturally in the race of binder death.
+            loge("RemoteException caught trying to send a callback msg: " + e);
+            return !(e instanceof DeadObjectException);
+        }
+    }
+
+    private static int getParcelledSize(@NonNull final Message msg) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            msg.writeToParcel(parcel, 0 /* flags */);
+            return parcel.dataSize();
+        } finally {
+            parcel.recycle();
+        }
+    }
+
     private static <T extends Parcelable> void putParcelable(Bundle bundle, T t) {
         bundle.putParcelable(t.getClass().getSimpleName(), t);
     }
@@ -8768,6 +9132,10 @@ public class ConnectivityService extends IConnectivityManager.Stub
             }
             nais.add(nai);
         }
+        // All these networks have connected, and have therefore been created, so the snapshot
+        // ranks them the same as mNetworkRanker would.
+        final NetworkRankingSnapshot<NetworkAgentInfo> ranking =
+                new NetworkRankingSnapshot<>(nais);
 
         for (final NetworkRequestInfo nri : networkRequests) {
             // Non-multilayer listen requests can be ignored.
@@ -8777,7 +9145,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             NetworkAgentInfo bestNetwork = null;
             NetworkRequest bestRequest = null;
             for (final NetworkRequest req : nri.mRequests) {
-                bestNetwork = mNetworkRanker.getBestNetwork(req, nais, nri.getSatisfier());
+                bestNetwork = ranking.getBestNetwork(req, nri.getSatisfier());
                 // Stop evaluating as the highest possible priority request is satisfied.
                 if (null != bestNetwork) {
                     bestRequest = req;
@@ -8809,6 +9177,61 @@ public class ConnectivityService extends IConnectivityManager.Stub
         rematchNetworksAndRequests(getNrisFromGlobalRequests());
     }
 
+    // Score policies that the ranking of other networks against a network depends on, e.g.
+    // whether a cellular network yields to a wifi network depends on the wifi validation state.
+    // Changes to any of them are handled with a full rematch.
+    private static final long RANKING_INPUT_POLICIES = (1L << POLICY_IS_VALIDATED)
+            | (1L << POLICY_ACCEPT_UNVALIDATED)
+            | (1L << POLICY_EVER_VALIDATED_NOT_AVOIDED_WHEN_BAD)
+            | (1L << POLICY_YIELD_TO_BAD_WIFI);
+
+    /**
+     * Get the NRIs whose satisfier may change as a result of a change in the passed network.
+     *
+     * These are the NRIs currently satisfied by this network, which may need to move to another
+     * network, and the NRIs that this network might satisfy, which may need to move to this
+     * network. Other NRIs are neither satisfied by this network before nor after the change, so
+     * the change can't affect which network satisfies them, unless it changes inputs used to rank
+     * other networks, see {@link #RANKING_INPUT_POLICIES}.
+     */
+    private Set<NetworkRequestInfo> getNrisAffectedByNetwork(@NonNull final NetworkAgentInfo nai) {
+        final Set<NetworkRequestInfo> nris = new HashSet<>();
+        // Include every NRI with a request satisfied by this network, whatever its active request
+        for (int i = 0; i < nai.numNetworkRequests(); i++) {
+            final NetworkRequestInfo nri = mNetworkRequests.get(nai.requestAt(i));
+            if (null != nri) nris.add(nri);
+        }
+        if (nai.everConnected) {
+            mNetworkRequestIndex.collectCandidates(nai.networkCapabilities, nris);
+        }
+        return nris;
+    }
+
+    /**
+     * Attempt to rematch the NetworkRequests that may be affected by a change in the score or
+     * capabilities of the passed network. This may result in Networks being disconnected.
+     *
+     * If the incremental rematch flag is disabled, this rematches all networks and requests.
+     */
+    private void rematchNetworksAndRequestsAffectedBy(@NonNull final NetworkAgentInfo nai) {
+        rematchNetworksAndRequestsAffectedBy(nai, nai.getScore());
+    }
+
+    /**
+     * Same as {@link #rematchNetworksAndRequestsAffectedBy(NetworkAgentInfo)}, but rematches all
+     * networks and requests if the score of the network changed from {@code oldScore} in a way
+     * that affects the ranking of other networks, such as validation or bad wifi avoidance.
+     */
+    private void rematchNetworksAndRequestsAffectedBy(@NonNull final NetworkAgentInfo nai,
+            @NonNull final FullScore oldScore) {
+        final long changedPolicies = oldScore.getPolicies() ^ nai.getScore().getPolicies();
+        if (!mFlags.incrementalRematch() || (changedPolicies & RANKING_INPUT_POLICIES) != 0) {
+            rematchAllNetworksAndRequests();
+            return;
+        }
+        rematchNetworksAndRequests(getNrisAffectedByNetwork(nai));
+    }
+
     /**
      * Attempt to rematch all Networks with given NetworkRequests.  This may result in Networks
      * being disconnected.
@@ -8820,7 +9243,12 @@ public class ConnectivityService extends IConnectivityManager.Stub
         final long start = SystemClock.elapsedRealtime();
         final NetworkReassignment changes = computeNetworkReassignment(networkRequests);
         final long computed = SystemClock.elapsedRealtime();
-        applyNetworkReassignment(changes, start);
+        final boolean batching = mFlags.batchNetworkCallbacks() && startBatchingCallbacks();
+        try {
+            applyNetworkReassignment(changes, start);
+        } finally {
+            if (batching) sendBatchedCallbacks();
+        }
         final long applied = SystemClock.elapsedRealtime();
         issueNetworkNeeds();
         final long end = SystemClock.elapsedRealtime();
@@ -9183,6 +9611,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
             // A network that has just connected has zero requests and is thus a foreground network.
             networkAgent.networkCapabilities.addCapability(NET_CAPABILITY_FOREGROUND);
+            networkAgent.noteNetworkCapabilitiesModified();
 
             if (!createNativeNetwork(networkAgent)) return;
             if (networkAgent.propagateUnderlyingCapabilities()) {
@@ -9264,7 +9693,7 @@ public class ConnectivityService extends IConnectivityManager.Stub
             networkAgent.setInactive();
 
             // Consider network even though it is not yet validated.
-            rematchAllNetworksAndRequests();
+            rematchNetworksAndRequestsAffectedBy(networkAgent);
 
             // This has to happen after matching the requests, because callbacks are just requests.
             notifyNetworkCallbacks(networkAgent, ConnectivityManager.CALLBACK_PRECHECK);
@@ -9289,8 +9718,9 @@ public class ConnectivityService extends IConnectivityManager.Stub
 
     private void updateNetworkScore(@NonNull final NetworkAgentInfo nai, final NetworkScore score) {
         if (VDBG || DDBG) log("updateNetworkScore for " + nai.toShortString() + " to " + score);
+        final FullScore oldScore = nai.getScore();
         nai.setScore(score);
-        rematchAllNetworksAndRequests();
+        rematchNetworksAndRequestsAffectedBy(nai, oldScore);
     }
 
     // Notify only this one new request of the current state. Transfer all the
@@ -9374,22 +9804,27 @@ public class ConnectivityService extends IConnectivityManager.Stub
      * @param blockedReasons The reasons for why an uid is blocked.
      */
     private void maybeNotifyNetworkBlockedForNewState(int uid, @BlockedReason int blockedReasons) {
+        final int oldBlockedReasons = mUidBlockedReasons.get(uid, BLOCKED_REASON_NONE);
+        if (oldBlockedReasons == blockedReasons) return;
+        // Only the requests filed as this uid can be affected.
+        final ArraySet<NetworkRequestInfo> nris = mNetworkRequestsByUid.get(uid);
+        if (null == nris) return;
+
+        final boolean vpnBlocked = isUidBlockedByVpn(uid, mVpnBlockedUidRanges);
         for (final NetworkAgentInfo nai : mNetworkAgentInfos) {
             final boolean metered = nai.networkCapabilities.isMetered();
-            final boolean vpnBlocked = isUidBlockedByVpn(uid, mVpnBlockedUidRanges);
-
-            final int oldBlockedState = getBlockedState(
-                    mUidBlockedReasons.get(uid, BLOCKED_REASON_NONE), metered, vpnBlocked);
+            final int oldBlockedState = getBlockedState(oldBlockedReasons, metered, vpnBlocked);
             final int newBlockedState = getBlockedState(blockedReasons, metered, vpnBlocked);
             if (oldBlockedState == newBlockedState) {
                 continue;
             }
-            for (int i = 0; i < nai.numNetworkRequests(); i++) {
-                NetworkRequest nr = nai.requestAt(i);
-                NetworkRequestInfo nri = mNetworkRequests.get(nr);
-                if (nri != null && nri.mAsUid == uid) {
-                    callCallbackForRequest(nri, nai, ConnectivityManager.CALLBACK_BLK_CHANGED,
-                            newBlockedState);
+            for (int i = 0; i < nris.size(); i++) {
+                final NetworkRequestInfo nri = nris.valueAt(i);
+                for (final NetworkRequest nr : nri.mRequests) {
+                    if (nai.isSatisfyingRequest(nr.requestId)) {
+                        callCallbackForRequest(nri, nai, ConnectivityManager.CALLBACK_BLK_CHANGED,
+                                newBlockedState);
+                    }
                 }
             }
         }
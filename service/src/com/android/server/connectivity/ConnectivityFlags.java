@@ -33,8 +33,26 @@ public final class ConnectivityFlags {
     public static final String NO_REMATCH_ALL_REQUESTS_ON_REGISTER =
             "no_rematch_all_requests_on_register";
 
+    /**
+     * Minimum module version at which to only rematch the requests that a network can possibly
+     * affect when that network changes, instead of rematching all requests with all networks.
+     */
+    @VisibleForTesting
+    public static final String INCREMENTAL_REMATCH = "incremental_rematch";
+
+    /**
+     * Minimum module version at which to send the network callbacks produced by a rematch to
+     * each app messenger in a single transaction.
+     */
+    @VisibleForTesting
+    public static final String BATCH_NETWORK_CALLBACKS = "batch_network_callbacks";
+
     private boolean mNoRematchAllRequestsOnRegister;
 
+    private boolean mIncrementalRematch;
+
+    private boolean mBatchNetworkCallbacks;
+
     /**
      * Whether ConnectivityService should avoid avoid rematching all requests when a network
      * request is registered, and rematch only the registered requests instead.
@@ -55,6 +73,36 @@ public final class ConnectivityFlags {
         return mNoRematchAllRequestsOnRegister;
     }
 
+    /**
+     * Whether ConnectivityService should only rematch the requests that a network can possibly
+     * affect when that network changes score or capabilities. Disabling this flag falls back to
+     * rematching all requests with all networks, which can be used to verify the results of the
+     * incremental rematch.
+     *
+     * This flag is disabled by default.
+     *
+     * This flag has the same loading and threading properties as
+     * {@link #noRematchAllRequestsOnRegister()} ; as it only controls a performance optimization,
+     * its value does not need to be consistent over time.
+     */
+    public boolean incrementalRematch() {
+        return mIncrementalRematch;
+    }
+
+    /**
+     * Whether ConnectivityService should group the callbacks produced while applying a rematch
+     * by destination messenger and send each group in a single transaction, dropping the
+     * capabilities and link properties updates superseded by a later one in the same group.
+     *
+     * This flag is disabled by default.
+     *
+     * This flag has the same loading and threading properties as
+     * {@link #noRematchAllRequestsOnRegister()}.
+     */
+    public boolean batchNetworkCallbacks() {
+        return mBatchNetworkCallbacks;
+    }
+
     /**
      * Load flag values. Should only be called once, and can only be called once PackageManager is
      * ready.
@@ -62,5 +110,9 @@ public final class ConnectivityFlags {
     public void loadFlags(ConnectivityService.Dependencies deps, Context ctx) {
         mNoRematchAllRequestsOnRegister = deps.isFeatureEnabled(
                 ctx, NO_REMATCH_ALL_REQUESTS_ON_REGISTER, false /* defaultEnabled */);
+        mIncrementalRematch = deps.isFeatureEnabled(
+                ctx, INCREMENTAL_REMATCH, false /* defaultEnabled */);
+        mBatchNetworkCallbacks = deps.isFeatureEnabled(
+                ctx, BATCH_NETWORK_CALLBACKS, false /* defaultEnabled */);
     }
 }
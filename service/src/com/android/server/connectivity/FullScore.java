@@ -285,6 +285,13 @@ public class FullScore {
         return new FullScore(mPolicies | (1L << POLICY_IS_VALIDATED), mKeepConnectedReason);
     }
 
+    /**
+     * @return the bitmask of all the policies of this score, indexed by policy.
+     */
+    public long getPolicies() {
+        return mPolicies;
+    }
+
     /**
      * @return whether this score has a particular policy.
      */
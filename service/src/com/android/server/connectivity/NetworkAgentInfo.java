@@ -28,6 +28,7 @@ import android.annotation.Nullable;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.net.CaptivePortalData;
+import android.net.ConnectivityManager;
 import android.net.DscpPolicy;
 import android.net.IDnsResolver;
 import android.net.INetd;
@@ -60,6 +61,7 @@ import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
 
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.WakeupMessage;
@@ -172,6 +174,19 @@ public class NetworkAgentInfo implements NetworkRanker.Scoreable {
     @NonNull public NetworkCapabilities networkCapabilities;
     @NonNull public final NetworkAgentConfig networkAgentConfig;
 
+    // Generation counters of networkCapabilities and linkProperties, incremented every time they
+    // are replaced or modified. Used to invalidate objects derived from them.
+    private int mCapabilitiesGeneration;
+    private int mLinkPropertiesGeneration;
+
+    // Memoized results of satisfiesCapabilitiesOf, indexed by request ID, for the generation of
+    // the capabilities stored in mSatisfactionMemoGeneration. Only accessed on the handler thread.
+    private final SparseBooleanArray mSatisfactionMemo = new SparseBooleanArray();
+    private int mSatisfactionMemoGeneration;
+
+    // Capabilities and link properties of this network as redacted for callbacks.
+    @NonNull public final RedactedSnapshotCache redactedSnapshots = new RedactedSnapshotCache();
+
     // Underlying networks declared by the agent.
     // The networks in this list might be declared by a VPN using setUnderlyingNetworks and are
     // not guaranteed to be current or correct, or even to exist.
@@ -819,6 +834,7 @@ public class NetworkAgentInfo implements NetworkRanker.Scoreable {
             @NonNull final NetworkCapabilities nc) {
         final NetworkCapabilities oldNc = networkCapabilities;
         networkCapabilities = nc;
+        mCapabilitiesGeneration++;
         mScore = mScore.mixInScore(networkCapabilities, networkAgentConfig, everValidatedForYield(),
                 yieldToBadWiFi(), destroyed);
         final NetworkMonitorManager nm = mNetworkMonitor;
@@ -828,6 +844,38 @@ public class NetworkAgentInfo implements NetworkRanker.Scoreable {
         return oldNc;
     }
 
+    /**
+     * Notes that the NetworkCapabilities of this network were modified in place instead of
+     * being replaced with {@link #getAndSetNetworkCapabilities}.
+     */
+    public synchronized void noteNetworkCapabilitiesModified() {
+        mCapabilitiesGeneration++;
+    }
+
+    /**
+     * Get the generation of the NetworkCapabilities of this network. This changes every time
+     * the capabilities are replaced or modified.
+     */
+    public synchronized int getCapabilitiesGeneration() {
+        return mCapabilitiesGeneration;
+    }
+
+    /**
+     * Set the LinkProperties on this NetworkAgentInfo.
+     */
+    public synchronized void setLinkProperties(@NonNull final LinkProperties lp) {
+        linkProperties = lp;
+        mLinkPropertiesGeneration++;
+    }
+
+    /**
+     * Get the generation of the LinkProperties of this network. This changes every time
+     * the link properties are replaced.
+     */
+    public synchronized int getLinkPropertiesGeneration() {
+        return mLinkPropertiesGeneration;
+    }
+
     private boolean yieldToBadWiFi() {
         // Only cellular networks yield to bad wifi
         return networkCapabilities.hasTransport(TRANSPORT_CELLULAR) && !mConnService.avoidBadWifi();
@@ -983,8 +1031,54 @@ public class NetworkAgentInfo implements NetworkRanker.Scoreable {
 
     // Does this network satisfy request?
     public boolean satisfies(NetworkRequest request) {
-        return created &&
+        return created && satisfiesCapabilitiesOf(request);
+    }
+
+    /**
+     * Whether the capabilities of this network satisfy those of the passed request, regardless
+     * of whether this network has been created.
+     *
+     * Results are memoized by request ID until the capabilities of this network change. This
+     * relies on requests filed with ConnectivityService never being modified and having unique
+     * IDs, so that the ID stands for the generation of the request. Requests without an ID, and
+     * calls made off the handler thread such as from netd event callbacks, are always evaluated.
+     */
+    @Override
+    public boolean satisfiesCapabilitiesOf(@NonNull NetworkRequest request) {
+        if (request.requestId <= ConnectivityManager.REQUEST_ID_UNSET || !isOnHandlerThread()) {
+            return request.networkCapabilities.satisfiedByNetworkCapabilities(
+                    networkCapabilities);
+        }
+        // The capabilities are only replaced or modified on the handler thread.
+        if (mSatisfactionMemoGeneration != mCapabilitiesGeneration) {
+            mSatisfactionMemo.clear();
+            mSatisfactionMemoGeneration = mCapabilitiesGeneration;
+        }
+        final int index = mSatisfactionMemo.indexOfKey(request.requestId);
+        if (index >= 0) return mSatisfactionMemo.valueAt(index);
+        final boolean satisfied =
                 request.networkCapabilities.satisfiedByNetworkCapabilities(networkCapabilities);
+        mSatisfactionMemo.put(request.requestId, satisfied);
+        return satisfied;
+    }
+
+    /**
+     * Forget the memoized satisfaction result for a request, e.g. because it was released.
+     */
+    public void forgetSatisfactionOf(@NonNull NetworkRequest request) {
+        ensureRunningOnHandlerThread();
+        mSatisfactionMemo.delete(request.requestId);
+    }
+
+    private boolean isOnHandlerThread() {
+        return mHandler != null && mHandler.getLooper().getThread() == Thread.currentThread();
+    }
+
+    private void ensureRunningOnHandlerThread() {
+        if (!isOnHandlerThread()) {
+            throw new IllegalStateException(
+                    "Not running on the handler thread: " + Thread.currentThread().getName());
+        }
     }
 
     public boolean satisfiesImmutableCapabilitiesOf(NetworkRequest request) {
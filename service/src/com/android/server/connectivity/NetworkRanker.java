@@ -62,6 +62,10 @@ public class NetworkRanker {
         FullScore getScore();
         /** Get capabilities of this scoreable */
         NetworkCapabilities getCapsNoCopy();
+        /** Whether the capabilities of this scoreable satisfy those of the passed request */
+        default boolean satisfiesCapabilitiesOf(@NonNull NetworkRequest request) {
+            return request.canBeSatisfiedBy(getCapsNoCopy());
+        }
     }
 
     public NetworkRanker() { }
@@ -80,7 +84,7 @@ public class NetworkRanker {
     }
 
     // Transport preference order, if it comes down to that.
-    private static final int[] PREFERRED_TRANSPORTS_ORDER = { TRANSPORT_ETHERNET, TRANSPORT_WIFI,
+    static final int[] PREFERRED_TRANSPORTS_ORDER = { TRANSPORT_ETHERNET, TRANSPORT_WIFI,
             TRANSPORT_BLUETOOTH, TRANSPORT_CELLULAR };
 
     // Function used to partition a list into two working areas depending on whether they
@@ -150,6 +154,10 @@ public class NetworkRanker {
 
     /**
      * Get the best network among a list of candidates according to policy.
+     *
+     * {@link NetworkRankingSnapshot} implements the same policy without allocating ; any change
+     * here must be reflected there.
+     *
      * @param candidates the candidates
      * @param currentSatisfier the current satisfier, or null if none
      * @return the best network
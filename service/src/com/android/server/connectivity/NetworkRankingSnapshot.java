@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
+import static android.net.NetworkScore.POLICY_EXITING;
+import static android.net.NetworkScore.POLICY_TRANSPORT_PRIMARY;
+import static android.net.NetworkScore.POLICY_YIELD_TO_BAD_WIFI;
+
+import static com.android.server.connectivity.FullScore.POLICY_ACCEPT_UNVALIDATED;
+import static com.android.server.connectivity.FullScore.POLICY_EVER_USER_SELECTED;
+import static com.android.server.connectivity.FullScore.POLICY_EVER_VALIDATED_NOT_AVOIDED_WHEN_BAD;
+import static com.android.server.connectivity.FullScore.POLICY_IS_DESTROYED;
+import static com.android.server.connectivity.FullScore.POLICY_IS_INVINCIBLE;
+import static com.android.server.connectivity.FullScore.POLICY_IS_VALIDATED;
+import static com.android.server.connectivity.FullScore.POLICY_IS_VPN;
+import static com.android.server.connectivity.NetworkRanker.PREFERRED_TRANSPORTS_ORDER;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.NetworkRequest;
+
+import com.android.net.module.util.NetworkCapabilitiesUtils;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * A snapshot of a set of networks, that can find the best of them for many requests without
+ * allocating memory.
+ *
+ * The policies and transports of each network are read once when the snapshot is created and
+ * stored as bitmasks, and the ranking works on arrays of indices into the snapshot. This
+ * returns exactly the same results as {@link NetworkRanker#getBestNetwork} and
+ * {@link NetworkRanker#getBestNetworkByPolicy}, which remain the reference implementation :
+ * any change to the ranking policy must be made to both.
+ *
+ * A snapshot is only valid as long as the scores and transports of its networks don't change.
+ * It is meant to be created at the start of a rematch and used for all the requests that
+ * the rematch evaluates. This class is not thread-safe.
+ *
+ * @param <T> the type of the networks to rank.
+ */
+public class NetworkRankingSnapshot<T extends NetworkRanker.Scoreable> {
+    private static final int MATCH_ALL = 0;
+    private static final int MATCH_ANY = 1;
+    private static final int MATCH_NONE = 2;
+
+    @NonNull private final ArrayList<T> mNetworks;
+    // Policies and transports of each network, as bitmasks.
+    @NonNull private final long[] mPolicies;
+    @NonNull private final long[] mTransports;
+
+    // Working areas, containing indices into mNetworks. mCandidates and mAccepted are swapped
+    // when the accepted networks become the new candidates.
+    @NonNull private int[] mCandidates;
+    @NonNull private int[] mAccepted;
+    @NonNull private final int[] mRejected;
+    @NonNull private final int[] mScratch;
+    private int mCandidateCount;
+    private int mAcceptedCount;
+    private int mRejectedCount;
+
+    /**
+     * Create a snapshot of the passed networks.
+     *
+     * When used with NetworkAgentInfos, all networks must have been created, as
+     * {@link NetworkAgentInfo#satisfies} requires.
+     */
+    public NetworkRankingSnapshot(@NonNull final Collection<T> networks) {
+        mNetworks = new ArrayList<>(networks);
+        final int size = mNetworks.size();
+        mPolicies = new long[size];
+        mTransports = new long[size];
+        for (int i = 0; i < size; i++) {
+            final T network = mNetworks.get(i);
+            mPolicies[i] = network.getScore().getPolicies();
+            mTransports[i] = NetworkCapabilitiesUtils.packBits(
+                    network.getCapsNoCopy().getTransportTypes());
+        }
+        mCandidates = new int[size];
+        mAccepted = new int[size];
+        mRejected = new int[size];
+        mScratch = new int[size];
+    }
+
+    /**
+     * Get the number of networks in this snapshot.
+     */
+    public int size() {
+        return mNetworks.size();
+    }
+
+    /**
+     * Find the best network satisfying this request among the networks of this snapshot.
+     *
+     * @see NetworkRanker#getBestNetwork
+     */
+    @Nullable
+    public T getBestNetwork(@NonNull final NetworkRequest request,
+            @Nullable final T currentSatisfier) {
+        mCandidateCount = 0;
+        for (int i = 0; i < mNetworks.size(); i++) {
+            if (mNetworks.get(i).satisfiesCapabilitiesOf(request)) {
+                mCandidates[mCandidateCount++] = i;
+            }
+        }
+        if (mCandidateCount == 1) return mNetworks.get(mCandidates[0]);
+        if (mCandidateCount <= 0) return null;
+        return mNetworks.get(rankCandidates(currentSatisfier));
+    }
+
+    /**
+     * Get the best network of this snapshot according to policy.
+     *
+     * @see NetworkRanker#getBestNetworkByPolicy
+     */
+    @Nullable
+    public T getBestNetworkByPolicy(@Nullable final T currentSatisfier) {
+        if (mNetworks.isEmpty()) return null;
+        for (int i = 0; i < mNetworks.size(); i++) {
+            mCandidates[i] = i;
+        }
+        mCandidateCount = mNetworks.size();
+        return mNetworks.get(rankCandidates(currentSatisfier));
+    }
+
+    private static long bit(final int policy) {
+        return 1L << policy;
+    }
+
+    private static boolean matches(final long value, final long mask, final int mode) {
+        switch (mode) {
+            case MATCH_ALL: return (value & mask) == mask;
+            case MATCH_ANY: return (value & mask) != 0;
+            default: return (value & mask) == 0;
+        }
+    }
+
+    // Partition the candidates into accepted and rejected networks, according to whether
+    // |values| of each of them match |mask| with |mode|. See NetworkRanker#partitionInto.
+    private void partition(@NonNull final long[] values, final long mask, final int mode) {
+        mAcceptedCount = 0;
+        mRejectedCount = 0;
+        for (int i = 0; i < mCandidateCount; i++) {
+            final int n = mCandidates[i];
+            if (matches(values[n], mask, mode)) {
+                mAccepted[mAcceptedCount++] = n;
+            } else {
+                mRejected[mRejectedCount++] = n;
+            }
+        }
+    }
+
+    private void acceptedBecomeCandidates() {
+        final int[] tmp = mCandidates;
+        mCandidates = mAccepted;
+        mAccepted = tmp;
+        mCandidateCount = mAcceptedCount;
+    }
+
+    // Returns the winner if exactly one network was accepted, or -1 otherwise. If some networks
+    // but not all were accepted, the accepted networks become the new candidates.
+    private int keepAccepted() {
+        if (mAcceptedCount == 1) return mAccepted[0];
+        if (mAcceptedCount > 0 && mRejectedCount > 0) acceptedBecomeCandidates();
+        return -1;
+    }
+
+    private boolean isBadWiFi(final int n) {
+        return matches(mPolicies[n], bit(POLICY_EVER_VALIDATED_NOT_AVOIDED_WHEN_BAD), MATCH_ALL)
+                && matches(mTransports[n], bit(TRANSPORT_WIFI), MATCH_ALL);
+    }
+
+    // See NetworkRanker#applyYieldToBadWifiPolicy.
+    private void applyYieldToBadWifiPolicy() {
+        final long yield = bit(POLICY_YIELD_TO_BAD_WIFI);
+        boolean anyYielder = false;
+        boolean allYielders = true;
+        for (int i = 0; i < mAcceptedCount; i++) {
+            final boolean yielder = matches(mPolicies[mAccepted[i]], yield, MATCH_ALL);
+            anyYielder |= yielder;
+            allYielders &= yielder;
+        }
+        // No network with the policy : do nothing.
+        if (!anyYielder) return;
+        boolean anyBadWiFi = false;
+        for (int i = 0; i < mRejectedCount; i++) {
+            if (isBadWiFi(mRejected[i])) {
+                anyBadWiFi = true;
+                break;
+            }
+        }
+        // No bad WiFi : do nothing.
+        if (!anyBadWiFi) return;
+        if (allYielders) {
+            // All validated networks yield to bad WiFis : accept the bad WiFis followed by the
+            // yielders, and reject the rest.
+            final int yielderCount = mAcceptedCount;
+            System.arraycopy(mAccepted, 0, mScratch, 0, yielderCount);
+            mAcceptedCount = 0;
+            int kept = 0;
+            for (int i = 0; i < mRejectedCount; i++) {
+                final int n = mRejected[i];
+                if (isBadWiFi(n)) {
+                    mAccepted[mAcceptedCount++] = n;
+                } else {
+                    mRejected[kept++] = n;
+                }
+            }
+            mRejectedCount = kept;
+            System.arraycopy(mScratch, 0, mAccepted, mAcceptedCount, yielderCount);
+            mAcceptedCount += yielderCount;
+            return;
+        }
+        // Only some of the validated networks yield to bad WiFi : keep only the ones who don't.
+        int kept = 0;
+        mRejectedCount = 0;
+        for (int i = 0; i < mAcceptedCount; i++) {
+            final int n = mAccepted[i];
+            if (matches(mPolicies[n], yield, MATCH_NONE)) {
+                mAccepted[kept++] = n;
+            } else {
+                mRejected[mRejectedCount++] = n;
+            }
+        }
+        mAcceptedCount = kept;
+    }
+
+    private boolean hasSameTransportsAsAnyAccepted(final int n) {
+        for (int i = 0; i < mAcceptedCount; i++) {
+            if (mTransports[mAccepted[i]] == mTransports[n]) return true;
+        }
+        return false;
+    }
+
+    // Rank the networks in mCandidates, of which there must be at least one, and return the
+    // index of the best one. The steps mirror NetworkRanker#getBestNetworkByPolicy ; see the
+    // comments there for the rationale of each of them.
+    private int rankCandidates(@Nullable final T currentSatisfier) {
+        int winner;
+
+        partition(mPolicies, bit(POLICY_IS_INVINCIBLE), MATCH_ALL);
+        if ((winner = keepAccepted()) >= 0) return winner;
+
+        partition(mPolicies, bit(POLICY_IS_VPN), MATCH_ALL);
+        if ((winner = keepAccepted()) >= 0) return winner;
+
+        partition(mPolicies, bit(POLICY_EVER_USER_SELECTED) | bit(POLICY_ACCEPT_UNVALIDATED),
+                MATCH_ALL);
+        if ((winner = keepAccepted()) >= 0) return winner;
+
+        partition(mPolicies, bit(POLICY_IS_VALIDATED) | bit(POLICY_ACCEPT_UNVALIDATED),
+                MATCH_ANY);
+        applyYieldToBadWifiPolicy();
+        if ((winner = keepAccepted()) >= 0) return winner;
+
+        partition(mPolicies, bit(POLICY_EXITING), MATCH_NONE);
+        if ((winner = keepAccepted()) >= 0) return winner;
+
+        partition(mPolicies, bit(POLICY_TRANSPORT_PRIMARY), MATCH_ALL);
+        if (mAcceptedCount > 0) {
+            // Keep the primary networks, and the networks with transports for which there isn't
+            // a primary network.
+            int kept = 0;
+            for (int i = 0; i < mRejectedCount; i++) {
+                final int n = mRejected[i];
+                if (!hasSameTransportsAsAnyAccepted(n)) mRejected[kept++] = n;
+            }
+            System.arraycopy(mRejected, 0, mAccepted, mAcceptedCount, kept);
+            mAcceptedCount += kept;
+            acceptedBecomeCandidates();
+        }
+        if (1 == mCandidateCount) return mCandidates[0];
+
+        for (final int transport : PREFERRED_TRANSPORTS_ORDER) {
+            partition(mTransports, 1L << transport, MATCH_ALL);
+            if (mAcceptedCount == 1) return mAccepted[0];
+            if (mAcceptedCount > 0 && mRejectedCount > 0) {
+                acceptedBecomeCandidates();
+                break;
+            }
+        }
+
+        partition(mPolicies, bit(POLICY_IS_DESTROYED), MATCH_NONE);
+        if ((winner = keepAccepted()) >= 0) return winner;
+
+        if (null != currentSatisfier) {
+            for (int i = 0; i < mCandidateCount; i++) {
+                if (currentSatisfier.equals(mNetworks.get(mCandidates[i]))) return mCandidates[i];
+            }
+        }
+        return mCandidates[0];
+    }
+}
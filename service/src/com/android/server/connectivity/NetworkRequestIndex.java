@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.annotation.NonNull;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.util.ArrayMap;
+
+import com.android.net.module.util.NetworkCapabilitiesUtils;
+
+import java.util.Collection;
+
+/**
+ * An index of network requests by the transports and capabilities they require.
+ *
+ * This is used by ConnectivityService to find the requests that a given network can possibly
+ * satisfy without looking at every registered request. The index only looks at the transports,
+ * the capabilities and the forbidden capabilities of each request, which are cheap to compare
+ * as bitmasks. It is therefore a pre-filter : it never omits a request that the network could
+ * satisfy, but may return requests that the network does not actually satisfy because of other
+ * requirements (UIDs, specifier, signal strength...). Callers still need to check the candidates
+ * with {@link NetworkAgentInfo#satisfies}.
+ *
+ * This class is not thread-safe and is meant to be used on the ConnectivityService thread.
+ *
+ * @param <T> the type of the object owning the requests, e.g. a NetworkRequestInfo.
+ */
+public class NetworkRequestIndex<T> {
+    // Transports are stored in a long in NetworkCapabilities, so there can't be more than this.
+    private static final int MAX_TRANSPORT = Long.SIZE;
+
+    private static final class Entry<T> {
+        @NonNull final T mOwner;
+        final long mCapabilities;
+        final long mForbiddenCapabilities;
+
+        Entry(@NonNull final T owner, final long capabilities, final long forbiddenCapabilities) {
+            mOwner = owner;
+            mCapabilities = capabilities;
+            mForbiddenCapabilities = forbiddenCapabilities;
+        }
+
+        boolean mightBeSatisfiedBy(final long capabilities) {
+            return (capabilities & mCapabilities) == mCapabilities
+                    && (capabilities & mForbiddenCapabilities) == 0;
+        }
+    }
+
+    // Entries for requests that accept any transport.
+    private final ArrayMap<NetworkRequest, Entry<T>> mAnyTransport = new ArrayMap<>();
+    // Entries for requests that accept specific transports, indexed by transport. A request
+    // accepting several transports is present in the bucket of each of them.
+    @SuppressWarnings("unchecked")
+    private final ArrayMap<NetworkRequest, Entry<T>>[] mByTransport = new ArrayMap[MAX_TRANSPORT];
+    private int mSize = 0;
+
+    /**
+     * Add a request to the index.
+     *
+     * The request must not be mutated while it is in the index.
+     *
+     * @param owner the owner of the request, which is returned by {@link #collectCandidates}.
+     * @param request the request to index.
+     */
+    public void add(@NonNull final T owner, @NonNull final NetworkRequest request) {
+        final NetworkCapabilities nc = request.networkCapabilities;
+        final Entry<T> entry = new Entry<>(owner,
+                NetworkCapabilitiesUtils.packBits(nc.getCapabilities()),
+                NetworkCapabilitiesUtils.packBits(nc.getForbiddenCapabilities()));
+        final int[] transports = nc.getTransportTypes();
+        if (transports.length == 0) {
+            if (null == mAnyTransport.put(request, entry)) mSize++;
+            return;
+        }
+        boolean added = false;
+        for (final int transport : transports) {
+            ArrayMap<NetworkRequest, Entry<T>> bucket = mByTransport[transport];
+            if (null == bucket) {
+                bucket = new ArrayMap<>();
+                mByTransport[transport] = bucket;
+            }
+            added |= (null == bucket.put(request, entry));
+        }
+        if (added) mSize++;
+    }
+
+    /**
+     * Remove a request from the index. Does nothing if the request is not in the index.
+     */
+    public void remove(@NonNull final NetworkRequest request) {
+        final int[] transports = request.networkCapabilities.getTransportTypes();
+        if (transports.length == 0) {
+            if (null != mAnyTransport.remove(request)) mSize--;
+            return;
+        }
+        boolean removed = false;
+        for (final int transport : transports) {
+            final ArrayMap<NetworkRequest, Entry<T>> bucket = mByTransport[transport];
+            if (null == bucket) continue;
+            removed |= (null != bucket.remove(request));
+        }
+        if (removed) mSize--;
+    }
+
+    /**
+     * Get the number of requests in this index.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Add to |out| the owners of all requests that might be satisfied by the passed capabilities.
+     *
+     * This is guaranteed to add the owner of every request that is satisfied by the capabilities,
+     * but may also add owners of requests that aren't. Owners already present in |out| are not
+     * added again if |out| is a set.
+     *
+     * @param nc the capabilities of the network to look up.
+     * @param out the collection to add the owners to.
+     */
+    public void collectCandidates(@NonNull final NetworkCapabilities nc,
+            @NonNull final Collection<T> out) {
+        final long capabilities = NetworkCapabilitiesUtils.packBits(nc.getCapabilities());
+        collectFromBucket(mAnyTransport, capabilities, out);
+        for (final int transport : nc.getTransportTypes()) {
+            collectFromBucket(mByTransport[transport], capabilities, out);
+        }
+    }
+
+    private static <T> void collectFromBucket(final ArrayMap<NetworkRequest, Entry<T>> bucket,
+            final long capabilities, @NonNull final Collection<T> out) {
+        if (null == bucket) return;
+        for (int i = 0; i < bucket.size(); i++) {
+            final Entry<T> entry = bucket.valueAt(i);
+            if (entry.mightBeSatisfiedBy(capabilities)) out.add(entry.mOwner);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.net.LinkProperties;
+import android.net.NetworkCapabilities;
+import android.util.LongSparseArray;
+
+/**
+ * A cache of the capabilities and link properties of a network, as redacted for callers.
+ *
+ * When a callback is sent for a network, its capabilities and link properties are redacted
+ * according to the permissions of the receiving app. Many apps have the same permissions, so
+ * the redacted objects can be computed once per set of permissions, identified by a redaction
+ * key computed by ConnectivityService, and shared by all callbacks.
+ *
+ * Entries are tied to the generation of the capabilities or link properties they were computed
+ * from, and are dropped as soon as a different generation is looked up. The objects stored in
+ * this cache are shared and must never be modified.
+ *
+ * This class is not thread-safe and is meant to be used on the ConnectivityService thread.
+ */
+public class RedactedSnapshotCache {
+    private int mCapabilitiesGeneration;
+    private final LongSparseArray<NetworkCapabilities> mCapabilities = new LongSparseArray<>();
+    private int mLinkPropertiesGeneration;
+    private final LongSparseArray<LinkProperties> mLinkProperties = new LongSparseArray<>();
+
+    /**
+     * Get the redacted capabilities for the passed generation and redaction key, if cached.
+     */
+    @Nullable
+    public NetworkCapabilities getCapabilities(final int generation, final long redactionKey) {
+        if (generation != mCapabilitiesGeneration) {
+            mCapabilities.clear();
+            mCapabilitiesGeneration = generation;
+            return null;
+        }
+        return mCapabilities.get(redactionKey);
+    }
+
+    /**
+     * Store the redacted capabilities for the passed generation and redaction key.
+     */
+    public void putCapabilities(final int generation, final long redactionKey,
+            @NonNull final NetworkCapabilities nc) {
+        if (generation != mCapabilitiesGeneration) {
+            mCapabilities.clear();
+            mCapabilitiesGeneration = generation;
+        }
+        mCapabilities.put(redactionKey, nc);
+    }
+
+    /**
+     * Get the redacted link properties for the passed generation and redaction key, if cached.
+     */
+    @Nullable
+    public LinkProperties getLinkProperties(final int generation, final long redactionKey) {
+        if (generation != mLinkPropertiesGeneration) {
+            mLinkProperties.clear();
+            mLinkPropertiesGeneration = generation;
+            return null;
+        }
+        return mLinkProperties.get(redactionKey);
+    }
+
+    /**
+     * Store the redacted link properties for the passed generation and redaction key.
+     */
+    public void putLinkProperties(final int generation, final long redactionKey,
+            @NonNull final LinkProperties lp) {
+        if (generation != mLinkPropertiesGeneration) {
+            mLinkProperties.clear();
+            mLinkPropertiesGeneration = generation;
+        }
+        mLinkProperties.put(redactionKey, lp);
+    }
+
+    /**
+     * Get the number of cached objects, for debugging.
+     */
+    public int size() {
+        return mCapabilities.size() + mLinkProperties.size();
+    }
+}
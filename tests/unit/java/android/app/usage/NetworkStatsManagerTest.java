@@ -16,19 +16,23 @@
 
 package android.app.usage;
 
+import static android.net.ConnectivityManager.TYPE_MOBILE;
 import static android.net.NetworkStats.METERED_YES;
 import static android.net.NetworkTemplate.MATCH_MOBILE;
 import static android.net.NetworkTemplate.MATCH_WIFI;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 
 import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
@@ -37,10 +41,16 @@ import static org.mockito.Mockito.when;
 import android.net.ConnectivityManager;
 import android.net.INetworkStatsService;
 import android.net.INetworkStatsSession;
+import android.net.NetworkIdentity;
+import android.net.NetworkIdentitySet;
 import android.net.NetworkStats.Entry;
+import android.net.NetworkStatsAccess;
+import android.net.NetworkStatsCollection;
 import android.net.NetworkStatsHistory;
 import android.net.NetworkTemplate;
 import android.os.Build;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
 import android.os.RemoteException;
 
 import androidx.test.InstrumentationRegistry;
@@ -56,6 +66,8 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 import org.mockito.invocation.InvocationOnMock;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Set;
 
 @RunWith(DevSdkIgnoreRunner.class)
@@ -241,19 +253,132 @@ public class NetworkStatsManagerTest {
 
         reset(mStatsSession);
         when(mService.openSessionForUsageStats(anyInt(), anyString())).thenReturn(mStatsSession);
-        when(mStatsSession.getTaggedSummaryForAllUid(any(NetworkTemplate.class),
+        when(mStatsSession.openTaggedSummaryStreamForAllUid(any(NetworkTemplate.class),
                 anyLong(), anyLong()))
-                .thenReturn(new android.net.NetworkStats(0, 0));
+                .thenReturn(makeSummaryStream(null /* collection */, null /* template */,
+                        startTime, endTime));
         final NetworkTemplate template = new NetworkTemplate.Builder(NetworkTemplate.MATCH_MOBILE)
                 .setMeteredness(NetworkStats.Bucket.METERED_YES).build();
         NetworkStats stats = mManager.queryTaggedSummary(template, startTime, endTime);
 
-        verify(mStatsSession, times(1)).getTaggedSummaryForAllUid(
+        verify(mStatsSession, times(1)).openTaggedSummaryStreamForAllUid(
                 eq(template), eq(startTime), eq(endTime));
 
         assertFalse(stats.hasNextBucket());
     }
 
+    @Test
+    public void testQuerySummary_combinesStreamedRows() throws Exception {
+        final long startTime = 0;
+        final long endTime = HOUR_IN_MILLIS;
+        final int uid1 = 10001;
+        final int uid2 = 10002;
+        final NetworkTemplate template = new NetworkTemplate.Builder(NetworkTemplate.MATCH_MOBILE)
+                .setMeteredness(NetworkStats.Bucket.METERED_YES).build();
+
+        // The service streams one row per identity, which the client must combine.
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet ident1 = makeMobileIdentSet("310001");
+        final NetworkIdentitySet ident2 = makeMobileIdentSet("310002");
+        final Entry entry = new Entry(null /* iface */, 0 /* uid */,
+                android.net.NetworkStats.SET_DEFAULT, android.net.NetworkStats.TAG_NONE,
+                android.net.NetworkStats.METERED_YES, android.net.NetworkStats.ROAMING_NO,
+                android.net.NetworkStats.DEFAULT_NETWORK_NO, 100, 10, 200, 20, 0);
+        collection.recordData(ident1, uid1, android.net.NetworkStats.SET_DEFAULT,
+                android.net.NetworkStats.TAG_NONE, 1000, 2000, entry);
+        collection.recordData(ident2, uid1, android.net.NetworkStats.SET_DEFAULT,
+                android.net.NetworkStats.TAG_NONE, 1000, 2000, entry);
+        collection.recordData(ident2, uid2, android.net.NetworkStats.SET_DEFAULT,
+                android.net.NetworkStats.TAG_NONE, 1000, 2000, entry);
+
+        reset(mStatsSession);
+        when(mService.openSessionForUsageStats(anyInt(), anyString())).thenReturn(mStatsSession);
+        when(mStatsSession.openSummaryStreamForAllUid(any(NetworkTemplate.class),
+                anyLong(), anyLong(), eq(false)))
+                .thenReturn(makeSummaryStream(collection, template, startTime, endTime));
+        final NetworkStats stats = mManager.querySummary(template, startTime, endTime);
+
+        verify(mStatsSession, times(1)).openSummaryStreamForAllUid(
+                eq(template), eq(startTime), eq(endTime), eq(false));
+
+        final NetworkStats.Bucket bucket = new NetworkStats.Bucket();
+        long uid1RxBytes = 0;
+        long uid2RxBytes = 0;
+        int buckets = 0;
+        while (stats.getNextBucket(bucket)) {
+            buckets++;
+            assertEquals(startTime, bucket.getStartTimeStamp());
+            assertEquals(endTime, bucket.getEndTimeStamp());
+            if (bucket.getUid() == uid1) uid1RxBytes += bucket.getRxBytes();
+            if (bucket.getUid() == uid2) uid2RxBytes += bucket.getRxBytes();
+        }
+        assertEquals(2, buckets);
+        assertEquals(200, uid1RxBytes);
+        assertEquals(100, uid2RxBytes);
+    }
+
+    @Test
+    public void testQuerySummaryForUser_aggregatesStreamedRows() throws Exception {
+        final long startTime = 0;
+        final long endTime = HOUR_IN_MILLIS;
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkIdentitySet ident = makeMobileIdentSet(TEST_SUBSCRIBER_ID);
+        final Entry entry = new Entry(null /* iface */, 0 /* uid */,
+                android.net.NetworkStats.SET_DEFAULT, android.net.NetworkStats.TAG_NONE,
+                android.net.NetworkStats.METERED_YES, android.net.NetworkStats.ROAMING_NO,
+                android.net.NetworkStats.DEFAULT_NETWORK_NO, 100, 10, 200, 20, 0);
+        collection.recordData(ident, 10001, android.net.NetworkStats.SET_DEFAULT,
+                android.net.NetworkStats.TAG_NONE, 1000, 2000, entry);
+        collection.recordData(ident, 10002, android.net.NetworkStats.SET_FOREGROUND,
+                android.net.NetworkStats.TAG_NONE, 1000, 2000, entry);
+
+        reset(mStatsSession);
+        when(mService.openSessionForUsageStats(anyInt(), anyString())).thenReturn(mStatsSession);
+        when(mStatsSession.openSummaryStreamForAllUid(any(NetworkTemplate.class),
+                anyLong(), anyLong(), eq(false)))
+                .thenReturn(makeSummaryStream(collection, new NetworkTemplate.Builder(
+                        NetworkTemplate.MATCH_MOBILE).build(), startTime, endTime));
+        final NetworkStats.Bucket bucket = mManager.querySummaryForUser(
+                ConnectivityManager.TYPE_MOBILE, TEST_SUBSCRIBER_ID, startTime, endTime);
+
+        assertEquals(200, bucket.getRxBytes());
+        assertEquals(20, bucket.getRxPackets());
+        assertEquals(400, bucket.getTxBytes());
+        assertEquals(40, bucket.getTxPackets());
+        verify(mStatsSession, never()).getSummaryForAllUid(any(NetworkTemplate.class),
+                anyLong(), anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void testQuerySummary_fallsBackWhenStreamUnavailable() throws Exception {
+        final long startTime = 1;
+        final long endTime = 100;
+        final android.net.NetworkStats summary = new android.net.NetworkStats(0L, 1)
+                .insertEntry(android.net.NetworkStats.IFACE_ALL, 10001,
+                        android.net.NetworkStats.SET_DEFAULT, android.net.NetworkStats.TAG_NONE,
+                        100, 10, 200, 20, 0);
+
+        reset(mStatsSession);
+        when(mService.openSessionForUsageStats(anyInt(), anyString())).thenReturn(mStatsSession);
+        // The service cannot stream the summary, e.g. because too many streams are open.
+        when(mStatsSession.openSummaryStreamForAllUid(any(NetworkTemplate.class),
+                anyLong(), anyLong(), anyBoolean())).thenReturn(null);
+        when(mStatsSession.getSummaryForAllUid(any(NetworkTemplate.class),
+                anyLong(), anyLong(), anyBoolean())).thenReturn(summary);
+        final NetworkTemplate template = new NetworkTemplate.Builder(NetworkTemplate.MATCH_MOBILE)
+                .setMeteredness(NetworkStats.Bucket.METERED_YES).build();
+        final NetworkStats stats = mManager.querySummary(template, startTime, endTime);
+
+        verify(mStatsSession, times(1)).getSummaryForAllUid(
+                eq(template), eq(startTime), eq(endTime), eq(false));
+        final NetworkStats.Bucket bucket = new NetworkStats.Bucket();
+        assertTrue(stats.getNextBucket(bucket));
+        assertEquals(10001, bucket.getUid());
+        assertEquals(100, bucket.getRxBytes());
+        assertEquals(200, bucket.getTxBytes());
+        assertFalse(stats.hasNextBucket());
+    }
+
 
     @Test
     public void testQueryDetailsForDevice() throws Exception {
@@ -275,6 +400,35 @@ public class NetworkStatsManagerTest {
         assertFalse(stats.hasNextBucket());
     }
 
+    private static NetworkIdentitySet makeMobileIdentSet(String subscriberId) {
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity.Builder().setType(TYPE_MOBILE)
+                .setSubscriberId(subscriberId).setMetered(true).build());
+        return identSet;
+    }
+
+    /**
+     * Returns a stream of the summary of the passed collection, as the service would, or an
+     * empty summary if the collection is null. The summary must fit in the pipe buffer.
+     */
+    private static ParcelFileDescriptor makeSummaryStream(NetworkStatsCollection collection,
+            NetworkTemplate template, long start, long end) throws IOException {
+        final ParcelFileDescriptor[] pipe = ParcelFileDescriptor.createPipe();
+        try (DataOutputStream out = new DataOutputStream(
+                new ParcelFileDescriptor.AutoCloseOutputStream(pipe[1]))) {
+            if (collection != null) {
+                final NetworkStatsCollection.SummaryCursor cursor = collection.openSummaryCursor(
+                        template, start, end, NetworkStatsAccess.Level.DEVICE,
+                        Process.SYSTEM_UID);
+                while (cursor.hasNext()) {
+                    cursor.writePage(out, 1 /* maxKeys */);
+                }
+            }
+            NetworkStatsCollection.writeSummaryEnd(out);
+        }
+        return pipe[0];
+    }
+
     private void assertBucketMatches(Entry expected, NetworkStats.Bucket actual) {
         assertEquals(expected.uid, actual.getUid());
         assertEquals(expected.rxBytes, actual.getRxBytes());
@@ -51,6 +51,7 @@ import static org.mockito.Mockito.CALLS_REAL_METHODS;
 import static org.mockito.Mockito.after;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyInt;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.reset;
@@ -81,10 +82,12 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
@@ -294,6 +297,38 @@ public class ConnectivityManagerTest {
         verify(mService, times(1)).releaseNetworkRequest(req2);
     }
 
+    @Test
+    public void testCallbackBatch() throws Exception {
+        ConnectivityManager manager = new ConnectivityManager(mCtx, mService);
+        NetworkRequest request = makeRequest(1);
+        NetworkCallback callback = mock(ConnectivityManager.NetworkCallback.class,
+                CALLS_REAL_METHODS);
+        Handler handler = new Handler(Looper.getMainLooper());
+        ArgumentCaptor<Messenger> captor = ArgumentCaptor.forClass(Messenger.class);
+
+        when(mService.requestNetwork(anyInt(), any(), anyInt(), captor.capture(), anyInt(), any(),
+                anyInt(), anyInt(), any(), nullable(String.class))).thenReturn(request);
+        manager.requestNetwork(request, callback, handler);
+
+        // A batch is unpacked and its callbacks delivered in order.
+        final ArrayList<Message> messages = new ArrayList<>();
+        messages.add(makeMessage(request, ConnectivityManager.CALLBACK_AVAILABLE));
+        messages.add(makeMessage(request, ConnectivityManager.CALLBACK_LOSING));
+        messages.add(makeMessage(request, ConnectivityManager.CALLBACK_LOST));
+        final Bundle bundle = new Bundle();
+        bundle.putParcelableArrayList(ConnectivityManager.KEY_BATCHED_CALLBACKS, messages);
+        final Message batch = Message.obtain();
+        batch.what = ConnectivityManager.CALLBACK_BATCH;
+        batch.setData(bundle);
+        captor.getValue().send(batch);
+
+        final InOrder inOrder = inOrder(callback);
+        inOrder.verify(callback, timeout(TIMEOUT_MS)).onAvailable(any(Network.class),
+                any(NetworkCapabilities.class), any(LinkProperties.class), anyBoolean());
+        inOrder.verify(callback, timeout(TIMEOUT_MS)).onLosing(any(Network.class), anyInt());
+        inOrder.verify(callback, timeout(TIMEOUT_MS)).onLost(any(Network.class));
+    }
+
     // TODO: turn on this test when request  callback 1:1 mapping is enforced
     //@Test
     private void noDoubleCallbackRegistration() throws Exception {
@@ -28,6 +28,7 @@ import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.TrafficStats.UID_REMOVED;
 import static android.os.Process.myUid;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
@@ -94,6 +95,8 @@ public class NetworkStatsCollectionTest {
     private static final String TEST_FILE = "test.bin";
     private static final String TEST_IMSI = "310260000000000";
     private static final int TEST_SUBID = 1;
+    private static final String OTHER_IMSI = "310260000000001";
+    private static final int OTHER_SUBID = 2;
 
     private static final long TIME_A = 1326088800000L; // UTC: Monday 9th January 2012 06:00:00 AM
     private static final long TIME_B = 1326110400000L; // UTC: Monday 9th January 2012 12:00:00 PM
@@ -621,6 +624,104 @@ public class NetworkStatsCollectionTest {
         assertEquals(0, collection.getEntries().size());
     }
 
+    @Test
+    public void testQueriesFollowKeyChanges() {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = buildMobileIdentSet(TEST_IMSI, TEST_SUBID);
+        final NetworkIdentitySet otherIdentSet = buildMobileIdentSet(OTHER_IMSI, OTHER_SUBID);
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        final NetworkTemplate otherTemplate = buildTemplateMobileAll(OTHER_IMSI);
+        final int uid = Process.myUid();
+        final int otherUid = Process.myUid() + 1;
+
+        entry.rxBytes = 1;
+        collection.recordData(identSet, uid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 2;
+        collection.recordData(identSet, uid, SET_DEFAULT, 0xF00D, 0, HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 4;
+        collection.recordData(identSet, otherUid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                entry);
+        assertHistoryTotal(collection, template, uid, TAG_NONE, 1);
+        assertHistoryTotal(collection, template, uid, 0xF00D, 2);
+        assertHistoryTotal(collection, template, otherUid, TAG_NONE, 4);
+        assertHistoryTotal(collection, otherTemplate, uid, TAG_NONE, 0);
+        assertSummaryTotalIncludingTags(collection, template, 1 + 2 + 4, 0, 0, 0);
+        assertSummaryTotalIncludingTags(collection, otherTemplate, 0, 0, 0, 0);
+
+        // A new identity set must be visible to templates that were already queried.
+        entry.rxBytes = 8;
+        collection.recordData(otherIdentSet, uid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                entry);
+        assertHistoryTotal(collection, template, uid, TAG_NONE, 1);
+        assertHistoryTotal(collection, otherTemplate, uid, TAG_NONE, 8);
+        assertSummaryTotalIncludingTags(collection, otherTemplate, 8, 0, 0, 0);
+
+        // Removed uids are moved to UID_REMOVED, except for their tagged data.
+        collection.removeUids(new int[] { uid });
+        assertHistoryTotal(collection, template, uid, TAG_NONE, 0);
+        assertHistoryTotal(collection, template, uid, 0xF00D, 0);
+        assertHistoryTotal(collection, template, UID_REMOVED, TAG_NONE, 1);
+        assertHistoryTotal(collection, otherTemplate, UID_REMOVED, TAG_NONE, 8);
+        assertSummaryTotalIncludingTags(collection, template, 1 + 4, 0, 0, 0);
+
+        collection.removeHistoryBefore(Long.MAX_VALUE);
+        assertHistoryTotal(collection, template, otherUid, TAG_NONE, 0);
+        assertSummaryTotalIncludingTags(collection, template, 0, 0, 0, 0);
+        assertSummaryTotalIncludingTags(collection, otherTemplate, 0, 0, 0, 0);
+
+        // Data can be recorded again once all keys are gone.
+        entry.rxBytes = 16;
+        collection.recordData(otherIdentSet, uid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                entry);
+        assertHistoryTotal(collection, otherTemplate, uid, TAG_NONE, 16);
+        assertSummaryTotalIncludingTags(collection, template, 0, 0, 0, 0);
+        assertSummaryTotalIncludingTags(collection, otherTemplate, 16, 0, 0, 0);
+    }
+
+    @Test
+    public void testSummaryWithLargeAndSmallMatchSets() {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        final NetworkIdentitySet identSet = buildMobileIdentSet(TEST_IMSI, TEST_SUBID);
+        final NetworkIdentitySet otherIdentSet = buildMobileIdentSet(OTHER_IMSI, OTHER_SUBID);
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        final NetworkTemplate otherTemplate = buildTemplateMobileAll(OTHER_IMSI);
+        final int numUids = 10;
+
+        // Most keys match template, which is answered by scanning all keys, while few keys
+        // match otherTemplate, which is answered using the index.
+        entry.rxBytes = 1;
+        for (int i = 0; i < numUids; i++) {
+            collection.recordData(identSet, Process.myUid() + i, SET_DEFAULT, TAG_NONE, 0,
+                    HOUR_IN_MILLIS, entry);
+        }
+        entry.rxBytes = 100;
+        collection.recordData(otherIdentSet, Process.myUid(), SET_DEFAULT, TAG_NONE, 0,
+                HOUR_IN_MILLIS, entry);
+
+        final NetworkStats summary = collection.getSummary(template, Long.MIN_VALUE,
+                Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE, myUid());
+        assertEquals(numUids, summary.size());
+        assertSummaryTotalIncludingTags(collection, template, numUids, 0, 0, 0);
+        assertSummaryTotalIncludingTags(collection, otherTemplate, 100, 0, 0, 0);
+    }
+
+    private static NetworkIdentitySet buildMobileIdentSet(String subscriberId, int subId) {
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                subscriberId, null, false, true, true, OEM_NONE, subId));
+        return identSet;
+    }
+
+    private static void assertHistoryTotal(NetworkStatsCollection collection,
+            NetworkTemplate template, int uid, int tag, long rxBytes) {
+        final NetworkStatsHistory history = collection.getHistory(template, null, uid, SET_ALL,
+                tag, FIELD_ALL, Long.MIN_VALUE, Long.MAX_VALUE, NetworkStatsAccess.Level.DEVICE,
+                myUid());
+        assertEquals(rxBytes, history.getTotalBytes());
+    }
+
     /**
      * Copy a {@link Resources#openRawResource(int)} into {@link File} for
      * testing purposes.
@@ -560,6 +560,82 @@ public class NetworkStatsHistoryTest {
         assertEquals(512L + 4096L, stats.getTotalBytes());
     }
 
+    @Test
+    public void testLongRangeValues() throws Exception {
+        // 90 days of hourly buckets, where bucket i has i + 1 rx bytes.
+        final int bucketCount = 90 * 24;
+        stats = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        for (int i = 0; i < bucketCount; i++) {
+            final long start = TEST_START + i * HOUR_IN_MILLIS;
+            stats.recordData(start, start + HOUR_IN_MILLIS,
+                    new NetworkStats.Entry(IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE,
+                    METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, i + 1, 0L, 2L, 0L, 0L));
+        }
+        assertEquals(bucketCount, stats.size());
+
+        // Whole buckets [10, 1010)
+        assertValues(stats, TEST_START + 10 * HOUR_IN_MILLIS, TEST_START + 1010 * HOUR_IN_MILLIS,
+                sumOfRange(11, 1010), 2000L);
+        // Half of bucket 9, whole buckets [10, 1010), half of bucket 1010
+        assertValues(stats, TEST_START + 9 * HOUR_IN_MILLIS + HOUR_IN_MILLIS / 2,
+                TEST_START + 1010 * HOUR_IN_MILLIS + HOUR_IN_MILLIS / 2,
+                5L + sumOfRange(11, 1010) + 505L, 2002L);
+        assertFullValues(stats, bucketCount * HOUR_IN_MILLIS, sumOfRange(1, bucketCount), 0L,
+                2L * bucketCount, 0L, 0L);
+
+        // Buckets starting after now are not counted.
+        final NetworkStatsHistory.Entry entry = stats.getValues(Long.MIN_VALUE, Long.MAX_VALUE,
+                TEST_START + 100 * HOUR_IN_MILLIS + HOUR_IN_MILLIS / 2, null);
+        assertEquals(sumOfRange(1, 101), entry.rxBytes);
+
+        // Sums are updated after recording in old buckets, inserting buckets and removing them.
+        stats.recordData(TEST_START + 20 * HOUR_IN_MILLIS, TEST_START + 21 * HOUR_IN_MILLIS,
+                new NetworkStats.Entry(IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO, 1000L, 0L, 0L, 0L, 0L));
+        assertValues(stats, TEST_START + 10 * HOUR_IN_MILLIS, TEST_START + 1010 * HOUR_IN_MILLIS,
+                sumOfRange(11, 1010) + 1000L, 2000L);
+        stats.recordData(TEST_START - HOUR_IN_MILLIS, TEST_START,
+                new NetworkStats.Entry(IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_NO, 7L, 0L, 0L, 0L, 0L));
+        assertValues(stats, TEST_START - HOUR_IN_MILLIS, TEST_START + 1000 * HOUR_IN_MILLIS,
+                7L + sumOfRange(1, 1000) + 1000L, 2000L);
+        stats.removeBucketsStartingBefore(TEST_START + 500 * HOUR_IN_MILLIS);
+        assertValues(stats, Long.MIN_VALUE, Long.MAX_VALUE, sumOfRange(501, bucketCount),
+                2L * (bucketCount - 500));
+    }
+
+    @Test
+    public void testLongRangeValuesWhileRecording() throws Exception {
+        // Hourly buckets, where bucket i has i + 1 rx bytes, recorded the way polls do : the
+        // active bucket is written to several times, and queried in between.
+        stats = new NetworkStatsHistory(HOUR_IN_MILLIS);
+        for (int i = 0; i < 150; i++) {
+            final long start = TEST_START + i * HOUR_IN_MILLIS;
+            final long now = start + 30 * MINUTE_IN_MILLIS;
+            stats.recordData(start, start + 10 * MINUTE_IN_MILLIS,
+                    new NetworkStats.Entry(IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE,
+                    METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, i, 0L, 0L, 0L, 0L));
+            assertEquals(sumOfRange(1, i) + i,
+                    stats.getValues(TEST_START, Long.MAX_VALUE, now, null).rxBytes);
+            stats.recordData(start + 10 * MINUTE_IN_MILLIS, start + 20 * MINUTE_IN_MILLIS,
+                    new NetworkStats.Entry(IFACE_ALL, UID_ALL, SET_DEFAULT, TAG_NONE,
+                    METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO, 1L, 0L, 0L, 0L, 0L));
+            assertEquals(sumOfRange(1, i + 1),
+                    stats.getValues(TEST_START, Long.MAX_VALUE, now, null).rxBytes);
+            // A range starting and ending in the middle of buckets, away from block boundaries.
+            if (i >= 60) {
+                assertEquals(5L + sumOfRange(11, i - 5) + (i - 4) / 2,
+                        stats.getValues(TEST_START + 9 * HOUR_IN_MILLIS + HOUR_IN_MILLIS / 2,
+                        TEST_START + (i - 5) * HOUR_IN_MILLIS + HOUR_IN_MILLIS / 2, now,
+                        null).rxBytes);
+            }
+        }
+    }
+
+    private static long sumOfRange(long first, long last) {
+        return (first + last) * (last - first + 1) / 2;
+    }
+
     private static void assertIndexBeforeAfter(
             NetworkStatsHistory stats, int before, int after, long time) {
         assertEquals("unexpected before", before, stats.getIndexBefore(time));
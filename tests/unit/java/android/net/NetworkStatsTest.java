@@ -36,11 +36,16 @@ import static android.net.NetworkStats.TAG_ALL;
 import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 
+import static com.android.testutils.ParcelUtils.parcelingRoundTrip;
+
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
+import android.os.BadParcelableException;
 import android.os.Build;
+import android.os.Parcel;
 import android.os.Process;
 import android.util.ArrayMap;
 
@@ -54,10 +59,14 @@ import com.google.android.collect.Sets;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
 
 @RunWith(DevSdkIgnoreRunner.class)
 @SmallTest
@@ -1067,6 +1076,342 @@ public class NetworkStatsTest {
         }
     }
 
+    @Test
+    public void testCopyFrom() {
+        final NetworkStats source = makeLargeStats(50, 10L, false /* reversed */);
+        final NetworkStats copy = new NetworkStats(0L, -1);
+        copy.copyFrom(source);
+        assertEquals(source.size(), copy.size());
+        assertEquals(source.getElapsedRealtime(), copy.getElapsedRealtime());
+        for (int i = 0; i < source.size(); i++) {
+            assertEquals(source.getValues(i, null), copy.getValues(i, null));
+        }
+
+        // The copy is independent from the source, and its index is valid after the source
+        // index is built and copied.
+        source.findIndex(TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES);
+        final NetworkStats smaller = makeLargeStats(40, 20L, true /* reversed */);
+        smaller.findIndex(TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES);
+        copy.copyFrom(smaller);
+        assertEquals(80, copy.size());
+        assertContains(copy, TEST_IFACE2, 10000, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 40L, 2L, 40L, 2L, 0L);
+        assertEquals(-1, copy.findIndex(TEST_IFACE, 10045, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_YES));
+        copy.combineValues(new NetworkStats.Entry(TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES, 1L, 1L, 1L, 1L, 0L));
+        assertContains(copy, TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_YES, 21L, 2L, 21L, 2L, 0L);
+        assertContains(smaller, TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_YES, 20L, 1L, 20L, 1L, 0L);
+        assertContains(source, TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_YES, 10L, 1L, 10L, 1L, 0L);
+    }
+
+    @Test
+    public void testParcelInterfaces() {
+        final NetworkStats stats = new NetworkStats(TEST_START, 4)
+                .insertEntry(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                        DEFAULT_NETWORK_YES, 1024L, 8L, 0L, 0L, 10)
+                .insertEntry(IFACE_ALL, 101, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                        DEFAULT_NETWORK_NO, 0L, 0L, 1024L, 8L, 11)
+                .insertEntry(TEST_IFACE2, 102, SET_DEFAULT, TAG_NONE, METERED_YES, ROAMING_NO,
+                        DEFAULT_NETWORK_YES, 0L, 0L, 1024L, 8L, 12)
+                .insertEntry(TEST_IFACE, 103, SET_FOREGROUND, TAG_NONE, METERED_NO, ROAMING_NO,
+                        DEFAULT_NETWORK_NO, 1024L, 8L, 1024L, 8L, 13);
+
+        final NetworkStats parceled = parcelingRoundTrip(stats);
+        assertEquals(stats.size(), parceled.size());
+        for (int i = 0; i < stats.size(); i++) {
+            assertEquals(stats.getValues(i, null), parceled.getValues(i, null));
+        }
+        final HashSet<String> ifaces = new HashSet<>(Arrays.asList(parceled.getUniqueIfaces()));
+        assertEquals(Sets.newHashSet(TEST_IFACE, TEST_IFACE2), ifaces);
+    }
+
+    @Test
+    public void testIfaceDictionary() {
+        final String iface = "testdict" + System.nanoTime();
+        assertEquals(NetworkStatsIfaceDictionary.ID_UNKNOWN,
+                NetworkStatsIfaceDictionary.findId(iface));
+        final int id = NetworkStatsIfaceDictionary.getId(iface);
+        assertEquals(id, NetworkStatsIfaceDictionary.getId(new String(iface)));
+        assertEquals(id, NetworkStatsIfaceDictionary.findId(iface));
+        assertEquals(iface, NetworkStatsIfaceDictionary.getName(id));
+        assertEquals(NetworkStatsIfaceDictionary.ID_IFACE_ALL,
+                NetworkStatsIfaceDictionary.getId(IFACE_ALL));
+        assertEquals(IFACE_ALL,
+                NetworkStatsIfaceDictionary.getName(NetworkStatsIfaceDictionary.ID_IFACE_ALL));
+
+        // Looking up a row on an unknown interface doesn't add it to the dictionary.
+        final String unknownIface = "testunknown" + System.nanoTime();
+        assertEquals(-1, new NetworkStats(TEST_START, 1).findIndex(unknownIface, TEST_UID,
+                SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_NO));
+        assertEquals(NetworkStatsIfaceDictionary.ID_UNKNOWN,
+                NetworkStatsIfaceDictionary.findId(unknownIface));
+    }
+
+    @Test
+    public void testParcelWithInvalidInterfaceIndex() {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeLong(TEST_START);
+            parcel.writeInt(1 /* size */);
+            parcel.writeInt(1 /* capacity */);
+            parcel.writeStringArray(new String[] { TEST_IFACE });
+            parcel.writeIntArray(new int[] { 1 });
+            parcel.setDataPosition(0);
+            assertThrows(BadParcelableException.class, () -> new NetworkStats(parcel));
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Test
+    public void testIfaceFieldIsPopulated() throws Exception {
+        // Some apps read the interfaces from the iface field by reflection.
+        final Field ifaceField = NetworkStats.class.getDeclaredField("iface");
+        ifaceField.setAccessible(true);
+        final NetworkStats stats = new NetworkStats(TEST_START, 2)
+                .insertEntry(TEST_IFACE, 100, SET_DEFAULT, TAG_NONE, 1024L, 8L, 0L, 0L, 0L)
+                .insertEntry(TEST_IFACE2, 101, SET_DEFAULT, TAG_NONE, 1024L, 8L, 0L, 0L, 0L);
+        final String[] ifaces = (String[]) ifaceField.get(stats);
+        assertEquals(TEST_IFACE, ifaces[0]);
+        assertEquals(TEST_IFACE2, ifaces[1]);
+
+        final String[] parceledIfaces = (String[]) ifaceField.get(parcelingRoundTrip(stats));
+        assertEquals(TEST_IFACE, parceledIfaces[0]);
+        assertEquals(TEST_IFACE2, parceledIfaces[1]);
+
+        stats.filter(UID_ALL, new String[] { TEST_IFACE2 }, TAG_ALL);
+        assertEquals(TEST_IFACE2, ((String[]) ifaceField.get(stats))[0]);
+    }
+
+    private static NetworkStats makeLargeStats(int numUids, long bytes, boolean reversed) {
+        final NetworkStats stats = new NetworkStats(TEST_START, 2 * numUids);
+        for (int i = 0; i < numUids; i++) {
+            final int uid = 10000 + (reversed ? numUids - 1 - i : i);
+            stats.insertEntry(TEST_IFACE, uid, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                    DEFAULT_NETWORK_YES, bytes, 1L, bytes, 1L, 0L);
+            stats.insertEntry(TEST_IFACE2, uid, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                    DEFAULT_NETWORK_YES, 2 * bytes, 2L, 2 * bytes, 2L, 0L);
+        }
+        return stats;
+    }
+
+    @Test
+    public void testRowIndex_FindIndex() {
+        final int numUids = 100;
+        final NetworkStats stats = makeLargeStats(numUids, 1L, false /* reversed */);
+        for (int i = 0; i < stats.size(); i++) {
+            final NetworkStats.Entry entry = stats.getValues(i, null);
+            assertEquals(i, stats.findIndex(entry.iface, entry.uid, entry.set, entry.tag,
+                    entry.metered, entry.roaming, entry.defaultNetwork));
+        }
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 10000 + numUids, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES));
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE,
+                METERED_YES, ROAMING_NO, DEFAULT_NETWORK_YES));
+
+        // Rows inserted after the index is built, including enough of them to grow it, can be
+        // found.
+        for (int i = 0; i < 3 * numUids; i++) {
+            stats.insertEntry(TEST_IFACE, i, SET_FOREGROUND, TAG_NONE, METERED_NO, ROAMING_NO,
+                    DEFAULT_NETWORK_YES, 1L, 1L, 1L, 1L, 0L);
+        }
+        assertEquals(2 * numUids + 42, stats.findIndex(TEST_IFACE, 42, SET_FOREGROUND, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES));
+        assertEquals(2 * numUids + 42, stats.findIndexHinted(TEST_IFACE, 42, SET_FOREGROUND,
+                TAG_NONE, METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES, 7));
+
+        // With duplicate keys, the first row is found, or the closest one to the hint.
+        final int dupIndex = stats.size();
+        stats.insertEntry(TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 1L, 1L, 1L, 1L, 0L);
+        assertEquals(0, stats.findIndex(TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_YES));
+        assertEquals(dupIndex, stats.findIndexHinted(TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES, dupIndex));
+        assertEquals(0, stats.findIndexHinted(TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES, 1));
+    }
+
+    @Test
+    public void testRowIndex_CombineAndSubtract() {
+        final int numUids = 500;
+        final NetworkStats before = makeLargeStats(numUids, 10L, false /* reversed */);
+        final NetworkStats after = makeLargeStats(numUids, 10L, true /* reversed */);
+        after.combineAllValues(makeLargeStats(numUids, 5L, false /* reversed */));
+        after.insertEntry(TEST_IFACE, 42, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 3L, 3L, 3L, 3L, 0L);
+        assertEquals(2 * numUids + 1, after.size());
+        assertContains(after, TEST_IFACE2, 10000, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 30L, 4L, 30L, 4L, 0L);
+
+        final NetworkStats delta = after.subtract(before);
+        assertEquals(2 * numUids + 1, delta.size());
+        for (int i = 0; i < numUids; i++) {
+            assertContains(delta, TEST_IFACE, 10000 + i, SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_YES, 5L, 1L, 5L, 1L, 0L);
+            assertContains(delta, TEST_IFACE2, 10000 + i, SET_DEFAULT, TAG_NONE, METERED_NO,
+                    ROAMING_NO, DEFAULT_NETWORK_YES, 10L, 2L, 10L, 2L, 0L);
+        }
+        assertContains(delta, TEST_IFACE, 42, SET_DEFAULT, TAG_NONE, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 3L, 3L, 3L, 3L, 0L);
+
+        // The results are the same as with linear scans.
+        final NetworkStats linearBefore = makeLargeStats(numUids, 10L, false /* reversed */);
+        linearBefore.setRowIndexEnabled(false);
+        final NetworkStats linearAfter = after.clone();
+        linearAfter.setRowIndexEnabled(false);
+        final NetworkStats linearDelta = linearAfter.subtract(linearBefore);
+        for (int i = 0; i < delta.size(); i++) {
+            assertEquals(linearDelta.getValues(i, null), delta.getValues(i, null));
+        }
+
+        // A recycled result doesn't keep the index of its previous contents.
+        final NetworkStats recycled = NetworkStats.subtract(before, before, null, null, delta);
+        assertEquals(2 * numUids, recycled.size());
+        assertEquals(-1, recycled.findIndex(TEST_IFACE, 42, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_YES));
+        assertContains(recycled, TEST_IFACE2, 10001, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_YES, 0L, 0L, 0L, 0L, 0L);
+    }
+
+    @Test
+    public void testRowIndex_Grouped() {
+        final int numUids = 200;
+        final NetworkStats stats = makeLargeStats(numUids, 10L, false /* reversed */);
+        final NetworkStats byUid = stats.groupedByUid();
+        assertEquals(numUids, byUid.size());
+        assertContains(byUid, IFACE_ALL, 10123, SET_ALL, TAG_NONE, METERED_ALL, ROAMING_ALL,
+                DEFAULT_NETWORK_ALL, 30L, 3L, 30L, 3L, 0L);
+
+        final NetworkStats byIface = stats.groupedByIface();
+        assertEquals(2, byIface.size());
+        assertContains(byIface, TEST_IFACE2, UID_ALL, SET_ALL, TAG_NONE, METERED_ALL,
+                ROAMING_ALL, DEFAULT_NETWORK_ALL, 20L * numUids, 2L * numUids, 20L * numUids,
+                2L * numUids, 0L);
+    }
+
+    @Test
+    public void testRowIndex_InvalidatedByMutations() {
+        final int numUids = 100;
+        final NetworkStats stats = makeLargeStats(numUids, 10L, false /* reversed */);
+        assertEquals(2 * 50 + 1, stats.findIndex(TEST_IFACE2, 10050, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES));
+
+        stats.filter(UID_ALL, new String[] { TEST_IFACE2 }, TAG_ALL);
+        assertEquals(numUids, stats.size());
+        assertEquals(50, stats.findIndex(TEST_IFACE2, 10050, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES));
+        assertEquals(-1, stats.findIndex(TEST_IFACE, 10050, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES));
+
+        stats.clearInterfaces();
+        assertEquals(50, stats.findIndex(null, 10050, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES));
+        assertEquals(-1, stats.findIndex(TEST_IFACE2, 10050, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES));
+
+        stats.clear();
+        assertEquals(-1, stats.findIndex(null, 10050, SET_DEFAULT, TAG_NONE,
+                METERED_NO, ROAMING_NO, DEFAULT_NETWORK_YES));
+    }
+
+    private static NetworkStats makeShuffledStats(List<NetworkStats.Entry> entries, long seed) {
+        final List<NetworkStats.Entry> shuffled = new ArrayList<>(entries);
+        Collections.shuffle(shuffled, new Random(seed));
+        final NetworkStats stats = new NetworkStats(TEST_START, shuffled.size());
+        for (NetworkStats.Entry entry : shuffled) {
+            stats.insertEntry(entry);
+        }
+        return stats;
+    }
+
+    private static NetworkStats.Entry makeEntry(String iface, int uid, int set, int tag,
+            long bytes) {
+        return new NetworkStats.Entry(iface, uid, set, tag, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES, bytes, bytes / 10, bytes, bytes / 10, 0L);
+    }
+
+    @Test
+    public void testRowIndex_SubtractUnorderedMatchesLinearScan() {
+        final String[] ifaces = { TEST_IFACE, TEST_IFACE2 };
+        final int[] sets = { SET_DEFAULT, SET_FOREGROUND };
+        final int[] tags = { TAG_NONE, 0xF00D };
+        final List<NetworkStats.Entry> beforeEntries = new ArrayList<>();
+        final List<NetworkStats.Entry> afterEntries = new ArrayList<>();
+        int key = 0;
+        for (int uid = 10000; uid < 10300; uid++) {
+            for (String iface : ifaces) {
+                for (int set : sets) {
+                    for (int tag : tags) {
+                        key++;
+                        // Some rows are new, some have gone away and some went backwards.
+                        if (key % 7 != 0) {
+                            beforeEntries.add(makeEntry(iface, uid, set, tag, 100L * key));
+                        }
+                        if (key % 13 != 0) {
+                            final long bytes = (key % 11 == 0) ? 50L * key : 300L * key;
+                            afterEntries.add(makeEntry(iface, uid, set, tag, bytes));
+                        }
+                    }
+                }
+            }
+        }
+        // A duplicate key, so that the row closest to the hint has to be picked.
+        beforeEntries.add(makeEntry(TEST_IFACE, 10042, SET_DEFAULT, TAG_NONE, 1L));
+
+        final NetworkStats indexedBefore = makeShuffledStats(beforeEntries, 1L);
+        final NetworkStats indexedAfter = makeShuffledStats(afterEntries, 2L);
+        final NetworkStats linearBefore = makeShuffledStats(beforeEntries, 1L);
+        final NetworkStats linearAfter = makeShuffledStats(afterEntries, 2L);
+        linearBefore.setRowIndexEnabled(false);
+        linearAfter.setRowIndexEnabled(false);
+
+        final ArrayList<Integer> indexedNonMonotonic = new ArrayList<>();
+        final ArrayList<Integer> linearNonMonotonic = new ArrayList<>();
+        final NetworkStats indexedDelta = NetworkStats.subtract(indexedAfter, indexedBefore,
+                new RecordingObserver(indexedNonMonotonic), null);
+        final NetworkStats linearDelta = NetworkStats.subtract(linearAfter, linearBefore,
+                new RecordingObserver(linearNonMonotonic), null);
+
+        assertEquals(afterEntries.size(), indexedDelta.size());
+        assertEquals(linearDelta.size(), indexedDelta.size());
+        for (int i = 0; i < indexedDelta.size(); i++) {
+            assertEquals(linearDelta.getValues(i, null), indexedDelta.getValues(i, null));
+        }
+        assertContains(indexedDelta, TEST_IFACE, 10000, SET_DEFAULT, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_YES, 200L, 20L, 200L, 20L, 0L);
+        assertContains(indexedDelta, TEST_IFACE2, 10000, SET_FOREGROUND, TAG_NONE, METERED_NO,
+                ROAMING_NO, DEFAULT_NETWORK_YES, 2100L, 210L, 2100L, 210L, 0L);
+        assertFalse(indexedNonMonotonic.isEmpty());
+        assertEquals(linearNonMonotonic, indexedNonMonotonic);
+    }
+
+    private static class RecordingObserver implements NetworkStats.NonMonotonicObserver<Object> {
+        private final List<Integer> mFound;
+
+        RecordingObserver(List<Integer> found) {
+            mFound = found;
+        }
+
+        @Override
+        public void foundNonMonotonic(NetworkStats left, int leftIndex, NetworkStats right,
+                int rightIndex, Object cookie) {
+            mFound.add(leftIndex);
+            mFound.add(rightIndex);
+        }
+
+        @Override
+        public void foundNonMonotonic(NetworkStats stats, int statsIndex, Object cookie) {
+            mFound.add(statsIndex);
+        }
+    }
+
     private static void assertContains(NetworkStats stats,  String iface, int uid, int set,
             int tag, int metered, int roaming, int defaultNetwork, long rxBytes, long rxPackets,
             long txBytes, long txPackets, long operations) {
@@ -50,6 +50,7 @@ import android.content.Context;
 import android.net.INetd;
 import android.os.Build;
 import android.os.ServiceSpecificException;
+import android.util.SparseArray;
 
 import androidx.test.filters.SmallTest;
 
@@ -129,6 +130,18 @@ public final class BpfNetMapsTest {
         verify(mNetd).trafficSetNetPermForUids(PERMISSION_INTERNET, TEST_UIDS);
     }
 
+    // Write to the maps directly, as if the entries were not written by BpfNetMaps.
+    private void setUidOwnerValue(final int uid, final long iif, final long match)
+            throws Exception {
+        mUidOwnerMap.updateEntry(new U32(uid), new UidOwnerValue(iif, match));
+        BpfNetMaps.invalidateShadowsForTest();
+    }
+
+    private void setUidRulesConfiguration(final long config) throws Exception {
+        mConfigurationMap.updateEntry(UID_RULES_CONFIGURATION_KEY, new U32(config));
+        BpfNetMaps.invalidateShadowsForTest();
+    }
+
     private long getMatch(final List<Integer> chains) {
         long match = 0;
         for (final int chain: chains) {
@@ -138,7 +151,7 @@ public final class BpfNetMapsTest {
     }
 
     private void doTestIsChainEnabled(final List<Integer> enableChains) throws Exception {
-        mConfigurationMap.updateEntry(UID_RULES_CONFIGURATION_KEY, new U32(getMatch(enableChains)));
+        setUidRulesConfiguration(getMatch(enableChains));
 
         for (final int chain: FIREWALL_CHAINS) {
             final String testCase = "EnabledChains: " + enableChains + " CheckedChain: " + chain;
@@ -224,7 +237,7 @@ public final class BpfNetMapsTest {
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.S_V2)
     public void testSetChildChain() throws Exception {
-        mConfigurationMap.updateEntry(UID_RULES_CONFIGURATION_KEY, new U32(0));
+        setUidRulesConfiguration(0);
         doTestSetChildChain(FIREWALL_CHAIN_DOZABLE);
         doTestSetChildChain(FIREWALL_CHAIN_STANDBY);
         doTestSetChildChain(FIREWALL_CHAIN_POWERSAVE);
@@ -238,7 +251,7 @@ public final class BpfNetMapsTest {
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.S_V2)
     public void testSetChildChainMultipleChain() throws Exception {
-        mConfigurationMap.updateEntry(UID_RULES_CONFIGURATION_KEY, new U32(0));
+        setUidRulesConfiguration(0);
         doTestSetChildChain(List.of(
                 FIREWALL_CHAIN_DOZABLE,
                 FIREWALL_CHAIN_STANDBY));
@@ -279,7 +292,7 @@ public final class BpfNetMapsTest {
     }
 
     private void doTestRemoveNaughtyApp(final long iif, final long match) throws Exception {
-        mUidOwnerMap.updateEntry(new U32(TEST_UID), new UidOwnerValue(iif, match));
+        setUidOwnerValue(TEST_UID, iif, match);
 
         mBpfNetMaps.removeNaughtyApp(TEST_UID);
 
@@ -318,7 +331,7 @@ public final class BpfNetMapsTest {
 
     private void doTestAddNaughtyApp(final long iif, final long match) throws Exception {
         if (match != NO_MATCH) {
-            mUidOwnerMap.updateEntry(new U32(TEST_UID), new UidOwnerValue(iif, match));
+            setUidOwnerValue(TEST_UID, iif, match);
         }
 
         mBpfNetMaps.addNaughtyApp(TEST_UID);
@@ -349,7 +362,7 @@ public final class BpfNetMapsTest {
     }
 
     private void doTestRemoveNiceApp(final long iif, final long match) throws Exception {
-        mUidOwnerMap.updateEntry(new U32(TEST_UID), new UidOwnerValue(iif, match));
+        setUidOwnerValue(TEST_UID, iif, match);
 
         mBpfNetMaps.removeNiceApp(TEST_UID);
 
@@ -388,7 +401,7 @@ public final class BpfNetMapsTest {
 
     private void doTestAddNiceApp(final long iif, final long match) throws Exception {
         if (match != NO_MATCH) {
-            mUidOwnerMap.updateEntry(new U32(TEST_UID), new UidOwnerValue(iif, match));
+            setUidOwnerValue(TEST_UID, iif, match);
         }
 
         mBpfNetMaps.addNiceApp(TEST_UID);
@@ -421,7 +434,7 @@ public final class BpfNetMapsTest {
     private void doTestUpdateUidLockdownRule(final long iif, final long match, final boolean add)
             throws Exception {
         if (match != NO_MATCH) {
-            mUidOwnerMap.updateEntry(new U32(TEST_UID), new UidOwnerValue(iif, match));
+            setUidOwnerValue(TEST_UID, iif, match);
         }
 
         mBpfNetMaps.updateUidLockdownRule(TEST_UID, add);
@@ -491,8 +504,8 @@ public final class BpfNetMapsTest {
         final int uid1 = TEST_UIDS[1];
         final long match0 = DOZABLE_MATCH;
         final long match1 = DOZABLE_MATCH | POWERSAVE_MATCH | RESTRICTED_MATCH;
-        mUidOwnerMap.updateEntry(new U32(uid0), new UidOwnerValue(NO_IIF, match0));
-        mUidOwnerMap.updateEntry(new U32(uid1), new UidOwnerValue(NO_IIF, match1));
+        setUidOwnerValue(uid0, NO_IIF, match0);
+        setUidOwnerValue(uid1, NO_IIF, match1);
 
         mBpfNetMaps.addUidInterfaceRules(TEST_IF_NAME, TEST_UIDS);
 
@@ -507,8 +520,8 @@ public final class BpfNetMapsTest {
         final int uid1 = TEST_UIDS[1];
         final long match0 = IIF_MATCH;
         final long match1 = IIF_MATCH | DOZABLE_MATCH | POWERSAVE_MATCH | RESTRICTED_MATCH;
-        mUidOwnerMap.updateEntry(new U32(uid0), new UidOwnerValue(TEST_IF_INDEX + 1, match0));
-        mUidOwnerMap.updateEntry(new U32(uid1), new UidOwnerValue(NULL_IIF, match1));
+        setUidOwnerValue(uid0, TEST_IF_INDEX + 1, match0);
+        setUidOwnerValue(uid1, NULL_IIF, match1);
 
         mBpfNetMaps.addUidInterfaceRules(TEST_IF_NAME, TEST_UIDS);
 
@@ -531,8 +544,8 @@ public final class BpfNetMapsTest {
         final int uid1 = TEST_UIDS[1];
         final long match0 = IIF_MATCH;
         final long match1 = IIF_MATCH | DOZABLE_MATCH | POWERSAVE_MATCH | RESTRICTED_MATCH;
-        mUidOwnerMap.updateEntry(new U32(uid0), new UidOwnerValue(TEST_IF_INDEX, match0));
-        mUidOwnerMap.updateEntry(new U32(uid1), new UidOwnerValue(NULL_IIF, match1));
+        setUidOwnerValue(uid0, TEST_IF_INDEX, match0);
+        setUidOwnerValue(uid1, NULL_IIF, match1);
 
         mBpfNetMaps.addUidInterfaceRules(null /* ifName */, TEST_UIDS);
 
@@ -544,8 +557,8 @@ public final class BpfNetMapsTest {
             final long iif1, final long match1) throws Exception {
         final int uid0 = TEST_UIDS[0];
         final int uid1 = TEST_UIDS[1];
-        mUidOwnerMap.updateEntry(new U32(uid0), new UidOwnerValue(iif0, match0));
-        mUidOwnerMap.updateEntry(new U32(uid1), new UidOwnerValue(iif1, match1));
+        setUidOwnerValue(uid0, iif0, match0);
+        setUidOwnerValue(uid1, iif1, match1);
 
         mBpfNetMaps.removeUidInterfaceRules(TEST_UIDS);
 
@@ -568,7 +581,7 @@ public final class BpfNetMapsTest {
     }
 
     private void doTestSetUidRule(final List<Integer> testChains) throws Exception {
-        mUidOwnerMap.updateEntry(new U32(TEST_UID), new UidOwnerValue(TEST_IF_INDEX, IIF_MATCH));
+        setUidOwnerValue(TEST_UID, TEST_IF_INDEX, IIF_MATCH);
 
         for (final int chain: testChains) {
             final int ruleToAddMatch = mBpfNetMaps.isFirewallAllowList(chain)
@@ -672,8 +685,8 @@ public final class BpfNetMapsTest {
         final int uid1 = TEST_UIDS[1];
         final long match0 = POWERSAVE_MATCH;
         final long match1 = POWERSAVE_MATCH | RESTRICTED_MATCH;
-        mUidOwnerMap.updateEntry(new U32(uid0), new UidOwnerValue(NO_IIF, match0));
-        mUidOwnerMap.updateEntry(new U32(uid1), new UidOwnerValue(NO_IIF, match1));
+        setUidOwnerValue(uid0, NO_IIF, match0);
+        setUidOwnerValue(uid1, NO_IIF, match1);
 
         mBpfNetMaps.replaceUidChain(FIREWALL_CHAIN_DOZABLE, new int[]{uid1});
 
@@ -688,8 +701,8 @@ public final class BpfNetMapsTest {
         final int uid1 = TEST_UIDS[1];
         final long match0 = IIF_MATCH;
         final long match1 = IIF_MATCH | POWERSAVE_MATCH | RESTRICTED_MATCH;
-        mUidOwnerMap.updateEntry(new U32(uid0), new UidOwnerValue(TEST_IF_INDEX, match0));
-        mUidOwnerMap.updateEntry(new U32(uid1), new UidOwnerValue(NULL_IIF, match1));
+        setUidOwnerValue(uid0, TEST_IF_INDEX, match0);
+        setUidOwnerValue(uid1, NULL_IIF, match1);
 
         mBpfNetMaps.replaceUidChain(FIREWALL_CHAIN_DOZABLE, TEST_UIDS);
 
@@ -704,8 +717,8 @@ public final class BpfNetMapsTest {
         final int uid1 = TEST_UIDS[1];
         final long match0 = IIF_MATCH | DOZABLE_MATCH;
         final long match1 = IIF_MATCH | POWERSAVE_MATCH | RESTRICTED_MATCH;
-        mUidOwnerMap.updateEntry(new U32(uid0), new UidOwnerValue(TEST_IF_INDEX, match0));
-        mUidOwnerMap.updateEntry(new U32(uid1), new UidOwnerValue(NULL_IIF, match1));
+        setUidOwnerValue(uid0, TEST_IF_INDEX, match0);
+        setUidOwnerValue(uid1, NULL_IIF, match1);
 
         mBpfNetMaps.replaceUidChain(FIREWALL_CHAIN_DOZABLE, new int[]{uid1});
 
@@ -713,6 +726,76 @@ public final class BpfNetMapsTest {
         checkUidOwnerValue(uid1, NULL_IIF, match1 | DOZABLE_MATCH);
     }
 
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.S_V2)
+    public void testReplaceUidChainAfterSetUidRule() throws Exception {
+        final int uid0 = TEST_UIDS[0];
+        final int uid1 = TEST_UIDS[1];
+        mBpfNetMaps.replaceUidChain(FIREWALL_CHAIN_DOZABLE, new int[]{uid0, uid0});
+        mBpfNetMaps.setUidRule(FIREWALL_CHAIN_DOZABLE, uid1, FIREWALL_RULE_ALLOW);
+        mBpfNetMaps.setUidRule(FIREWALL_CHAIN_POWERSAVE, TEST_UID, FIREWALL_RULE_ALLOW);
+        checkUidOwnerValue(uid1, NO_IIF, DOZABLE_MATCH);
+
+        // Rules set since the last replace are taken into account.
+        mBpfNetMaps.replaceUidChain(FIREWALL_CHAIN_DOZABLE, new int[]{TEST_UID});
+
+        checkUidOwnerValue(uid0, NO_IIF, NO_MATCH);
+        checkUidOwnerValue(uid1, NO_IIF, NO_MATCH);
+        checkUidOwnerValue(TEST_UID, NO_IIF, POWERSAVE_MATCH | DOZABLE_MATCH);
+    }
+
+    @Test
+    public void testComputeChainDeltaOnlyWritesChangedEntries() {
+        final SparseArray<UidOwnerValue> shadow = new SparseArray<>();
+        shadow.put(10001, new UidOwnerValue(NO_IIF, DOZABLE_MATCH));
+        shadow.put(10002, new UidOwnerValue(TEST_IF_INDEX, IIF_MATCH | DOZABLE_MATCH));
+        shadow.put(10003, new UidOwnerValue(NO_IIF, POWERSAVE_MATCH));
+        shadow.put(10004, new UidOwnerValue(NO_IIF, DOZABLE_MATCH));
+        final int[] sortedUids = {10001, 10003, 10005};
+        final int[] outUids = new int[shadow.size() + sortedUids.length];
+        final UidOwnerValue[] outValues = new UidOwnerValue[outUids.length];
+
+        final int count = BpfNetMaps.computeChainDelta(shadow, DOZABLE_MATCH, sortedUids,
+                outUids, outValues);
+
+        // 10001 already has the match and is not written.
+        assertEquals(4, count);
+        assertEquals(10002, outUids[0]);
+        assertEquals(TEST_IF_INDEX, outValues[0].iif);
+        assertEquals(IIF_MATCH, outValues[0].rule);
+        assertEquals(10003, outUids[1]);
+        assertEquals(POWERSAVE_MATCH | DOZABLE_MATCH, outValues[1].rule);
+        assertEquals(10004, outUids[2]);
+        assertNull(outValues[2]);
+        assertEquals(10005, outUids[3]);
+        assertEquals(DOZABLE_MATCH, outValues[3].rule);
+    }
+
+    @Test
+    @IgnoreUpTo(Build.VERSION_CODES.S_V2)
+    public void testShadowsServeReadsAndDetectDivergence() throws Exception {
+        setUidRulesConfiguration(0);
+        mBpfNetMaps.setChildChain(FIREWALL_CHAIN_DOZABLE, true /* enable */);
+        mBpfNetMaps.setUidRule(FIREWALL_CHAIN_DOZABLE, TEST_UID, FIREWALL_RULE_ALLOW);
+        assertEquals(0, BpfNetMaps.checkShadows());
+
+        // Writes that do not go through BpfNetMaps are not seen until the next check.
+        mConfigurationMap.updateEntry(UID_RULES_CONFIGURATION_KEY, new U32(0));
+        mUidOwnerMap.deleteEntry(new U32(TEST_UID));
+        mUidOwnerMap.updateEntry(new U32(TEST_UIDS[0]), new UidOwnerValue(NO_IIF, DOZABLE_MATCH));
+        assertTrue(mBpfNetMaps.isChainEnabled(FIREWALL_CHAIN_DOZABLE));
+
+        assertEquals(3, BpfNetMaps.checkShadows());
+        assertFalse(mBpfNetMaps.isChainEnabled(FIREWALL_CHAIN_DOZABLE));
+        assertEquals(0, BpfNetMaps.checkShadows());
+
+        // The shadows were reloaded from the maps.
+        mBpfNetMaps.setUidRule(FIREWALL_CHAIN_DOZABLE, TEST_UIDS[0], FIREWALL_RULE_DENY);
+        checkUidOwnerValue(TEST_UIDS[0], NO_IIF, NO_MATCH);
+        assertThrows(ServiceSpecificException.class, () ->
+                mBpfNetMaps.setUidRule(FIREWALL_CHAIN_DOZABLE, TEST_UID, FIREWALL_RULE_DENY));
+    }
+
     @Test
     @IgnoreUpTo(Build.VERSION_CODES.S_V2)
     public void testReplaceUidChainInvalidChain() {
@@ -49,6 +49,8 @@ import static android.net.ConnectivityManager.BLOCKED_METERED_REASON_MASK;
 import static android.net.ConnectivityManager.BLOCKED_METERED_REASON_USER_RESTRICTED;
 import static android.net.ConnectivityManager.BLOCKED_REASON_BATTERY_SAVER;
 import static android.net.ConnectivityManager.BLOCKED_REASON_NONE;
+import static android.net.ConnectivityManager.CALLBACK_AVAILABLE;
+import static android.net.ConnectivityManager.CALLBACK_BATCH;
 import static android.net.ConnectivityManager.CONNECTIVITY_ACTION;
 import static android.net.ConnectivityManager.EXTRA_NETWORK_INFO;
 import static android.net.ConnectivityManager.EXTRA_NETWORK_TYPE;
@@ -63,6 +65,7 @@ import static android.net.ConnectivityManager.FIREWALL_CHAIN_STANDBY;
 import static android.net.ConnectivityManager.FIREWALL_RULE_ALLOW;
 import static android.net.ConnectivityManager.FIREWALL_RULE_DEFAULT;
 import static android.net.ConnectivityManager.FIREWALL_RULE_DENY;
+import static android.net.ConnectivityManager.KEY_BATCHED_CALLBACKS;
 import static android.net.ConnectivityManager.PROFILE_NETWORK_PREFERENCE_DEFAULT;
 import static android.net.ConnectivityManager.PROFILE_NETWORK_PREFERENCE_ENTERPRISE;
 import static android.net.ConnectivityManager.PROFILE_NETWORK_PREFERENCE_ENTERPRISE_NO_FALLBACK;
@@ -146,6 +149,7 @@ import static android.net.resolv.aidl.IDnsResolverUnsolicitedEventListener.VALID
 import static android.os.Process.INVALID_UID;
 import static android.system.OsConstants.IPPROTO_TCP;
 
+import static com.android.server.ConnectivityService.MAX_BATCHED_CALLBACKS;
 import static com.android.server.ConnectivityService.MAX_NETWORK_REQUESTS_PER_SYSTEM_UID;
 import static com.android.server.ConnectivityService.PREFERENCE_ORDER_MOBILE_DATA_PREFERERRED;
 import static com.android.server.ConnectivityService.PREFERENCE_ORDER_OEM;
@@ -314,8 +318,10 @@ import android.os.ConditionVariable;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.IMessenger;
 import android.os.INetworkManagementService;
 import android.os.Looper;
+import android.os.Message;
 import android.os.Messenger;
 import android.os.Parcel;
 import android.os.ParcelFileDescriptor;
@@ -2041,6 +2047,8 @@ public class ConnectivityServiceTest {
         public boolean isFeatureEnabled(Context context, String name, boolean defaultEnabled) {
             switch (name) {
                 case ConnectivityFlags.NO_REMATCH_ALL_REQUESTS_ON_REGISTER:
+                case ConnectivityFlags.INCREMENTAL_REMATCH:
+                case ConnectivityFlags.BATCH_NETWORK_CALLBACKS:
                     return true;
                 default:
                     return super.isFeatureEnabled(context, name, defaultEnabled);
@@ -2578,6 +2586,87 @@ public class ConnectivityServiceTest {
         // After waitForIdle(), the message was processed and the service didn't crash.
     }
 
+    // Records the callbacks sent to a messenger, as well as the size of the batches.
+    private static class CallbackRecorder extends IMessenger.Stub {
+        private final boolean mFailBatches;
+        private final ArrayList<Integer> mBatchSizes = new ArrayList<>();
+        private final ArrayList<Message> mMessages = new ArrayList<>();
+
+        CallbackRecorder(final boolean failBatches) {
+            mFailBatches = failBatches;
+        }
+
+        @Override
+        public synchronized void send(final Message msg) throws RemoteException {
+            if (msg.what != CALLBACK_BATCH) {
+                mMessages.add(msg);
+                return;
+            }
+            final ArrayList<Message> batch =
+                    msg.getData().getParcelableArrayList(KEY_BATCHED_CALLBACKS);
+            mBatchSizes.add(batch.size());
+            if (mFailBatches) throw new RemoteException("Failing batch for test");
+            mMessages.addAll(batch);
+        }
+
+        synchronized List<Integer> getBatchSizes() {
+            return new ArrayList<>(mBatchSizes);
+        }
+
+        synchronized int countCallbacks(final int what) {
+            int count = 0;
+            for (final Message msg : mMessages) {
+                if (msg.what == what) count++;
+            }
+            return count;
+        }
+    }
+
+    private void doTestBatchedCallbacks(final boolean failBatches) throws Exception {
+        final CallbackRecorder recorder = new CallbackRecorder(failBatches);
+        final Messenger messenger = new Messenger(recorder);
+        final NetworkCapabilities caps = new NetworkCapabilities.Builder()
+                .addTransportType(TRANSPORT_WIFI)
+                .build();
+        final int numRequests = MAX_BATCHED_CALLBACKS + 5;
+        final ArrayList<NetworkRequest> requests = new ArrayList<>();
+        for (int i = 0; i < numRequests; i++) {
+            requests.add(mService.listenForNetwork(caps, messenger, new Binder(),
+                    NetworkCallback.FLAG_NONE, mContext.getOpPackageName(),
+                    mContext.getAttributionTag()));
+        }
+        waitForIdle();
+
+        mWiFiNetworkAgent = new TestNetworkAgentWrapper(TRANSPORT_WIFI);
+        mWiFiNetworkAgent.connect(false);
+        waitForIdle();
+
+        // The callbacks of the rematch are split in batches that are not too large.
+        final List<Integer> batchSizes = recorder.getBatchSizes();
+        assertTrue("Expected several batches, got " + batchSizes, batchSizes.size() >= 2);
+        for (final int size : batchSizes) {
+            assertTrue("Batch too large: " + size, size <= MAX_BATCHED_CALLBACKS);
+        }
+        // And all of them are delivered, even if the batches can't be sent.
+        assertEquals(numRequests, recorder.countCallbacks(CALLBACK_AVAILABLE));
+
+        for (final NetworkRequest request : requests) {
+            mService.releaseNetworkRequest(request);
+        }
+        mWiFiNetworkAgent.disconnect();
+        waitForIdle();
+    }
+
+    @Test
+    public void testBatchedCallbacksAreSplit() throws Exception {
+        doTestBatchedCallbacks(false /* failBatches */);
+    }
+
+    @Test
+    public void testBatchedCallbacksSentIndividuallyIfBatchFails() throws Exception {
+        doTestBatchedCallbacks(true /* failBatches */);
+    }
+
     // TODO : migrate to @Parameterized
     @Test
     public void testValidatedCellularOutscoresUnvalidatedWiFi_CanTimeShare() throws Exception {
@@ -8931,6 +9020,42 @@ public class ConnectivityServiceTest {
         mCm.unregisterNetworkCallback(defaultCallback);
     }
 
+    @Test
+    public void testNetworkBlockedStatusBurstIsCoalesced() throws Exception {
+        final NetworkRequest cellRequest = new NetworkRequest.Builder()
+                .addTransportType(TRANSPORT_CELLULAR)
+                .build();
+        final TestNetworkCallback cellNetworkCallback = new TestNetworkCallback();
+        mCm.registerNetworkCallback(cellRequest, cellNetworkCallback);
+        mockUidNetworkingBlocked();
+
+        mCellNetworkAgent = new TestNetworkAgentWrapper(TRANSPORT_CELLULAR);
+        mCellNetworkAgent.connect(true);
+        cellNetworkCallback.expectAvailableThenValidatedCallbacks(mCellNetworkAgent);
+
+        // Hold the handler thread while a burst of uid rule changes is received. Only the
+        // latest state of each uid is applied, so intermediate states are not notified, and
+        // changes to other uids do not affect this callback.
+        final ConditionVariable handlerBlocked = new ConditionVariable();
+        mCsHandlerThread.getThreadHandler().post(() -> handlerBlocked.block(TIMEOUT_MS));
+        setBlockedReasonChanged(BLOCKED_REASON_BATTERY_SAVER);
+        mPolicyCallback.onUidBlockedReasonChanged(Process.myUid() + 1,
+                BLOCKED_REASON_BATTERY_SAVER);
+        setBlockedReasonChanged(BLOCKED_REASON_NONE);
+        setBlockedReasonChanged(BLOCKED_METERED_REASON_DATA_SAVER);
+        handlerBlocked.open();
+
+        cellNetworkCallback.expectBlockedStatusCallback(true, mCellNetworkAgent);
+        waitForIdle();
+        cellNetworkCallback.assertNoCallback();
+
+        // Changes received after the batch was processed are still delivered.
+        setBlockedReasonChanged(BLOCKED_REASON_NONE);
+        cellNetworkCallback.expectBlockedStatusCallback(false, mCellNetworkAgent);
+
+        mCm.unregisterNetworkCallback(cellNetworkCallback);
+    }
+
     private void expectNetworkRejectNonSecureVpn(InOrder inOrder, boolean add,
             UidRangeParcel... expected) throws Exception {
         inOrder.verify(mMockNetd).networkRejectNonSecureVpn(eq(add), aryEq(expected));
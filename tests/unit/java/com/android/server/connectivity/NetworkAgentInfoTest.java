@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity;
+
+import static android.net.ConnectivityManager.REQUEST_ID_UNSET;
+import static android.net.ConnectivityManager.TYPE_NONE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED;
+import static android.net.NetworkCapabilities.TRANSPORT_WIFI;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.net.ConnectivityResources;
+import android.net.IDnsResolver;
+import android.net.INetd;
+import android.net.LinkProperties;
+import android.net.Network;
+import android.net.NetworkAgentConfig;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkProvider;
+import android.net.NetworkRequest;
+import android.net.NetworkScore;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+
+import androidx.test.filters.SmallTest;
+
+import com.android.server.ConnectivityService;
+import com.android.testutils.DevSdkIgnoreRule;
+import com.android.testutils.DevSdkIgnoreRunner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+@RunWith(DevSdkIgnoreRunner.class)
+@SmallTest
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+public class NetworkAgentInfoTest {
+    private static final int TIMEOUT_MS = 1_000;
+    private static final int TEST_NET_ID = 100;
+    private static final int TEST_LINGER_DELAY_MS = 400;
+
+    @Mock ConnectivityService mConnService;
+    @Mock IDnsResolver mDnsResolver;
+    @Mock INetd mNetd;
+    @Mock Context mCtx;
+    @Mock Resources mResources;
+    @Mock QosCallbackTracker mQosCallbackTracker;
+
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private NetworkAgentInfo mNai;
+
+    @Before
+    public void setUp() {
+        MockitoAnnotations.initMocks(this);
+        when(mCtx.getResources()).thenReturn(mResources);
+        when(mCtx.getPackageName()).thenReturn("com.android.server.connectivity");
+        ConnectivityResources.setResourcesContextForTest(mCtx);
+
+        mHandlerThread = new HandlerThread("NetworkAgentInfoTest");
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mNai = new NetworkAgentInfo(null, new Network(TEST_NET_ID),
+                new NetworkInfo(TYPE_WIFI, 0, "WIFI", ""), new LinkProperties(), unmeteredCaps(),
+                new NetworkScore.Builder().setLegacyInt(50).build(), mCtx, mHandler,
+                new NetworkAgentConfig.Builder().build(), mConnService, mNetd, mDnsResolver,
+                NetworkProvider.ID_NONE, Binder.getCallingUid(), TEST_LINGER_DELAY_MS,
+                mQosCallbackTracker, new ConnectivityService.Dependencies());
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quitSafely();
+        ConnectivityResources.setResourcesContextForTest(null);
+    }
+
+    private static NetworkCapabilities unmeteredCaps() {
+        return new NetworkCapabilities()
+                .addTransportType(TRANSPORT_WIFI)
+                .addCapability(NET_CAPABILITY_NOT_METERED);
+    }
+
+    private static NetworkRequest unmeteredRequest(int requestId) {
+        return new NetworkRequest(new NetworkCapabilities.Builder()
+                .addCapability(NET_CAPABILITY_NOT_METERED)
+                .build(), TYPE_NONE, requestId, NetworkRequest.Type.REQUEST);
+    }
+
+    private <T> T runOnHandler(Supplier<T> supplier) throws Exception {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        mHandler.post(() -> {
+            try {
+                result.complete(supplier.get());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean satisfiesOnHandler(NetworkRequest request) throws Exception {
+        return runOnHandler(() -> mNai.satisfiesCapabilitiesOf(request));
+    }
+
+    // Modifies the capabilities without bumping their generation, so that memoized results
+    // can be told apart from evaluated ones.
+    private void removeNotMeteredSilently() {
+        mNai.networkCapabilities.removeCapability(NET_CAPABILITY_NOT_METERED);
+    }
+
+    @Test
+    public void testSatisfactionInvalidatedByCapabilitiesChange() throws Exception {
+        final NetworkRequest request = unmeteredRequest(1);
+        assertTrue(satisfiesOnHandler(request));
+
+        removeNotMeteredSilently();
+        assertTrue(satisfiesOnHandler(request));
+
+        runOnHandler(() -> {
+            mNai.noteNetworkCapabilitiesModified();
+            return null;
+        });
+        assertFalse(satisfiesOnHandler(request));
+
+        runOnHandler(() -> mNai.getAndSetNetworkCapabilities(unmeteredCaps()));
+        assertTrue(satisfiesOnHandler(request));
+    }
+
+    @Test
+    public void testSatisfactionForgottenOnRelease() throws Exception {
+        final NetworkRequest request = unmeteredRequest(2);
+        final NetworkRequest otherRequest = unmeteredRequest(3);
+        assertTrue(satisfiesOnHandler(request));
+        assertTrue(satisfiesOnHandler(otherRequest));
+
+        removeNotMeteredSilently();
+        runOnHandler(() -> {
+            mNai.forgetSatisfactionOf(request);
+            return null;
+        });
+        assertFalse(satisfiesOnHandler(request));
+        assertTrue(satisfiesOnHandler(otherRequest));
+    }
+
+    @Test
+    public void testSatisfactionNotMemoizedWithoutRequestId() throws Exception {
+        final NetworkRequest request = unmeteredRequest(REQUEST_ID_UNSET);
+        assertTrue(satisfiesOnHandler(request));
+
+        removeNotMeteredSilently();
+        assertFalse(satisfiesOnHandler(request));
+    }
+
+    @Test
+    public void testSatisfactionOffHandlerThread() throws Exception {
+        final NetworkRequest request = unmeteredRequest(4);
+        assertTrue(satisfiesOnHandler(request));
+
+        // Other threads do not use memoized results, and cannot modify them.
+        removeNotMeteredSilently();
+        assertFalse(mNai.satisfiesCapabilitiesOf(request));
+        assertTrue(satisfiesOnHandler(request));
+        assertThrows(IllegalStateException.class, () -> mNai.forgetSatisfactionOf(request));
+    }
+}
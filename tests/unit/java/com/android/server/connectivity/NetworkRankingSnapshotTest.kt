@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity
+
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.TRANSPORT_BLUETOOTH
+import android.net.NetworkCapabilities.TRANSPORT_CELLULAR
+import android.net.NetworkCapabilities.TRANSPORT_ETHERNET
+import android.net.NetworkCapabilities.TRANSPORT_VPN
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import android.net.NetworkRequest
+import android.net.NetworkScore.KEEP_CONNECTED_NONE
+import android.net.NetworkScore.POLICY_EXITING
+import android.net.NetworkScore.POLICY_TRANSPORT_PRIMARY
+import android.net.NetworkScore.POLICY_YIELD_TO_BAD_WIFI
+import android.os.Build
+import androidx.test.filters.SmallTest
+import com.android.server.connectivity.FullScore.POLICY_ACCEPT_UNVALIDATED
+import com.android.server.connectivity.FullScore.POLICY_EVER_USER_SELECTED
+import com.android.server.connectivity.FullScore.POLICY_EVER_VALIDATED_NOT_AVOIDED_WHEN_BAD
+import com.android.server.connectivity.FullScore.POLICY_IS_DESTROYED
+import com.android.server.connectivity.FullScore.POLICY_IS_INVINCIBLE
+import com.android.server.connectivity.FullScore.POLICY_IS_VALIDATED
+import com.android.server.connectivity.FullScore.POLICY_IS_VPN
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.random.Random
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+
+private val POLICIES = intArrayOf(POLICY_IS_VALIDATED, POLICY_IS_VPN, POLICY_EVER_USER_SELECTED,
+        POLICY_ACCEPT_UNVALIDATED, POLICY_IS_INVINCIBLE, POLICY_EVER_VALIDATED_NOT_AVOIDED_WHEN_BAD,
+        POLICY_IS_DESTROYED, POLICY_YIELD_TO_BAD_WIFI, POLICY_TRANSPORT_PRIMARY, POLICY_EXITING)
+private val TRANSPORTS = intArrayOf(TRANSPORT_CELLULAR, TRANSPORT_WIFI, TRANSPORT_BLUETOOTH,
+        TRANSPORT_ETHERNET, TRANSPORT_VPN)
+
+@SmallTest
+@RunWith(DevSdkIgnoreRunner::class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+class NetworkRankingSnapshotTest {
+    private val mRanker = NetworkRanker()
+
+    private class TestScore(private val sc: FullScore, private val nc: NetworkCapabilities)
+            : NetworkRanker.Scoreable {
+        override fun getScore() = sc
+        override fun getCapsNoCopy(): NetworkCapabilities = nc
+    }
+
+    private fun randomNetwork(random: Random): TestScore {
+        var policies = 0L
+        POLICIES.forEach { if (random.nextInt(3) == 0) policies = policies or (1L shl it) }
+        val nc = NetworkCapabilities.Builder().addTransportType(TRANSPORTS.random(random))
+        // Some networks have multiple transports.
+        if (random.nextInt(5) == 0) nc.addTransportType(TRANSPORTS.random(random))
+        return TestScore(FullScore(policies, KEEP_CONNECTED_NONE), nc.build())
+    }
+
+    private fun randomNetworks(random: Random, count: Int) = List(count) { randomNetwork(random) }
+
+    @Test
+    fun testEmpty() {
+        val snapshot = NetworkRankingSnapshot(emptyList<TestScore>())
+        assertNull(snapshot.getBestNetworkByPolicy(null))
+        assertNull(snapshot.getBestNetwork(NetworkRequest.Builder().build(), null))
+    }
+
+    @Test
+    fun testSameWinnerAsRanker() {
+        val random = Random(4242)
+        for (count in 1..20) {
+            repeat(500) {
+                val networks = randomNetworks(random, count)
+                val snapshot = NetworkRankingSnapshot(networks)
+                // Exercise the snapshot several times to make sure the working areas are reset.
+                repeat(3) {
+                    val satisfier = if (random.nextBoolean()) networks.random(random) else null
+                    assertEquals(mRanker.getBestNetworkByPolicy(networks, satisfier),
+                            snapshot.getBestNetworkByPolicy(satisfier),
+                            "Different winners for $networks, satisfier $satisfier")
+                }
+            }
+        }
+    }
+
+    @Test
+    fun testRequestFiltering() {
+        val random = Random(1789)
+        val wifiRequest = NetworkRequest.Builder()
+                .clearCapabilities()
+                .addTransportType(TRANSPORT_WIFI)
+                .build()
+        repeat(500) {
+            val networks = randomNetworks(random, random.nextInt(1, 20))
+            val snapshot = NetworkRankingSnapshot(networks)
+            val candidates = networks.filter { wifiRequest.canBeSatisfiedBy(it.capsNoCopy) }
+            val expected = when (candidates.size) {
+                0 -> null
+                1 -> candidates[0]
+                else -> mRanker.getBestNetworkByPolicy(candidates, null)
+            }
+            assertEquals(expected, snapshot.getBestNetwork(wifiRequest, null))
+        }
+    }
+
+    @Test
+    fun testInterleavedQueries() {
+        val random = Random(2022)
+        val requests = TRANSPORTS.map {
+            NetworkRequest.Builder().clearCapabilities().addTransportType(it).build()
+        } + NetworkRequest.Builder().clearCapabilities().build()
+        repeat(500) {
+            val networks = randomNetworks(random, random.nextInt(1, 20))
+            val snapshot = NetworkRankingSnapshot(networks)
+            // Alternate between requests and plain policy ranking on the same snapshot, so that
+            // every query starts from working areas left over by a different one.
+            repeat(10) {
+                val request = if (random.nextBoolean()) requests.random(random) else null
+                val candidates = if (request == null) {
+                    networks
+                } else {
+                    networks.filter { request.canBeSatisfiedBy(it.capsNoCopy) }
+                }
+                val satisfier = if (candidates.isNotEmpty() && random.nextBoolean()) {
+                    candidates.random(random)
+                } else {
+                    null
+                }
+                val expected = when (candidates.size) {
+                    0 -> null
+                    1 -> candidates[0]
+                    else -> mRanker.getBestNetworkByPolicy(candidates, satisfier)
+                }
+                val actual = if (request == null) {
+                    snapshot.getBestNetworkByPolicy(satisfier)
+                } else {
+                    snapshot.getBestNetwork(request, satisfier)
+                }
+                assertEquals(expected, actual,
+                        "Different winners for $request on $networks, satisfier $satisfier")
+            }
+        }
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity
+
+import android.net.NetworkCapabilities
+import android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET
+import android.net.NetworkCapabilities.NET_CAPABILITY_MMS
+import android.net.NetworkCapabilities.NET_CAPABILITY_NOT_VCN_MANAGED
+import android.net.NetworkCapabilities.NET_CAPABILITY_NOT_VPN
+import android.net.NetworkCapabilities.NET_CAPABILITY_VALIDATED
+import android.net.NetworkCapabilities.TRANSPORT_CELLULAR
+import android.net.NetworkCapabilities.TRANSPORT_ETHERNET
+import android.net.NetworkCapabilities.TRANSPORT_WIFI
+import android.net.NetworkRequest
+import android.os.Build
+import android.util.ArraySet
+import androidx.test.filters.SmallTest
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+
+private fun request(vararg transports: Int) = NetworkRequest.Builder().apply {
+    transports.forEach { addTransportType(it) }
+}.build()
+
+private fun caps(transport: Int, vararg capabilities: Int) =
+        NetworkCapabilities.Builder()
+                .addTransportType(transport)
+                .addCapability(NET_CAPABILITY_NOT_VCN_MANAGED)
+                .apply { capabilities.forEach { addCapability(it) } }
+                .build()
+
+@SmallTest
+@RunWith(DevSdkIgnoreRunner::class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+class NetworkRequestIndexTest {
+    private val mIndex = NetworkRequestIndex<String>()
+
+    private fun candidates(nc: NetworkCapabilities) =
+            ArraySet<String>().also { mIndex.collectCandidates(nc, it) }
+
+    @Test
+    fun testTransports() {
+        val anyRequest = request()
+        mIndex.add("any", anyRequest)
+        mIndex.add("wifi", request(TRANSPORT_WIFI))
+        mIndex.add("cell", request(TRANSPORT_CELLULAR))
+        mIndex.add("wifiOrCell", request(TRANSPORT_WIFI, TRANSPORT_CELLULAR))
+        assertEquals(4, mIndex.size())
+
+        val wifi = caps(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_VPN)
+        val cell = caps(TRANSPORT_CELLULAR, NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_VPN)
+        val eth = caps(TRANSPORT_ETHERNET, NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_VPN)
+        assertEquals(setOf("any", "wifi", "wifiOrCell"), candidates(wifi))
+        assertEquals(setOf("any", "cell", "wifiOrCell"), candidates(cell))
+        assertEquals(setOf("any"), candidates(eth))
+
+        mIndex.remove(anyRequest)
+        assertEquals(3, mIndex.size())
+        assertEquals(setOf("wifi", "wifiOrCell"), candidates(wifi))
+        assertEquals(emptySet(), candidates(eth))
+    }
+
+    @Test
+    fun testCapabilities() {
+        val mmsRequest = NetworkRequest.Builder().addCapability(NET_CAPABILITY_MMS).build()
+        val validatedRequest = NetworkRequest.Builder()
+                .addCapability(NET_CAPABILITY_VALIDATED)
+                .addTransportType(TRANSPORT_WIFI)
+                .build()
+        mIndex.add("mms", mmsRequest)
+        mIndex.add("validated", validatedRequest)
+
+        val wifi = caps(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_VPN)
+        assertEquals(emptySet(), candidates(wifi))
+        val validatedWifi = caps(TRANSPORT_WIFI, NET_CAPABILITY_INTERNET, NET_CAPABILITY_NOT_VPN,
+                NET_CAPABILITY_VALIDATED)
+        assertEquals(setOf("validated"), candidates(validatedWifi))
+        val mmsCell = caps(TRANSPORT_CELLULAR, NET_CAPABILITY_MMS, NET_CAPABILITY_INTERNET,
+                NET_CAPABILITY_NOT_VPN, NET_CAPABILITY_VALIDATED)
+        assertEquals(setOf("mms"), candidates(mmsCell))
+
+        mIndex.remove(validatedRequest)
+        mIndex.remove(validatedRequest)
+        assertEquals(1, mIndex.size())
+        assertEquals(emptySet(), candidates(validatedWifi))
+    }
+}
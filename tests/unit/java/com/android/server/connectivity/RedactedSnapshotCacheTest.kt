@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.connectivity
+
+import android.net.LinkProperties
+import android.net.NetworkCapabilities
+import android.os.Build
+import androidx.test.filters.SmallTest
+import com.android.testutils.DevSdkIgnoreRule
+import com.android.testutils.DevSdkIgnoreRunner
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+import kotlin.test.assertNull
+import kotlin.test.assertSame
+
+@SmallTest
+@RunWith(DevSdkIgnoreRunner::class)
+@DevSdkIgnoreRule.IgnoreUpTo(Build.VERSION_CODES.R)
+class RedactedSnapshotCacheTest {
+    private val mCache = RedactedSnapshotCache()
+
+    @Test
+    fun testCapabilities() {
+        val nc1 = NetworkCapabilities()
+        val nc2 = NetworkCapabilities()
+        assertNull(mCache.getCapabilities(1, 0L))
+        mCache.putCapabilities(1, 0L, nc1)
+        mCache.putCapabilities(1, 3L, nc2)
+        assertSame(nc1, mCache.getCapabilities(1, 0L))
+        assertSame(nc2, mCache.getCapabilities(1, 3L))
+        assertNull(mCache.getCapabilities(1, 5L))
+        assertEquals(2, mCache.size())
+
+        // A new generation invalidates all entries.
+        assertNull(mCache.getCapabilities(2, 0L))
+        assertNull(mCache.getCapabilities(2, 3L))
+        assertEquals(0, mCache.size())
+        mCache.putCapabilities(2, 3L, nc1)
+        assertSame(nc1, mCache.getCapabilities(2, 3L))
+    }
+
+    @Test
+    fun testLinkProperties() {
+        val lp = LinkProperties()
+        mCache.putLinkProperties(4, 1L, lp)
+        assertSame(lp, mCache.getLinkProperties(4, 1L))
+        // Capabilities and link properties generations are independent.
+        mCache.putCapabilities(7, 1L, NetworkCapabilities())
+        assertSame(lp, mCache.getLinkProperties(4, 1L))
+        mCache.putLinkProperties(5, 2L, LinkProperties())
+        assertNull(mCache.getLinkProperties(5, 1L))
+    }
+}
@@ -32,10 +32,14 @@ import static com.android.server.net.NetworkStatsFactory.kernelToTag;
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.fail;
 import static org.mockito.ArgumentMatchers.any;
-import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.content.Context;
 import android.net.NetworkStats;
@@ -59,6 +63,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -462,6 +467,25 @@ public class NetworkStatsFactoryTest extends NetworkStatsBaseTest {
         assertNoStatsEntry(stats, "wlan0", 1029, SET_DEFAULT, 0x0);
     }
 
+    @Test
+    public void testConsecutiveReadsReuseBuffers() throws Exception {
+        final NetworkStats first = factoryReadNetworkStatsDetail(R.raw.xt_qtaguid_typical);
+        assertStatsEntry(first, "rmnet1", 10021, SET_DEFAULT, 0x30100000, 219110L, 227423L);
+
+        // Stats read from bpf are incremental, so they add up across reads.
+        final NetworkStats second = factoryReadNetworkStatsDetail(R.raw.xt_qtaguid_typical);
+        assertEquals(70, second.size());
+        assertStatsEntry(second, "rmnet1", 10021, SET_DEFAULT, 0x30100000, 438220L, 454846L);
+        assertStatsEntry(second, "wlan0", 10011, SET_DEFAULT, 0x0, 71554L, 11436L);
+        // Returned snapshots are owned by the caller and are not affected by later reads.
+        assertNotSame(first, second);
+        assertStatsEntry(first, "rmnet1", 10021, SET_DEFAULT, 0x30100000, 219110L, 227423L);
+
+        final ArgumentCaptor<NetworkStats> captor = ArgumentCaptor.forClass(NetworkStats.class);
+        verify(mDeps, times(2)).readNetworkStatsDetail(captor.capture());
+        assertSame(captor.getAllValues().get(0), captor.getAllValues().get(1));
+    }
+
     private NetworkStats parseNetworkStatsFromGoldenSample(int resourceId, int initialSize,
             boolean consumeHeader, boolean checkActive, boolean isUidData) throws IOException {
         final NetworkStats stats =
@@ -532,8 +556,10 @@ public class NetworkStatsFactoryTest extends NetworkStatsBaseTest {
         final NetworkStats statsFromResource = parseNetworkStatsFromGoldenSample(resourceId,
                 24 /* initialSize */, true /* consumeHeader */, false /* checkActive */,
                 true /* isUidData */);
-        doReturn(statsFromResource).when(mDeps).getNetworkStatsDetail(anyInt(), any(),
-                anyInt());
+        doAnswer(inv -> {
+            inv.<NetworkStats>getArgument(0).copyFrom(statsFromResource);
+            return null;
+        }).when(mDeps).readNetworkStatsDetail(any());
         return mFactory.readNetworkStatsDetail();
     }
 
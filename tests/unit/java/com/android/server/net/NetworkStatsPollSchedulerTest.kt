@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net
+
+import androidx.test.filters.SmallTest
+import com.android.server.net.NetworkStatsPollScheduler.UNKNOWN_BYTES
+import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
+import com.android.testutils.DevSdkIgnoreRunner
+import com.android.testutils.SC_V2
+import org.junit.Test
+import org.junit.runner.RunWith
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+private const val SKIP_THRESHOLD = 1000L
+private const val HEAVY_THRESHOLD = 100_000L
+private const val MAX_SKIPS = 2
+
+@RunWith(DevSdkIgnoreRunner::class)
+@SmallTest
+@IgnoreUpTo(SC_V2)
+class NetworkStatsPollSchedulerTest {
+    private val scheduler = NetworkStatsPollScheduler(SKIP_THRESHOLD, HEAVY_THRESHOLD, MAX_SKIPS)
+
+    @Test
+    fun testSkipIdlePolls() {
+        // Nothing to compare to before the first poll.
+        assertTrue(scheduler.shouldPoll(0L))
+        scheduler.notePoll(0L, 10L /* durationMs */)
+
+        assertFalse(scheduler.shouldPoll(SKIP_THRESHOLD - 1))
+        assertTrue(scheduler.shouldPoll(SKIP_THRESHOLD))
+        assertEquals(1L, scheduler.skipCount)
+    }
+
+    @Test
+    fun testMaxConsecutiveSkips() {
+        scheduler.notePoll(0L, 10L /* durationMs */)
+        repeat(MAX_SKIPS) { assertFalse(scheduler.shouldPoll(0L)) }
+        assertTrue(scheduler.shouldPoll(0L))
+
+        // Any full poll resets the count.
+        scheduler.notePoll(0L, 10L /* durationMs */)
+        assertFalse(scheduler.shouldPoll(0L))
+        assertEquals(MAX_SKIPS + 1L, scheduler.skipCount)
+    }
+
+    @Test
+    fun testUnknownOrDecreasingCounters() {
+        scheduler.notePoll(UNKNOWN_BYTES, 10L /* durationMs */)
+        assertTrue(scheduler.shouldPoll(0L))
+        scheduler.notePoll(5000L, 10L /* durationMs */)
+        assertTrue(scheduler.shouldPoll(UNKNOWN_BYTES))
+        assertTrue(scheduler.shouldPoll(4000L))
+        assertEquals(0L, scheduler.skipCount)
+    }
+
+    @Test
+    fun testHeavyTraffic() {
+        scheduler.notePoll(0L, 10L /* durationMs */)
+        assertFalse(scheduler.isTrafficHeavy)
+        scheduler.notePoll(HEAVY_THRESHOLD, 10L /* durationMs */)
+        assertTrue(scheduler.isTrafficHeavy)
+        scheduler.notePoll(HEAVY_THRESHOLD + SKIP_THRESHOLD, 10L /* durationMs */)
+        assertFalse(scheduler.isTrafficHeavy)
+        // Unknown counters are never considered heavy.
+        scheduler.notePoll(UNKNOWN_BYTES, 10L /* durationMs */)
+        assertFalse(scheduler.isTrafficHeavy)
+    }
+}
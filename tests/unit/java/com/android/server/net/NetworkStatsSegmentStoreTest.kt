@@ -0,0 +1,478 @@
+/*
+ * Copyright (C) 2022 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net
+
+import android.net.ConnectivityManager.TYPE_MOBILE
+import android.net.NetworkIdentity
+import android.net.NetworkIdentitySet
+import android.net.NetworkStats
+import android.net.NetworkStats.SET_DEFAULT
+import android.net.NetworkStats.TAG_NONE
+import android.net.NetworkStatsCollection
+import android.net.TrafficStats.UID_REMOVED
+import android.os.DropBoxManager
+import android.text.format.DateUtils.DAY_IN_MILLIS
+import android.text.format.DateUtils.HOUR_IN_MILLIS
+import androidx.test.filters.SmallTest
+import com.android.internal.util.FileRotator
+import com.android.testutils.DevSdkIgnoreRule.IgnoreUpTo
+import com.android.testutils.DevSdkIgnoreRunner
+import com.android.testutils.SC_V2
+import org.junit.After
+import org.junit.Before
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.mockito.Mockito.mock
+import java.io.File
+import java.io.FileOutputStream
+import java.nio.file.Files
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertSame
+import kotlin.test.assertTrue
+
+private const val TEST_PREFIX = "test"
+private const val TEST_IMSI = "310260000000000"
+private const val TEST_IFACE = "test0"
+private const val TEST_UID = 10001
+private const val OTHER_UID = 10002
+private const val BUCKET_DURATION = HOUR_IN_MILLIS
+private const val ROTATE_AGE = DAY_IN_MILLIS
+private const val DELETE_AGE = 30 * DAY_IN_MILLIS
+// Midnight UTC, so that it is the start of a segment window.
+private const val TIME_0 = 1_640_995_200_000L
+
+@RunWith(DevSdkIgnoreRunner::class)
+@SmallTest
+@IgnoreUpTo(SC_V2)
+class NetworkStatsSegmentStoreTest {
+    private lateinit var baseDir: File
+
+    private val ident = NetworkIdentitySet().apply {
+        add(NetworkIdentity.Builder().setType(TYPE_MOBILE).setSubscriberId(TEST_IMSI).build())
+    }
+
+    @Before
+    fun setUp() {
+        baseDir = Files.createTempDirectory("tmp.NetworkStatsSegmentStoreTest.").toFile()
+    }
+
+    @After
+    fun tearDown() {
+        baseDir.deleteRecursively()
+    }
+
+    private fun makeStore() = NetworkStatsSegmentStore(baseDir, TEST_PREFIX, ROTATE_AGE,
+            DELETE_AGE, BUCKET_DURATION)
+
+    private fun makeCollection(vararg records: Triple<Int, Long, Long>) =
+            NetworkStatsCollection(BUCKET_DURATION).apply {
+                for ((uid, time, rxBytes) in records) {
+                    val entry = NetworkStats.Entry().also { it.rxBytes = rxBytes }
+                    recordData(ident, uid, SET_DEFAULT, TAG_NONE, time, time + BUCKET_DURATION,
+                            entry)
+                }
+            }
+
+    private fun NetworkStatsSegmentStore.readAll(
+        start: Long = Long.MIN_VALUE,
+        end: Long = Long.MAX_VALUE
+    ) = NetworkStatsCollection(BUCKET_DURATION).also { read(it, start, end) }
+
+    private fun NetworkStatsCollection.totalBytes(uid: Int) =
+            entries.filterKeys { it.uid == uid }.values.sumOf { it.totalBytes }
+
+    private fun segmentFiles() = baseDir.listFiles()!!.filter { it.name.startsWith(TEST_PREFIX) }
+
+    @Test
+    fun testAppendAndRead() {
+        val store = makeStore()
+        store.append(makeCollection(
+                Triple(TEST_UID, TIME_0, 100L),
+                Triple(OTHER_UID, TIME_0 + HOUR_IN_MILLIS, 200L),
+                Triple(TEST_UID, TIME_0 + DAY_IN_MILLIS, 400L)))
+        // Buckets are stored in the segment covering their start.
+        assertEquals(2, store.segmentCount)
+
+        // Appending again adds to the existing buckets.
+        store.append(makeCollection(Triple(TEST_UID, TIME_0, 1000L)))
+        assertEquals(2, store.segmentCount)
+
+        val read = makeStore().readAll()
+        assertEquals(1500L, read.totalBytes(TEST_UID))
+        assertEquals(200L, read.totalBytes(OTHER_UID))
+    }
+
+    @Test
+    fun testReadRange() {
+        val store = makeStore()
+        store.append(makeCollection(
+                Triple(TEST_UID, TIME_0, 100L),
+                Triple(TEST_UID, TIME_0 + 5 * HOUR_IN_MILLIS, 200L),
+                Triple(TEST_UID, TIME_0 + 2 * DAY_IN_MILLIS, 400L)))
+
+        assertEquals(200L, store.readAll(TIME_0 + 4 * HOUR_IN_MILLIS,
+                TIME_0 + 6 * HOUR_IN_MILLIS).totalBytes(TEST_UID))
+        assertEquals(600L, store.readAll(TIME_0 + 4 * HOUR_IN_MILLIS,
+                TIME_0 + 3 * DAY_IN_MILLIS).totalBytes(TEST_UID))
+        assertEquals(0L, store.readAll(TIME_0 + 3 * DAY_IN_MILLIS,
+                TIME_0 + 4 * DAY_IN_MILLIS).totalBytes(TEST_UID))
+    }
+
+    @Test
+    fun testTruncatedRecordIsIgnored() {
+        val store = makeStore()
+        store.append(makeCollection(Triple(TEST_UID, TIME_0, 100L)))
+        val segment = segmentFiles().single()
+        val validLength = segment.length()
+
+        // Simulate a crash in the middle of appending a bucket record.
+        FileOutputStream(segment, true /* append */).use { it.write(byteArrayOf(3, 0, 0)) }
+        assertEquals(100L, makeStore().readAll().totalBytes(TEST_UID))
+
+        // The next append overwrites the truncated record.
+        val newStore = makeStore()
+        newStore.append(makeCollection(Triple(TEST_UID, TIME_0, 10L)))
+        assertTrue(segment.length() > validLength)
+        assertEquals(110L, newStore.readAll().totalBytes(TEST_UID))
+    }
+
+    @Test
+    fun testZeroFilledTailIsTruncated() {
+        makeStore().append(makeCollection(Triple(TEST_UID, TIME_0, 100L)))
+        val segment = segmentFiles().single()
+        val validLength = segment.length()
+
+        // Simulate a power loss after the file size was updated but before the data was synced.
+        FileOutputStream(segment, true /* append */).use { it.write(ByteArray(100)) }
+        assertEquals(100L, makeStore().readAll().totalBytes(TEST_UID))
+        assertEquals(validLength, segment.length())
+
+        // A segment whose header was never synced is ignored, and overwritten by the next append.
+        segment.writeBytes(ByteArray(validLength.toInt()))
+        assertEquals(0L, makeStore().readAll().totalBytes(TEST_UID))
+        makeStore().append(makeCollection(Triple(TEST_UID, TIME_0, 10L)))
+        assertEquals(10L, makeStore().readAll().totalBytes(TEST_UID))
+    }
+
+    @Test
+    fun testReadSkipsSegmentsOutsideRange() {
+        makeStore().append(makeCollection(
+                Triple(TEST_UID, TIME_0, 100L),
+                Triple(TEST_UID, TIME_0 + 2 * DAY_IN_MILLIS, 200L),
+                Triple(TEST_UID, TIME_0 + 4 * DAY_IN_MILLIS, 400L)))
+        val (first, middle, last) =
+                segmentFiles().sortedBy { it.name.substringAfterLast('.').toLong() }
+
+        // Bucket records of segments outside of the range are never parsed : invalid records
+        // would otherwise be truncated, and an invalid header would fail the read.
+        FileOutputStream(first, true /* append */).use { it.write(byteArrayOf(42)) }
+        last.writeBytes(ByteArray(16 /* header size */) { 42 })
+        val firstLength = first.length()
+        assertEquals(200L, makeStore().readAll(TIME_0 + 2 * DAY_IN_MILLIS,
+                TIME_0 + 3 * DAY_IN_MILLIS - 1).totalBytes(TEST_UID))
+        assertEquals(firstLength, first.length())
+        assertTrue(middle.exists())
+    }
+
+    @Test
+    fun testRemoveUids() {
+        val store = makeStore()
+        store.append(makeCollection(
+                Triple(TEST_UID, TIME_0, 100L),
+                Triple(OTHER_UID, TIME_0 + DAY_IN_MILLIS, 200L)))
+        store.removeUids(intArrayOf(TEST_UID))
+
+        val read = store.readAll()
+        assertEquals(0L, read.totalBytes(TEST_UID))
+        assertEquals(100L, read.totalBytes(UID_REMOVED))
+        assertEquals(200L, read.totalBytes(OTHER_UID))
+
+        // Appending after a rewrite still works.
+        store.append(makeCollection(Triple(OTHER_UID, TIME_0, 1L)))
+        assertEquals(201L, store.readAll().totalBytes(OTHER_UID))
+    }
+
+    @Test
+    fun testRemoveDataBefore() {
+        val store = makeStore()
+        store.append(makeCollection(
+                Triple(TEST_UID, TIME_0, 100L),
+                Triple(TEST_UID, TIME_0 + 2 * DAY_IN_MILLIS, 200L)))
+        store.removeDataBefore(TIME_0 + DAY_IN_MILLIS)
+
+        assertEquals(200L, store.readAll().totalBytes(TEST_UID))
+        assertEquals(1, store.segmentCount)
+    }
+
+    @Test
+    fun testDeleteExpired() {
+        val store = makeStore()
+        store.append(makeCollection(
+                Triple(TEST_UID, TIME_0, 100L),
+                Triple(TEST_UID, TIME_0 + 10 * DAY_IN_MILLIS, 200L)))
+        assertEquals(2, store.segmentCount)
+
+        store.maybeDeleteExpired(TIME_0 + DELETE_AGE)
+        assertEquals(2, store.segmentCount)
+        store.maybeDeleteExpired(TIME_0 + DELETE_AGE + 2 * DAY_IN_MILLIS)
+        assertEquals(1, store.segmentCount)
+        assertEquals(200L, store.readAll().totalBytes(TEST_UID))
+    }
+
+    @Test
+    fun testBucketDurationChange() {
+        makeStore().append(makeCollection(Triple(TEST_UID, TIME_0, 100L)))
+
+        val store = NetworkStatsSegmentStore(baseDir, TEST_PREFIX, ROTATE_AGE, DELETE_AGE,
+                2 * BUCKET_DURATION)
+        store.append(NetworkStatsCollection(2 * BUCKET_DURATION).apply {
+            recordData(ident, TEST_UID, SET_DEFAULT, TAG_NONE, TIME_0, TIME_0 + BUCKET_DURATION,
+                    NetworkStats.Entry().also { it.rxBytes = 10L })
+        })
+        val read = store.readAll()
+        assertEquals(110L, read.totalBytes(TEST_UID))
+        read.entries.values.forEach { assertEquals(2 * BUCKET_DURATION, it.bucketDuration) }
+    }
+
+    @Test
+    fun testCompactAgedSegments() {
+        fun makeCompactingStore() = NetworkStatsSegmentStore(baseDir, TEST_PREFIX, ROTATE_AGE,
+                DELETE_AGE, BUCKET_DURATION, 2 * DAY_IN_MILLIS /* compactAgeMillis */,
+                6 * HOUR_IN_MILLIS /* compactBucketDuration */)
+        val store = makeCompactingStore()
+        store.append(makeCollection(
+                Triple(TEST_UID, TIME_0, 100L),
+                Triple(TEST_UID, TIME_0 + HOUR_IN_MILLIS, 200L),
+                Triple(OTHER_UID, TIME_0 + 7 * HOUR_IN_MILLIS, 400L),
+                Triple(TEST_UID, TIME_0 + DAY_IN_MILLIS, 800L),
+                Triple(TEST_UID, TIME_0 + 3 * DAY_IN_MILLIS, 1600L)))
+        assertEquals(3, store.segmentCount)
+
+        // Nothing is old enough yet.
+        assertFalse(store.maybeCompactOne(TIME_0 + 2 * DAY_IN_MILLIS))
+        // Only one segment is compacted per call.
+        val now = TIME_0 + 4 * DAY_IN_MILLIS
+        assertTrue(store.maybeCompactOne(now))
+        assertTrue(store.maybeCompactOne(now))
+        assertFalse(store.maybeCompactOne(now))
+
+        // Totals are preserved exactly, in coarser buckets that are spread over the buckets of
+        // the store when read.
+        val read = makeCompactingStore().readAll(TIME_0, TIME_0 + DAY_IN_MILLIS - 1)
+        assertEquals(300L, read.totalBytes(TEST_UID))
+        assertEquals(400L, read.totalBytes(OTHER_UID))
+        val history = read.entries.filterKeys { it.uid == TEST_UID }.values.single()
+        assertEquals(BUCKET_DURATION, history.bucketDuration)
+        assertEquals(6, history.size())
+        assertEquals(TIME_0, history.start)
+        for (i in 0 until 6) {
+            assertEquals(50L, history.getValues(i, null).rxBytes)
+        }
+        val all = store.readAll()
+        assertEquals(2700L, all.totalBytes(TEST_UID))
+        assertEquals(400L, all.totalBytes(OTHER_UID))
+
+        // Late data appended to a compacted segment is aligned to its buckets.
+        store.append(makeCollection(Triple(TEST_UID, TIME_0 + 2 * HOUR_IN_MILLIS, 10L)))
+        val afterAppend = makeCompactingStore().readAll(TIME_0, TIME_0 + DAY_IN_MILLIS - 1)
+        assertEquals(310L, afterAppend.totalBytes(TEST_UID))
+        assertEquals(6, afterAppend.entries.filterKeys { it.uid == TEST_UID }.values.single()
+                .size())
+
+        // Stores not configured to compact leave compacted segments readable.
+        assertEquals(2710L, makeStore().readAll().totalBytes(TEST_UID))
+    }
+
+    @Test
+    fun testRecentDataKeepsResolutionAfterCompaction() {
+        val store = NetworkStatsSegmentStore(baseDir, TEST_PREFIX, ROTATE_AGE, DELETE_AGE,
+                BUCKET_DURATION, 2 * DAY_IN_MILLIS /* compactAgeMillis */,
+                DAY_IN_MILLIS /* compactBucketDuration */)
+        store.append(makeCollection(
+                Triple(TEST_UID, TIME_0, 100L),
+                Triple(TEST_UID, TIME_0 + 5 * HOUR_IN_MILLIS, 200L),
+                Triple(TEST_UID, TIME_0 + 3 * DAY_IN_MILLIS, 1600L),
+                Triple(TEST_UID, TIME_0 + 3 * DAY_IN_MILLIS + HOUR_IN_MILLIS, 3200L),
+                Triple(TEST_UID, TIME_0 + 3 * DAY_IN_MILLIS + 5 * HOUR_IN_MILLIS, 6400L)))
+        assertTrue(store.maybeCompactOne(TIME_0 + 4 * DAY_IN_MILLIS))
+
+        // The oldest segment, read first, is compacted into daily buckets, but the history
+        // of the uid keeps the bucket duration of the store for the recent data.
+        val history = store.readAll().entries.filterKeys { it.uid == TEST_UID }.values.single()
+        assertEquals(BUCKET_DURATION, history.bucketDuration)
+        assertEquals(11500L, history.totalBytes)
+        val recentStart = TIME_0 + 3 * DAY_IN_MILLIS
+        val expected = longArrayOf(1600L, 3200L, 0L, 0L, 0L, 6400L)
+        for (i in expected.indices) {
+            val bucketStart = recentStart + i * BUCKET_DURATION
+            val entry = history.getValues(bucketStart, bucketStart + BUCKET_DURATION, null)
+            assertEquals(expected[i], entry.rxBytes, "Unexpected value for hour $i")
+        }
+        // The compacted day is spread over its 24 hourly buckets.
+        assertEquals(300L, history.getValues(TIME_0, TIME_0 + DAY_IN_MILLIS, null).rxBytes)
+        assertEquals(24, history.getIndexBefore(recentStart) + 1)
+    }
+
+    @Suppress("UNCHECKED_CAST")
+    private val observer = mock(NetworkStats.NonMonotonicObserver::class.java)
+            as NetworkStats.NonMonotonicObserver<String>
+    private val dropBox = mock(DropBoxManager::class.java)
+
+    private fun makeRotator() = FileRotator(baseDir, TEST_PREFIX, ROTATE_AGE, DELETE_AGE)
+
+    private fun makeLegacyRecorder() = NetworkStatsRecorder(makeRotator(), observer, dropBox,
+            TEST_PREFIX, BUCKET_DURATION, false /* onlyTags */, true /* wipeOnError */)
+
+    private fun makeSegmentRecorder() = NetworkStatsRecorder(makeRotator(), makeStore(),
+            observer, dropBox, TEST_PREFIX, BUCKET_DURATION, false /* onlyTags */,
+            true /* wipeOnError */)
+
+    private fun NetworkStatsRecorder.readAll() = getOrLoadCompleteLocked()
+
+    private fun uidSnapshot(hours: Long, rxBytes: Long) =
+            NetworkStats(hours * HOUR_IN_MILLIS, 1).insertEntry(TEST_IFACE, TEST_UID,
+                    SET_DEFAULT, TAG_NONE, rxBytes, 0L, 0L, 0L, 0L)
+
+    @Test
+    fun testLoadWithoutCallerLock() {
+        val lock = Object()
+        val ifaceIdent = mapOf(TEST_IFACE to ident)
+        val recorder = makeSegmentRecorder()
+        recorder.importCollectionLocked(makeCollection(Triple(TEST_UID, TIME_0, 100L)))
+        synchronized(lock) {
+            // The first snapshot is only a baseline.
+            recorder.recordSnapshotLocked(uidSnapshot(1, 0L), ifaceIdent, TIME_0)
+            recorder.recordSnapshotLocked(uidSnapshot(2, 10L), ifaceIdent,
+                    TIME_0 + HOUR_IN_MILLIS)
+            recorder.detachPendingLocked(true /* force */)
+            recorder.recordSnapshotLocked(uidSnapshot(3, 11L), ifaceIdent,
+                    TIME_0 + 2 * HOUR_IN_MILLIS)
+        }
+
+        // Persisted, detached and pending data are all loaded, and the result is cached.
+        val complete = recorder.getOrLoadComplete(lock)
+        assertEquals(111L, complete.totalBytes(TEST_UID))
+        assertSame(complete, recorder.getOrLoadComplete(lock))
+
+        recorder.persistDetached(TIME_0 + 2 * HOUR_IN_MILLIS)
+        assertEquals(110L, makeStore().readAll().totalBytes(TEST_UID))
+
+        recorder.removePersistedUids(intArrayOf(TEST_UID))
+        assertEquals(0L, makeStore().readAll().totalBytes(TEST_UID))
+        assertEquals(110L, makeStore().readAll().totalBytes(UID_REMOVED))
+        synchronized(lock) {
+            recorder.removeUidsFromMemoryLocked(intArrayOf(TEST_UID))
+        }
+        assertEquals(0L, complete.totalBytes(TEST_UID))
+        assertEquals(111L, complete.totalBytes(UID_REMOVED))
+    }
+
+    @Test
+    fun testMigrateFromRotator() {
+        val legacyRecorder = makeLegacyRecorder()
+        legacyRecorder.importCollectionLocked(makeCollection(
+                Triple(TEST_UID, TIME_0, 100L),
+                Triple(OTHER_UID, TIME_0 + 3 * DAY_IN_MILLIS, 200L)))
+
+        val recorder = makeSegmentRecorder()
+        recorder.maybeMigrateToSegmentStoreLocked()
+        // Only segment files are left.
+        assertEquals(2, segmentFiles().size)
+        assertEquals(2, makeStore().segmentCount)
+
+        val complete = recorder.getOrLoadCompleteLocked()
+        assertEquals(100L, complete.totalBytes(TEST_UID))
+        assertEquals(200L, complete.totalBytes(OTHER_UID))
+
+        // Migrating again is a no-op.
+        makeSegmentRecorder().maybeMigrateToSegmentStoreLocked()
+        assertEquals(100L, makeStore().readAll().totalBytes(TEST_UID))
+    }
+
+    @Test
+    fun testMigrateBackAndForth() {
+        makeLegacyRecorder().importCollectionLocked(makeCollection(Triple(TEST_UID, TIME_0, 1L)))
+
+        // Enabled: data in the older format is moved to segments.
+        makeSegmentRecorder().apply {
+            maybeMigrateToSegmentStoreLocked()
+            importCollectionLocked(makeCollection(Triple(TEST_UID, TIME_0 + DAY_IN_MILLIS, 10L)))
+        }
+        assertEquals(11L, makeStore().readAll().totalBytes(TEST_UID))
+
+        // Disabled: data written to segments is moved back, and segments are deleted.
+        makeLegacyRecorder().apply {
+            maybeMigrateFromSegmentStoreLocked(makeStore())
+            assertEquals(11L, readAll().totalBytes(TEST_UID))
+            assertEquals(0, makeStore().segmentCount)
+        }
+        makeLegacyRecorder().importCollectionLocked(
+                makeCollection(Triple(TEST_UID, TIME_0 + 2 * DAY_IN_MILLIS, 100L)))
+
+        // Enabled again: nothing is lost or counted twice.
+        makeSegmentRecorder().apply {
+            maybeMigrateToSegmentStoreLocked()
+            assertEquals(111L, readAll().totalBytes(TEST_UID))
+        }
+        makeSegmentRecorder().maybeMigrateToSegmentStoreLocked()
+        assertEquals(111L, makeSegmentRecorder().readAll().totalBytes(TEST_UID))
+        assertTrue(segmentFiles().none { !it.name.contains(".seg.") })
+    }
+
+    @Test
+    fun testMigrationInterruptedAfterImport() {
+        val legacy = makeCollection(Triple(TEST_UID, TIME_0, 100L))
+        makeLegacyRecorder().importCollectionLocked(legacy)
+        makeStore().append(makeCollection(Triple(OTHER_UID, TIME_0, 5L)))
+
+        // Simulate a crash after importing, before the older files are deleted.
+        makeStore().importCollection(legacy)
+        assertEquals(NetworkStatsSegmentStore.JOURNAL_IMPORTED, makeStore().journalState)
+        makeSegmentRecorder().apply {
+            maybeMigrateToSegmentStoreLocked()
+            assertEquals(100L, readAll().totalBytes(TEST_UID))
+            assertEquals(5L, readAll().totalBytes(OTHER_UID))
+        }
+        assertEquals(NetworkStatsSegmentStore.JOURNAL_NONE, makeStore().journalState)
+    }
+
+    @Test
+    fun testRollbackImport() {
+        makeStore().append(makeCollection(Triple(OTHER_UID, TIME_0, 5L)))
+
+        // Simulate a crash in the middle of an import.
+        makeStore().apply {
+            beginImport()
+            append(makeCollection(
+                    Triple(TEST_UID, TIME_0, 100L),
+                    Triple(TEST_UID, TIME_0 + DAY_IN_MILLIS, 100L)))
+        }
+        assertEquals(2, makeStore().segmentCount)
+
+        val store = makeStore()
+        assertEquals(NetworkStatsSegmentStore.JOURNAL_IMPORTING, store.journalState)
+        store.rollbackImport()
+        assertEquals(NetworkStatsSegmentStore.JOURNAL_NONE, store.journalState)
+        assertEquals(1, store.segmentCount)
+        val read = store.readAll()
+        assertEquals(0L, read.totalBytes(TEST_UID))
+        assertEquals(5L, read.totalBytes(OTHER_UID))
+        assertFailsWith<IllegalStateException> { store.rollbackImport() }
+    }
+}
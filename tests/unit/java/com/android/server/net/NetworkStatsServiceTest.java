@@ -63,14 +63,17 @@ import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
 import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
 import static com.android.server.net.NetworkStatsService.ACTION_NETWORK_STATS_POLL;
+import static com.android.server.net.NetworkStatsService.MAX_SUMMARY_STREAMS_PER_UID;
 import static com.android.server.net.NetworkStatsService.NETSTATS_IMPORT_ATTEMPTS_COUNTER_NAME;
 import static com.android.server.net.NetworkStatsService.NETSTATS_IMPORT_FALLBACKS_COUNTER_NAME;
 import static com.android.server.net.NetworkStatsService.NETSTATS_IMPORT_SUCCESSES_COUNTER_NAME;
+import static com.android.server.net.NetworkStatsService.SUMMARY_STREAM_PAGE_KEYS;
 import static com.android.testutils.DevSdkIgnoreRuleKt.SC_V2;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
@@ -110,12 +113,15 @@ import android.net.TelephonyNetworkSpecifier;
 import android.net.TetherStatsParcel;
 import android.net.TetheringManager;
 import android.net.UnderlyingNetworkInfo;
+import android.net.netstats.provider.INetworkStatsProvider;
 import android.net.netstats.provider.INetworkStatsProviderCallback;
 import android.net.wifi.WifiInfo;
+import android.os.ConditionVariable;
 import android.os.DropBoxManager;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.ParcelFileDescriptor;
 import android.os.PowerManager;
 import android.os.SimpleClock;
 import android.provider.Settings;
@@ -156,6 +162,8 @@ import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
@@ -253,6 +261,9 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
             new ArrayMap<String, NetworkStatsCollection>();
     private boolean mStoreFilesInApexData = false;
     private int mImportLegacyTargetAttempts = 0;
+    private boolean mParallelRecording = false;
+    private boolean mAdaptivePolling = false;
+    private long mTotalBytes = 0L;
     private @Mock PersistentInt mImportLegacyAttemptsCounter;
     private @Mock PersistentInt mImportLegacySuccessesCounter;
     private @Mock PersistentInt mImportLegacyFallbacksCounter;
@@ -404,6 +415,26 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
                 return mImportLegacyTargetAttempts;
             }
 
+            @Override
+            public boolean getStoreSegmentFiles() {
+                return false;
+            }
+
+            @Override
+            public boolean getParallelRecording() {
+                return mParallelRecording;
+            }
+
+            @Override
+            public boolean getAdaptivePolling() {
+                return mAdaptivePolling;
+            }
+
+            @Override
+            public long getTotalBytes() {
+                return mTotalBytes;
+            }
+
             @Override
             public PersistentInt createPersistentCounter(@androidx.annotation.NonNull Path dir,
                     @androidx.annotation.NonNull String name) throws IOException {
@@ -580,6 +611,207 @@ public class NetworkStatsServiceTest extends NetworkStatsBaseTest {
         assertNetworkTotal(sTemplateCarrierWifi1, 0L, 0L, 0L, 0L, 0);
     }
 
+    @Test
+    public void testQueriesDoNotWaitForPoll() throws Exception {
+        initWifiStats(buildWifiState());
+        incrementWifiStats(HOUR_IN_MILLIS, TEST_IFACE, 1024L, 1L, 2048L, 2L);
+
+        // Register a provider that blocks the next poll while it is asked for stats.
+        final ConditionVariable pollStarted = new ConditionVariable();
+        final ConditionVariable releasePoll = new ConditionVariable();
+        mService.registerNetworkStatsProvider("TEST", new INetworkStatsProvider.Stub() {
+            @Override
+            public void onRequestStatsUpdate(int token) {
+                pollStarted.open();
+                releasePoll.block(WAIT_TIMEOUT);
+            }
+
+            @Override
+            public void onSetAlert(long quotaBytes) {}
+
+            @Override
+            public void onSetWarningAndLimit(String iface, long warningBytes, long limitBytes) {}
+        });
+
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectDefaultSettings();
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 4096L, 4L, 8192L, 8L));
+        expectNetworkStatsUidDetail(buildEmptyStats());
+        mServiceContext.sendBroadcast(new Intent(ACTION_NETWORK_STATS_POLL));
+        assertTrue(pollStarted.block(WAIT_TIMEOUT));
+
+        // Queries return the stats recorded by the last poll without waiting for this one.
+        assertNetworkTotal(sTemplateWifi, 1024L, 1L, 2048L, 2L, 0);
+        assertNotNull(mService.getUidStatsForTransport(NetworkCapabilities.TRANSPORT_WIFI));
+
+        releasePoll.open();
+        waitForIdle();
+        assertNetworkTotal(sTemplateWifi, 4096L, 4L, 8192L, 8L, 0);
+    }
+
+    @Test
+    public void testParallelRecording() throws Exception {
+        // Enable parallel recording and reboot.
+        mParallelRecording = true;
+        mServiceContext.sendBroadcast(new Intent(Intent.ACTION_SHUTDOWN));
+        expectDefaultSettings();
+        expectNetworkStatsUidDetail(buildEmptyStats());
+        expectSystemReady();
+        mService.systemReady();
+
+        initWifiStats(buildWifiState());
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectDefaultSettings();
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 2048L, 16L, 512L, 4L));
+        expectNetworkStatsUidDetail(new NetworkStats(getElapsedRealtime(), 3)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, TAG_NONE, 1536L, 12L, 512L, 4L, 0L)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, 0xF00D, 512L, 4L, 512L, 4L, 0L)
+                .insertEntry(TEST_IFACE, UID_BLUE, SET_DEFAULT, TAG_NONE, 512L, 4L, 0L, 0L, 0L));
+        forcePollAndWaitForIdle();
+
+        // All recorders got the snapshot.
+        assertNetworkTotal(sTemplateWifi, 2048L, 16L, 512L, 4L, 0);
+        assertUidTotal(sTemplateWifi, UID_RED, 1536L, 12L, 512L, 4L, 0);
+        assertUidTotal(sTemplateWifi, UID_BLUE, 512L, 4L, 0L, 0L, 0);
+        final NetworkStats stats = mSession.getSummaryForAllUid(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, true);
+        assertValues(stats, IFACE_ALL, UID_RED, SET_DEFAULT, 0xF00D, METERED_NO, ROAMING_NO,
+                DEFAULT_NETWORK_YES, 512L, 4L, 512L, 4L, 0L);
+    }
+
+    private static NetworkStats readSummaryStream(ParcelFileDescriptor pfd) throws Exception {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new ParcelFileDescriptor.AutoCloseInputStream(pfd)))) {
+            final NetworkStats stats = new NetworkStats(0L, 24);
+            final NetworkStatsCollection.SummaryReader reader =
+                    new NetworkStatsCollection.SummaryReader(in);
+            while (reader.hasNext()) {
+                stats.insertEntry(reader.next(null /* recycle */));
+            }
+            // The writer closes the pipe after the summary.
+            assertEquals(-1, in.read());
+            return stats;
+        }
+    }
+
+    @Test
+    public void testSummaryStreamIsPaged() throws Exception {
+        // Record more UIDs than fit in a page, with tagged traffic for some of them.
+        final int uids = 2 * SUMMARY_STREAM_PAGE_KEYS + 1;
+        initWifiStats(buildWifiState());
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectDefaultSettings();
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 1024L * uids, 8L * uids, 512L * uids, 4L * uids));
+        final NetworkStats uidStats = new NetworkStats(getElapsedRealtime(), 2 * uids);
+        // Insert the UIDs in reverse order to check that the stream is sorted.
+        for (int i = uids - 1; i >= 0; i--) {
+            uidStats.insertEntry(TEST_IFACE, 10000 + i, SET_DEFAULT, TAG_NONE,
+                    1024L, 8L, 512L, 4L, 0L);
+            if (i % 2 == 0) {
+                uidStats.insertEntry(TEST_IFACE, 10000 + i, SET_DEFAULT, 0xF00D,
+                        256L, 2L, 128L, 1L, 0L);
+            }
+        }
+        expectNetworkStatsUidDetail(uidStats);
+        forcePollAndWaitForIdle();
+
+        final NetworkStats stats = readSummaryStream(mSession.openSummaryStreamForAllUid(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, false));
+        assertEquals(uids, stats.size());
+        for (int i = 0; i < uids; i++) {
+            final NetworkStats.Entry entry = stats.getValues(i, null);
+            assertEquals(10000 + i, entry.uid);
+            assertEquals(TAG_NONE, entry.tag);
+            assertEquals(1024L, entry.rxBytes);
+            assertEquals(8L, entry.rxPackets);
+            assertEquals(512L, entry.txBytes);
+            assertEquals(4L, entry.txPackets);
+        }
+
+        final NetworkStats tagStats = readSummaryStream(mSession.openTaggedSummaryStreamForAllUid(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE));
+        assertEquals(uids / 2 + 1, tagStats.size());
+        for (int i = 0; i < tagStats.size(); i++) {
+            final NetworkStats.Entry entry = tagStats.getValues(i, null);
+            assertEquals(10000 + 2 * i, entry.uid);
+            assertEquals(0xF00D, entry.tag);
+            assertEquals(256L, entry.rxBytes);
+            assertEquals(128L, entry.txBytes);
+        }
+    }
+
+    @Test
+    public void testSummaryStreamsPerUidLimit() throws Exception {
+        // Record enough UIDs that the summary does not fit in a pipe buffer, so that writers
+        // block until their stream is read.
+        final int uids = 8000;
+        initWifiStats(buildWifiState());
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        expectDefaultSettings();
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 1024L * uids, 8L * uids, 1024L * uids, 8L * uids));
+        final NetworkStats uidStats = new NetworkStats(getElapsedRealtime(), uids);
+        for (int i = 0; i < uids; i++) {
+            uidStats.insertEntry(TEST_IFACE, 10000 + i, SET_DEFAULT, TAG_NONE,
+                    1024L, 8L, 1024L, 8L, 0L);
+        }
+        expectNetworkStatsUidDetail(uidStats);
+        forcePollAndWaitForIdle();
+
+        final ParcelFileDescriptor[] streams =
+                new ParcelFileDescriptor[MAX_SUMMARY_STREAMS_PER_UID];
+        for (int i = 0; i < streams.length; i++) {
+            streams[i] = mSession.openSummaryStreamForAllUid(
+                    sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, false);
+        }
+        // Further streams are refused, so that the caller falls back to getSummaryForAllUid.
+        assertNull(mSession.openSummaryStreamForAllUid(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, false));
+
+        // Reading a stream to its end releases it.
+        assertEquals(uids, readSummaryStream(streams[0]).size());
+        final ParcelFileDescriptor pfd = mSession.openSummaryStreamForAllUid(
+                sTemplateWifi, Long.MIN_VALUE, Long.MAX_VALUE, false);
+        assertEquals(uids, readSummaryStream(pfd).size());
+        for (int i = 1; i < streams.length; i++) {
+            streams[i].close();
+        }
+    }
+
+    @Test
+    public void testAdaptivePolling_skipsIdlePeriodicPolls() throws Exception {
+        // Enable adaptive polling and reboot.
+        mAdaptivePolling = true;
+        mServiceContext.sendBroadcast(new Intent(Intent.ACTION_SHUTDOWN));
+        expectDefaultSettings();
+        expectNetworkStatsUidDetail(buildEmptyStats());
+        expectSystemReady();
+        mService.systemReady();
+
+        // The poll following the network change is never skipped, and records the total bytes.
+        initWifiStats(buildWifiState());
+
+        // Little traffic according to the total counters : the periodic poll is skipped.
+        incrementCurrentTime(HOUR_IN_MILLIS);
+        mTotalBytes += 1536L;
+        expectDefaultSettings();
+        expectNetworkStatsSummary(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, 1024L, 8L, 512L, 4L));
+        expectNetworkStatsUidDetail(new NetworkStats(getElapsedRealtime(), 1)
+                .insertEntry(TEST_IFACE, UID_RED, SET_DEFAULT, TAG_NONE, 1024L, 8L, 512L, 4L, 0L));
+        forcePollAndWaitForIdle();
+        assertNetworkTotal(sTemplateWifi, 0L, 0L, 0L, 0L, 0);
+
+        // Enough traffic : the periodic poll is performed.
+        mTotalBytes += MB_IN_BYTES;
+        forcePollAndWaitForIdle();
+        assertNetworkTotal(sTemplateWifi, 1024L, 8L, 512L, 4L, 0);
+        assertUidTotal(sTemplateWifi, UID_RED, 1024L, 8L, 512L, 4L, 0);
+    }
+
     @Test
     public void testStatsRebootPersist() throws Exception {
         assertStatsFilesExist(false);